@@ -0,0 +1,83 @@
+package be.stealingdapenta.coreai.service.codec;
+
+import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.Moshi;
+import com.squareup.moshi.Types;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import okio.Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares decoding a chat completion through a {@code Map<String, Object>}, as OpenAIApi used to, with {@link OpenAiCodec#CHAT_COMPLETION}. Run with {@code -prof gc} to see the bytes allocated per response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+
+    private static final JsonAdapter<Map<String, Object>> MAP_ADAPTER = new Moshi.Builder().build()
+                                                                                           .adapter(Types.newParameterizedType(Map.class, String.class, Object.class));
+
+    /**
+     * Length of the reply in the sample response, in characters.
+     */
+    @Param({"200", "4000"})
+    public int replyChars;
+
+    private byte[] response;
+
+    @Setup
+    public void setUp() {
+        String reply = "Creepers explode when they get close. ".repeat(replyChars / 38 + 1)
+                                                              .substring(0, replyChars);
+        String json = """
+                {"id":"chatcmpl-9x2","object":"chat.completion","created":1718000000,"model":"gpt-4o-mini-2024-07-18",
+                "choices":[{"index":0,"message":{"role":"assistant","content":"%s","refusal":null},"logprobs":null,"finish_reason":"stop"}],
+                "usage":{"prompt_tokens":412,"completion_tokens":96,"total_tokens":508,
+                "prompt_tokens_details":{"cached_tokens":0,"audio_tokens":0},
+                "completion_tokens_details":{"reasoning_tokens":0,"audio_tokens":0,"accepted_prediction_tokens":0,"rejected_prediction_tokens":0}},
+                "service_tier":"default","system_fingerprint":"fp_0ba0d124f1"}
+                """.formatted(reply);
+        response = json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public void mapDecode(Blackhole blackhole) throws IOException {
+        String body = new Buffer().write(response)
+                                  .readUtf8();
+        Map<String, Object> root = MAP_ADAPTER.fromJson(body);
+        List<Map<String, Object>> choices = (List<Map<String, Object>>) root.get("choices");
+        Map<String, Object> message = (Map<String, Object>) choices.get(0)
+                                                                   .get("message");
+        Map<String, Object> usage = (Map<String, Object>) root.get("usage");
+        blackhole.consume(message.get("content"));
+        blackhole.consume(((Number) usage.get("total_tokens")).intValue());
+    }
+
+    @Benchmark
+    public void typedDecode(Blackhole blackhole) throws IOException {
+        ChatCompletion completion = OpenAiCodec.CHAT_COMPLETION.fromJson(new Buffer().write(response));
+        blackhole.consume(completion.content());
+        blackhole.consume(completion.usage()
+                                    .totalTokens());
+    }
+}
@@ -2,9 +2,20 @@ package be.stealingdapenta.coreai;
 
 import static be.stealingdapenta.coreai.config.Config.API_KEY;
 import static be.stealingdapenta.coreai.config.Config.AUTO_CLEANUP_ENABLED;
+import static be.stealingdapenta.coreai.manager.ConversationStore.CONVERSATION_STORE;
+import static be.stealingdapenta.coreai.manager.ExecutorManager.EXECUTOR_MANAGER;
 import static be.stealingdapenta.coreai.manager.SessionManager.SESSION_MANAGER;
 import static be.stealingdapenta.coreai.map.LastSeenTracker.LAST_SEEN_TRACKER;
 import static be.stealingdapenta.coreai.map.MapStorage.MAP_STORAGE;
+import static be.stealingdapenta.coreai.service.HttpClientRegistry.HTTP_CLIENT_REGISTRY;
+import static be.stealingdapenta.coreai.service.ModelListCache.MODEL_LIST_CACHE;
+import static be.stealingdapenta.coreai.service.ModelMetadataRepository.MODEL_METADATA_REPOSITORY;
+import static be.stealingdapenta.coreai.service.OpenAIApi.OPEN_AI_API;
+import static be.stealingdapenta.coreai.service.RateLimiter.RATE_LIMITER;
+import static be.stealingdapenta.coreai.service.SemanticCache.SEMANTIC_CACHE;
+import static be.stealingdapenta.coreai.service.UsageLedger.USAGE_LEDGER;
+import static be.stealingdapenta.coreai.service.tokenizer.TokenCounter.TOKEN_COUNTER;
+import static be.stealingdapenta.coreai.util.Futures.unwrap;
 
 import be.stealingdapenta.coreai.command.ChatCommand;
 import be.stealingdapenta.coreai.command.ImageCleanupCommand;
@@ -12,6 +23,7 @@ import be.stealingdapenta.coreai.command.ImageGenMapCommand;
 import be.stealingdapenta.coreai.command.ImageMapCommand;
 import be.stealingdapenta.coreai.command.ModelCommand;
 import be.stealingdapenta.coreai.command.ModelInfoCommand;
+import be.stealingdapenta.coreai.command.StatsCommand;
 import be.stealingdapenta.coreai.gui.ModelSelectorGUI;
 import be.stealingdapenta.coreai.listener.AsyncApiKeyListener;
 import be.stealingdapenta.coreai.listener.MapUsageTrackerListener;
@@ -34,6 +46,8 @@ public class CoreAI extends JavaPlugin {
     private static final String ANSI_YELLOW = "\u001B[33m";
     private static final String ANSI_RED = "\u001B[31m";
 
+    private static final long METADATA_EVICTION_TICKS = 20L * 60 * 60; // 1 hour
+
     private static CoreAI instance;
 
     public static CoreAI getInstance() {
@@ -56,8 +70,19 @@ public class CoreAI extends JavaPlugin {
 
         validateDefaultAPIKey();
 
+        // Open a pooled connection to the API host so the first player request skips the handshake
+        OPEN_AI_API.preWarm();
+        MODEL_METADATA_REPOSITORY.load();
+        SEMANTIC_CACHE.load();
+        TOKEN_COUNTER.preload();
+        warmModelCache();
+        scheduleMetadataEviction();
+
         // Initialize the SessionManager and MapStorage
         SESSION_MANAGER.initialize();
+        CONVERSATION_STORE.start();
+        USAGE_LEDGER.start();
+        RATE_LIMITER.start();
 
         LAST_SEEN_TRACKER.load();
 
@@ -100,10 +125,37 @@ public class CoreAI extends JavaPlugin {
                .setExecutor(new ImageGenMapCommand());
         Objects.requireNonNull(getCommand("cleanup"))
                .setExecutor(new ImageCleanupCommand());
+        StatsCommand statsCommand = new StatsCommand();
+        Objects.requireNonNull(getCommand("aistats"))
+               .setExecutor(statsCommand);
+        Objects.requireNonNull(getCommand("aistats"))
+               .setTabCompleter(statsCommand);
 
         CORE_AI_LOGGER.info(ANSI_GREEN + "CoreAI ready to roll!" + ANSI_RESET);
     }
 
+    /**
+     * Fetches the server key's model list in the background, so the first /models opens from cache.
+     */
+    private void warmModelCache() {
+        if (!API_KEY.get()
+                    .isEmpty()) {
+            MODEL_LIST_CACHE.getModels(API_KEY.get())
+                            .exceptionally(error -> {
+                                CORE_AI_LOGGER.warning("Failed to warm the model list cache: " + unwrap(error).getMessage());
+                                return null;
+                            });
+        }
+    }
+
+    /**
+     * Periodically drops expired model metadata and persists the rest.
+     */
+    private void scheduleMetadataEviction() {
+        getServer().getScheduler()
+                   .runTaskTimerAsynchronously(this, MODEL_METADATA_REPOSITORY::evictExpired, METADATA_EVICTION_TICKS, METADATA_EVICTION_TICKS);
+    }
+
     private void validateDefaultAPIKey() {
         if (API_KEY.get()
                    .isEmpty()) {
@@ -124,6 +176,13 @@ public class CoreAI extends JavaPlugin {
     @Override
     public void onDisable() {
         LAST_SEEN_TRACKER.save();
+        MODEL_METADATA_REPOSITORY.save();
+        SEMANTIC_CACHE.save();
+        CONVERSATION_STORE.shutdown();
+        USAGE_LEDGER.shutdown();
+        RATE_LIMITER.shutdown();
+        HTTP_CLIENT_REGISTRY.shutdown();
+        EXECUTOR_MANAGER.shutdown();
         CORE_AI_LOGGER.info(ANSI_RED + "CoreAI disabled." + ANSI_RESET);
     }
 }
@@ -1,21 +1,40 @@
 package be.stealingdapenta.coreai.command;
 
+import static be.stealingdapenta.coreai.config.Config.STREAM_ENABLED;
 import static be.stealingdapenta.coreai.manager.SessionManager.SESSION_MANAGER;
+import static be.stealingdapenta.coreai.service.JobScheduler.JOB_SCHEDULER;
+import static be.stealingdapenta.coreai.service.JobTracker.JOB_TRACKER;
+import static be.stealingdapenta.coreai.service.ModelListCache.MODEL_LIST_CACHE;
+import static be.stealingdapenta.coreai.service.UsageLedger.USAGE_LEDGER;
+import static be.stealingdapenta.coreai.util.ChatMessages.CHAT_QUEUE_FULL;
+import static be.stealingdapenta.coreai.util.ChatMessages.HISTORY_CLEARED;
 import static be.stealingdapenta.coreai.util.ChatMessages.INVALID_API_KEY_WITH_INSTRUCTIONS;
 import static be.stealingdapenta.coreai.util.ChatMessages.MODEL_IS_THINKING;
 import static be.stealingdapenta.coreai.util.ChatMessages.MODEL_NOT_FOUND;
+import static be.stealingdapenta.coreai.util.ChatMessages.NOTHING_TO_CANCEL;
 import static be.stealingdapenta.coreai.util.ChatMessages.NO_PERMISSION;
 import static be.stealingdapenta.coreai.util.ChatMessages.PLAYERS_ONLY;
+import static be.stealingdapenta.coreai.util.ChatMessages.QUOTA_EXCEEDED;
 import static be.stealingdapenta.coreai.util.ChatMessages.chatPrompt;
 import static be.stealingdapenta.coreai.util.ChatMessages.chatResponse;
+import static be.stealingdapenta.coreai.util.ChatMessages.chatResponseContinuation;
+import static be.stealingdapenta.coreai.util.ChatMessages.jobRejected;
+import static be.stealingdapenta.coreai.util.ChatMessages.jobsCancelled;
+import static be.stealingdapenta.coreai.util.ChatMessages.queuePosition;
+import static be.stealingdapenta.coreai.util.Futures.mainThread;
+import static be.stealingdapenta.coreai.util.Futures.unwrap;
 
-import be.stealingdapenta.coreai.CoreAI;
 import be.stealingdapenta.coreai.permission.PermissionNode;
+import be.stealingdapenta.coreai.service.AiJob;
 import be.stealingdapenta.coreai.service.ChatAgent;
+import be.stealingdapenta.coreai.service.JobRejectedException;
+import be.stealingdapenta.coreai.service.JobType;
 import be.stealingdapenta.coreai.service.OpenAiException;
 import be.stealingdapenta.coreai.util.ChatMessages;
-import java.io.IOException;
-import java.util.UUID;
+import be.stealingdapenta.coreai.util.SentenceBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
@@ -24,6 +43,10 @@ import org.jetbrains.annotations.NotNull;
 
 public class ChatCommand implements CommandExecutor {
 
+    private static final int MIN_CHUNK_LENGTH = 40;
+    private static final String CANCEL = "cancel";
+    private static final String CLEAR = "clear";
+
     @Override
     public boolean onCommand(@NotNull CommandSender sender, @NotNull Command cmd, @NotNull String label, @NotNull String @NotNull [] args) {
         if (!(sender instanceof Player player)) {
@@ -37,46 +60,108 @@ public class ChatCommand implements CommandExecutor {
         if (args.length == 0) {
             return false;
         }
+        if (args.length == 1 && CANCEL.equalsIgnoreCase(args[0])) {
+            int cancelled = JOB_TRACKER.cancelAll(player.getUniqueId());
+            player.sendMessage(cancelled > 0 ? jobsCancelled(cancelled) : NOTHING_TO_CANCEL);
+            return true;
+        }
+        if (args.length == 1 && CLEAR.equalsIgnoreCase(args[0])) {
+            SESSION_MANAGER.clearHistory(player.getUniqueId());
+            player.sendMessage(HISTORY_CLEARED);
+            return true;
+        }
+
+        ChatAgent agent = SESSION_MANAGER.getAgent(player.getUniqueId());
+        // Refuse a model the player's key is known not to offer, without a round trip
+        if (MODEL_LIST_CACHE.isKnownAbsent(agent.getApiKey(), agent.getModel())) {
+            player.sendMessage(MODEL_NOT_FOUND);
+            return true;
+        }
+
+        agent.setWorld(player.getWorld()
+                            .getName());
+        // Refuse a player over quota locally, before the request takes a rate limit slot
+        if (!player.hasPermission(PermissionNode.QUOTA_BYPASS.node()) && USAGE_LEDGER.isOverQuota(player.getUniqueId(), agent.getApiKey())) {
+            player.sendMessage(QUOTA_EXCEEDED);
+            return true;
+        }
+        // The player's prompts are answered in order; refuse one that would wait behind too many others
+        if (!agent.canQueue()) {
+            player.sendMessage(CHAT_QUEUE_FULL);
+            return true;
+        }
 
         String prompt = String.join(" ", args);
         player.sendMessage(chatPrompt(player, prompt));
         player.sendMessage(MODEL_IS_THINKING);
-        UUID uuid = player.getUniqueId();
-
-        // Run the chat in an async task
-        CoreAI.getInstance()
-              .getServer()
-              .getScheduler()
-              .runTaskAsynchronously(CoreAI.getInstance(), () -> {
-                  ChatAgent agent = SESSION_MANAGER.getAgent(uuid);
-                  try {
-                      String response = agent.chat(prompt);
-                      // deliver response on the main thread
-                      CoreAI.getInstance()
-                            .getServer()
-                            .getScheduler()
-                            .runTask(CoreAI.getInstance(), () -> player.sendMessage(chatResponse(response)));
-                  } catch (OpenAiException oae) {
-                      CoreAI.getInstance()
-                            .getServer()
-                            .getScheduler()
-                            .runTask(CoreAI.getInstance(), () -> {
-                                switch (oae.getCode()) {
-                                    case "invalid_api_key" -> player.sendMessage(INVALID_API_KEY_WITH_INSTRUCTIONS);
-                                    case "model_not_found" -> player.sendMessage(MODEL_NOT_FOUND);
 
-                                    default -> player.sendMessage(ChatMessages.openAiError(oae));
-                                }
-                            });
-                  } catch (IOException ioe) {
-                      // generic network/parsing error -> also on the main thread
-                      CoreAI.getInstance()
-                            .getServer()
-                            .getScheduler()
-                            .runTask(CoreAI.getInstance(), () -> player.sendMessage(ChatMessages.ioError(ioe)));
-                  }
-              });
+        // No thread waits on the network; the outcome is delivered on the main thread, unless the job was cancelled by then
+        AiJob job = JOB_TRACKER.start(player.getUniqueId(), "Chat reply", JOB_SCHEDULER.weightOf(player));
+        job.onQueuePosition(position -> mainThread().execute(() -> player.sendActionBar(queuePosition(JobType.CHAT, position))));
+        if (STREAM_ENABLED.get()) {
+            JOB_TRACKER.track(job, streamReply(player, agent, prompt, job))
+                       .whenCompleteAsync((response, error) -> {
+                           if (error != null && !job.isCancelled()) {
+                               handleError(player, unwrap(error));
+                           }
+                       }, mainThread());
+        } else {
+            JOB_TRACKER.track(job, agent.chatAsync(prompt, job))
+                       .whenCompleteAsync((response, error) -> {
+                           if (job.isCancelled()) {
+                               return;
+                           }
+                           if (error != null) {
+                               handleError(player, unwrap(error));
+                           } else {
+                               player.sendMessage(chatResponse(response));
+                           }
+                       }, mainThread());
+        }
 
         return true;
     }
+
+    private void handleError(Player player, Throwable error) {
+        if (error instanceof OpenAiException oae) {
+            switch (oae.getCode()) {
+                case "invalid_api_key" -> player.sendMessage(INVALID_API_KEY_WITH_INSTRUCTIONS);
+                case "model_not_found" -> player.sendMessage(MODEL_NOT_FOUND);
+
+                default -> player.sendMessage(ChatMessages.openAiError(oae));
+            }
+        } else if (error instanceof JobRejectedException rejection) {
+            player.sendMessage(jobRejected(rejection));
+        } else if (error instanceof RejectedExecutionException) {
+            player.sendMessage(CHAT_QUEUE_FULL);
+        } else {
+            // generic network/parsing error
+            player.sendMessage(ChatMessages.failure(error));
+        }
+    }
+
+    /**
+     * Streams the reply and flushes it to the player sentence by sentence on the main thread. The agent adds the complete reply to its history once the stream ends.
+     */
+    private CompletableFuture<String> streamReply(Player player, ChatAgent agent, String prompt, AiJob job) {
+        SentenceBuffer buffer = new SentenceBuffer(MIN_CHUNK_LENGTH);
+        AtomicBoolean firstChunk = new AtomicBoolean(true);
+        return agent.chatStreamAsync(prompt, delta -> deliverChunk(player, buffer.append(delta), firstChunk, job), job)
+                    .thenApply(reply -> {
+                        deliverChunk(player, buffer.flush(), firstChunk, job);
+                        return reply;
+                    });
+    }
+
+    private void deliverChunk(Player player, String chunk, AtomicBoolean firstChunk, AiJob job) {
+        if (chunk == null) {
+            return;
+        }
+        boolean first = firstChunk.getAndSet(false);
+        mainThread().execute(() -> {
+            if (!job.isCancelled()) {
+                player.sendMessage(first ? chatResponse(chunk) : chatResponseContinuation(chunk));
+            }
+        });
+    }
 }
@@ -1,25 +1,37 @@
 package be.stealingdapenta.coreai.command;
 
 import static be.stealingdapenta.coreai.CoreAI.CORE_AI_LOGGER;
+import static be.stealingdapenta.coreai.manager.ExecutorManager.EXECUTOR_MANAGER;
 import static be.stealingdapenta.coreai.map.MapImageService.MAP_IMAGE_SERVICE;
 import static be.stealingdapenta.coreai.permission.PermissionNode.IMAGE_MAP;
+import static be.stealingdapenta.coreai.permission.PermissionNode.QUOTA_BYPASS;
+import static be.stealingdapenta.coreai.service.JobScheduler.JOB_SCHEDULER;
+import static be.stealingdapenta.coreai.service.JobTracker.JOB_TRACKER;
+import static be.stealingdapenta.coreai.service.UsageLedger.USAGE_LEDGER;
 import static be.stealingdapenta.coreai.util.ChatMessages.GENERATING_AI_IMAGE;
 import static be.stealingdapenta.coreai.util.ChatMessages.IMAGE_GENERATION_ERROR;
 import static be.stealingdapenta.coreai.util.ChatMessages.INVALID_API_KEY_WITH_INSTRUCTIONS;
 import static be.stealingdapenta.coreai.util.ChatMessages.INVALID_DIMENSIONS;
 import static be.stealingdapenta.coreai.util.ChatMessages.NO_PERMISSION;
 import static be.stealingdapenta.coreai.util.ChatMessages.PLAYERS_ONLY;
+import static be.stealingdapenta.coreai.util.ChatMessages.QUOTA_EXCEEDED;
 import static be.stealingdapenta.coreai.util.ChatMessages.imageMapGeneratedFromAI;
+import static be.stealingdapenta.coreai.util.ChatMessages.jobRejected;
+import static be.stealingdapenta.coreai.util.ChatMessages.queuePosition;
 import static be.stealingdapenta.coreai.util.ChatMessages.usageImageMapCommand;
+import static be.stealingdapenta.coreai.util.Futures.mainThread;
+import static be.stealingdapenta.coreai.util.Futures.unwrap;
 
-import be.stealingdapenta.coreai.CoreAI;
 import be.stealingdapenta.coreai.manager.SessionManager;
+import be.stealingdapenta.coreai.service.AiJob;
 import be.stealingdapenta.coreai.service.ChatAgent;
-import be.stealingdapenta.coreai.service.OpenAIApi;
+import be.stealingdapenta.coreai.service.CircuitBreaker;
+import be.stealingdapenta.coreai.service.JobRejectedException;
+import be.stealingdapenta.coreai.service.JobType;
+import be.stealingdapenta.coreai.service.OpenAiException;
+import be.stealingdapenta.coreai.util.ChatMessages;
 import java.awt.image.BufferedImage;
 import java.util.Arrays;
-import javax.imageio.ImageIO;
-import org.bukkit.Bukkit;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
@@ -53,6 +65,12 @@ public class ImageGenMapCommand implements CommandExecutor {
             return true;
         }
 
+        // Image generations count against the daily request quota on the server's key
+        if (!player.hasPermission(QUOTA_BYPASS.node()) && USAGE_LEDGER.isOverQuota(player.getUniqueId(), key)) {
+            player.sendMessage(QUOTA_EXCEEDED);
+            return true;
+        }
+
         int width = 1;
         int height = 1;
         String prompt;
@@ -77,30 +95,38 @@ public class ImageGenMapCommand implements CommandExecutor {
 
         player.sendMessage(GENERATING_AI_IMAGE);
 
-        Bukkit.getScheduler()
-              .runTaskAsynchronously(CoreAI.getInstance(), () -> {
-                  try {
-                      long startTime = System.currentTimeMillis();
-                      String imageUrl = OpenAIApi.OPEN_AI_API.generateImage(prompt, finalWidth * 128, finalHeight * 128, key);
-                      BufferedImage img = ImageIO.read(java.net.URI.create(imageUrl)
-                                                                   .toURL());
-                      BufferedImage scaled = MAP_IMAGE_SERVICE.resizeToGrid(img, finalWidth, finalHeight);
-                      BufferedImage[][] tiles = MAP_IMAGE_SERVICE.splitIntoTiles(scaled, finalWidth, finalHeight);
-
-                      Bukkit.getScheduler()
-                            .runTask(CoreAI.getInstance(), () -> {
-                                long endTime = System.currentTimeMillis();
-                                long duration = endTime - startTime;
-                                MAP_IMAGE_SERVICE.addMapToInventory(player, finalWidth, finalHeight, tiles);
-                                player.sendMessage(imageMapGeneratedFromAI(amount, duration));
-                            });
-
-                  } catch (Exception e) {
-                      CORE_AI_LOGGER.warning("Failed to generate AI image: " + e.getMessage());
-                      CORE_AI_LOGGER.warning(Arrays.toString(e.getStackTrace()));
-                      player.sendMessage(IMAGE_GENERATION_ERROR);
-                  }
-              });
+        long startTime = System.currentTimeMillis();
+        AiJob job = JOB_TRACKER.start(player.getUniqueId(), "Image generation", JOB_SCHEDULER.weightOf(player));
+        job.onQueuePosition(position -> mainThread().execute(() -> player.sendActionBar(queuePosition(JobType.IMAGE, position))));
+        JOB_TRACKER.track(job, JOB_SCHEDULER.submit(JobType.IMAGE, job, amount, MAP_IMAGE_SERVICE.estimateMemoryBytes(finalWidth, finalHeight),
+                                                    () -> MAP_IMAGE_SERVICE.generateImageAsync(prompt, finalWidth, finalHeight, key, job)
+                                                                           .thenApplyAsync(img -> {
+                                                                               job.checkNotCancelled();
+                                                                               BufferedImage scaled = MAP_IMAGE_SERVICE.resizeToGrid(img, finalWidth, finalHeight);
+                                                                               job.checkNotCancelled();
+                                                                               return MAP_IMAGE_SERVICE.splitIntoTiles(scaled, finalWidth, finalHeight);
+                                                                           }, EXECUTOR_MANAGER.cpu())))
+                             .whenCompleteAsync((tiles, error) -> {
+                                 if (job.isCancelled()) {
+                                     return; // the player cancelled it or left
+                                 }
+                                 if (error != null) {
+                                     Throwable cause = unwrap(error);
+                                     CORE_AI_LOGGER.warning("Failed to generate AI image: " + cause.getMessage());
+                                     CORE_AI_LOGGER.warning(Arrays.toString(cause.getStackTrace()));
+                                     if (cause instanceof OpenAiException oae && CircuitBreaker.CIRCUIT_OPEN.equals(oae.getCode())) {
+                                         player.sendMessage(ChatMessages.openAiError(oae));
+                                     } else if (cause instanceof JobRejectedException rejection) {
+                                         player.sendMessage(jobRejected(rejection));
+                                     } else {
+                                         player.sendMessage(IMAGE_GENERATION_ERROR);
+                                     }
+                                     return;
+                                 }
+                                 long duration = System.currentTimeMillis() - startTime;
+                                 MAP_IMAGE_SERVICE.addMapToInventory(player, finalWidth, finalHeight, tiles);
+                                 player.sendMessage(imageMapGeneratedFromAI(amount, duration));
+                             }, mainThread());
 
         return true;
     }
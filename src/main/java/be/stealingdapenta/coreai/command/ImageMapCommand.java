@@ -1,22 +1,29 @@
 package be.stealingdapenta.coreai.command;
 
 import static be.stealingdapenta.coreai.CoreAI.CORE_AI_LOGGER;
+import static be.stealingdapenta.coreai.manager.ExecutorManager.EXECUTOR_MANAGER;
 import static be.stealingdapenta.coreai.map.MapImageService.MAP_IMAGE_SERVICE;
 import static be.stealingdapenta.coreai.permission.PermissionNode.IMAGE_MAP;
+import static be.stealingdapenta.coreai.service.JobScheduler.JOB_SCHEDULER;
+import static be.stealingdapenta.coreai.service.JobTracker.JOB_TRACKER;
 import static be.stealingdapenta.coreai.util.ChatMessages.DOWNLOADING_IMAGE;
 import static be.stealingdapenta.coreai.util.ChatMessages.INVALID_DIMENSIONS;
 import static be.stealingdapenta.coreai.util.ChatMessages.INVALID_SIZE_NUMBER;
 import static be.stealingdapenta.coreai.util.ChatMessages.NO_PERMISSION;
 import static be.stealingdapenta.coreai.util.ChatMessages.PLAYERS_ONLY;
 import static be.stealingdapenta.coreai.util.ChatMessages.imageMapCreated;
+import static be.stealingdapenta.coreai.util.ChatMessages.jobRejected;
 import static be.stealingdapenta.coreai.util.ChatMessages.mapCreationFailure;
+import static be.stealingdapenta.coreai.util.ChatMessages.queuePosition;
 import static be.stealingdapenta.coreai.util.ChatMessages.usageImageMapCommand;
+import static be.stealingdapenta.coreai.util.Futures.mainThread;
+import static be.stealingdapenta.coreai.util.Futures.unwrap;
 
-import be.stealingdapenta.coreai.CoreAI;
+import be.stealingdapenta.coreai.service.AiJob;
+import be.stealingdapenta.coreai.service.JobRejectedException;
+import be.stealingdapenta.coreai.service.JobType;
 import java.awt.image.BufferedImage;
 import java.util.Arrays;
-import javax.imageio.ImageIO;
-import org.bukkit.Bukkit;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
@@ -72,30 +79,35 @@ public class ImageMapCommand implements CommandExecutor {
         final int finalWidth = width;
         final int finalHeight = height;
 
-        Bukkit.getScheduler()
-              .runTaskAsynchronously(CoreAI.getInstance(), () -> {
-                  try {
-                      BufferedImage img = ImageIO.read(java.net.URI.create(url)
-                                                                   .toURL());
-                      if (img == null) {
-                          throw new IllegalArgumentException("Invalid image format or unreachable URL.");
-                      }
-
-                      BufferedImage gridImage = MAP_IMAGE_SERVICE.resizeToGrid(img, finalWidth, finalHeight);
-                      BufferedImage[][] tiles = MAP_IMAGE_SERVICE.splitIntoTiles(gridImage, finalWidth, finalHeight);
-
-                      Bukkit.getScheduler()
-                            .runTask(CoreAI.getInstance(), () -> {
-                                MAP_IMAGE_SERVICE.addMapToInventory(player, finalWidth, finalHeight, tiles);
-
-                                player.sendMessage(imageMapCreated((finalWidth * finalHeight)));
-                            });
-                  } catch (Exception e) {
-                      CORE_AI_LOGGER.warning("Failed to process image map: " + e.getMessage());
-                      CORE_AI_LOGGER.warning(Arrays.toString(e.getStackTrace()));
-                      player.sendMessage(mapCreationFailure(e.getMessage()));
-                  }
-              });
+        AiJob job = JOB_TRACKER.start(player.getUniqueId(), "Image download", JOB_SCHEDULER.weightOf(player));
+        job.onQueuePosition(position -> mainThread().execute(() -> player.sendActionBar(queuePosition(JobType.IMAGE, position))));
+        JOB_TRACKER.track(job, JOB_SCHEDULER.submit(JobType.IMAGE, job, finalWidth * finalHeight, MAP_IMAGE_SERVICE.estimateMemoryBytes(finalWidth, finalHeight),
+                                                    () -> MAP_IMAGE_SERVICE.downloadImageAsync(url, job)
+                                                                           .thenApplyAsync(img -> {
+                                                                               job.checkNotCancelled();
+                                                                               BufferedImage gridImage = MAP_IMAGE_SERVICE.resizeToGrid(img, finalWidth, finalHeight);
+                                                                               job.checkNotCancelled();
+                                                                               return MAP_IMAGE_SERVICE.splitIntoTiles(gridImage, finalWidth, finalHeight);
+                                                                           }, EXECUTOR_MANAGER.cpu())))
+                         .whenCompleteAsync((tiles, error) -> {
+                             if (job.isCancelled()) {
+                                 return; // the player cancelled it or left
+                             }
+                             if (error != null) {
+                                 Throwable cause = unwrap(error);
+                                 CORE_AI_LOGGER.warning("Failed to process image map: " + cause.getMessage());
+                                 CORE_AI_LOGGER.warning(Arrays.toString(cause.getStackTrace()));
+                                 if (cause instanceof JobRejectedException rejection) {
+                                     player.sendMessage(jobRejected(rejection));
+                                 } else {
+                                     player.sendMessage(mapCreationFailure(cause.getMessage()));
+                                 }
+                                 return;
+                             }
+                             MAP_IMAGE_SERVICE.addMapToInventory(player, finalWidth, finalHeight, tiles);
+
+                             player.sendMessage(imageMapCreated((finalWidth * finalHeight)));
+                         }, mainThread());
 
         return true;
     }
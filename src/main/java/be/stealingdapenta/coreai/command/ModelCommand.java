@@ -4,18 +4,19 @@ import static be.stealingdapenta.coreai.util.ChatMessages.FETCHING_MODELS;
 import static be.stealingdapenta.coreai.util.ChatMessages.INVALID_API_KEY_WITH_INSTRUCTIONS;
 import static be.stealingdapenta.coreai.util.ChatMessages.NO_PERMISSION;
 import static be.stealingdapenta.coreai.util.ChatMessages.PLAYERS_ONLY;
+import static be.stealingdapenta.coreai.util.Futures.mainThread;
+import static be.stealingdapenta.coreai.util.Futures.unwrap;
 
-import be.stealingdapenta.coreai.CoreAI;
 import be.stealingdapenta.coreai.gui.ModelSelectorGUI;
 import be.stealingdapenta.coreai.manager.SessionManager;
 import be.stealingdapenta.coreai.permission.PermissionNode;
 import be.stealingdapenta.coreai.service.ChatAgent;
 import be.stealingdapenta.coreai.service.OpenAiException;
 import be.stealingdapenta.coreai.util.ChatMessages;
-import java.io.IOException;
 import java.util.List;
 import java.util.UUID;
-import org.bukkit.Bukkit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
@@ -23,7 +24,7 @@ import org.bukkit.entity.Player;
 import org.jetbrains.annotations.NotNull;
 
 /**
- * /models command: fetches available models and opens the selection GUI.
+ * /models command: fetches available models (cached per API key) and opens the selection GUI.
  */
 public class ModelCommand implements CommandExecutor {
 
@@ -45,7 +46,6 @@ public class ModelCommand implements CommandExecutor {
         }
 
         UUID uuid = player.getUniqueId();
-        player.sendMessage(FETCHING_MODELS);
 
         // Get the player's agent (includes key and stored model)
         ChatAgent agent = SessionManager.SESSION_MANAGER.getAgent(uuid);
@@ -55,43 +55,30 @@ public class ModelCommand implements CommandExecutor {
             return true;
         }
 
-        // Async: test API key then list models
-        Bukkit.getScheduler()
-              .runTaskAsynchronously(CoreAI.getInstance(), () -> {
-                  // 1) Validate key
-                  try {
-                      agent.testKey();
-                  } catch (OpenAiException oae) {
-                      Bukkit.getScheduler()
-                            .runTask(CoreAI.getInstance(), () -> {
-                                if ("invalid_api_key" .equals(oae.getCode())) {
-                                    player.sendMessage(INVALID_API_KEY_WITH_INSTRUCTIONS);
-                                } else {
-                                    player.sendMessage(ChatMessages.openAiError(oae));
-                                }
-                            });
-                      return;
-                  } catch (IOException ioe) {
-                      Bukkit.getScheduler()
-                            .runTask(CoreAI.getInstance(), () -> player.sendMessage(ChatMessages.ioError(ioe)));
-                      return;
-                  }
-
-                  // 2) Fetch model list
-                  List<String> models;
-                  try {
-                      models = agent.listModels();
-                  } catch (OpenAiException oae) {
-                      Bukkit.getScheduler()
-                            .runTask(CoreAI.getInstance(), () -> player.sendMessage(ChatMessages.openAiError(oae)));
-                      return;
-                  }
-
-                  // 3) Open GUI on the main thread
-                  Bukkit.getScheduler()
-                        .runTask(CoreAI.getInstance(), () -> gui.openModelGui(player, models));
-              });
+        // Listing the models also proves the key is valid; a cached list is already complete, so the GUI opens this tick
+        CompletableFuture<List<String>> models = agent.listModelsAsync();
+        if (models.state() == Future.State.SUCCESS) {
+            gui.openModelGui(player, models.resultNow());
+            return true;
+        }
+        if (!models.isDone()) {
+            player.sendMessage(FETCHING_MODELS);
+        }
+        models.whenCompleteAsync((list, error) -> handleModels(player, list, error), mainThread());
 
         return true;
     }
+
+    private void handleModels(Player player, List<String> models, Throwable error) {
+        if (error == null) {
+            gui.openModelGui(player, models);
+            return;
+        }
+        Throwable cause = unwrap(error);
+        if (cause instanceof OpenAiException oae && "invalid_api_key".equals(oae.getCode())) {
+            player.sendMessage(INVALID_API_KEY_WITH_INSTRUCTIONS);
+        } else {
+            player.sendMessage(ChatMessages.failure(cause));
+        }
+    }
 }
@@ -1,25 +1,23 @@
 package be.stealingdapenta.coreai.command;
 
 import static be.stealingdapenta.coreai.manager.SessionManager.SESSION_MANAGER;
-import static be.stealingdapenta.coreai.service.OpenAIApi.OPEN_AI_API;
+import static be.stealingdapenta.coreai.service.ModelMetadataRepository.MODEL_METADATA_REPOSITORY;
 import static be.stealingdapenta.coreai.util.ChatMessages.INVALID_API_KEY_WITH_INSTRUCTIONS;
 import static be.stealingdapenta.coreai.util.ChatMessages.NO_PERMISSION;
 import static be.stealingdapenta.coreai.util.ChatMessages.PLAYERS_ONLY;
+import static be.stealingdapenta.coreai.util.ChatMessages.failure;
 import static be.stealingdapenta.coreai.util.ChatMessages.fetchingModelInfo;
-import static be.stealingdapenta.coreai.util.ChatMessages.ioError;
 import static be.stealingdapenta.coreai.util.ChatMessages.modelInfo;
-import static be.stealingdapenta.coreai.util.ChatMessages.openAiError;
+import static be.stealingdapenta.coreai.util.Futures.mainThread;
+import static be.stealingdapenta.coreai.util.Futures.unwrap;
 import static net.kyori.adventure.text.format.NamedTextColor.AQUA;
 
-import be.stealingdapenta.coreai.CoreAI;
 import be.stealingdapenta.coreai.permission.PermissionNode;
 import be.stealingdapenta.coreai.service.ChatAgent;
-import be.stealingdapenta.coreai.service.OpenAiException;
-import java.io.IOException;
-import java.util.Map;
+import be.stealingdapenta.coreai.service.codec.ModelInfo;
+import java.util.Optional;
 import java.util.UUID;
 import net.kyori.adventure.text.Component;
-import org.bukkit.Bukkit;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
@@ -27,7 +25,7 @@ import org.bukkit.entity.Player;
 import org.jetbrains.annotations.NotNull;
 
 /**
- * /modelinfo command: fetches and displays detailed info for the player's current AI model.
+ * /modelinfo command: displays detailed info for the player's current AI model, from the local metadata repository when possible.
  */
 public class ModelInfoCommand implements CommandExecutor {
 
@@ -52,34 +50,35 @@ public class ModelInfoCommand implements CommandExecutor {
             return true;
         }
 
+        // Answer straight from memory when the metadata is known
+        Optional<ModelInfo> cached = MODEL_METADATA_REPOSITORY.get(modelId);
+        if (cached.isPresent()) {
+            showModelInfo(player, modelId, cached.get());
+            return true;
+        }
+
         player.sendMessage(fetchingModelInfo(modelId));
 
-        // Async fetch model info
-        Bukkit.getScheduler()
-              .runTaskAsynchronously(CoreAI.getInstance(), () -> {
-                  try {
-                      Map<String, Object> info = OPEN_AI_API.getModelInfo(apiKey, modelId);
-                      // On success, display all fields
-                      Bukkit.getScheduler()
-                            .runTask(CoreAI.getInstance(), () -> {
-                                player.sendMessage(modelInfo(modelId));
-                                info.forEach((key, value) -> {
-                                    player.sendMessage(Component.text(key + ": " + value, AQUA));
-                                });
-                            });
-                  } catch (OpenAiException oae) {
-                      Bukkit.getScheduler()
-                            .runTask(CoreAI.getInstance(), () -> {
-                                player.sendMessage(openAiError(oae));
-                            });
-                  } catch (IOException ioe) {
-                      Bukkit.getScheduler()
-                            .runTask(CoreAI.getInstance(), () -> {
-                                player.sendMessage(ioError(ioe));
-                            });
-                  }
-              });
+        // Fetch model info without parking a thread, then display on the main thread
+        MODEL_METADATA_REPOSITORY.getOrFetch(apiKey, modelId)
+                                 .whenCompleteAsync((info, error) -> {
+                                     if (error == null) {
+                                         showModelInfo(player, modelId, info);
+                                         return;
+                                     }
+                                     player.sendMessage(failure(unwrap(error)));
+                                 }, mainThread());
 
         return true;
     }
+
+    private void showModelInfo(Player player, String modelId, ModelInfo info) {
+        player.sendMessage(modelInfo(modelId));
+        player.sendMessage(Component.text("id: " + info.id(), AQUA));
+        player.sendMessage(Component.text("object: " + info.object(), AQUA));
+        player.sendMessage(Component.text("created: " + info.created(), AQUA));
+        player.sendMessage(Component.text("owned_by: " + info.ownedBy(), AQUA));
+        info.extra()
+            .forEach((key, value) -> player.sendMessage(Component.text(key + ": " + value, AQUA)));
+    }
 }
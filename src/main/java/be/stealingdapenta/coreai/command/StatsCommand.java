@@ -0,0 +1,357 @@
+package be.stealingdapenta.coreai.command;
+
+import static be.stealingdapenta.coreai.config.Config.ADAPTIVE_TIMEOUT_PERCENTILE;
+import static be.stealingdapenta.coreai.manager.ConversationStore.CONVERSATION_STORE;
+import static be.stealingdapenta.coreai.manager.ExecutorManager.EXECUTOR_MANAGER;
+import static be.stealingdapenta.coreai.manager.SessionManager.SESSION_MANAGER;
+import static be.stealingdapenta.coreai.permission.PermissionNode.STATS;
+import static be.stealingdapenta.coreai.service.AdaptiveTimeouts.ADAPTIVE_TIMEOUTS;
+import static be.stealingdapenta.coreai.service.HistoryCompactor.HISTORY_COMPACTOR;
+import static be.stealingdapenta.coreai.service.HttpClientRegistry.HTTP_CLIENT_REGISTRY;
+import static be.stealingdapenta.coreai.service.ImageGenerationMetrics.IMAGE_GENERATION_METRICS;
+import static be.stealingdapenta.coreai.service.JobScheduler.JOB_SCHEDULER;
+import static be.stealingdapenta.coreai.service.JobTracker.JOB_TRACKER;
+import static be.stealingdapenta.coreai.service.ModelListCache.MODEL_LIST_CACHE;
+import static be.stealingdapenta.coreai.service.ModelMetadataRepository.MODEL_METADATA_REPOSITORY;
+import static be.stealingdapenta.coreai.service.ModelRouter.MODEL_ROUTER;
+import static be.stealingdapenta.coreai.service.PromptCacheMetrics.PROMPT_CACHE_METRICS;
+import static be.stealingdapenta.coreai.service.RateLimiter.RATE_LIMITER;
+import static be.stealingdapenta.coreai.service.RequestHedger.REQUEST_HEDGER;
+import static be.stealingdapenta.coreai.service.ResponseCache.RESPONSE_CACHE;
+import static be.stealingdapenta.coreai.service.SemanticCache.SEMANTIC_CACHE;
+import static be.stealingdapenta.coreai.service.UsageLedger.USAGE_LEDGER;
+import static be.stealingdapenta.coreai.service.tokenizer.TokenCounter.TOKEN_COUNTER;
+import static be.stealingdapenta.coreai.util.ChatMessages.NO_PERMISSION;
+import static be.stealingdapenta.coreai.util.ChatMessages.breakersReset;
+import static be.stealingdapenta.coreai.util.ChatMessages.statsHeader;
+import static be.stealingdapenta.coreai.util.ChatMessages.statsLine;
+import static be.stealingdapenta.coreai.util.ChatMessages.unknownEndpoint;
+import static be.stealingdapenta.coreai.util.ChatMessages.unknownStatsSection;
+
+import be.stealingdapenta.coreai.manager.ConversationStore.StoreStats;
+import be.stealingdapenta.coreai.manager.ExecutorManager.ExecutorStats;
+import be.stealingdapenta.coreai.manager.SessionManager.SessionStats;
+import be.stealingdapenta.coreai.service.AdaptiveTimeouts.TimeoutStats;
+import be.stealingdapenta.coreai.service.ApiEndpoint;
+import be.stealingdapenta.coreai.service.CircuitBreaker.BreakerStats;
+import be.stealingdapenta.coreai.service.HistoryCompactor.CompactionStats;
+import be.stealingdapenta.coreai.service.HttpClientRegistry.PoolStats;
+import be.stealingdapenta.coreai.service.ImageGenerationMetrics.PathStats;
+import be.stealingdapenta.coreai.service.JobScheduler.LaneStats;
+import be.stealingdapenta.coreai.service.JobTracker.JobStats;
+import be.stealingdapenta.coreai.service.ModelListCache.CacheStats;
+import be.stealingdapenta.coreai.service.ModelMetadataRepository.MetadataStats;
+import be.stealingdapenta.coreai.service.ModelRouter.ModelRouteStats;
+import be.stealingdapenta.coreai.service.ModelRouter.RouterStats;
+import be.stealingdapenta.coreai.service.PromptCacheMetrics.ModelCacheStats;
+import be.stealingdapenta.coreai.service.RateLimiter.KeyStats;
+import be.stealingdapenta.coreai.service.RateLimiter.RateLimitStats;
+import be.stealingdapenta.coreai.service.RequestHedger.HedgeStats;
+import be.stealingdapenta.coreai.service.RequestHedger.ModelLatency;
+import be.stealingdapenta.coreai.service.RetryBudget.BudgetStats;
+import be.stealingdapenta.coreai.service.ResponseCache.ResponseCacheStats;
+import be.stealingdapenta.coreai.service.SemanticCache.SemanticCacheStats;
+import be.stealingdapenta.coreai.service.UsageLedger.PlayerUsage;
+import be.stealingdapenta.coreai.service.UsageLedger.UsageStats;
+import be.stealingdapenta.coreai.service.tokenizer.Encoding;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import net.kyori.adventure.text.Component;
+import org.bukkit.Bukkit;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
+import org.bukkit.command.TabExecutor;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * /aistats [section] command: shows runtime metrics of CoreAI's internals to administrators. {@code /aistats breakers reset [endpoint]} closes open circuit breakers.
+ */
+public class StatsCommand implements TabExecutor {
+
+    private static final int TOP_PLAYERS = 5;
+    private static final String BREAKERS = "breakers";
+    private static final String RESET = "reset";
+
+    private final Map<String, Supplier<List<Component>>> sections = new LinkedHashMap<>();
+
+    public StatsCommand() {
+        sections.put("http", StatsCommand::httpStats);
+        sections.put("executors", StatsCommand::executorStats);
+        sections.put("models", StatsCommand::modelCacheStats);
+        sections.put("metadata", StatsCommand::metadataStats);
+        sections.put("ratelimit", StatsCommand::rateLimitStats);
+        sections.put(BREAKERS, StatsCommand::breakerStats);
+        sections.put("retries", StatsCommand::retryStats);
+        sections.put("timeouts", StatsCommand::timeoutStats);
+        sections.put("responses", StatsCommand::responseCacheStats);
+        sections.put("semantic", StatsCommand::semanticCacheStats);
+        sections.put("tokenizer", StatsCommand::tokenizerStats);
+        sections.put("summary", StatsCommand::compactionStats);
+        sections.put("conversations", StatsCommand::conversationStoreStats);
+        sections.put("sessions", StatsCommand::sessionStats);
+        sections.put("jobs", StatsCommand::jobStats);
+        sections.put("scheduler", StatsCommand::schedulerStats);
+        sections.put("hedging", StatsCommand::hedgeStats);
+        sections.put("routing", StatsCommand::routingStats);
+        sections.put("images", StatsCommand::imageStats);
+        sections.put("promptcache", StatsCommand::promptCacheStats);
+        sections.put("usage", StatsCommand::usageStats);
+    }
+
+    private static List<Component> httpStats() {
+        PoolStats stats = HTTP_CLIENT_REGISTRY.stats();
+        return List.of(statsLine("Idle connections", stats.idleConnections()), statsLine("Active connections", stats.activeConnections()), statsLine("Connections created", stats.createdTotal()),
+                       statsLine("Connections reused", stats.reusedTotal()), statsLine("Running calls", stats.runningCalls()), statsLine("Queued calls", stats.queuedCalls()));
+    }
+
+    private static List<Component> executorStats() {
+        ExecutorStats stats = EXECUTOR_MANAGER.stats();
+        return List.of(statsLine("I/O tasks running", stats.ioActive()), statsLine("I/O tasks completed", stats.ioCompleted()), statsLine("CPU threads", stats.cpuThreads()), statsLine("CPU tasks running", stats.cpuActive()),
+                       statsLine("CPU queue depth", stats.cpuQueued()), statsLine("CPU tasks completed", stats.cpuCompleted()));
+    }
+
+    private static List<Component> modelCacheStats() {
+        CacheStats stats = MODEL_LIST_CACHE.stats();
+        return List.of(statsLine("Cached keys", stats.keys()), statsLine("Fresh hits", stats.hits()), statsLine("Stale hits", stats.staleHits()), statsLine("Misses", stats.misses()),
+                       statsLine("Coalesced lookups", stats.coalesced()), statsLine("API fetches", stats.fetches()));
+    }
+
+    private static List<Component> metadataStats() {
+        MetadataStats stats = MODEL_METADATA_REPOSITORY.stats();
+        return List.of(statsLine("Known models", stats.models()), statsLine("Local hits", stats.hits()), statsLine("Misses", stats.misses()));
+    }
+
+    private static List<Component> rateLimitStats() {
+        RateLimitStats stats = RATE_LIMITER.stats();
+        List<Component> lines = new ArrayList<>(List.of(statsLine("Granted", stats.granted()), statsLine("Had to wait", stats.queued()), statsLine("Rejected", stats.rejected()), statsLine("429s received", stats.throttled()),
+                                                        statsLine("Average wait (ms)", stats.avgWaitMs()), statsLine("Longest wait (ms)", stats.maxWaitMs())));
+        for (KeyStats key : stats.keys()) {
+            lines.add(statsLine("Key " + key.keyHash()
+                                            .substring(0, 8), key.requestsAvailable() + "/" + key.requestsPerMinute() + " rpm, " + key.tokensAvailable() + "/" + key.tokensPerMinute() + " tpm, " + key.waiting() + " waiting"));
+        }
+        return lines;
+    }
+
+    private static List<Component> breakerStats() {
+        List<Component> lines = new ArrayList<>();
+        for (ApiEndpoint endpoint : ApiEndpoint.values()) {
+            BreakerStats stats = endpoint.breaker()
+                                         .stats();
+            lines.add(statsLine(stats.name(), stats.state() + ", " + stats.failures() + " failed / " + stats.slowCalls() + " slow of " + stats.recorded() + ", " + stats.rejected() + " refused, opened " + stats.timesOpened() + "x"));
+        }
+        return lines;
+    }
+
+    private static List<Component> retryStats() {
+        List<Component> lines = new ArrayList<>();
+        for (ApiEndpoint endpoint : ApiEndpoint.values()) {
+            BudgetStats stats = endpoint.retryBudget()
+                                        .stats();
+            lines.add(statsLine(stats.name(), String.format("%d retried, %d refused by the budget, %.1f available", stats.retries(), stats.refused(), stats.balance())));
+        }
+        return lines;
+    }
+
+    private static List<Component> timeoutStats() {
+        List<Component> lines = new ArrayList<>();
+        for (TimeoutStats stats : ADAPTIVE_TIMEOUTS.stats()) {
+            lines.add(statsLine(stats.key(), String.format("median %d ms, p%d %d ms, timeout %s over %d samples", stats.medianMs(), ADAPTIVE_TIMEOUT_PERCENTILE.get(), stats.percentileMs(),
+                                                           stats.timeoutMs() < 0 ? "as configured" : stats.timeoutMs() + " ms", stats.samples())));
+        }
+        return lines;
+    }
+
+    private static List<Component> responseCacheStats() {
+        ResponseCacheStats stats = RESPONSE_CACHE.stats();
+        return List.of(statsLine("Enabled", stats.enabled()), statsLine("Cached replies", stats.entries()), statsLine("Hits", stats.hits()), statsLine("Shared in-flight", stats.coalesced()), statsLine("Misses", stats.misses()),
+                       statsLine("Hit ratio", String.format("%.1f%%", stats.hitRatio() * 100)), statsLine("Latency saved (s)", stats.savedLatencyMs() / 1000));
+    }
+
+    private static List<Component> semanticCacheStats() {
+        SemanticCacheStats stats = SEMANTIC_CACHE.stats();
+        return List.of(statsLine("Enabled", stats.enabled()), statsLine("Cached replies", stats.entries()), statsLine("Awaiting rebuild", stats.tombstones()), statsLine("Memory (KB)", stats.residentBytes() / 1024),
+                       statsLine("Hits", stats.hits()), statsLine("Misses", stats.misses()), statsLine("Hit ratio", String.format("%.1f%%", stats.hitRatio() * 100)), statsLine("Embedding failures", stats.embeddingFailures()),
+                       statsLine("Evictions", stats.evictions()), statsLine("Latency saved (s)", stats.savedLatencyMs() / 1000));
+    }
+
+    private static List<Component> tokenizerStats() {
+        List<Component> lines = new ArrayList<>();
+        for (Encoding encoding : Encoding.values()) {
+            lines.add(statsLine(encoding.id(), TOKEN_COUNTER.isExact(encoding) ? "exact" : "estimated"));
+        }
+        return lines;
+    }
+
+    private static List<Component> compactionStats() {
+        CompactionStats stats = HISTORY_COMPACTOR.stats();
+        return List.of(statsLine("Enabled", stats.enabled()), statsLine("Summaries", stats.compactions()), statsLine("Failed", stats.failures()), statsLine("Messages folded", stats.messagesFolded()),
+                       statsLine("Summary tokens", stats.summaryTokensSpent()), statsLine("Prompt tokens saved", stats.promptTokensSaved()), statsLine("Net tokens saved", stats.netTokensSaved()));
+    }
+
+    private static List<Component> conversationStoreStats() {
+        StoreStats stats = CONVERSATION_STORE.stats();
+        return List.of(statsLine("Enabled", stats.enabled()), statsLine("Open logs", stats.openLogs()), statsLine("Queued records", stats.queuedRecords()), statsLine("Records written", stats.recordsWritten()),
+                       statsLine("Disk syncs", stats.syncs()), statsLine("Logs compacted", stats.rewrites()),
+                       statsLine("Logs expired", stats.expired()));
+    }
+
+    private static List<Component> sessionStats() {
+        SessionStats stats = SESSION_MANAGER.stats();
+        return List.of(statsLine("Sessions", stats.sessions()), statsLine("Memory (KB)", stats.residentBytes() / 1024), statsLine("Hits", stats.hits()), statsLine("Misses", stats.misses()),
+                       statsLine("Hit ratio", String.format("%.1f%%", stats.hitRatio() * 100)), statsLine("Evicted (idle)", stats.idleEvictions()), statsLine("Evicted (size)", stats.sizeEvictions()),
+                       statsLine("Evicted (memory)", stats.memoryEvictions()));
+    }
+
+    private static List<Component> jobStats() {
+        JobStats stats = JOB_TRACKER.stats();
+        return List.of(statsLine("Running", stats.running()), statsLine("Started", stats.started()), statsLine("Cancelled", stats.cancelled()));
+    }
+
+    private static List<Component> hedgeStats() {
+        HedgeStats stats = REQUEST_HEDGER.stats();
+        List<Component> lines = new ArrayList<>(List.of(statsLine("Enabled", stats.enabled()), statsLine("Requests", stats.requests()), statsLine("Hedged", stats.hedged()),
+                                                        statsLine("Hedge ratio", String.format("%.1f%%", stats.hedgeRatio() * 100)), statsLine("Hedges that won", stats.hedgeWins()),
+                                                        statsLine("Latency saved (s)", stats.latencySavedMs() / 1000)));
+        for (ModelLatency model : stats.models()) {
+            lines.add(statsLine(model.model() + (model.firstToken() ? " (first token)" : " (reply)"), model.thresholdMs() + " ms over " + model.samples() + " samples"));
+        }
+        return lines;
+    }
+
+    private static List<Component> routingStats() {
+        RouterStats stats = MODEL_ROUTER.stats();
+        List<Component> lines = new ArrayList<>(List.of(statsLine("Enabled", stats.enabled()), statsLine("Sent to the fast model", stats.simple()), statsLine("Kept on the chosen model", stats.complex()),
+                                                        statsLine("Steered from a degraded model", stats.degraded()), statsLine("Latency saved (s)", stats.latencySavedMs() / 1000)));
+        for (ModelRouteStats model : stats.models()) {
+            lines.add(statsLine(model.model(), String.format("%d requests, %d failed, %d ms recent / %d ms usual, %d tokens%s", model.requests(), model.failures(), model.recentMs(), model.baselineMs(), model.tokens(),
+                                                             model.degraded() ? ", degraded" : "")));
+        }
+        return lines;
+    }
+
+    private static List<Component> imageStats() {
+        List<Component> lines = new ArrayList<>();
+        for (PathStats stats : IMAGE_GENERATION_METRICS.stats()) {
+            lines.add(statsLine(stats.path(), String.format("%d images, %d ms median, %d ms p90", stats.images(), stats.medianMs(), stats.p90Ms())));
+        }
+        return lines;
+    }
+
+    private static List<Component> schedulerStats() {
+        List<Component> lines = new ArrayList<>();
+        for (LaneStats stats : JOB_SCHEDULER.stats()) {
+            lines.add(statsLine(stats.type(), String.format("%d running, %d queued, %d KB in use, %d admitted, %d rejected, wait %d ms, run %d ms", stats.running(), stats.queued(), stats.memoryInUse() / 1024, stats.admitted(),
+                                                            stats.rejected(), stats.avgWaitMs(), stats.avgRunMs())));
+        }
+        return lines;
+    }
+
+    private static List<Component> promptCacheStats() {
+        List<Component> lines = new ArrayList<>();
+        for (ModelCacheStats stats : PROMPT_CACHE_METRICS.stats()) {
+            lines.add(statsLine(stats.model(), String.format("%d requests, %.1f%% hits, %.1f%% of prompt tokens cached, first token %d ms (hit) / %d ms (miss)", stats.requests(), stats.hitRatio() * 100, stats.cachedTokenRatio() * 100,
+                                                             stats.avgTtftHitMs(), stats.avgTtftMissMs())));
+        }
+        return lines;
+    }
+
+    private static List<Component> usageStats() {
+        UsageStats stats = USAGE_LEDGER.stats();
+        List<Component> lines = new ArrayList<>(List.of(statsLine("Players today", stats.players()), statsLine("Requests today", stats.requests()), statsLine("Tokens today", stats.tokens()),
+                                                        statsLine("Cached tokens today", stats.cachedTokens()), statsLine("Refused by quota", stats.rejected()),
+                                                        statsLine("Daily quota", (stats.tokenQuota() > 0 ? stats.tokenQuota() + " tokens" : "no token limit") + ", " + (stats.requestQuota() > 0 ? stats.requestQuota() + " requests" : "no request limit"))));
+        for (PlayerUsage player : USAGE_LEDGER.topToday(TOP_PLAYERS)) {
+            String name = Bukkit.getOfflinePlayer(player.player())
+                                .getName();
+            lines.add(statsLine(name != null ? name : player.player()
+                                                            .toString(), player.tokens() + " tokens in " + player.requests() + " requests"));
+        }
+        return lines;
+    }
+
+    @Override
+    public boolean onCommand(@NotNull CommandSender sender, @NotNull Command command, @NotNull String label, @NotNull String @NotNull [] args) {
+        if (!sender.hasPermission(STATS.node())) {
+            sender.sendMessage(NO_PERMISSION);
+            return true;
+        }
+
+        if (args.length == 0) {
+            sections.forEach((name, lines) -> sendSection(sender, name, lines));
+            return true;
+        }
+
+        String name = args[0].toLowerCase();
+        if (BREAKERS.equals(name) && args.length >= 2 && RESET.equalsIgnoreCase(args[1])) {
+            resetBreakers(sender, args.length >= 3 ? args[2].toLowerCase() : null);
+            return true;
+        }
+        Supplier<List<Component>> lines = sections.get(name);
+        if (lines == null) {
+            sender.sendMessage(unknownStatsSection(name, sections.keySet()));
+            return true;
+        }
+        sendSection(sender, name, lines);
+        return true;
+    }
+
+    /**
+     * Closes the breaker of one endpoint, or of all of them, e.g. once an outage is known to be over.
+     */
+    private void resetBreakers(CommandSender sender, String endpointId) {
+        List<String> reset = new ArrayList<>();
+        for (ApiEndpoint endpoint : ApiEndpoint.values()) {
+            if (endpointId == null || endpoint.id()
+                                              .equals(endpointId)) {
+                endpoint.breaker()
+                        .reset();
+                reset.add(endpoint.id());
+            }
+        }
+        if (reset.isEmpty()) {
+            sender.sendMessage(unknownEndpoint(endpointId, endpointIds()));
+            return;
+        }
+        sender.sendMessage(breakersReset(reset));
+    }
+
+    private static List<String> endpointIds() {
+        List<String> ids = new ArrayList<>();
+        for (ApiEndpoint endpoint : ApiEndpoint.values()) {
+            ids.add(endpoint.id());
+        }
+        return ids;
+    }
+
+    private void sendSection(CommandSender sender, String name, Supplier<List<Component>> lines) {
+        sender.sendMessage(statsHeader(name));
+        lines.get()
+             .forEach(sender::sendMessage);
+    }
+
+    @Override
+    public List<String> onTabComplete(@NotNull CommandSender sender, @NotNull Command command, @NotNull String label, @NotNull String @NotNull [] args) {
+        List<String> matches = new ArrayList<>();
+        if (args.length == 1 && sender.hasPermission(STATS.node())) {
+            for (String name : sections.keySet()) {
+                if (name.startsWith(args[0].toLowerCase())) {
+                    matches.add(name);
+                }
+            }
+        } else if (args.length == 2 && BREAKERS.equalsIgnoreCase(args[0]) && sender.hasPermission(STATS.node())) {
+            if (RESET.startsWith(args[1].toLowerCase())) {
+                matches.add(RESET);
+            }
+        } else if (args.length == 3 && BREAKERS.equalsIgnoreCase(args[0]) && RESET.equalsIgnoreCase(args[1]) && sender.hasPermission(STATS.node())) {
+            for (String id : endpointIds()) {
+                if (id.startsWith(args[2].toLowerCase())) {
+                    matches.add(id);
+                }
+            }
+        }
+        return matches;
+    }
+}
@@ -1,5 +1,7 @@
 package be.stealingdapenta.coreai.config;
 
+import java.util.List;
+import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.FileConfiguration;
 
 /**
@@ -11,6 +13,86 @@ public final class Config {
     public static final ConfigValue<String> MODEL = new ConfigValue<>("openai.model", "gpt-3.5-turbo", FileConfiguration::getString);
     public static final ConfigValue<Integer> TIMEOUT_MS = new ConfigValue<>("openai.timeout-ms", 60_000, FileConfiguration::getInt);
     public static final ConfigValue<Integer> TIMEOUT_IMAGE_MS = new ConfigValue<>("openai.timeout-image-ms", 300_000, FileConfiguration::getInt);
+    public static final ConfigValue<Boolean> IMAGE_INLINE = new ConfigValue<>("openai.image-inline", true, FileConfiguration::getBoolean);
+    public static final ConfigValue<Boolean> STREAM_ENABLED = new ConfigValue<>("openai.stream", true, FileConfiguration::getBoolean);
+    public static final ConfigValue<Integer> MODEL_CACHE_TTL_SECONDS = new ConfigValue<>("openai.model-cache.ttl-seconds", 300, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> MODEL_CACHE_STALE_SECONDS = new ConfigValue<>("openai.model-cache.stale-seconds", 3600, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> MODEL_METADATA_TTL_HOURS = new ConfigValue<>("openai.model-metadata.ttl-hours", 24, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> RATE_LIMIT_REQUESTS_PER_MINUTE = new ConfigValue<>("openai.rate-limit.requests-per-minute", 500, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> RATE_LIMIT_TOKENS_PER_MINUTE = new ConfigValue<>("openai.rate-limit.tokens-per-minute", 200_000, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> RATE_LIMIT_MAX_QUEUE = new ConfigValue<>("openai.rate-limit.max-queue", 64, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> RATE_LIMIT_MAX_WAIT_MS = new ConfigValue<>("openai.rate-limit.max-wait-ms", 30_000, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> RATE_LIMIT_MAX_RETRIES = new ConfigValue<>("openai.rate-limit.max-retries", 2, FileConfiguration::getInt);
+    public static final ConfigValue<Boolean> ADAPTIVE_TIMEOUT_ENABLED = new ConfigValue<>("openai.adaptive-timeout.enabled", true, FileConfiguration::getBoolean);
+    public static final ConfigValue<Integer> ADAPTIVE_TIMEOUT_PERCENTILE = new ConfigValue<>("openai.adaptive-timeout.percentile", 99, FileConfiguration::getInt);
+    public static final ConfigValue<Double> ADAPTIVE_TIMEOUT_FACTOR = new ConfigValue<>("openai.adaptive-timeout.factor", 3.0, FileConfiguration::getDouble);
+    public static final ConfigValue<Integer> ADAPTIVE_TIMEOUT_MIN_MS = new ConfigValue<>("openai.adaptive-timeout.min-ms", 10_000, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> ADAPTIVE_TIMEOUT_MIN_SAMPLES = new ConfigValue<>("openai.adaptive-timeout.min-samples", 50, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> RETRY_MAX_RETRIES = new ConfigValue<>("openai.retry.max-retries", 2, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> RETRY_BASE_DELAY_MS = new ConfigValue<>("openai.retry.base-delay-ms", 250, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> RETRY_MAX_DELAY_MS = new ConfigValue<>("openai.retry.max-delay-ms", 5_000, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> RETRY_BUDGET_PERCENT = new ConfigValue<>("openai.retry.budget-percent", 10, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> RETRY_BUDGET_RESERVE = new ConfigValue<>("openai.retry.budget-reserve", 10, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> CIRCUIT_WINDOW_SIZE = new ConfigValue<>("openai.circuit-breaker.window-size", 20, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> CIRCUIT_MINIMUM_CALLS = new ConfigValue<>("openai.circuit-breaker.minimum-calls", 10, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> CIRCUIT_FAILURE_RATE_PERCENT = new ConfigValue<>("openai.circuit-breaker.failure-rate-percent", 50, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> CIRCUIT_SLOW_CALL_RATE_PERCENT = new ConfigValue<>("openai.circuit-breaker.slow-call-rate-percent", 80, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> CIRCUIT_SLOW_CALL_MS_CHAT = new ConfigValue<>("openai.circuit-breaker.slow-call-ms.chat", 30_000, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> CIRCUIT_SLOW_CALL_MS_IMAGES = new ConfigValue<>("openai.circuit-breaker.slow-call-ms.images", 120_000, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> CIRCUIT_SLOW_CALL_MS_MODELS = new ConfigValue<>("openai.circuit-breaker.slow-call-ms.models", 5_000, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> CIRCUIT_SLOW_CALL_MS_EMBEDDINGS = new ConfigValue<>("openai.circuit-breaker.slow-call-ms.embeddings", 5_000, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> CIRCUIT_OPEN_SECONDS = new ConfigValue<>("openai.circuit-breaker.open-seconds", 30, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> CIRCUIT_HALF_OPEN_PROBES = new ConfigValue<>("openai.circuit-breaker.half-open-probes", 3, FileConfiguration::getInt);
+    public static final ConfigValue<Boolean> RESPONSE_CACHE_ENABLED = new ConfigValue<>("openai.response-cache.enabled", false, FileConfiguration::getBoolean);
+    public static final ConfigValue<Integer> RESPONSE_CACHE_MAX_ENTRIES = new ConfigValue<>("openai.response-cache.max-entries", 1000, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> RESPONSE_CACHE_TTL_SECONDS = new ConfigValue<>("openai.response-cache.ttl-seconds", 3600, FileConfiguration::getInt);
+    public static final ConfigValue<Boolean> SEMANTIC_CACHE_ENABLED = new ConfigValue<>("openai.semantic-cache.enabled", false, FileConfiguration::getBoolean);
+    public static final ConfigValue<String> EMBEDDINGS_URL = new ConfigValue<>("openai.semantic-cache.embeddings-url", "https://api.openai.com/v1/embeddings", FileConfiguration::getString);
+    public static final ConfigValue<String> EMBEDDINGS_API_KEY = new ConfigValue<>("openai.semantic-cache.embeddings-api-key", "", FileConfiguration::getString);
+    public static final ConfigValue<String> EMBEDDING_MODEL = new ConfigValue<>("openai.semantic-cache.embedding-model", "text-embedding-3-small", FileConfiguration::getString);
+    public static final ConfigValue<Double> SEMANTIC_CACHE_THRESHOLD = new ConfigValue<>("openai.semantic-cache.similarity-threshold", 0.92, FileConfiguration::getDouble);
+    public static final ConfigValue<Integer> SEMANTIC_CACHE_MAX_MEMORY_MB = new ConfigValue<>("openai.semantic-cache.max-memory-mb", 32, FileConfiguration::getInt);
+    public static final ConfigValue<Boolean> SEMANTIC_CACHE_RACE_UPSTREAM = new ConfigValue<>("openai.semantic-cache.race-upstream", false, FileConfiguration::getBoolean);
+    public static final ConfigValue<Integer> SEMANTIC_CACHE_SEARCH_EF = new ConfigValue<>("openai.semantic-cache.search-ef", 100, FileConfiguration::getInt);
+    public static final ConfigValue<String> SYSTEM_PROMPT = new ConfigValue<>("openai.system-prompt.default", "", FileConfiguration::getString);
+    public static final ConfigValue<ConfigurationSection> SYSTEM_PROMPT_WORLDS = new ConfigValue<>("openai.system-prompt.worlds", null, FileConfiguration::getConfigurationSection);
+    public static final ConfigValue<Integer> HISTORY_TOKEN_BUDGET = new ConfigValue<>("openai.history.token-budget", 4000, FileConfiguration::getInt);
+    public static final ConfigValue<List<String>> HISTORY_MODEL_BUDGETS = new ConfigValue<>("openai.history.model-budgets", List.of(), FileConfiguration::getStringList);
+    public static final ConfigValue<Boolean> HISTORY_PERSIST = new ConfigValue<>("openai.history.persist", true, FileConfiguration::getBoolean);
+    public static final ConfigValue<Integer> HISTORY_FLUSH_INTERVAL_MS = new ConfigValue<>("openai.history.flush-interval-ms", 1000, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> HISTORY_MAX_AGE_DAYS = new ConfigValue<>("openai.history.max-age-days", 30, FileConfiguration::getInt);
+    public static final ConfigValue<Boolean> HISTORY_SUMMARY_ENABLED = new ConfigValue<>("openai.history.summary.enabled", false, FileConfiguration::getBoolean);
+    public static final ConfigValue<String> HISTORY_SUMMARY_MODEL = new ConfigValue<>("openai.history.summary.model", "gpt-4o-mini", FileConfiguration::getString);
+    public static final ConfigValue<Integer> HISTORY_SUMMARY_TRIGGER_PERCENT = new ConfigValue<>("openai.history.summary.trigger-percent", 75, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> HISTORY_SUMMARY_KEEP_PERCENT = new ConfigValue<>("openai.history.summary.keep-percent", 40, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> SESSION_IDLE_MINUTES = new ConfigValue<>("openai.sessions.idle-minutes", 30, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> SESSION_MAX_SESSIONS = new ConfigValue<>("openai.sessions.max-sessions", 1000, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> SESSION_MAX_MEMORY_MB = new ConfigValue<>("openai.sessions.max-memory-mb", 64, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> SESSION_MAX_QUEUED_PROMPTS = new ConfigValue<>("openai.sessions.max-queued-prompts", 3, FileConfiguration::getInt);
+    public static final ConfigValue<Boolean> HEDGING_ENABLED = new ConfigValue<>("openai.hedging.enabled", false, FileConfiguration::getBoolean);
+    public static final ConfigValue<String> HEDGING_FALLBACK_MODEL = new ConfigValue<>("openai.hedging.fallback-model", "gpt-4o-mini", FileConfiguration::getString);
+    public static final ConfigValue<Integer> HEDGING_PERCENTILE = new ConfigValue<>("openai.hedging.percentile", 90, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> HEDGING_MIN_DELAY_MS = new ConfigValue<>("openai.hedging.min-delay-ms", 1000, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> HEDGING_MIN_SAMPLES = new ConfigValue<>("openai.hedging.min-samples", 20, FileConfiguration::getInt);
+    public static final ConfigValue<Boolean> ROUTING_ENABLED = new ConfigValue<>("openai.routing.enabled", false, FileConfiguration::getBoolean);
+    public static final ConfigValue<String> ROUTING_FAST_MODEL = new ConfigValue<>("openai.routing.fast-model", "gpt-4o-mini", FileConfiguration::getString);
+    public static final ConfigValue<Integer> ROUTING_MAX_SIMPLE_CHARS = new ConfigValue<>("openai.routing.max-simple-chars", 160, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> ROUTING_MAX_SIMPLE_HISTORY_TOKENS = new ConfigValue<>("openai.routing.max-simple-history-tokens", 1500, FileConfiguration::getInt);
+    public static final ConfigValue<List<String>> ROUTING_COMPLEX_KEYWORDS = new ConfigValue<>("openai.routing.complex-keywords",
+                                                                                              List.of("why", "explain", "how do", "how to", "step by step", "compare", "calculate", "code", "script", "design", "plan"),
+                                                                                              FileConfiguration::getStringList);
+    public static final ConfigValue<Double> ROUTING_DEGRADED_FACTOR = new ConfigValue<>("openai.routing.degraded-factor", 2.0, FileConfiguration::getDouble);
+    public static final ConfigValue<Integer> ROUTING_COOLDOWN_SECONDS = new ConfigValue<>("openai.routing.cooldown-seconds", 60, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> QUOTA_DAILY_TOKENS = new ConfigValue<>("openai.quota.daily-tokens", 0, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> QUOTA_DAILY_REQUESTS = new ConfigValue<>("openai.quota.daily-requests", 0, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> USAGE_FLUSH_SECONDS = new ConfigValue<>("openai.quota.flush-seconds", 60, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> USAGE_RETENTION_DAYS = new ConfigValue<>("openai.quota.retention-days", 30, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> SCHEDULER_CHAT_MAX_CONCURRENT = new ConfigValue<>("scheduler.chat.max-concurrent", 32, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> SCHEDULER_CHAT_MAX_QUEUED = new ConfigValue<>("scheduler.chat.max-queued", 256, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> SCHEDULER_IMAGE_MAX_CONCURRENT = new ConfigValue<>("scheduler.image.max-concurrent", 2, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> SCHEDULER_IMAGE_MAX_QUEUED = new ConfigValue<>("scheduler.image.max-queued", 32, FileConfiguration::getInt);
+    public static final ConfigValue<Integer> SCHEDULER_IMAGE_MAX_MEMORY_MB = new ConfigValue<>("scheduler.image.max-memory-mb", 256, FileConfiguration::getInt);
+    public static final ConfigValue<ConfigurationSection> SCHEDULER_WEIGHTS = new ConfigValue<>("scheduler.weights", null, FileConfiguration::getConfigurationSection);
     public static final ConfigValue<Boolean> AUTO_CLEANUP_ENABLED = new ConfigValue<>("cleanup.auto-enabled", true, FileConfiguration::getBoolean);
     public static final ConfigValue<Integer> CLEANUP_MAX_DAYS = new ConfigValue<>("cleanup.max-age-days", 30, FileConfiguration::getInt);
 }
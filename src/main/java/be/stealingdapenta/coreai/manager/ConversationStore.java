@@ -0,0 +1,633 @@
+package be.stealingdapenta.coreai.manager;
+
+import static be.stealingdapenta.coreai.CoreAI.CORE_AI_LOGGER;
+import static be.stealingdapenta.coreai.config.Config.HISTORY_FLUSH_INTERVAL_MS;
+import static be.stealingdapenta.coreai.config.Config.HISTORY_MAX_AGE_DAYS;
+import static be.stealingdapenta.coreai.config.Config.HISTORY_PERSIST;
+import static be.stealingdapenta.coreai.manager.ExecutorManager.EXECUTOR_MANAGER;
+
+import be.stealingdapenta.coreai.CoreAI;
+import be.stealingdapenta.coreai.service.ChatMessage;
+import be.stealingdapenta.coreai.service.ConversationHistory;
+import be.stealingdapenta.coreai.service.ConversationHistory.Journal;
+import be.stealingdapenta.coreai.service.ConversationHistory.SequencedMessage;
+import be.stealingdapenta.coreai.service.ConversationHistory.Snapshot;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Singleton that persists each player's conversation as an append-only log, so context survives relogs and restarts.
+ * <p>
+ * Logs live in {@value #DIRECTORY}, spread over 256 subdirectories by the first two hex digits of the player's UUID, so no directory grows past a few hundred files. Every record is length-prefixed and CRC-checked; a record torn by a
+ * crash is cut off on the next load.
+ * <ul>
+ *     <li>History is read off the main thread while the player logs in ({@link #preload(UUID)}), so attaching it to a new agent never touches disk.</li>
+ *     <li>New messages are queued in memory and written by a background flush every {@code flush-interval-ms}, with one fsync per changed log.</li>
+ *     <li>Once a log holds far more records than the window it describes, the flush rewrites it from the live history.</li>
+ *     <li>Logs of players who have not chatted for {@code max-age-days} are deleted by a sweep at startup and every few hours.</li>
+ * </ul>
+ */
+public enum ConversationStore {
+    CONVERSATION_STORE;
+
+    private static final String DIRECTORY = "conversations";
+    private static final String EXTENSION = ".log";
+    private static final int MAGIC = 0x43414943; // "CAIC"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+    private static final int MAX_RECORD_BYTES = 1 << 20;
+    private static final byte APPEND = 1;
+    private static final byte SUMMARY = 2;
+    private static final int COMPACT_MIN_RECORDS = 64;
+    private static final long SWEEP_INTERVAL_HOURS = 6;
+
+    private final Map<UUID, Loaded> preloaded = new ConcurrentHashMap<>();
+    private final Map<UUID, PlayerLog> logs = new ConcurrentHashMap<>();
+    private final Set<UUID> spilled = ConcurrentHashMap.newKeySet();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final LongAdder recordsWritten = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+    private final LongAdder rewrites = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private ScheduledFuture<?> flushTask;
+    private ScheduledFuture<?> sweepTask;
+
+    /**
+     * Starts the periodic flush and the sweep of expired logs.
+     */
+    public synchronized void start() {
+        if (flushTask == null && HISTORY_PERSIST.get()) {
+            long interval = Math.max(100, HISTORY_FLUSH_INTERVAL_MS.get());
+            flushTask = EXECUTOR_MANAGER.scheduler()
+                                        .scheduleWithFixedDelay(() -> EXECUTOR_MANAGER.io()
+                                                                                      .execute(this::flush), interval, interval, TimeUnit.MILLISECONDS);
+        }
+        // Also without persistence: a crash can leave spilled conversations behind
+        if (sweepTask == null && HISTORY_MAX_AGE_DAYS.get() > 0) {
+            sweepTask = EXECUTOR_MANAGER.scheduler()
+                                        .scheduleWithFixedDelay(() -> EXECUTOR_MANAGER.io()
+                                                                                      .execute(this::sweepExpired), 0, SWEEP_INTERVAL_HOURS, TimeUnit.HOURS);
+        }
+    }
+
+    /**
+     * Reads a player's log into memory, for {@link #attach(UUID, ConversationHistory)} to pick up. Blocks; call it from a login thread.
+     *
+     * @param uuid the player logging in
+     */
+    public void preload(UUID uuid) {
+        if (HISTORY_PERSIST.get() && !logs.containsKey(uuid)) {
+            Loaded loaded = read(uuid);
+            if (loaded != null) {
+                preloaded.put(uuid, loaded);
+            }
+        }
+    }
+
+    /**
+     * Forgets a preloaded log whose player never joined.
+     *
+     * @param uuid the player
+     */
+    public void discard(UUID uuid) {
+        preloaded.remove(uuid);
+    }
+
+    /**
+     * Restores a player's persisted conversation into a new history and records its changes from now on. Uses the preloaded log when there is one, and reads it in the background otherwise (e.g. after a reload).
+     *
+     * @param uuid    the player
+     * @param history the player's new, usually empty, history
+     * @return a future that completes once the persisted messages are in the history; already complete unless the log has to be read from disk
+     */
+    public CompletableFuture<Void> attach(UUID uuid, ConversationHistory history) {
+        if (!HISTORY_PERSIST.get()) {
+            return unspill(uuid, history);
+        }
+        PlayerLog log = new PlayerLog(file(uuid), history);
+        PlayerLog previous = logs.put(uuid, log);
+        if (previous != null) {
+            // Rejoined before the old log was closed: the old history is newer than the file
+            previous.history.setJournal(null);
+            restore(log, new Loaded(previous.history.snapshot(), 0), true);
+            return CompletableFuture.completedFuture(null);
+        }
+        Loaded loaded = preloaded.remove(uuid);
+        if (loaded != null) {
+            restore(log, loaded, false);
+            return CompletableFuture.completedFuture(null);
+        }
+        // Messages sent before the read completes are not journaled, so the log is rewritten from the history once it is attached
+        return CompletableFuture.supplyAsync(() -> read(uuid), EXECUTOR_MANAGER.io())
+                                .thenAccept(read -> restore(log, read, true));
+    }
+
+    private void restore(PlayerLog log, Loaded loaded, boolean rewrite) {
+        if (loaded != null) {
+            log.history.restore(loaded.snapshot());
+            log.records = loaded.records();
+        }
+        log.history.setJournal(log);
+        log.rewriteNeeded = rewrite;
+    }
+
+    /**
+     * Stops recording a player's history; the next flush writes what is still queued and closes the log. Without persistence, a history spilled by {@link #spill(UUID, ConversationHistory)} is deleted instead, so a relog still
+     * starts a new conversation.
+     *
+     * @param uuid the player who left
+     */
+    public void detach(UUID uuid) {
+        preloaded.remove(uuid);
+        if (!HISTORY_PERSIST.get()) {
+            if (spilled.remove(uuid)) {
+                EXECUTOR_MANAGER.io()
+                                .execute(() -> takeSpilled(uuid));
+            }
+            return;
+        }
+        PlayerLog log = logs.get(uuid);
+        if (log != null) {
+            log.history.setJournal(null);
+            log.detached = true;
+        }
+    }
+
+    /**
+     * Hands the history of an evicted session to the store, so the player's next agent picks it up again. A persisted history is already journaled and only detached; otherwise the next flush writes it out once, and it is deleted
+     * when it is read back or the player quits.
+     *
+     * @param uuid    the player whose session was evicted
+     * @param history the evicted session's history
+     */
+    public void spill(UUID uuid, ConversationHistory history) {
+        if (HISTORY_PERSIST.get()) {
+            detach(uuid);
+            return;
+        }
+        PlayerLog log = new PlayerLog(file(uuid), history);
+        log.rewriteNeeded = true;
+        log.detached = true;
+        spilled.add(uuid);
+        logs.put(uuid, log);
+    }
+
+    private CompletableFuture<Void> unspill(UUID uuid, ConversationHistory history) {
+        if (!spilled.remove(uuid)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.runAsync(() -> {
+            Loaded loaded = takeSpilled(uuid);
+            if (loaded != null) {
+                history.restore(loaded.snapshot());
+            }
+        }, EXECUTOR_MANAGER.io());
+    }
+
+    /**
+     * Removes a spilled history, written or not, under the flush lock so a flush in progress cannot write it back.
+     *
+     * @return the history, or null if there was none
+     */
+    private Loaded takeSpilled(UUID uuid) {
+        flushLock.lock();
+        try {
+            PlayerLog unwritten = logs.remove(uuid);
+            Loaded loaded = unwritten != null ? new Loaded(unwritten.history.snapshot(), 0) : read(uuid);
+            delete(file(uuid));
+            return loaded;
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Deletes a player's conversation: an open log is rewritten from the history, which the caller has just cleared, and a log or spill of a player without a live history is removed. Returns immediately; the files are handled
+     * on the I/O executor.
+     *
+     * @param uuid the player whose conversation to forget
+     */
+    public void clear(UUID uuid) {
+        preloaded.remove(uuid);
+        EXECUTOR_MANAGER.io()
+                        .execute(() -> {
+                            flushLock.lock();
+                            try {
+                                PlayerLog log = logs.get(uuid);
+                                if (log != null && !log.detached) {
+                                    log.rewriteNeeded = true;
+                                    return;
+                                }
+                                logs.remove(uuid);
+                                spilled.remove(uuid);
+                                delete(file(uuid));
+                            } finally {
+                                flushLock.unlock();
+                            }
+                        });
+    }
+
+    /**
+     * Deletes the logs of players whose conversation has not changed for {@code max-age-days}, except those in use. Runs on the I/O executor.
+     */
+    private void sweepExpired() {
+        File root = new File(CoreAI.getInstance()
+                                   .getDataFolder(), DIRECTORY);
+        File[] buckets = root.listFiles(File::isDirectory);
+        if (buckets == null) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(HISTORY_MAX_AGE_DAYS.get());
+        int deleted = 0;
+        for (File bucket : buckets) {
+            File[] files = bucket.listFiles((directory, name) -> name.endsWith(EXTENSION));
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (file.lastModified() >= cutoff) {
+                    continue;
+                }
+                UUID uuid;
+                try {
+                    uuid = UUID.fromString(file.getName()
+                                               .substring(0, file.getName()
+                                                                 .length() - EXTENSION.length()));
+                } catch (IllegalArgumentException e) {
+                    continue;
+                }
+                flushLock.lock();
+                try {
+                    // A log in use is written to again; a preloaded one belongs to a player joining now
+                    if (!logs.containsKey(uuid) && !preloaded.containsKey(uuid) && file.lastModified() < cutoff && delete(file)) {
+                        spilled.remove(uuid);
+                        deleted++;
+                    }
+                } finally {
+                    flushLock.unlock();
+                }
+            }
+        }
+        if (deleted > 0) {
+            expired.add(deleted);
+            CORE_AI_LOGGER.info("Deleted " + deleted + " conversation logs unused for " + HISTORY_MAX_AGE_DAYS.get() + " days.");
+        }
+    }
+
+    private static boolean delete(File file) {
+        if (file.isFile() && !file.delete()) {
+            CORE_AI_LOGGER.warning("Failed to delete conversation log " + file.getName() + ".");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes every queued record and rewrites oversized logs. Runs on the I/O executor; never on the main thread.
+     */
+    public void flush() {
+        flushLock.lock();
+        try {
+            Iterator<Map.Entry<UUID, PlayerLog>> iterator = logs.entrySet()
+                                                                .iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<UUID, PlayerLog> entry = iterator.next();
+                PlayerLog log = entry.getValue();
+                try {
+                    log.flush();
+                } catch (IOException e) {
+                    CORE_AI_LOGGER.warning("Failed to write the conversation of " + entry.getKey() + ": " + e.getMessage());
+                }
+                if (log.detached && log.pending.isEmpty()) {
+                    logs.remove(entry.getKey(), log);
+                }
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Stops the periodic flush and writes everything still queued. Called when the plugin disables.
+     */
+    public synchronized void shutdown() {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        if (sweepTask != null) {
+            sweepTask.cancel(false);
+            sweepTask = null;
+        }
+        flush();
+    }
+
+    /**
+     * @return a snapshot of the store's counters
+     */
+    public StoreStats stats() {
+        int queued = 0;
+        for (PlayerLog log : logs.values()) {
+            queued += log.pending.size();
+        }
+        return new StoreStats(HISTORY_PERSIST.get(), logs.size(), queued, recordsWritten.sum(), syncs.sum(), rewrites.sum(), expired.sum());
+    }
+
+    private static File file(UUID uuid) {
+        String name = uuid.toString();
+        return new File(new File(new File(CoreAI.getInstance()
+                                                .getDataFolder(), DIRECTORY), name.substring(0, 2)), name + EXTENSION);
+    }
+
+    /**
+     * Replays a player's log. Records are applied by sequence number, so duplicates and reordering from concurrent writers are harmless.
+     *
+     * @return the persisted conversation, or null if there is none
+     */
+    private Loaded read(UUID uuid) {
+        File file = file(uuid);
+        if (!file.isFile()) {
+            return null;
+        }
+        NavigableMap<Long, ChatMessage> messages = new TreeMap<>();
+        String summary = null;
+        long summarizedThrough = -1;
+        int foldedTokens = 0;
+        long valid = 0;
+        long records = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                CORE_AI_LOGGER.warning("Ignoring conversation log of unknown format: " + file.getName());
+                return null;
+            }
+            valid = HEADER_BYTES;
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_BYTES) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if (in.readInt() != (int) crc.getValue()) {
+                    break;
+                }
+                valid += 8 + length;
+                records++;
+
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                byte type = record.readByte();
+                long sequence = record.readLong();
+                if (type == APPEND) {
+                    messages.put(sequence, new ChatMessage(record.readUTF(), readString(record)));
+                } else if (type == SUMMARY && sequence >= summarizedThrough) {
+                    summarizedThrough = sequence;
+                    foldedTokens = record.readInt();
+                    summary = readString(record);
+                }
+            }
+        } catch (EOFException ignore) {
+            // a record cut short by a crash; everything before it is intact
+        } catch (IOException e) {
+            CORE_AI_LOGGER.warning("Failed to read the conversation of " + uuid + ": " + e.getMessage());
+            return null;
+        }
+        truncate(file, valid);
+
+        messages.headMap(summarizedThrough, true)
+                .clear();
+        List<SequencedMessage> restored = new ArrayList<>(messages.size());
+        for (Map.Entry<Long, ChatMessage> message : messages.entrySet()) {
+            restored.add(new SequencedMessage(message.getKey(), message.getValue()));
+        }
+        return new Loaded(new Snapshot(summary, foldedTokens, restored), records);
+    }
+
+    private static void truncate(File file, long valid) {
+        if (file.length() > valid) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(valid);
+                CORE_AI_LOGGER.info("Dropped a damaged tail from conversation log " + file.getName() + ".");
+            } catch (IOException e) {
+                CORE_AI_LOGGER.warning("Failed to repair conversation log " + file.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] appendRecord(long sequence, ChatMessage message) {
+        return frame(out -> {
+            out.writeByte(APPEND);
+            out.writeLong(sequence);
+            out.writeUTF(message.role());
+            writeString(out, message.content());
+        });
+    }
+
+    private static byte[] summaryRecord(long lastSequence, int foldedTokens, String summary) {
+        return frame(out -> {
+            out.writeByte(SUMMARY);
+            out.writeLong(lastSequence);
+            out.writeInt(foldedTokens);
+            writeString(out, summary);
+        });
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Encodes a record as {@code length, payload, crc32(payload)}.
+     */
+    private static byte[] frame(RecordWriter writer) {
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            writer.write(new DataOutputStream(payload));
+            CRC32 crc = new CRC32();
+            crc.update(payload.toByteArray());
+            ByteArrayOutputStream framed = new ByteArrayOutputStream(payload.size() + 8);
+            DataOutputStream out = new DataOutputStream(framed);
+            out.writeInt(payload.size());
+            payload.writeTo(out);
+            out.writeInt((int) crc.getValue());
+            return framed.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // in-memory streams do not fail
+        }
+    }
+
+    @FunctionalInterface
+    private interface RecordWriter {
+
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * One player's log: records queued by the history's threads, written by the flush.
+     */
+    private final class PlayerLog implements Journal {
+
+        private final File file;
+        private final ConversationHistory history;
+        private final Queue<byte[]> pending = new ConcurrentLinkedQueue<>();
+        private volatile boolean detached;
+        private volatile boolean rewriteNeeded;
+        private long records;
+
+        private PlayerLog(File file, ConversationHistory history) {
+            this.file = file;
+            this.history = history;
+        }
+
+        @Override
+        public void appended(long sequence, ChatMessage message) {
+            pending.add(appendRecord(sequence, message));
+        }
+
+        @Override
+        public void summarized(long lastSequence, int foldedTokens, String summary) {
+            pending.add(summaryRecord(lastSequence, foldedTokens, summary));
+        }
+
+        /**
+         * Appends the queued records, or rewrites the whole log from the history when it has grown well past it. Called under the flush lock only.
+         */
+        private void flush() throws IOException {
+            if (rewriteNeeded || records > Math.max(COMPACT_MIN_RECORDS, 2L * (history.size() + 1))) {
+                rewrite();
+                return;
+            }
+            if (pending.isEmpty()) {
+                return;
+            }
+            File directory = file.getParentFile();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("cannot create " + directory);
+            }
+            boolean fresh = !file.isFile();
+            try (FileOutputStream out = new FileOutputStream(file, true)) {
+                if (fresh) {
+                    out.write(header());
+                }
+                int written = 0;
+                byte[] record;
+                while ((record = pending.poll()) != null) {
+                    out.write(record);
+                    written++;
+                }
+                out.getChannel()
+                   .force(false);
+                records += written;
+                recordsWritten.add(written);
+                syncs.increment();
+            }
+        }
+
+        /**
+         * Replaces the log by the history's current state. Records queued meanwhile are written after it and deduplicated on load.
+         */
+        private void rewrite() throws IOException {
+            rewriteNeeded = false;
+            pending.clear();
+            Snapshot snapshot = history.snapshot();
+            File directory = file.getParentFile();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("cannot create " + directory);
+            }
+            File temp = new File(directory, file.getName() + ".tmp");
+            long written = 0;
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                out.write(header());
+                long lastSequence = -1;
+                for (SequencedMessage message : snapshot.messages()) {
+                    out.write(appendRecord(message.sequence(), message.message()));
+                    lastSequence = message.sequence();
+                    written++;
+                }
+                if (snapshot.summary() != null) {
+                    long summarizedThrough = snapshot.messages()
+                                                     .isEmpty() ? lastSequence : snapshot.messages()
+                                                                                         .getFirst()
+                                                                                         .sequence() - 1;
+                    out.write(summaryRecord(summarizedThrough, snapshot.foldedTokens(), snapshot.summary()));
+                    written++;
+                }
+                out.getChannel()
+                   .force(false);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            records = written;
+            recordsWritten.add(written);
+            syncs.increment();
+            rewrites.increment();
+        }
+    }
+
+    private static byte[] header() {
+        return new byte[]{(byte) (MAGIC >>> 24), (byte) (MAGIC >>> 16), (byte) (MAGIC >>> 8), (byte) MAGIC, 0, 0, 0, (byte) VERSION};
+    }
+
+    /**
+     * A log as read from disk.
+     *
+     * @param snapshot the conversation it describes
+     * @param records  the records it holds
+     */
+    private record Loaded(Snapshot snapshot, long records) {
+
+    }
+
+    /**
+     * Snapshot of the store's state.
+     *
+     * @param enabled        whether conversations are persisted
+     * @param openLogs       logs of players online or still being flushed
+     * @param queuedRecords  records waiting for the next flush
+     * @param recordsWritten records written since startup
+     * @param syncs          fsyncs since startup
+     * @param rewrites       logs rewritten to drop superseded records
+     * @param expired        logs deleted for being older than max-age-days
+     */
+    public record StoreStats(boolean enabled, int openLogs, int queuedRecords, long recordsWritten, long syncs, long rewrites, long expired) {
+
+    }
+}
@@ -0,0 +1,170 @@
+package be.stealingdapenta.coreai.manager;
+
+import static be.stealingdapenta.coreai.CoreAI.CORE_AI_LOGGER;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Singleton owner of CoreAI's background threads, so CoreAI work no longer competes with other plugins on Bukkit's shared async pool.
+ * <ul>
+ *     <li>{@link #io()} runs blocking I/O (image reads, disk writes) on Java 21 virtual threads; a blocked task costs no platform thread.</li>
+ *     <li>{@link #cpu()} runs CPU-bound image work (resizing, tiling) on a bounded pool of platform threads sized to the cores.</li>
+ *     <li>{@link #scheduler()} runs short delayed tasks (timers, backoff wake-ups) on a single platform thread; never block on it.</li>
+ * </ul>
+ * OkHttp keeps its own dispatcher threads for network calls: it synchronizes around socket I/O, which would pin virtual threads.
+ */
+public enum ExecutorManager {
+    EXECUTOR_MANAGER;
+
+    private static final int CPU_QUEUE_CAPACITY = 256;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+
+    private final CountingExecutorService io = new CountingExecutorService(Executors.newThreadPerTaskExecutor(Thread.ofVirtual()
+                                                                                                                    .name("CoreAI-io-", 0)
+                                                                                                                    .factory()));
+    private final int cpuThreads;
+    private final ThreadPoolExecutor cpuPool;
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    ExecutorManager() {
+        cpuThreads = Math.max(1, Runtime.getRuntime()
+                                        .availableProcessors() - 1);
+        cpuPool = new ThreadPoolExecutor(cpuThreads, cpuThreads, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(CPU_QUEUE_CAPACITY), Thread.ofPlatform()
+                                                                                                                                  .name("CoreAI-cpu-", 0)
+                                                                                                                                  .daemon(true)
+                                                                                                                                  .factory(), new ThreadPoolExecutor.AbortPolicy());
+        cpuPool.allowCoreThreadTimeOut(true);
+        scheduler = new ScheduledThreadPoolExecutor(1, Thread.ofPlatform()
+                                                         .name("CoreAI-scheduler")
+                                                         .daemon(true)
+                                                         .factory());
+        scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @return the executor for blocking I/O; every task gets its own virtual thread
+     */
+    public ExecutorService io() {
+        return io;
+    }
+
+    /**
+     * @return the bounded executor for CPU-bound work; submissions beyond the queue capacity are rejected
+     */
+    public ExecutorService cpu() {
+        return cpuPool;
+    }
+
+    /**
+     * @return the single-threaded executor for delayed and periodic tasks
+     */
+    public ScheduledExecutorService scheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @return a snapshot of both pools' load
+     */
+    public ExecutorStats stats() {
+        return new ExecutorStats(io.active.get(), io.completed.sum(), cpuPool.getActiveCount(), cpuPool.getQueue()
+                                                                                                      .size(), cpuPool.getCompletedTaskCount(), cpuThreads);
+    }
+
+    /**
+     * Stops accepting work and waits briefly for running tasks. Called when the plugin disables.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+        cpuPool.shutdown();
+        io.shutdown();
+        try {
+            if (!cpuPool.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                cpuPool.shutdownNow();
+            }
+            if (!io.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                CORE_AI_LOGGER.warning("Abandoning " + io.active.get() + " unfinished CoreAI I/O task(s) on shutdown.");
+                io.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread()
+                  .interrupt();
+        }
+    }
+
+    /**
+     * Snapshot of the executors' state.
+     *
+     * @param ioActive     I/O tasks currently running
+     * @param ioCompleted  I/O tasks finished since startup
+     * @param cpuActive    CPU tasks currently running
+     * @param cpuQueued    CPU tasks waiting for a thread
+     * @param cpuCompleted CPU tasks finished since startup
+     * @param cpuThreads   the CPU pool's size
+     */
+    public record ExecutorStats(int ioActive, long ioCompleted, int cpuActive, int cpuQueued, long cpuCompleted, int cpuThreads) {
+
+    }
+
+    /**
+     * Delegating executor service that counts running and finished tasks.
+     */
+    private static class CountingExecutorService extends AbstractExecutorService {
+
+        private final ExecutorService delegate;
+        private final AtomicInteger active = new AtomicInteger();
+        private final LongAdder completed = new LongAdder();
+
+        private CountingExecutorService(ExecutorService delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void execute(@NotNull Runnable command) {
+            delegate.execute(() -> {
+                active.incrementAndGet();
+                try {
+                    command.run();
+                } finally {
+                    active.decrementAndGet();
+                    completed.increment();
+                }
+            });
+        }
+
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+
+        @Override
+        public @NotNull List<Runnable> shutdownNow() {
+            return delegate.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return delegate.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return delegate.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+    }
+}
@@ -3,7 +3,15 @@ package be.stealingdapenta.coreai.manager;
 import static be.stealingdapenta.coreai.CoreAI.CORE_AI_LOGGER;
 import static be.stealingdapenta.coreai.config.Config.API_KEY;
 import static be.stealingdapenta.coreai.config.Config.MODEL;
+import static be.stealingdapenta.coreai.config.Config.SESSION_IDLE_MINUTES;
+import static be.stealingdapenta.coreai.config.Config.SESSION_MAX_MEMORY_MB;
+import static be.stealingdapenta.coreai.config.Config.SESSION_MAX_QUEUED_PROMPTS;
+import static be.stealingdapenta.coreai.config.Config.SESSION_MAX_SESSIONS;
 import static be.stealingdapenta.coreai.config.Config.TIMEOUT_MS;
+import static be.stealingdapenta.coreai.manager.ConversationStore.CONVERSATION_STORE;
+import static be.stealingdapenta.coreai.manager.ExecutorManager.EXECUTOR_MANAGER;
+import static be.stealingdapenta.coreai.service.JobTracker.JOB_TRACKER;
+import static be.stealingdapenta.coreai.service.ModelListCache.MODEL_LIST_CACHE;
 import static net.kyori.adventure.text.format.NamedTextColor.RED;
 
 import be.stealingdapenta.coreai.CoreAI;
@@ -12,10 +20,16 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
@@ -26,12 +40,16 @@ import net.kyori.adventure.text.Component;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerLoginEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.plugin.Plugin;
 
 /**
- * Singleton manager for ChatAgent sessions and per-player overrides.
+ * Singleton manager for ChatAgent sessions and per-player overrides. Sessions form a bounded cache: a periodic sweep evicts those idle for longer than {@code idle-minutes}, then the least recently used ones while there are more than
+ * {@code max-sessions} or their histories exceed {@code max-memory-mb}. An evicted conversation is spilled to the {@link ConversationStore} and read back on the player's next message.
  */
 public enum SessionManager implements Listener {
     /**
@@ -43,8 +61,16 @@ public enum SessionManager implements Listener {
 
 
     private static final String OVERRIDES_FILENAME = "player_models.yml";
+    private static final long SWEEP_INTERVAL_SECONDS = 30;
+    private static final long BYTES_PER_MB = 1024L * 1024;
 
-    private final Map<UUID, ChatAgent> agents = new ConcurrentHashMap<>();
+    private final Map<UUID, Session> agents = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder idleEvictions = new LongAdder();
+    private final LongAdder sizeEvictions = new LongAdder();
+    private final LongAdder memoryEvictions = new LongAdder();
+    private ScheduledFuture<?> sweepTask;
     private static final ConcurrentHashMap<UUID, String> playerKeys = new ConcurrentHashMap<>();
     private final Map<UUID, String> playerChosenModels = new ConcurrentHashMap<>();
     private static final String KEY_FILE_NAME = "secret.key";
@@ -62,6 +88,11 @@ public enum SessionManager implements Listener {
                                                     .getDataFolder(), KEY_FILE_NAME));
         loadModelOverrides();
         loadStoredAPIKeys();
+        if (sweepTask == null) {
+            sweepTask = EXECUTOR_MANAGER.scheduler()
+                                        .scheduleWithFixedDelay(() -> EXECUTOR_MANAGER.io()
+                                                                                      .execute(this::evictSessions), SWEEP_INTERVAL_SECONDS, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
     }
 
     @SuppressWarnings("ResultOfMethodCallIgnored")
@@ -119,18 +150,125 @@ public enum SessionManager implements Listener {
     }
 
     /**
-     * Retrieves or creates a ChatAgent for the player, applying model and API key overrides.
+     * Retrieves or creates a ChatAgent for the player, applying model and API key overrides. A new agent resumes the player's persisted conversation, which was read from disk while they logged in, or is read back after its session
+     * was evicted.
      *
      * @param uuid Player UUID
      * @return ChatAgent instance
      */
     public ChatAgent getAgent(UUID uuid) {
-        return agents.computeIfAbsent(uuid, id -> {
-            String apiKey = playerKeys.getOrDefault(id, API_KEY.get());
-            String model = playerChosenModels.getOrDefault(id, MODEL.get());
-            int timeout = TIMEOUT_MS.get();
-            return new ChatAgent(apiKey, model, timeout);
+        Session session = agents.get(uuid);
+        if (session != null) {
+            hits.increment();
+        } else {
+            session = agents.computeIfAbsent(uuid, this::createSession);
+        }
+        session.lastUsed = System.nanoTime();
+        return session.agent;
+    }
+
+    private Session createSession(UUID id) {
+        misses.increment();
+        String apiKey = playerKeys.getOrDefault(id, API_KEY.get());
+        String model = playerChosenModels.getOrDefault(id, MODEL.get());
+        int timeout = TIMEOUT_MS.get();
+        ChatAgent agent = new ChatAgent(id, apiKey, model, timeout, SESSION_MAX_QUEUED_PROMPTS.get());
+        agent.awaitHistory(CONVERSATION_STORE.attach(id, agent.getHistory()));
+        return new Session(agent);
+    }
+
+    /**
+     * Evicts idle sessions, then the least recently used ones while the cache is over its size or memory bounds, and writes the evicted histories out. Sessions still answering a prompt or running a job are never evicted. Runs on
+     * the I/O executor.
+     */
+    private void evictSessions() {
+        long now = System.nanoTime();
+        long idleNanos = TimeUnit.MINUTES.toNanos(Math.max(1, SESSION_IDLE_MINUTES.get()));
+        List<Resident> resident = new ArrayList<>();
+        long bytes = 0;
+        boolean evicted = false;
+        for (Map.Entry<UUID, Session> entry : agents.entrySet()) {
+            Session session = entry.getValue();
+            long lastUsed = session.lastUsed;
+            if (now - lastUsed > idleNanos && evict(entry.getKey(), session, lastUsed, idleEvictions)) {
+                evicted = true;
+                continue;
+            }
+            long sessionBytes = session.agent.getHistory()
+                                             .estimatedBytes();
+            resident.add(new Resident(entry.getKey(), session, lastUsed, sessionBytes));
+            bytes += sessionBytes;
+        }
+        int maxSessions = Math.max(1, SESSION_MAX_SESSIONS.get());
+        long maxBytes = Math.max(1, SESSION_MAX_MEMORY_MB.get()) * BYTES_PER_MB;
+        if (resident.size() > maxSessions || bytes > maxBytes) {
+            resident.sort(Comparator.comparingLong(Resident::lastUsed));
+            int remaining = resident.size();
+            for (Resident candidate : resident) {
+                LongAdder reason;
+                if (remaining > maxSessions) {
+                    reason = sizeEvictions;
+                } else if (bytes > maxBytes) {
+                    reason = memoryEvictions;
+                } else {
+                    break;
+                }
+                if (evict(candidate.id(), candidate.session(), candidate.lastUsed(), reason)) {
+                    evicted = true;
+                    remaining--;
+                    bytes -= candidate.bytes();
+                }
+            }
+        }
+        if (evicted) {
+            CONVERSATION_STORE.flush();
+        }
+    }
+
+    /**
+     * @return whether the session was evicted; a session that is busy, or was used, replaced or removed since the sweep saw it, stays
+     */
+    private boolean evict(UUID id, Session session, long lastUsed, LongAdder reason) {
+        boolean[] removed = new boolean[1];
+        agents.computeIfPresent(id, (ignored, current) -> {
+            if (current != session || current.lastUsed != lastUsed || !current.agent.isIdle() || JOB_TRACKER.hasJobs(id)) {
+                return current;
+            }
+            removed[0] = true;
+            return null;
         });
+        if (removed[0]) {
+            CONVERSATION_STORE.spill(id, session.agent.getHistory());
+            reason.increment();
+        }
+        return removed[0];
+    }
+
+    /**
+     * Deletes a player's conversation, in memory and on disk. Their AI work in progress is cancelled first, so a reply still on its way does not return to the cleared history.
+     *
+     * @param uuid the player
+     */
+    public void clearHistory(UUID uuid) {
+        JOB_TRACKER.cancelAll(uuid);
+        Session session = agents.get(uuid);
+        if (session != null) {
+            session.agent.getHistory()
+                         .clear();
+        }
+        CONVERSATION_STORE.clear(uuid);
+    }
+
+    /**
+     * @return a snapshot of the session cache
+     */
+    public SessionStats stats() {
+        long bytes = 0;
+        for (Session session : agents.values()) {
+            bytes += session.agent.getHistory()
+                                  .estimatedBytes();
+        }
+        return new SessionStats(agents.size(), bytes, hits.sum(), misses.sum(), idleEvictions.sum(), sizeEvictions.sum(), memoryEvictions.sum());
     }
 
     /**
@@ -141,9 +279,9 @@ public enum SessionManager implements Listener {
      */
     public void setPlayerModel(UUID uuid, String model) {
         playerChosenModels.put(uuid, model);
-        ChatAgent agent = agents.get(uuid);
-        if (agent != null) {
-            agent.setModel(model);
+        Session session = agents.get(uuid);
+        if (session != null) {
+            session.agent.setModel(model);
         }
 
         // save to disk
@@ -156,17 +294,20 @@ public enum SessionManager implements Listener {
     }
 
     /**
-     * Sets and persists the player's API key securely.
+     * Sets and persists the player's API key securely. The model list cached for a key it replaces is dropped.
      *
      * @param uuid   Player UUID
      * @param apiKey The raw API key
      */
     public void setPlayerAPIKey(UUID uuid, String apiKey) {
-        playerKeys.put(uuid, apiKey);
+        String previous = playerKeys.put(uuid, apiKey);
+        if (previous != null && !previous.equals(apiKey) && !previous.equals(API_KEY.get())) {
+            MODEL_LIST_CACHE.invalidate(previous); // a replaced key is often a revoked one
+        }
 
-        ChatAgent agent = agents.get(uuid);
-        if (agent != null) {
-            agent.setApiKey(apiKey);
+        Session session = agents.get(uuid);
+        if (session != null) {
+            session.agent.setApiKey(apiKey);
         }
 
         // Encrypt and save the API key to disk
@@ -186,7 +327,32 @@ public enum SessionManager implements Listener {
 
 
     /**
-     * Clears the agent when a player quits to free memory.
+     * Reads the player's conversation from disk on the login thread, so the main thread never has to.
+     *
+     * @param event Pre-login event, fired off the main thread
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPreLogin(AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() == AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            CONVERSATION_STORE.preload(event.getUniqueId());
+        }
+    }
+
+    /**
+     * Forgets the conversation preloaded for a player whose login was refused after the pre-login, e.g. because the server is full or whitelisted.
+     *
+     * @param event Login event
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onLogin(PlayerLoginEvent event) {
+        if (event.getResult() != PlayerLoginEvent.Result.ALLOWED) {
+            CONVERSATION_STORE.discard(event.getPlayer()
+                                            .getUniqueId());
+        }
+    }
+
+    /**
+     * Cancels the player's AI work in progress and clears the agent when they quit, to free memory. Its conversation stays on disk.
      *
      * @param event Quit event
      */
@@ -194,7 +360,45 @@ public enum SessionManager implements Listener {
     public void onPlayerQuit(PlayerQuitEvent event) {
         UUID id = event.getPlayer()
                        .getUniqueId();
+        JOB_TRACKER.cancelAll(id);
         agents.remove(id);
+        CONVERSATION_STORE.detach(id);
+    }
+
+    /**
+     * Snapshot of the session cache.
+     *
+     * @param sessions        agents held in memory
+     * @param residentBytes   estimated size of their histories
+     * @param hits            lookups answered by a resident agent
+     * @param misses          lookups that created an agent
+     * @param idleEvictions   sessions evicted for being idle
+     * @param sizeEvictions   sessions evicted to stay within max-sessions
+     * @param memoryEvictions sessions evicted to stay within max-memory-mb
+     */
+    public record SessionStats(int sessions, long residentBytes, long hits, long misses, long idleEvictions, long sizeEvictions, long memoryEvictions) {
+
+        public double hitRatio() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+    }
+
+    /**
+     * A resident agent and when it was last handed out, in {@link System#nanoTime()}.
+     */
+    private static final class Session {
+
+        private final ChatAgent agent;
+        private volatile long lastUsed = System.nanoTime();
+
+        private Session(ChatAgent agent) {
+            this.agent = agent;
+        }
+    }
+
+    private record Resident(UUID id, Session session, long lastUsed, long bytes) {
+
     }
 
     /**
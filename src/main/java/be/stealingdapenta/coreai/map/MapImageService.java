@@ -1,13 +1,34 @@
 package be.stealingdapenta.coreai.map;
 
+import static be.stealingdapenta.coreai.config.Config.IMAGE_INLINE;
+import static be.stealingdapenta.coreai.config.Config.TIMEOUT_MS;
 import static be.stealingdapenta.coreai.map.LastSeenTracker.LAST_SEEN_TRACKER;
+import static be.stealingdapenta.coreai.service.HttpClientRegistry.HTTP_CLIENT_REGISTRY;
+import static be.stealingdapenta.coreai.service.ImageGenerationMetrics.IMAGE_GENERATION_METRICS;
+import static be.stealingdapenta.coreai.service.OpenAIApi.OPEN_AI_API;
+import static be.stealingdapenta.coreai.service.UsageLedger.USAGE_LEDGER;
 import static net.kyori.adventure.text.Component.text;
 import static net.kyori.adventure.text.format.NamedTextColor.GRAY;
 
+import be.stealingdapenta.coreai.service.AiJob;
 import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.image.BufferedImage;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import okhttp3.Request;
+import okhttp3.ResponseBody;
 import org.bukkit.Bukkit;
 import org.bukkit.Material;
 import org.bukkit.entity.Player;
@@ -30,6 +51,138 @@ public enum MapImageService {
 
     private static final int MAP_WIDTH = 128;
     private static final int MAP_HEIGHT = 128;
+    private static final long BYTES_PER_PIXEL = 4;
+    private static final long MAX_SOURCE_PIXELS = 2048L * 1024; // the largest generated image; downloads are decoded at most this large
+    private static final long SOURCE_IMAGE_BYTES = MAX_SOURCE_PIXELS * BYTES_PER_PIXEL;
+    private static final int MAX_SOURCE_SIDE = 16384; // larger images are refused rather than decoded
+    private static final long MAX_DOWNLOAD_BYTES = 32L * 1024 * 1024;
+    private static final String IMAGES_USAGE_MODEL = "images"; // the image requests name no model; usage is accounted to the endpoint
+
+    /**
+     * Downloads and decodes an image over the shared HTTP client without blocking the caller.
+     *
+     * @param url the http(s) URL of the image
+     * @return a future with the decoded image; fails if the URL is unreachable or not a supported image format
+     */
+    public CompletableFuture<BufferedImage> downloadImageAsync(String url) {
+        return downloadImageAsync(url, AiJob.UNTRACKED);
+    }
+
+    /**
+     * Cancellable variant of {@link #downloadImageAsync(String)}. Cancelling the job closes the connection, which also aborts a decode in progress.
+     * <p>
+     * The body may be at most 32 MB. The image's dimensions are read before its pixels, and an image larger than {@link #estimateMemoryBytes} assumes is decoded subsampled, so it never takes more memory than its job reserved.
+     *
+     * @param url the http(s) URL of the image
+     * @param job the job the image belongs to
+     * @return a future with the decoded image
+     */
+    public CompletableFuture<BufferedImage> downloadImageAsync(String url, AiJob job) {
+        Request request;
+        try {
+            request = new Request.Builder().url(url)
+                                           .tag(AiJob.class, job)
+                                           .get()
+                                           .build();
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Invalid image URL: " + url));
+        }
+        return HTTP_CLIENT_REGISTRY.executeAsync(request, TIMEOUT_MS.get(), response -> {
+            ResponseBody body = response.body();
+            if (!response.isSuccessful() || body == null) {
+                throw new IOException("Image download failed: HTTP " + response.code());
+            }
+            if (body.contentLength() > MAX_DOWNLOAD_BYTES) {
+                throw new IOException("Image is too large to download (" + body.contentLength() / (1024 * 1024) + " MB).");
+            }
+            try (InputStream in = new BoundedInputStream(body.byteStream(), MAX_DOWNLOAD_BYTES)) {
+                return decodeBounded(in);
+            }
+        });
+    }
+
+    /**
+     * Decodes an image at most {@link #MAX_SOURCE_PIXELS} large, reading every {@code n}th pixel of each {@code n}th row of a larger one.
+     */
+    private static BufferedImage decodeBounded(InputStream in) throws IOException {
+        try (ImageInputStream stream = new MemoryCacheImageInputStream(in)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                throw new IOException("Invalid image format or unreachable URL.");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if (width > MAX_SOURCE_SIDE || height > MAX_SOURCE_SIDE) {
+                    throw new IOException("Image is too large (" + width + "x" + height + ").");
+                }
+                int step = 1;
+                while ((long) ceilDiv(width, step) * ceilDiv(height, step) > MAX_SOURCE_PIXELS) {
+                    step++;
+                }
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (step > 1) {
+                    param.setSourceSubsampling(step, step, 0, 0);
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static int ceilDiv(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+
+    /**
+     * Generates an image for a grid of maps and decodes it. The image arrives inline in the response unless {@code openai.image-inline} is off, in which case it is downloaded from the returned URL. Either way the time until the
+     * image is decoded is recorded, per path. A generated image counts as one request in the owner's usage.
+     *
+     * @param prompt the image prompt
+     * @param cols   the grid's columns
+     * @param rows   the grid's rows
+     * @param apiKey the OpenAI API key
+     * @param job    the job the image belongs to
+     * @return a future with the decoded image
+     */
+    public CompletableFuture<BufferedImage> generateImageAsync(String prompt, int cols, int rows, String apiKey, AiJob job) {
+        boolean inline = IMAGE_INLINE.get();
+        long startedAt = System.nanoTime();
+        CompletableFuture<BufferedImage> image = inline ? OPEN_AI_API.generateImageDataAsync(prompt, cols * MAP_WIDTH, rows * MAP_HEIGHT, apiKey, job)
+                                                                     .whenComplete(billed(job))
+                                                        : OPEN_AI_API.generateImageAsync(prompt, cols * MAP_WIDTH, rows * MAP_HEIGHT, apiKey, job)
+                                                                     .whenComplete(billed(job))
+                                                                     .thenCompose(url -> downloadImageAsync(url, job));
+        return image.whenComplete((decoded, error) -> {
+            if (error == null) {
+                IMAGE_GENERATION_METRICS.record(inline, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+            }
+        });
+    }
+
+    private static <T> BiConsumer<T, Throwable> billed(AiJob job) {
+        return (result, error) -> {
+            if (error == null) {
+                USAGE_LEDGER.recordRequest(job.getOwner(), IMAGES_USAGE_MODEL);
+            }
+        };
+    }
+
+    /**
+     * Estimates the heap a map image job holds at its peak: the decoded source, at most {@link #MAX_SOURCE_PIXELS} large, plus the scaled copy and resized grid {@link #resizeToGrid} keeps while drawing. Tiles share the grid's
+     * raster.
+     *
+     * @param cols the grid's columns
+     * @param rows the grid's rows
+     * @return the estimated bytes
+     */
+    public long estimateMemoryBytes(int cols, int rows) {
+        long gridPixels = (long) cols * MAP_WIDTH * rows * MAP_HEIGHT;
+        return SOURCE_IMAGE_BYTES + 2 * gridPixels * BYTES_PER_PIXEL;
+    }
 
     /**
      * Resizes an image to fit a specific grid of maps (columns × rows).
@@ -114,4 +267,43 @@ public enum MapImageService {
             }
         }
     }
+
+    /**
+     * Fails a read once more than {@code limit} bytes have come through, for bodies whose length was not announced.
+     */
+    private static final class BoundedInputStream extends FilterInputStream {
+
+        private final long limit;
+        private long read;
+
+        private BoundedInputStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value >= 0) {
+                count(1);
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        private void count(long n) throws IOException {
+            read += n;
+            if (read > limit) {
+                throw new IOException("Image is too large to download (over " + limit / (1024 * 1024) + " MB).");
+            }
+        }
+    }
 }
@@ -2,14 +2,19 @@ package be.stealingdapenta.coreai.map;
 
 import static be.stealingdapenta.coreai.CoreAI.CORE_AI_LOGGER;
 import static be.stealingdapenta.coreai.config.Config.CLEANUP_MAX_DAYS;
+import static be.stealingdapenta.coreai.manager.ExecutorManager.EXECUTOR_MANAGER;
 import static be.stealingdapenta.coreai.map.MapImageService.MAP_IMAGE_SERVICE;
 
 import be.stealingdapenta.coreai.CoreAI;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.imageio.ImageIO;
 import org.bukkit.Bukkit;
 import org.bukkit.map.MapView;
@@ -30,7 +35,7 @@ public enum MapStorage {
                                             .getDataFolder(), DIR_NAME);
 
     /**
-     * Loads previously saved map images on startup.
+     * Loads previously saved map images on startup. The files are decoded in parallel on I/O threads.
      */
     public void initialize() {
         if (!dir.exists()) {
@@ -41,23 +46,30 @@ public enum MapStorage {
             return;
         }
 
+        List<CompletableFuture<Void>> loads = new ArrayList<>(files.length);
+        Map<Integer, BufferedImage> loaded = new ConcurrentHashMap<>();
         for (File file : files) {
-            try {
-                int id = Integer.parseInt(file.getName()
-                                              .substring(4, file.getName()
-                                                                .length() - 4));
-                BufferedImage img = ImageIO.read(file);
-                if (img != null) {
-                    mapImages.put(id, img);
+            loads.add(CompletableFuture.runAsync(() -> {
+                try {
+                    int id = Integer.parseInt(file.getName()
+                                                  .substring(4, file.getName()
+                                                                    .length() - 4));
+                    BufferedImage img = ImageIO.read(file);
+                    if (img != null) {
+                        loaded.put(id, img);
+                    }
+                } catch (Exception e) {
+                    CORE_AI_LOGGER.warning("Failed to load stored map: " + file.getName() + " (" + e.getMessage() + ")");
                 }
-            } catch (Exception e) {
-                CORE_AI_LOGGER.warning("Failed to load stored map: " + file.getName() + " (" + e.getMessage() + ")");
-            }
+            }, EXECUTOR_MANAGER.io()));
         }
+        CompletableFuture.allOf(loads.toArray(CompletableFuture[]::new))
+                         .join();
+        mapImages.putAll(loaded);
     }
 
     /**
-     * Saves a rendered map image to disk.
+     * Saves a rendered map image to disk. The PNG is encoded and written on an I/O thread, so rendering never waits on the disk.
      *
      * @param view  The MapView to identify
      * @param image The image rendered on the map
@@ -65,13 +77,16 @@ public enum MapStorage {
     public void saveNewMap(MapView view, BufferedImage image) {
         int id = view.getId();
         File out = new File(dir, "map_" + id + ".png");
-        try {
-            dir.mkdirs();
-            ImageIO.write(image, "png", out);
-            mapImages.put(id, image);
-        } catch (IOException e) {
-            CORE_AI_LOGGER.warning("Failed to store image for map " + id + ": " + e.getMessage());
-        }
+        mapImages.put(id, image);
+        EXECUTOR_MANAGER.io()
+                        .execute(() -> {
+                            try {
+                                dir.mkdirs();
+                                ImageIO.write(image, "png", out);
+                            } catch (IOException e) {
+                                CORE_AI_LOGGER.warning("Failed to store image for map " + id + ": " + e.getMessage());
+                            }
+                        });
     }
 
     /**
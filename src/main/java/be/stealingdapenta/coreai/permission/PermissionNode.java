@@ -37,7 +37,17 @@ public enum PermissionNode {
     /**
      * Allows using the /cleanup command to clean up unused images.
      */
-    IMAGE_CLEANUP("coreai.cleanup");
+    IMAGE_CLEANUP("coreai.cleanup"),
+
+    /**
+     * Allows using the /aistats command to view CoreAI runtime metrics.
+     */
+    STATS("coreai.stats"),
+
+    /**
+     * Exempts a player from the daily quotas on the server's API key.
+     */
+    QUOTA_BYPASS("coreai.quota.bypass");
 
     private final String node;
 
@@ -0,0 +1,86 @@
+package be.stealingdapenta.coreai.service;
+
+import static be.stealingdapenta.coreai.config.Config.ADAPTIVE_TIMEOUT_ENABLED;
+import static be.stealingdapenta.coreai.config.Config.ADAPTIVE_TIMEOUT_FACTOR;
+import static be.stealingdapenta.coreai.config.Config.ADAPTIVE_TIMEOUT_MIN_MS;
+import static be.stealingdapenta.coreai.config.Config.ADAPTIVE_TIMEOUT_MIN_SAMPLES;
+import static be.stealingdapenta.coreai.config.Config.ADAPTIVE_TIMEOUT_PERCENTILE;
+
+import be.stealingdapenta.coreai.util.LatencyHistogram;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Singleton that derives each API call's timeout from how long recent calls to the same endpoint and model took: a high percentile of their latency times a safety factor, between {@code min-ms} and the configured timeout.
+ * <p>
+ * A call that times out is recorded at the time it was given, so when the API slows down the percentile, and with it the timeout, grows again instead of cutting off every call. Until {@code min-samples} calls were seen, the
+ * configured timeout applies.
+ */
+public enum AdaptiveTimeouts {
+    ADAPTIVE_TIMEOUTS;
+
+    private static final int LATENCY_WINDOW = 1000;
+
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+
+    /**
+     * @param endpoint  the endpoint called
+     * @param model     the model requested, or null when the endpoint has none
+     * @param ceilingMs the configured timeout, which the adaptive one never exceeds
+     * @return the timeout for the next call, in milliseconds
+     */
+    public long timeoutFor(ApiEndpoint endpoint, String model, long ceilingMs) {
+        LatencyHistogram latency = latencies.get(key(endpoint, model));
+        if (!ADAPTIVE_TIMEOUT_ENABLED.get() || latency == null || latency.count() < ADAPTIVE_TIMEOUT_MIN_SAMPLES.get()) {
+            return ceilingMs;
+        }
+        long adaptive = Math.round(latency.percentile(ADAPTIVE_TIMEOUT_PERCENTILE.get()) * ADAPTIVE_TIMEOUT_FACTOR.get());
+        return Math.min(ceilingMs, Math.max(ADAPTIVE_TIMEOUT_MIN_MS.get(), adaptive));
+    }
+
+    /**
+     * @param endpoint  the endpoint called
+     * @param model     the model requested, or null when the endpoint has none
+     * @param latencyMs how long a completed call took, or the timeout of a call that timed out
+     */
+    public void record(ApiEndpoint endpoint, String model, long latencyMs) {
+        latencies.computeIfAbsent(key(endpoint, model), id -> new LatencyHistogram(LATENCY_WINDOW))
+                 .record(latencyMs);
+    }
+
+    private String key(ApiEndpoint endpoint, String model) {
+        return model == null ? endpoint.id() : endpoint.id() + "/" + model;
+    }
+
+    /**
+     * @return a snapshot per endpoint and model, in no particular order
+     */
+    public List<TimeoutStats> stats() {
+        List<TimeoutStats> stats = new ArrayList<>(latencies.size());
+        latencies.forEach((key, latency) -> stats.add(new TimeoutStats(key, latency.count(), latency.percentile(50), latency.percentile(ADAPTIVE_TIMEOUT_PERCENTILE.get()))));
+        return stats;
+    }
+
+    /**
+     * Latency of one endpoint and model.
+     *
+     * @param key          the endpoint, followed by the model if there is one
+     * @param samples      latencies currently weighed
+     * @param medianMs     their median
+     * @param percentileMs their configured percentile, which the timeout is derived from
+     */
+    public record TimeoutStats(String key, long samples, long medianMs, long percentileMs) {
+
+        /**
+         * @return the timeout a call would get now before the configured ceiling applies, or -1 while the configured timeout is used
+         */
+        public long timeoutMs() {
+            if (!ADAPTIVE_TIMEOUT_ENABLED.get() || samples < ADAPTIVE_TIMEOUT_MIN_SAMPLES.get()) {
+                return -1;
+            }
+            return Math.max(ADAPTIVE_TIMEOUT_MIN_MS.get(), Math.round(percentileMs * ADAPTIVE_TIMEOUT_FACTOR.get()));
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package be.stealingdapenta.coreai.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+
+/**
+ * Cancellation handle for one piece of player-initiated AI work, such as a chat reply or a generated image. Every asynchronous stage the work starts (a rate limiter wait, an HTTP call) is bound to the job, so cancelling the job cancels
+ * whatever is running at that moment; HTTP stages then cancel their OkHttp call. Stages not started yet refuse to start.
+ * <p>
+ * Jobs are created and tracked per player by the {@link JobTracker}. Work nobody can cancel uses {@link #UNTRACKED}.
+ */
+public final class AiJob {
+
+    /**
+     * A job that is never cancelled, for background work that is not tied to a player's request.
+     */
+    public static final AiJob UNTRACKED = new AiJob(null, "untracked", 1);
+
+    private static final IntConsumer NO_LISTENER = position -> {
+    };
+    private static final Runnable NO_DISPATCH_LISTENER = () -> {
+    };
+
+    private final UUID owner;
+    private final String description;
+    private final int weight;
+    private final List<Future<?>> stages = new ArrayList<>(); // guarded by this
+    private volatile boolean cancelled;
+    private volatile IntConsumer queueListener = NO_LISTENER;
+    private volatile Runnable dispatchListener = NO_DISPATCH_LISTENER;
+
+    AiJob(UUID owner, String description, int weight) {
+        this.owner = owner;
+        this.description = description;
+        this.weight = Math.max(1, weight);
+    }
+
+    /**
+     * Ties a stage to this job. A stage bound after the job was cancelled is cancelled right away.
+     *
+     * @param stage the future of a stage the job has just started
+     * @param <F>   the future's type
+     * @return the stage, for chaining
+     */
+    public <F extends Future<?>> F bind(F stage) {
+        if (this == UNTRACKED) {
+            return stage;
+        }
+        synchronized (this) {
+            if (!cancelled) {
+                stages.removeIf(Future::isDone);
+                stages.add(stage);
+                return stage;
+            }
+        }
+        stage.cancel(true);
+        return stage;
+    }
+
+    /**
+     * Cancels every stage still running. Idempotent.
+     *
+     * @return whether this call cancelled the job
+     */
+    public boolean cancel() {
+        if (this == UNTRACKED) {
+            return false;
+        }
+        List<Future<?>> running;
+        synchronized (this) {
+            if (cancelled) {
+                return false;
+            }
+            cancelled = true;
+            running = new ArrayList<>(stages);
+            stages.clear();
+        }
+        running.forEach(stage -> stage.cancel(true));
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Stops a stage from starting once the job is cancelled.
+     *
+     * @throws CancellationException if the job was cancelled
+     */
+    public void checkNotCancelled() {
+        if (cancelled) {
+            throw new CancellationException(description + " was cancelled");
+        }
+    }
+
+    public UUID getOwner() {
+        return owner;
+    }
+
+    /**
+     * @return the job's share of a busy {@link JobScheduler} queue relative to other players' jobs
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * @param listener receives the job's position whenever it changes while the job waits in a {@link JobScheduler} queue (1 is next), then 0 once it starts; called from whichever thread changed the queue
+     */
+    public void onQueuePosition(IntConsumer listener) {
+        if (this != UNTRACKED) {
+            queueListener = listener;
+        }
+    }
+
+    void queuePosition(int position) {
+        queueListener.accept(position);
+    }
+
+    /**
+     * @param listener called whenever one of the job's HTTP requests is actually sent, after any rate limiter wait or retry pause; called on the thread sending it
+     */
+    public void onDispatch(Runnable listener) {
+        if (this != UNTRACKED) {
+            dispatchListener = listener;
+        }
+    }
+
+    void dispatched() {
+        dispatchListener.run();
+    }
+}
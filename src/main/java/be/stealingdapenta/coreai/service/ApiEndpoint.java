@@ -0,0 +1,61 @@
+package be.stealingdapenta.coreai.service;
+
+import static be.stealingdapenta.coreai.config.Config.CIRCUIT_SLOW_CALL_MS_CHAT;
+import static be.stealingdapenta.coreai.config.Config.CIRCUIT_SLOW_CALL_MS_EMBEDDINGS;
+import static be.stealingdapenta.coreai.config.Config.CIRCUIT_SLOW_CALL_MS_IMAGES;
+import static be.stealingdapenta.coreai.config.Config.CIRCUIT_SLOW_CALL_MS_MODELS;
+
+import be.stealingdapenta.coreai.config.ConfigValue;
+
+/**
+ * The OpenAI endpoints CoreAI calls, each guarded by its own {@link CircuitBreaker} so one degraded endpoint doesn't block the others, and each with its own {@link RetryBudget}.
+ */
+public enum ApiEndpoint {
+    CHAT("chat", CIRCUIT_SLOW_CALL_MS_CHAT, true),
+    IMAGES("images", CIRCUIT_SLOW_CALL_MS_IMAGES, false),
+    MODELS("models", CIRCUIT_SLOW_CALL_MS_MODELS, true),
+    EMBEDDINGS("embeddings", CIRCUIT_SLOW_CALL_MS_EMBEDDINGS, true);
+
+    private final String id;
+    private final ConfigValue<Integer> slowCallMs;
+    private final boolean resendable;
+    private CircuitBreaker breaker;
+    private RetryBudget retryBudget;
+
+    ApiEndpoint(String id, ConfigValue<Integer> slowCallMs, boolean resendable) {
+        this.id = id;
+        this.slowCallMs = slowCallMs;
+        this.resendable = resendable;
+    }
+
+    public String id() {
+        return id;
+    }
+
+    /**
+     * @return whether a request that may have reached the server may be sent again; a generated image is billed even when its response is lost
+     */
+    public boolean resendable() {
+        return resendable;
+    }
+
+    /**
+     * @return this endpoint's breaker, created on first use once the config is loaded
+     */
+    public synchronized CircuitBreaker breaker() {
+        if (breaker == null) {
+            breaker = new CircuitBreaker(id, slowCallMs);
+        }
+        return breaker;
+    }
+
+    /**
+     * @return this endpoint's retry budget, created on first use once the config is loaded
+     */
+    public synchronized RetryBudget retryBudget() {
+        if (retryBudget == null) {
+            retryBudget = new RetryBudget(id);
+        }
+        return retryBudget;
+    }
+}
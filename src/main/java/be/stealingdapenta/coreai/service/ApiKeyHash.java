@@ -0,0 +1,35 @@
+package be.stealingdapenta.coreai.service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+/**
+ * Derives a stable, non-reversible identifier from an API key, so per-key state can be keyed without keeping raw keys as map keys or in logs.
+ */
+public final class ApiKeyHash {
+
+    private static final int HASH_BYTES = 16;
+
+    private ApiKeyHash() {
+        // Utility class
+    }
+
+    /**
+     * @param apiKey the raw API key
+     * @return the first 128 bits of the key's SHA-256, as hex
+     */
+    public static String of(String apiKey) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                                         .digest(String.valueOf(apiKey)
+                                                       .getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of()
+                            .formatHex(Arrays.copyOf(digest, HASH_BYTES));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
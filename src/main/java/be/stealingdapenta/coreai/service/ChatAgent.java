@@ -1,32 +1,63 @@
 package be.stealingdapenta.coreai.service;
 
-import static be.stealingdapenta.coreai.CoreAI.CORE_AI_LOGGER;
-import static be.stealingdapenta.coreai.service.OpenAIApi.OPEN_AI_API;
+import static be.stealingdapenta.coreai.manager.ExecutorManager.EXECUTOR_MANAGER;
+import static be.stealingdapenta.coreai.service.HistoryCompactor.HISTORY_COMPACTOR;
+import static be.stealingdapenta.coreai.service.JobScheduler.JOB_SCHEDULER;
+import static be.stealingdapenta.coreai.service.ModelListCache.MODEL_LIST_CACHE;
+import static be.stealingdapenta.coreai.service.ModelRouter.MODEL_ROUTER;
+import static be.stealingdapenta.coreai.service.RequestHedger.REQUEST_HEDGER;
+import static be.stealingdapenta.coreai.service.ResponseCache.RESPONSE_CACHE;
+import static be.stealingdapenta.coreai.service.SemanticCache.SEMANTIC_CACHE;
+import static be.stealingdapenta.coreai.service.SystemPrompts.SYSTEM_PROMPTS;
+import static be.stealingdapenta.coreai.service.UsageLedger.USAGE_LEDGER;
 
-import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.Deque;
+import be.stealingdapenta.coreai.service.ConversationHistory.Pending;
+import be.stealingdapenta.coreai.service.codec.TokenUsage;
 import java.util.List;
-import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * Represents a per-player conversation agent.
  */
 public class ChatAgent {
 
-    private final Deque<Map<String, Object>> history = new ArrayDeque<>();
+    // Where a streamed reply comes from, decided by whichever arrives first: a fragment of the call or a semantic cache hit
+    private static final int UNDECIDED = 0;
+    private static final int STREAMING = 1;
+    private static final int FROM_CACHE = 2;
+
+    private final UUID owner;
+    private final ConversationHistory history = new ConversationHistory();
     private String apiKey;
     private String model;
     private final int timeoutMs;
+    private volatile String world;
+    private final Mailbox mailbox;
+    private volatile CompletableFuture<Void> restored = CompletableFuture.completedFuture(null);
 
-    public ChatAgent(String apiKey, String model, int timeoutMs) {
+    /**
+     * @param owner     the player
+     * @param apiKey    the key requests are sent with
+     * @param model     the chat model
+     * @param timeoutMs per-request timeout
+     * @param maxQueued most prompts waiting or in flight at once; more are refused
+     */
+    public ChatAgent(UUID owner, String apiKey, String model, int timeoutMs, int maxQueued) {
+        this.owner = owner;
         this.apiKey = apiKey;
         this.model = model;
         this.timeoutMs = timeoutMs;
+        this.mailbox = new Mailbox(maxQueued);
+        history.switchModel(model);
     }
 
     public void setModel(String model) {
         this.model = model;
+        history.switchModel(model);
     }
 
     public void setApiKey(String apiKey) {
@@ -37,51 +68,186 @@ public class ChatAgent {
         return model;
     }
 
+    public UUID getOwner() {
+        return owner;
+    }
+
     public String getApiKey() {
         return apiKey;
     }
 
+    public ConversationHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * @return whether another prompt fits in the queue behind the ones still being answered
+     */
+    public boolean canQueue() {
+        return mailbox.hasCapacity();
+    }
+
+    /**
+     * @return whether no prompt is waiting or being answered
+     */
+    public boolean isIdle() {
+        return mailbox.isIdle();
+    }
+
+    /**
+     * @param world the name of the world the player chats from, which selects the system prompt
+     */
+    public void setWorld(String world) {
+        this.world = world;
+    }
+
+    /**
+     * Holds back chat requests until the persisted conversation has been read into the history, so a re-created agent never answers without its context.
+     *
+     * @param restored completes once the history is restored; a failed restore leaves the history as it is
+     */
+    public void awaitHistory(CompletableFuture<Void> restored) {
+        this.restored = restored.exceptionally(error -> null);
+    }
+
+    /**
+     * Tests whether the current API key is valid by listing its models, answered from the {@link ModelListCache} when possible.
+     *
+     * @return a future that completes normally if the key is valid
+     */
+    public CompletableFuture<Void> testKeyAsync() {
+        return MODEL_LIST_CACHE.validateKey(apiKey);
+    }
+
     /**
-     * Tests whether the current API key is valid by listing models.
+     * Lists the models available to this agent's API key, answered from the {@link ModelListCache} when possible.
      *
-     * @throws OpenAiException if the API returns an HTTP error (e.g., invalid_api_key)
-     * @throws IOException     for network or parsing issues
+     * @return a future with the model IDs available to this agent's API key
      */
-    public void testKey() throws OpenAiException, IOException {
-        OPEN_AI_API.listModelIds(apiKey);
+    public CompletableFuture<List<String>> listModelsAsync() {
+        return MODEL_LIST_CACHE.getModelIds(apiKey);
     }
 
     /**
-     * Lists available models for this agent's API key.
+     * Sends the prompt and returns the assistant's reply, preserving context. Answered from the {@link ResponseCache} when it holds a reply for this exact context, else from the {@link SemanticCache} when it holds a reply to a prompt with the same meaning
+     * (both opt-in).
+     * <p>
+     * The player's prompts are answered one at a time, in the order they were sent, and each turn is prepared (tokens counted, cache keys hashed) on the CPU executor rather than the calling thread; a prompt beyond the mailbox's capacity fails with a {@link RejectedExecutionException}. A prompt that needs the API then waits for a chat
+     * slot in the {@link JobScheduler}, which fails it with a {@link JobRejectedException} when its queue is full. A simple prompt may be answered by a faster model, see {@link ModelRouter}, and a slow request may be sent to a fallback
+     * model as well, see {@link RequestHedger}.
      *
-     * @return List of model IDs
-     * @throws OpenAiException if authentication or API errors occur
+     * @param prompt User message
+     * @return a future with the assistant response
      */
-    public List<String> listModels() throws OpenAiException {
-        try {
-            return OPEN_AI_API.listModelIds(apiKey);
-        } catch (IOException e) {
-            CORE_AI_LOGGER.severe("Failed to fetch model list: " + e.getMessage());
-            throw new RuntimeException("Failed to fetch models", e);
-        }
+    public CompletableFuture<String> chatAsync(String prompt) {
+        return chatAsync(prompt, AiJob.UNTRACKED);
     }
 
     /**
-     * Sends user prompt and returns assistant reply, preserving context.
+     * Cancellable variant of {@link #chatAsync(String)}. Cancelling the job drops the prompt while it is queued, and cancels the request while it waits for the rate limiter or is in flight.
      *
      * @param prompt User message
-     * @return Assistant response
-     * @throws IOException if network or parsing errors occur
+     * @param job    the job the reply belongs to
+     * @return a future with the assistant response; cancelled with the job
+     */
+    public CompletableFuture<String> chatAsync(String prompt, AiJob job) {
+        return job.bind(mailbox.submit(() -> restored.thenComposeAsync(ignored -> requestAsync(prompt, job), EXECUTOR_MANAGER.cpu())));
+    }
+
+    private CompletableFuture<String> requestAsync(String prompt, AiJob job) {
+        job.checkNotCancelled();
+        List<ChatMessage> context = conversation();
+        int historyTokens = history.tokens();
+        Pending turn = history.prepare(ChatMessage.user(prompt), model);
+        List<ChatMessage> contextHistory = beginTurn(turn);
+        return RESPONSE_CACHE.getOrCompute(apiKey, model, context, prompt, job,
+                                           upstreamJob -> SEMANTIC_CACHE.getOrCompute(apiKey, model, context, prompt, upstreamJob, () -> true,
+                                                                                      callJob -> JOB_SCHEDULER.submit(JobType.CHAT, callJob, 1, 0,
+                                                                                                                      () -> MODEL_ROUTER.sendAsync(apiKey, model, prompt, historyTokens, callJob,
+                                                                                                                                                   (routed, routedJob) -> REQUEST_HEDGER.chatAsync(apiKey, routed, timeoutMs, contextHistory,
+                                                                                                                                                                                                   this::recordUsage, routedJob)))))
+                             .thenApply(reply -> addTurn(turn, reply));
+    }
+
+    /**
+     * Sends the prompt and streams the assistant's reply as it is generated, preserving context. The reply only enters the history once the stream has completed. {@code onDelta} is called on the thread reading the stream. A reply served by a cache, or shared with an identical request, arrives as a single fragment. Queued
+     * like {@link #chatAsync(String)}.
+     *
+     * @param prompt  User message
+     * @param onDelta Receives each partial text fragment, in order
+     * @return a future with the complete assistant response
+     */
+    public CompletableFuture<String> chatStreamAsync(String prompt, Consumer<String> onDelta) {
+        return chatStreamAsync(prompt, onDelta, AiJob.UNTRACKED);
+    }
+
+    /**
+     * Cancellable variant of {@link #chatStreamAsync(String, Consumer)}, like {@link #chatAsync(String, AiJob)}.
+     *
+     * @param prompt  User message
+     * @param onDelta Receives each partial text fragment, in order
+     * @param job     the job the reply belongs to
+     * @return a future with the complete assistant response; cancelled with the job
+     */
+    public CompletableFuture<String> chatStreamAsync(String prompt, Consumer<String> onDelta, AiJob job) {
+        return job.bind(mailbox.submit(() -> restored.thenComposeAsync(ignored -> requestStreamAsync(prompt, onDelta, job), EXECUTOR_MANAGER.cpu())));
+    }
+
+    private CompletableFuture<String> requestStreamAsync(String prompt, Consumer<String> onDelta, AiJob job) {
+        job.checkNotCancelled();
+        List<ChatMessage> context = conversation();
+        int historyTokens = history.tokens();
+        Pending turn = history.prepare(ChatMessage.user(prompt), model);
+        List<ChatMessage> contextHistory = beginTurn(turn);
+        AtomicInteger source = new AtomicInteger(UNDECIDED);
+        // The call may outlive this caller when identical requests share it, or lose to a semantic cache hit; fragments stop once either happened
+        Consumer<String> ownDeltas = delta -> {
+            if (!job.isCancelled() && (source.get() == STREAMING || source.compareAndSet(UNDECIDED, STREAMING))) {
+                onDelta.accept(delta);
+            }
+        };
+        return RESPONSE_CACHE.getOrCompute(apiKey, model, context, prompt, job,
+                                           upstreamJob -> SEMANTIC_CACHE.getOrCompute(apiKey, model, context, prompt, upstreamJob, () -> source.compareAndSet(UNDECIDED, FROM_CACHE),
+                                                                                      callJob -> JOB_SCHEDULER.submit(JobType.CHAT, callJob, 1, 0,
+                                                                                                                      () -> MODEL_ROUTER.sendAsync(apiKey, model, prompt, historyTokens, callJob,
+                                                                                                                                                   (routed, routedJob) -> REQUEST_HEDGER.chatStreamAsync(apiKey, routed, timeoutMs, contextHistory,
+                                                                                                                                                                                                         ownDeltas, this::recordUsage, routedJob)))))
+                             .thenApply(reply -> {
+                                 if (source.get() != STREAMING) {
+                                     onDelta.accept(reply);
+                                 }
+                                 return addTurn(turn, reply);
+                             });
+    }
+
+    /**
+     * @return the system prompt followed by the history, as sent to the API
+     */
+    private List<ChatMessage> conversation() {
+        return SYSTEM_PROMPTS.prepend(world, model, history.messages());
+    }
+
+    /**
+     * @return the conversation to send, ending with the prompt; the prompt only enters the history with its reply
+     */
+    private List<ChatMessage> beginTurn(Pending prompt) {
+        List<ChatMessage> contextHistory = SYSTEM_PROMPTS.prepend(world, model, history.messagesWith(prompt, model));
+        HISTORY_COMPACTOR.recordRequest(history);
+        return contextHistory;
+    }
+
+    private void recordUsage(String answeringModel, TokenUsage usage) {
+        USAGE_LEDGER.record(owner, answeringModel, usage);
+        MODEL_ROUTER.recordUsage(answeringModel, usage);
+    }
+
+    /**
+     * Adds the prompt and its reply to the history together, so a turn that failed or was cancelled leaves nothing behind.
      */
-    public String chat(String prompt) throws IOException {
-        history.addLast(Map.of("role", "user", "content", prompt));
-        List<Map<String, Object>> contextHistory = List.copyOf(history);
-        String reply = OPEN_AI_API.chat(apiKey, model, timeoutMs, contextHistory);
-        history.addLast(Map.of("role", "assistant", "content", reply));
-        if (history.size() > 20) {
-            history.removeFirst();
-            history.removeFirst();
-        }
+    private String addTurn(Pending prompt, String reply) {
+        history.add(prompt, model);
+        history.add(ChatMessage.assistant(reply), model);
+        HISTORY_COMPACTOR.maybeCompact(history, owner, apiKey, model, timeoutMs);
         return reply;
     }
 
@@ -0,0 +1,26 @@
+package be.stealingdapenta.coreai.service;
+
+/**
+ * A single message of a chat conversation, as sent to the chat completions endpoint.
+ *
+ * @param role    "system", "user" or "assistant"
+ * @param content the message text
+ */
+public record ChatMessage(String role, String content) {
+
+    public static final String SYSTEM = "system";
+    public static final String USER = "user";
+    public static final String ASSISTANT = "assistant";
+
+    public static ChatMessage user(String content) {
+        return new ChatMessage(USER, content);
+    }
+
+    public static ChatMessage assistant(String content) {
+        return new ChatMessage(ASSISTANT, content);
+    }
+
+    public static ChatMessage system(String content) {
+        return new ChatMessage(SYSTEM, content);
+    }
+}
@@ -0,0 +1,223 @@
+package be.stealingdapenta.coreai.service;
+
+import static be.stealingdapenta.coreai.CoreAI.CORE_AI_LOGGER;
+import static be.stealingdapenta.coreai.config.Config.CIRCUIT_FAILURE_RATE_PERCENT;
+import static be.stealingdapenta.coreai.config.Config.CIRCUIT_HALF_OPEN_PROBES;
+import static be.stealingdapenta.coreai.config.Config.CIRCUIT_MINIMUM_CALLS;
+import static be.stealingdapenta.coreai.config.Config.CIRCUIT_OPEN_SECONDS;
+import static be.stealingdapenta.coreai.config.Config.CIRCUIT_SLOW_CALL_RATE_PERCENT;
+import static be.stealingdapenta.coreai.config.Config.CIRCUIT_WINDOW_SIZE;
+
+import be.stealingdapenta.coreai.config.ConfigValue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Count-based circuit breaker for one API endpoint.
+ * <ul>
+ *     <li>CLOSED: calls pass; the outcome of the last {@code window-size} calls is recorded.</li>
+ *     <li>OPEN: once enough calls were recorded and the failure or slow-call rate crosses its threshold, calls are refused for {@code open-seconds}.</li>
+ *     <li>HALF_OPEN: afterwards, a few probe calls are let through. If they all succeed the breaker closes; any failure opens it again.</li>
+ * </ul>
+ * A failure is a network error, a timeout or a 5xx. Client errors such as an invalid key prove the endpoint is up and count as successes.
+ */
+public class CircuitBreaker {
+
+    public static final String CIRCUIT_OPEN = "circuit_open";
+
+    private final String name;
+    private final ConfigValue<Integer> slowCallMs;
+    private final boolean[] failed;
+    private final boolean[] slow;
+    private int recorded;
+    private int next;
+    private State state = State.CLOSED;
+    private long openUntil;
+    private int probesInFlight;
+    private int probesSucceeded;
+    private long rejected;
+    private long timesOpened;
+
+    /**
+     * @param name       the endpoint's name, for logs and stats
+     * @param slowCallMs the latency above which a call counts as slow
+     */
+    public CircuitBreaker(String name, ConfigValue<Integer> slowCallMs) {
+        this.name = name;
+        this.slowCallMs = slowCallMs;
+        int windowSize = Math.max(1, CIRCUIT_WINDOW_SIZE.get());
+        this.failed = new boolean[windowSize];
+        this.slow = new boolean[windowSize];
+    }
+
+    /**
+     * Asks permission for a call.
+     *
+     * @return a permit to report the outcome with, or null if the breaker refuses the call
+     */
+    public synchronized Permit tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() < openUntil) {
+                rejected++;
+                return null;
+            }
+            transition(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (probesInFlight + probesSucceeded >= CIRCUIT_HALF_OPEN_PROBES.get()) {
+                rejected++;
+                return null;
+            }
+            probesInFlight++;
+            return new Permit(true, System.nanoTime());
+        }
+        return new Permit(false, System.nanoTime());
+    }
+
+    /**
+     * Records a call that reached the endpoint and got an answer.
+     *
+     * @param permit    the call's permit
+     * @param latencyMs time until the response headers arrived
+     */
+    public synchronized void onSuccess(Permit permit, long latencyMs) {
+        boolean isSlow = latencyMs > slowCallMs.get();
+        if (permit.probe()) {
+            probesInFlight--;
+            if (state != State.HALF_OPEN) {
+                return;
+            }
+            if (isSlow) {
+                open();
+            } else if (++probesSucceeded >= CIRCUIT_HALF_OPEN_PROBES.get()) {
+                transition(State.CLOSED);
+            }
+            return;
+        }
+        record(false, isSlow);
+    }
+
+    /**
+     * Records a call that failed because of the endpoint.
+     *
+     * @param permit the call's permit
+     */
+    public synchronized void onFailure(Permit permit) {
+        if (permit.probe()) {
+            probesInFlight--;
+            if (state == State.HALF_OPEN) {
+                open();
+            }
+            return;
+        }
+        record(true, false);
+    }
+
+    /**
+     * Returns a permit without recording an outcome, e.g. when the caller cancelled the call.
+     *
+     * @param permit the call's permit
+     */
+    public synchronized void release(Permit permit) {
+        if (permit.probe()) {
+            probesInFlight--;
+        }
+    }
+
+    /**
+     * Closes the breaker and forgets the recorded calls.
+     */
+    public synchronized void reset() {
+        transition(State.CLOSED);
+    }
+
+    /**
+     * @return how long the breaker will still refuse calls, in seconds
+     */
+    public synchronized long retryInSeconds() {
+        return Math.max(0, TimeUnit.MILLISECONDS.toSeconds(openUntil - System.currentTimeMillis()) + 1);
+    }
+
+    /**
+     * @return a snapshot of this breaker
+     */
+    public synchronized BreakerStats stats() {
+        return new BreakerStats(name, state, recorded, countOf(failed), countOf(slow), rejected, timesOpened);
+    }
+
+    private void record(boolean isFailure, boolean isSlow) {
+        failed[next] = isFailure;
+        slow[next] = isSlow;
+        next = (next + 1) % failed.length;
+        recorded = Math.min(recorded + 1, failed.length);
+
+        if (state != State.CLOSED || recorded < Math.min(CIRCUIT_MINIMUM_CALLS.get(), failed.length)) {
+            return;
+        }
+        if (countOf(failed) * 100 >= CIRCUIT_FAILURE_RATE_PERCENT.get() * recorded || countOf(slow) * 100 >= CIRCUIT_SLOW_CALL_RATE_PERCENT.get() * recorded) {
+            open();
+        }
+    }
+
+    private void open() {
+        openUntil = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(CIRCUIT_OPEN_SECONDS.get());
+        timesOpened++;
+        transition(State.OPEN);
+    }
+
+    private void transition(State target) {
+        if (state != target) {
+            CORE_AI_LOGGER.warning("Circuit breaker for the " + name + " endpoint is now " + target + ".");
+        }
+        state = target;
+        probesInFlight = 0;
+        probesSucceeded = 0;
+        if (target == State.CLOSED) {
+            recorded = 0;
+            next = 0;
+        }
+    }
+
+    private int countOf(boolean[] outcomes) {
+        int count = 0;
+        for (int i = 0; i < recorded; i++) {
+            if (outcomes[i]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /**
+     * Proof of an admitted call, handed back when reporting its outcome.
+     *
+     * @param probe      whether the call was admitted as a half-open probe
+     * @param startNanos when the call was admitted
+     */
+    public record Permit(boolean probe, long startNanos) {
+
+        public long elapsedMs() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Snapshot of a circuit breaker.
+     *
+     * @param name        the endpoint
+     * @param state       the current state
+     * @param recorded    calls in the window
+     * @param failures    failed calls in the window
+     * @param slowCalls   slow calls in the window
+     * @param rejected    calls refused since startup
+     * @param timesOpened how often the breaker opened since startup
+     */
+    public record BreakerStats(String name, State state, int recorded, int failures, int slowCalls, long rejected, long timesOpened) {
+
+    }
+}
@@ -0,0 +1,482 @@
+package be.stealingdapenta.coreai.service;
+
+import static be.stealingdapenta.coreai.config.Config.HISTORY_MODEL_BUDGETS;
+import static be.stealingdapenta.coreai.config.Config.HISTORY_TOKEN_BUDGET;
+import static be.stealingdapenta.coreai.service.tokenizer.TokenCounter.REPLY_PRIMING;
+import static be.stealingdapenta.coreai.service.tokenizer.TokenCounter.TOKEN_COUNTER;
+
+import be.stealingdapenta.coreai.service.codec.EncodedMessages;
+import be.stealingdapenta.coreai.service.codec.OpenAiCodec;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import okio.ByteString;
+
+/**
+ * A conversation window bounded by tokens instead of by message count.
+ * <p>
+ * Each message is counted and JSON-encoded once, when it is added, and the running total is kept alongside, so keeping the window within budget costs O(1) per dropped message. The newest message is never dropped, even if it alone exceeds the budget.
+ * <p>
+ * Older messages can also be folded into a running summary, which is sent ahead of the remaining messages (see {@link HistoryCompactor}). A compaction is started with {@link #beginCompaction(int)} and applied later with
+ * {@link #completeCompaction(Compaction, String)}; messages added in between are kept.
+ * <p>
+ * Every message carries a sequence number. A {@link Journal} is told about each new message and summary, so the history can be persisted as an append-only log and rebuilt with {@link #restore(Snapshot)}.
+ * <p>
+ * Thread-safe: replies and summaries arrive on network threads.
+ */
+public class ConversationHistory {
+
+    private static final String SUMMARY_PREFIX = "Summary of the earlier conversation: ";
+
+    private final Deque<Entry> entries = new ArrayDeque<>();
+    private int tokens = REPLY_PRIMING;
+    private long bytes;
+    private long nextSequence;
+    private Entry summary;
+    private int foldedTokens;
+    private boolean compacting;
+    private long sequenceShift;
+    private long epoch; // bumped by clear(), so a compaction begun before it is not applied
+    private String model;
+    private volatile Journal journal;
+
+    /**
+     * Appends a message and drops the oldest ones until the window fits the model's budget again.
+     *
+     * @param message the message to add
+     * @param model   the model the conversation is sent to
+     */
+    public void add(ChatMessage message, String model) {
+        add(prepare(message, model), model);
+    }
+
+    /**
+     * Counts and encodes a message without adding it, so a turn can be sent with {@link #messagesWith(Pending, String)} and only enter the history once it succeeded.
+     *
+     * @param message the message
+     * @param model   the model the conversation is sent to
+     * @return the prepared message
+     */
+    public Pending prepare(ChatMessage message, String model) {
+        return new Pending(message, TOKEN_COUNTER.count(model, message), OpenAiCodec.encode(message));
+    }
+
+    /**
+     * Appends a prepared message, like {@link #add(ChatMessage, String)}.
+     *
+     * @param pending the message from {@link #prepare(ChatMessage, String)}
+     * @param model   the model the conversation is sent to
+     */
+    public void add(Pending pending, String model) {
+        ChatMessage message = pending.message();
+        long sequence;
+        synchronized (this) {
+            this.model = model;
+            sequence = nextSequence++;
+            Entry entry = new Entry(message, pending.tokens(), sequence, pending.json());
+            entries.addLast(entry);
+            tokens += pending.tokens();
+            bytes += entry.bytes();
+            trim(budgetFor(model));
+        }
+        Journal current = journal;
+        if (current != null) {
+            current.appended(sequence, message);
+        }
+    }
+
+    /**
+     * Recounts every message with the new model's encoding and applies its budget.
+     *
+     * @param model the model the conversation is now sent to
+     */
+    public synchronized void switchModel(String model) {
+        this.model = model;
+        List<Entry> recounted = new ArrayList<>(entries.size());
+        tokens = REPLY_PRIMING;
+        if (summary != null) {
+            summary = summary.withTokens(TOKEN_COUNTER.count(model, summary.message()));
+            tokens += summary.tokens();
+        }
+        for (Entry entry : entries) {
+            Entry counted = entry.withTokens(TOKEN_COUNTER.count(model, entry.message()));
+            recounted.add(counted);
+            tokens += counted.tokens();
+        }
+        entries.clear();
+        entries.addAll(recounted);
+        trim(budgetFor(model));
+    }
+
+    /**
+     * Copies only references: every message keeps the JSON encoding made when it was added, so the request body is assembled from those bytes.
+     *
+     * @return the summary, if any, followed by the messages in the window, oldest first
+     */
+    public synchronized EncodedMessages messages() {
+        int size = entries.size() + (summary == null ? 0 : 1);
+        ChatMessage[] messages = new ChatMessage[size];
+        ByteString[] segments = new ByteString[size];
+        int i = 0;
+        if (summary != null) {
+            messages[i] = summary.message();
+            segments[i++] = summary.json();
+        }
+        for (Entry entry : entries) {
+            messages[i] = entry.message();
+            segments[i++] = entry.json();
+        }
+        return new EncodedMessages(messages, segments, tokens);
+    }
+
+    /**
+     * The window as it would be after adding the message, without adding it: the oldest messages that would be dropped to fit the budget are left out.
+     *
+     * @param pending the message from {@link #prepare(ChatMessage, String)}
+     * @param model   the model the conversation is sent to
+     * @return the summary, if any, followed by the messages in that window, oldest first
+     */
+    public synchronized EncodedMessages messagesWith(Pending pending, String model) {
+        int total = tokens + pending.tokens();
+        int budget = budgetFor(model);
+        int skipped = 0;
+        for (Entry entry : entries) {
+            if (total <= budget) {
+                break;
+            }
+            total -= entry.tokens();
+            skipped++;
+        }
+        int size = entries.size() - skipped + 1 + (summary == null ? 0 : 1);
+        ChatMessage[] messages = new ChatMessage[size];
+        ByteString[] segments = new ByteString[size];
+        int i = 0;
+        if (summary != null) {
+            messages[i] = summary.message();
+            segments[i++] = summary.json();
+        }
+        Iterator<Entry> kept = entries.iterator();
+        for (int dropped = 0; dropped < skipped; dropped++) {
+            kept.next();
+        }
+        while (kept.hasNext()) {
+            Entry entry = kept.next();
+            messages[i] = entry.message();
+            segments[i++] = entry.json();
+        }
+        messages[i] = pending.message();
+        segments[i] = pending.json();
+        return new EncodedMessages(messages, segments, total);
+    }
+
+    /**
+     * @return the tokens the window occupies in a request, reply priming included
+     */
+    public synchronized int tokens() {
+        return tokens;
+    }
+
+    /**
+     * @return the approximate heap the history's messages and their encodings occupy
+     */
+    public synchronized long estimatedBytes() {
+        return bytes;
+    }
+
+    /**
+     * Compares the window with the one that would be sent without a summary: the folded messages back in front, trimmed to the model's budget like any other window.
+     *
+     * @return how many tokens the next request saves because older messages are sent as a summary
+     */
+    public synchronized int savedTokens() {
+        if (summary == null) {
+            return 0;
+        }
+        int unsummarized = tokens - summary.tokens();
+        int wouldSend = Math.max(unsummarized, Math.min(budgetFor(model), unsummarized + foldedTokens));
+        return Math.max(0, wouldSend - tokens);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Picks the oldest messages to fold into the summary, so that the rest fit within {@code keepTokens}. The latest exchange is never folded.
+     *
+     * @param keepTokens tokens the unfolded messages may still occupy
+     * @return the compaction to summarize, or null if one is already running or there is nothing worth folding
+     */
+    public synchronized Compaction beginCompaction(int keepTokens) {
+        if (compacting) {
+            return null;
+        }
+        List<ChatMessage> folded = new ArrayList<>();
+        int remaining = tokens;
+        long lastSequence = -1;
+        Iterator<Entry> iterator = entries.iterator();
+        while (remaining > keepTokens && entries.size() - folded.size() > 2 && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            folded.add(entry.message());
+            remaining -= entry.tokens();
+            lastSequence = entry.sequence();
+        }
+        if (folded.size() < 2) {
+            return null;
+        }
+        compacting = true;
+        return new Compaction(summaryText(), List.copyOf(folded), lastSequence, sequenceShift, epoch);
+    }
+
+    /**
+     * Replaces the compaction's messages, as far as they are still in the window, by the new summary.
+     *
+     * @param compaction the compaction returned by {@link #beginCompaction(int)}
+     * @param text       the summary of the previous summary and the folded messages
+     * @return the number of messages that were folded
+     */
+    public int completeCompaction(Compaction compaction, String text) {
+        int removed = 0;
+        long lastSequence;
+        int folded;
+        synchronized (this) {
+            if (compaction.epoch() != epoch) {
+                return 0; // the history was cleared meanwhile; its messages must not return as a summary
+            }
+            compacting = false;
+            lastSequence = compaction.lastSequence() + sequenceShift - compaction.sequenceShift();
+            while (!entries.isEmpty() && entries.peekFirst()
+                                                .sequence() <= lastSequence) {
+                Entry entry = entries.removeFirst();
+                tokens -= entry.tokens();
+                bytes -= entry.bytes();
+                foldedTokens += entry.tokens();
+                removed++;
+            }
+            // Older folded messages would have been trimmed from the window by now, so they don't count towards savings
+            foldedTokens = Math.min(foldedTokens, budgetFor(model));
+            setSummary(text);
+            folded = foldedTokens;
+        }
+        Journal current = journal;
+        if (current != null) {
+            current.summarized(lastSequence, folded, text);
+        }
+        return removed;
+    }
+
+    /**
+     * Gives up on a compaction, so a later turn can try again.
+     */
+    public synchronized void abortCompaction() {
+        compacting = false;
+    }
+
+    /**
+     * Forgets every message and the summary. Sequence numbers keep increasing, so records journaled before the clear never mix with later ones.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        summary = null;
+        foldedTokens = 0;
+        tokens = REPLY_PRIMING;
+        bytes = 0;
+        compacting = false;
+        epoch++;
+    }
+
+    /**
+     * @param journal receives every change from now on, or null to stop recording
+     */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * @return the summary and messages in the window, with their sequence numbers
+     */
+    public synchronized Snapshot snapshot() {
+        List<SequencedMessage> messages = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            messages.add(new SequencedMessage(entry.sequence(), entry.message()));
+        }
+        return new Snapshot(summaryText(), foldedTokens, messages);
+    }
+
+    /**
+     * Puts a persisted conversation in front of this one. Messages added before the restore keep their order after the restored ones and are renumbered to follow them.
+     *
+     * @param snapshot the persisted summary and messages
+     */
+    public synchronized void restore(Snapshot snapshot) {
+        long next = 0;
+        List<Entry> restored = new ArrayList<>(snapshot.messages()
+                                                       .size() + entries.size());
+        for (SequencedMessage stored : snapshot.messages()) {
+            restored.add(new Entry(stored.message(), TOKEN_COUNTER.count(model, stored.message()), stored.sequence(), OpenAiCodec.encode(stored.message())));
+            tokens += restored.getLast()
+                              .tokens();
+            next = Math.max(next, stored.sequence() + 1);
+        }
+        for (Entry entry : entries) {
+            restored.add(new Entry(entry.message(), entry.tokens(), entry.sequence() + next, entry.json()));
+        }
+        sequenceShift += next;
+        nextSequence += next;
+        entries.clear();
+        entries.addAll(restored);
+        bytes = 0;
+        for (Entry entry : entries) {
+            bytes += entry.bytes();
+        }
+        if (summary != null) {
+            bytes += summary.bytes();
+        }
+        if (summary == null && snapshot.summary() != null) {
+            setSummary(snapshot.summary());
+            foldedTokens = Math.min(snapshot.foldedTokens(), budgetFor(model));
+        }
+        trim(budgetFor(model));
+    }
+
+    private void setSummary(String text) {
+        if (summary != null) {
+            tokens -= summary.tokens();
+            bytes -= summary.bytes();
+        }
+        ChatMessage message = ChatMessage.system(SUMMARY_PREFIX + text);
+        summary = new Entry(message, TOKEN_COUNTER.count(model, message), -1, OpenAiCodec.encode(message));
+        tokens += summary.tokens();
+        bytes += summary.bytes();
+    }
+
+    private String summaryText() {
+        return summary == null ? null : summary.message()
+                                               .content()
+                                               .substring(SUMMARY_PREFIX.length());
+    }
+
+    private void trim(int budget) {
+        while (tokens > budget && entries.size() > 1) {
+            Entry dropped = entries.removeFirst();
+            tokens -= dropped.tokens();
+            bytes -= dropped.bytes();
+        }
+    }
+
+    /**
+     * @param model a model ID
+     * @return the budget of the longest matching {@code model-budgets} prefix, or the default budget
+     */
+    public static int budgetFor(String model) {
+        int budget = HISTORY_TOKEN_BUDGET.get();
+        int matched = -1;
+        for (String rule : HISTORY_MODEL_BUDGETS.get()) {
+            int separator = rule.lastIndexOf('=');
+            if (separator <= 0) {
+                continue;
+            }
+            String prefix = rule.substring(0, separator)
+                                .trim();
+            if (model != null && model.startsWith(prefix) && prefix.length() > matched) {
+                try {
+                    budget = Integer.parseInt(rule.substring(separator + 1)
+                                                  .trim());
+                    matched = prefix.length();
+                } catch (NumberFormatException ignore) {
+                }
+            }
+        }
+        return budget;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ConversationHistory{messages=" + entries.size() + ", tokens=" + tokens + ", summarized=" + (summary != null) + '}';
+    }
+
+    /**
+     * Older messages selected to be folded into the summary.
+     *
+     * @param previousSummary the summary they extend, or null
+     * @param messages        the messages to fold, oldest first
+     * @param lastSequence    the sequence number of the last folded message
+     * @param sequenceShift   how far sequence numbers had been shifted by restores when the compaction began
+     * @param epoch           how often the history had been cleared when the compaction began
+     */
+    public record Compaction(String previousSummary, List<ChatMessage> messages, long lastSequence, long sequenceShift, long epoch) {
+
+    }
+
+    /**
+     * The persistent state of a conversation.
+     *
+     * @param summary      the summary of folded messages, or null
+     * @param foldedTokens tokens of the messages the summary replaced, at most the budget's worth
+     * @param messages     the messages after the summary, oldest first
+     */
+    public record Snapshot(String summary, int foldedTokens, List<SequencedMessage> messages) {
+
+    }
+
+    /**
+     * A message counted and encoded, but not yet in the history.
+     *
+     * @param message the message
+     * @param tokens  the tokens it occupies in a request
+     * @param json    its JSON encoding
+     */
+    public record Pending(ChatMessage message, int tokens, ByteString json) {
+
+    }
+
+    /**
+     * @param sequence the message's position in its conversation; increases with every message
+     * @param message  the message
+     */
+    public record SequencedMessage(long sequence, ChatMessage message) {
+
+    }
+
+    /**
+     * Receives every change to a history on the thread that made it. Concurrent changes may be reported out of order; their sequence numbers give the order.
+     */
+    public interface Journal {
+
+        /**
+         * @param sequence the new message's sequence number
+         * @param message  the message
+         */
+        void appended(long sequence, ChatMessage message);
+
+        /**
+         * @param lastSequence the sequence number of the last message the summary replaces
+         * @param foldedTokens tokens of the messages the summary replaces, at most the budget's worth
+         * @param summary      the new summary text
+         */
+        void summarized(long lastSequence, int foldedTokens, String summary);
+    }
+
+    /**
+     * A message with its token count and JSON encoding, both computed once.
+     */
+    private record Entry(ChatMessage message, int tokens, long sequence, ByteString json) {
+
+        private static final int OVERHEAD_BYTES = 96; // entry, message record, strings and ByteString headers
+
+        private Entry withTokens(int recounted) {
+            return new Entry(message, recounted, sequence, json);
+        }
+
+        private long bytes() {
+            return OVERHEAD_BYTES + 2L * message.content()
+                                                .length() + json.size();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package be.stealingdapenta.coreai.service;
+
+import static be.stealingdapenta.coreai.CoreAI.CORE_AI_LOGGER;
+import static be.stealingdapenta.coreai.config.Config.HISTORY_SUMMARY_ENABLED;
+import static be.stealingdapenta.coreai.config.Config.HISTORY_SUMMARY_KEEP_PERCENT;
+import static be.stealingdapenta.coreai.config.Config.HISTORY_SUMMARY_MODEL;
+import static be.stealingdapenta.coreai.config.Config.HISTORY_SUMMARY_TRIGGER_PERCENT;
+import static be.stealingdapenta.coreai.service.JobScheduler.JOB_SCHEDULER;
+import static be.stealingdapenta.coreai.service.OpenAIApi.OPEN_AI_API;
+import static be.stealingdapenta.coreai.service.UsageLedger.USAGE_LEDGER;
+import static be.stealingdapenta.coreai.service.tokenizer.TokenCounter.REPLY_PRIMING;
+import static be.stealingdapenta.coreai.service.tokenizer.TokenCounter.TOKEN_COUNTER;
+import static be.stealingdapenta.coreai.util.Futures.unwrap;
+
+import be.stealingdapenta.coreai.service.ConversationHistory.Compaction;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Singleton that keeps long conversations small by folding their oldest messages into a running summary, written by a cheap model.
+ * <p>
+ * Once a history passes {@code trigger-percent} of its token budget, the oldest messages are summarized in the background until the rest fit within {@code keep-percent}. Requests sent in the meantime use the history as it is, so a
+ * compaction never delays a player's request. A failed summary leaves the history untouched; the budget's trimming still applies.
+ */
+public enum HistoryCompactor {
+    HISTORY_COMPACTOR;
+
+    private static final String INSTRUCTIONS = "You maintain the memory of a conversation between a Minecraft player and an assistant. Merge the previous summary, if any, with the new messages into one concise summary. "
+            + "Keep names, facts, decisions, open questions and the player's preferences; drop small talk. Reply with the summary only.";
+
+    private final LongAdder compactions = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder messagesFolded = new LongAdder();
+    private final LongAdder summaryTokensSpent = new LongAdder();
+    private final LongAdder promptTokensSaved = new LongAdder();
+
+    /**
+     * Starts a compaction of the history if it is enabled, the history is over its trigger, the owner is within the daily quota and none is running yet. Returns immediately.
+     *
+     * @param history   the conversation to compact
+     * @param owner     the player the summary's usage is accounted to
+     * @param apiKey    the API key the summary is billed to
+     * @param model     the model the conversation is sent to, which determines its budget
+     * @param timeoutMs the timeout of the summary request
+     */
+    public void maybeCompact(ConversationHistory history, UUID owner, String apiKey, String model, int timeoutMs) {
+        if (!HISTORY_SUMMARY_ENABLED.get()) {
+            return;
+        }
+        int budget = ConversationHistory.budgetFor(model);
+        if (history.tokens() < (long) budget * HISTORY_SUMMARY_TRIGGER_PERCENT.get() / 100 || USAGE_LEDGER.isOverQuota(owner, apiKey)) {
+            return; // over quota, the oldest messages are trimmed instead of summarized
+        }
+        Compaction compaction = history.beginCompaction((int) ((long) budget * HISTORY_SUMMARY_KEEP_PERCENT.get() / 100));
+        if (compaction == null) {
+            return;
+        }
+
+        String summaryModel = HISTORY_SUMMARY_MODEL.get();
+        List<ChatMessage> request = List.of(ChatMessage.system(INSTRUCTIONS), ChatMessage.user(transcript(compaction)));
+        for (ChatMessage message : request) {
+            summaryTokensSpent.add(TOKEN_COUNTER.count(summaryModel, message));
+        }
+        summaryTokensSpent.add(REPLY_PRIMING);
+        JOB_SCHEDULER.submit(JobType.CHAT, AiJob.UNTRACKED, 1, 0,
+                             () -> OPEN_AI_API.chatAsync(apiKey, summaryModel, timeoutMs, request, usage -> USAGE_LEDGER.record(owner, summaryModel, usage), AiJob.UNTRACKED))
+                     .whenComplete((summary, error) -> {
+                         if (error != null || summary == null || summary.isBlank()) {
+                             history.abortCompaction();
+                             failures.increment();
+                             CORE_AI_LOGGER.fine("Conversation summary failed: " + (error == null ? "empty reply" : unwrap(error).getMessage()));
+                             return;
+                         }
+                         summaryTokensSpent.add(TOKEN_COUNTER.count(summaryModel, summary));
+                         messagesFolded.add(history.completeCompaction(compaction, summary.strip()));
+                         compactions.increment();
+                     });
+    }
+
+    /**
+     * Records the tokens this request saves by sending a summary: what the window would have sent without it, trimmed to the budget, minus what it sends.
+     *
+     * @param history the history the request is built from
+     */
+    public void recordRequest(ConversationHistory history) {
+        promptTokensSaved.add(history.savedTokens());
+    }
+
+    private static String transcript(Compaction compaction) {
+        StringBuilder transcript = new StringBuilder();
+        if (compaction.previousSummary() != null) {
+            transcript.append("Previous summary:\n")
+                      .append(compaction.previousSummary())
+                      .append("\n\n");
+        }
+        transcript.append("New messages:\n");
+        for (ChatMessage message : compaction.messages()) {
+            transcript.append(message.role())
+                      .append(": ")
+                      .append(message.content())
+                      .append('\n');
+        }
+        return transcript.toString();
+    }
+
+    /**
+     * @return a snapshot of the compactor's counters
+     */
+    public CompactionStats stats() {
+        return new CompactionStats(HISTORY_SUMMARY_ENABLED.get(), compactions.sum(), failures.sum(), messagesFolded.sum(), summaryTokensSpent.sum(), promptTokensSaved.sum());
+    }
+
+    /**
+     * Snapshot of the compactor's counters.
+     *
+     * @param enabled            whether compaction is switched on
+     * @param compactions        summaries applied
+     * @param failures           summary requests that failed
+     * @param messagesFolded     messages replaced by a summary
+     * @param summaryTokensSpent tokens sent to and received from the summary model
+     * @param promptTokensSaved  tokens chat requests did not send thanks to a summary
+     */
+    public record CompactionStats(boolean enabled, long compactions, long failures, long messagesFolded, long summaryTokensSpent, long promptTokensSaved) {
+
+        /**
+         * @return the tokens saved net of what the summaries cost; summary tokens are usually billed at a lower rate
+         */
+        public long netTokensSaved() {
+            return promptTokensSaved - summaryTokensSpent;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package be.stealingdapenta.coreai.service;
+
+import static be.stealingdapenta.coreai.CoreAI.CORE_AI_LOGGER;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.EventListener;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Singleton owner of the one shared {@link OkHttpClient} used for all outgoing HTTP traffic.
+ * <p>
+ * All calls share a single connection pool and dispatcher, so connections to the API host are reused across players. Timeouts are applied per call through {@link Call#timeout()} instead of deriving new clients. OkHttp negotiates HTTP/2 via ALPN
+ * and transparently requests and decodes gzip responses.
+ */
+public enum HttpClientRegistry {
+    HTTP_CLIENT_REGISTRY;
+
+    private static final int MAX_IDLE_CONNECTIONS = 16;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+    private static final int MAX_REQUESTS = 128;
+    private static final int MAX_REQUESTS_PER_HOST = 64;
+    private static final long CONNECT_TIMEOUT_SECONDS = 10;
+
+    private final ConnectionPool connectionPool = new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES);
+    private final Dispatcher dispatcher = new Dispatcher();
+    private final LongAdder connectionsCreated = new LongAdder();
+    private final LongAdder connectionsAcquired = new LongAdder();
+    private final OkHttpClient client;
+
+    HttpClientRegistry() {
+        dispatcher.setMaxRequests(MAX_REQUESTS);
+        dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+        client = new OkHttpClient.Builder().connectionPool(connectionPool)
+                                           .dispatcher(dispatcher)
+                                           .protocols(List.of(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                                           .connectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                                           .readTimeout(0, TimeUnit.MILLISECONDS) // governed by the per-call timeout
+                                           .writeTimeout(0, TimeUnit.MILLISECONDS)
+                                           .retryOnConnectionFailure(true)
+                                           .eventListener(new PoolEventListener())
+                                           .build();
+    }
+
+    /**
+     * @return the shared client; never build a new client per call.
+     */
+    public OkHttpClient client() {
+        return client;
+    }
+
+    /**
+     * Creates a call on the shared client with a whole-call timeout.
+     *
+     * @param request   the request to prepare
+     * @param timeoutMs the timeout for the complete call (connect, write, read) in milliseconds
+     * @return the prepared call
+     */
+    public Call newCall(Request request, long timeoutMs) {
+        Call call = client.newCall(request);
+        call.timeout()
+            .timeout(timeoutMs, TimeUnit.MILLISECONDS);
+        return call;
+    }
+
+    /**
+     * Executes a call without blocking the caller. The handler runs on an OkHttp dispatcher thread once the response headers arrive, and the response is always closed afterwards. Cancelling the returned future cancels the underlying call, and so does
+     * cancelling the {@link AiJob} the request is tagged with.
+     *
+     * @param request   the request to send
+     * @param timeoutMs the timeout for the complete call in milliseconds
+     * @param handler   turns the response into a result
+     * @param <T>       the result type
+     * @return a future completed with the handler's result, or exceptionally with the failure
+     */
+    public <T> CompletableFuture<T> executeAsync(Request request, long timeoutMs, ResponseHandler<T> handler) {
+        Call call = newCall(request, timeoutMs);
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.whenComplete((result, error) -> {
+            if (future.isCancelled()) {
+                call.cancel();
+            }
+        });
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(@NotNull Call call, @NotNull IOException e) {
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(@NotNull Call call, @NotNull Response response) {
+                try (response) {
+                    future.complete(handler.handle(response));
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        AiJob job = request.tag(AiJob.class);
+        if (job != null) {
+            job.bind(future);
+        }
+        return future;
+    }
+
+    /**
+     * Opens a connection to the given URL in the background, so the first real request skips the TCP and TLS handshake. The response itself is irrelevant.
+     *
+     * @param url any URL on the host to warm up
+     */
+    public void preWarm(String url) {
+        Request request = new Request.Builder().url(url)
+                                               .head()
+                                               .build();
+        newCall(request, TimeUnit.SECONDS.toMillis(CONNECT_TIMEOUT_SECONDS)).enqueue(new Callback() {
+            @Override
+            public void onFailure(@NotNull Call call, @NotNull IOException e) {
+                CORE_AI_LOGGER.warning("Failed to pre-warm connection to " + url + ": " + e.getMessage());
+            }
+
+            @Override
+            public void onResponse(@NotNull Call call, @NotNull Response response) {
+                response.close();
+                CORE_AI_LOGGER.info("Pre-warmed connection to " + url + " (" + response.protocol() + ").");
+            }
+        });
+    }
+
+    /**
+     * @return a snapshot of the connection pool and dispatcher state
+     */
+    public PoolStats stats() {
+        long acquired = connectionsAcquired.sum();
+        long created = connectionsCreated.sum();
+        return new PoolStats(connectionPool.idleConnectionCount(), connectionPool.connectionCount() - connectionPool.idleConnectionCount(), created, Math.max(0, acquired - created), dispatcher.runningCallsCount(),
+                             dispatcher.queuedCallsCount());
+    }
+
+    /**
+     * Cancels outstanding calls and closes all pooled connections. Called when the plugin disables.
+     */
+    public void shutdown() {
+        dispatcher.cancelAll();
+        dispatcher.executorService()
+                  .shutdown();
+        connectionPool.evictAll();
+    }
+
+    /**
+     * Converts an HTTP response into a result. The response is closed by the caller.
+     *
+     * @param <T> the result type
+     */
+    @FunctionalInterface
+    public interface ResponseHandler<T> {
+
+        T handle(Response response) throws IOException;
+    }
+
+    /**
+     * Snapshot of the shared HTTP client's state.
+     *
+     * @param idleConnections   connections currently idle in the pool
+     * @param activeConnections connections currently carrying a call
+     * @param createdTotal      connections newly established since startup
+     * @param reusedTotal       calls that were served by an already open connection
+     * @param runningCalls      calls currently executing
+     * @param queuedCalls       async calls waiting for a dispatcher slot
+     */
+    public record PoolStats(int idleConnections, int activeConnections, long createdTotal, long reusedTotal, int runningCalls, int queuedCalls) {
+
+    }
+
+    /**
+     * Counts new versus reused connections. A connection acquisition without a preceding connect means the pool served it.
+     */
+    private class PoolEventListener extends EventListener {
+
+        @Override
+        public void connectEnd(@NotNull Call call, @NotNull InetSocketAddress inetSocketAddress, @NotNull Proxy proxy, Protocol protocol) {
+            connectionsCreated.increment();
+        }
+
+        @Override
+        public void connectionAcquired(@NotNull Call call, @NotNull Connection connection) {
+            connectionsAcquired.increment();
+        }
+    }
+}
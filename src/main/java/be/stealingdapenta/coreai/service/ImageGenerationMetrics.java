@@ -0,0 +1,56 @@
+package be.stealingdapenta.coreai.service;
+
+import be.stealingdapenta.coreai.util.LatencyHistogram;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Singleton that times generated images from the request until the image is decoded, apart for images sent inline as base64 and images downloaded from the URL the API returned, so the two paths can be compared.
+ */
+public enum ImageGenerationMetrics {
+    IMAGE_GENERATION_METRICS;
+
+    private static final int LATENCY_WINDOW = 1000;
+
+    private final PathCounters inline = new PathCounters();
+    private final PathCounters url = new PathCounters();
+
+    /**
+     * @param inlined   whether the image came inline rather than from a URL
+     * @param latencyMs milliseconds from sending the request until the image was decoded
+     */
+    public void record(boolean inlined, long latencyMs) {
+        PathCounters counters = inlined ? inline : url;
+        counters.images.increment();
+        counters.latency.record(latencyMs);
+    }
+
+    /**
+     * @return a snapshot of both paths
+     */
+    public List<PathStats> stats() {
+        return List.of(inline.stats("inline"), url.stats("url"));
+    }
+
+    private static final class PathCounters {
+
+        private final LongAdder images = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram(LATENCY_WINDOW);
+
+        private PathStats stats(String path) {
+            return new PathStats(path, images.sum(), latency.percentile(50), latency.percentile(90));
+        }
+    }
+
+    /**
+     * Timings of one way of receiving generated images.
+     *
+     * @param path     {@code inline} or {@code url}
+     * @param images   images received this way
+     * @param medianMs their median time until decoded
+     * @param p90Ms    their 90th percentile
+     */
+    public record PathStats(String path, long images, long medianMs, long p90Ms) {
+
+    }
+}
@@ -0,0 +1,29 @@
+package be.stealingdapenta.coreai.service;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Thrown when the {@link JobScheduler} refuses a job: its queue is full, or the job alone needs more memory than its type's budget.
+ */
+public class JobRejectedException extends RejectedExecutionException {
+
+    private final JobType type;
+    private final boolean tooLarge;
+
+    public JobRejectedException(JobType type, boolean tooLarge, String message) {
+        super(message);
+        this.type = type;
+        this.tooLarge = tooLarge;
+    }
+
+    public JobType getType() {
+        return type;
+    }
+
+    /**
+     * @return whether the job can never run, as opposed to the queue being full right now
+     */
+    public boolean isTooLarge() {
+        return tooLarge;
+    }
+}
@@ -0,0 +1,291 @@
+package be.stealingdapenta.coreai.service;
+
+import static be.stealingdapenta.coreai.config.Config.SCHEDULER_WEIGHTS;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.ConfigurationSection;
+
+/**
+ * Singleton admission control for all AI work. Every {@link JobType} has its own lane with a concurrency limit, a bounded queue and, for images, a memory budget that running jobs share.
+ * <p>
+ * Queued jobs are served by start-time fair queuing: a job's virtual start is the later of the lane's clock and the end of its owner's previous job, and its virtual end lies {@code cost / weight} after that. The lowest start runs
+ * first, so a player with a backlog only gets their weighted share while others wait, and a larger job pushes its owner's next job further back.
+ */
+public enum JobScheduler {
+    JOB_SCHEDULER;
+
+    private static final String PRIORITY_PERMISSION_PREFIX = "coreai.priority.";
+    private static final int FINISH_TAG_SLACK = 64;
+
+    private final Map<JobType, Lane> lanes = new EnumMap<>(JobType.class);
+
+    JobScheduler() {
+        for (JobType type : JobType.values()) {
+            lanes.put(type, new Lane(type));
+        }
+    }
+
+    /**
+     * @param sender the player starting a job
+     * @return the weight of the highest {@code coreai.priority.<tier>} the player has, or 1
+     */
+    public int weightOf(CommandSender sender) {
+        ConfigurationSection weights = SCHEDULER_WEIGHTS.get();
+        int weight = 1;
+        if (weights != null) {
+            for (String tier : weights.getKeys(false)) {
+                if (sender.hasPermission(PRIORITY_PERMISSION_PREFIX + tier)) {
+                    weight = Math.max(weight, weights.getInt(tier));
+                }
+            }
+        }
+        return weight;
+    }
+
+    /**
+     * Runs the work once its lane has a free slot and enough memory, after the jobs ahead of it in fair-share order. Cancelling the job withdraws it from the queue.
+     *
+     * @param type        the lane to run in
+     * @param job         the job the work belongs to; supplies the owner, weight and queue position listener
+     * @param cost        the work's size relative to other jobs of the type, e.g. map tiles
+     * @param memoryBytes estimated heap the work needs while it runs
+     * @param work        starts the work; called at most once
+     * @param <T>         the result type
+     * @return a future with the work's result; fails with a {@link JobRejectedException} when the queue is full or the work alone exceeds the memory budget
+     */
+    public <T> CompletableFuture<T> submit(JobType type, AiJob job, int cost, long memoryBytes, Supplier<CompletableFuture<T>> work) {
+        return lanes.get(type)
+                    .submit(job, Math.max(1, cost), Math.max(0, memoryBytes), work);
+    }
+
+    /**
+     * @return a snapshot of every lane
+     */
+    public List<LaneStats> stats() {
+        List<LaneStats> stats = new ArrayList<>();
+        for (Lane lane : lanes.values()) {
+            stats.add(lane.stats());
+        }
+        return stats;
+    }
+
+    /**
+     * Snapshot of one lane.
+     *
+     * @param type          the job type's id
+     * @param running       jobs running now
+     * @param queued        jobs waiting now
+     * @param memoryInUse   estimated bytes held by running jobs
+     * @param admitted      jobs accepted since startup
+     * @param rejected      jobs refused since startup
+     * @param avgWaitMs     average time a started job waited in the queue
+     * @param avgRunMs      average time a finished job ran
+     */
+    public record LaneStats(String type, int running, int queued, long memoryInUse, long admitted, long rejected, long avgWaitMs, long avgRunMs) {
+
+    }
+
+    private static final class Pending<T> {
+
+        // Kept here rather than on the enum, whose static fields are only set after its constant has built the lanes
+        private static final Comparator<Pending<?>> ORDER = Comparator.<Pending<?>>comparingDouble(pending -> pending.startTag)
+                                                                      .thenComparingLong(pending -> pending.sequence);
+
+        private final AiJob job;
+        private final long memory;
+        private final Supplier<CompletableFuture<T>> work;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private final long enqueuedAt = System.nanoTime();
+        private double startTag;
+        private long sequence;
+        private int position; // guarded by the lane; 0 while not queued
+
+        private Pending(AiJob job, long memory, Supplier<CompletableFuture<T>> work) {
+            this.job = job;
+            this.memory = memory;
+            this.work = work;
+        }
+    }
+
+    /**
+     * Queue and capacity of one job type. State is guarded by the lane's monitor; work is started and listeners are called outside of it.
+     */
+    private static final class Lane {
+
+        private final JobType type;
+        private final PriorityQueue<Pending<?>> queue = new PriorityQueue<>(Pending.ORDER);
+        private final Map<UUID, Double> finishTags = new HashMap<>();
+        private double clock;
+        private long nextSequence;
+        private int running;
+        private long memoryInUse;
+        private final LongAdder admitted = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder started = new LongAdder();
+        private final LongAdder finished = new LongAdder();
+        private final LongAdder totalWaitMs = new LongAdder();
+        private final LongAdder totalRunMs = new LongAdder();
+
+        private Lane(JobType type) {
+            this.type = type;
+        }
+
+        private <T> CompletableFuture<T> submit(AiJob job, int cost, long memory, Supplier<CompletableFuture<T>> work) {
+            if (memory > type.maxMemoryBytes()) {
+                rejected.increment();
+                return CompletableFuture.failedFuture(new JobRejectedException(type, true, "The " + type.id() + " job needs more memory than the scheduler allows"));
+            }
+            Pending<T> pending = new Pending<>(job, memory, work);
+            boolean startNow;
+            synchronized (this) {
+                startNow = queue.isEmpty() && canRun(memory);
+                if (!startNow && queue.size() >= type.maxQueued()) {
+                    rejected.increment();
+                    return CompletableFuture.failedFuture(new JobRejectedException(type, false, "The " + type.id() + " queue is full"));
+                }
+                pending.startTag = Math.max(clock, finishTags.getOrDefault(job.getOwner(), 0d));
+                pending.sequence = nextSequence++;
+                finishTags.put(job.getOwner(), pending.startTag + (double) cost / job.getWeight());
+                if (startNow) {
+                    begin(pending);
+                } else {
+                    queue.add(pending);
+                }
+            }
+            admitted.increment();
+            job.bind(pending.result);
+            pending.result.whenComplete((result, error) -> {
+                if (pending.result.isCancelled()) {
+                    withdraw(pending);
+                }
+            });
+            if (startNow) {
+                run(pending);
+            } else {
+                notifyPositions();
+            }
+            return pending.result;
+        }
+
+        private boolean canRun(long memory) {
+            // A lone job always fits, so one that is within the budget can never wait forever
+            return running < type.maxConcurrent() && (running == 0 || memoryInUse + memory <= type.maxMemoryBytes());
+        }
+
+        private void begin(Pending<?> pending) {
+            running++;
+            memoryInUse += pending.memory;
+            clock = Math.max(clock, pending.startTag);
+        }
+
+        private <T> void run(Pending<T> pending) {
+            long startedAt = System.nanoTime();
+            started.increment();
+            totalWaitMs.add(TimeUnit.NANOSECONDS.toMillis(startedAt - pending.enqueuedAt));
+            if (pending.position > 0) {
+                pending.job.queuePosition(0);
+            }
+            CompletableFuture<T> work;
+            try {
+                pending.job.checkNotCancelled();
+                work = pending.work.get();
+            } catch (Throwable e) {
+                work = CompletableFuture.failedFuture(e);
+            }
+            work.whenComplete((value, error) -> {
+                finished.increment();
+                totalRunMs.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+                release(pending);
+                if (error != null) {
+                    pending.result.completeExceptionally(error);
+                } else {
+                    pending.result.complete(value);
+                }
+            });
+        }
+
+        private void release(Pending<?> pending) {
+            synchronized (this) {
+                running--;
+                memoryInUse -= pending.memory;
+            }
+            dispatch();
+        }
+
+        private void withdraw(Pending<?> pending) {
+            boolean removed;
+            synchronized (this) {
+                removed = queue.remove(pending);
+            }
+            if (removed) {
+                dispatch();
+            }
+        }
+
+        /**
+         * Starts as many queued jobs, in fair-share order, as the lane has room for.
+         */
+        private void dispatch() {
+            List<Pending<?>> ready = new ArrayList<>();
+            synchronized (this) {
+                while (!queue.isEmpty()) {
+                    Pending<?> head = queue.peek();
+                    if (head.result.isDone()) {
+                        queue.poll(); // cancelled while waiting
+                    } else if (canRun(head.memory)) {
+                        queue.poll();
+                        begin(head);
+                        ready.add(head);
+                    } else {
+                        break;
+                    }
+                }
+                if (finishTags.size() > queue.size() + running + FINISH_TAG_SLACK) {
+                    double now = clock;
+                    finishTags.values()
+                              .removeIf(tag -> tag <= now); // owners who are caught up start at the clock anyway
+                }
+            }
+            ready.forEach(this::run);
+            notifyPositions();
+        }
+
+        private void notifyPositions() {
+            List<Pending<?>> moved = new ArrayList<>();
+            List<Integer> positions = new ArrayList<>();
+            synchronized (this) {
+                List<Pending<?>> ordered = new ArrayList<>(queue);
+                ordered.sort(Pending.ORDER);
+                for (int i = 0; i < ordered.size(); i++) {
+                    Pending<?> pending = ordered.get(i);
+                    if (pending.position != i + 1) {
+                        pending.position = i + 1;
+                        moved.add(pending);
+                        positions.add(i + 1);
+                    }
+                }
+            }
+            for (int i = 0; i < moved.size(); i++) {
+                moved.get(i).job.queuePosition(positions.get(i));
+            }
+        }
+
+        private synchronized LaneStats stats() {
+            long startedJobs = started.sum();
+            long finishedJobs = finished.sum();
+            return new LaneStats(type.id(), running, queue.size(), memoryInUse, admitted.sum(), rejected.sum(), startedJobs == 0 ? 0 : totalWaitMs.sum() / startedJobs, finishedJobs == 0 ? 0 : totalRunMs.sum() / finishedJobs);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package be.stealingdapenta.coreai.service;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Singleton registry of every player's running {@link AiJob}s, so all of a player's AI work can be cancelled at once: on {@code /chat cancel}, and when they quit.
+ */
+public enum JobTracker {
+    JOB_TRACKER;
+
+    private final Map<UUID, Set<AiJob>> jobs = new ConcurrentHashMap<>();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+
+    /**
+     * Starts tracking a new job; {@link #track(AiJob, CompletableFuture)} stops tracking it once its work is done.
+     *
+     * @param owner       the player the work is for
+     * @param description what the work is, for error messages
+     * @param weight      the player's fair-share weight, from {@link JobScheduler#weightOf(org.bukkit.command.CommandSender)}
+     * @return the job's cancellation handle
+     */
+    public AiJob start(UUID owner, String description, int weight) {
+        AiJob job = new AiJob(owner, description, weight);
+        // Added inside compute, so a concurrent finish cannot drop the set this job is added to
+        jobs.compute(owner, (ignored, owned) -> {
+            Set<AiJob> updated = owned != null ? owned : ConcurrentHashMap.newKeySet();
+            updated.add(job);
+            return updated;
+        });
+        started.increment();
+        return job;
+    }
+
+    /**
+     * Stops tracking the job once the future completes, however it completes.
+     *
+     * @param job    a job from {@link #start(UUID, String, int)}
+     * @param future the job's final result
+     * @param <T>    the result type
+     * @return the same future, for chaining
+     */
+    public <T> CompletableFuture<T> track(AiJob job, CompletableFuture<T> future) {
+        future.whenComplete((result, error) -> finish(job));
+        return future;
+    }
+
+    /**
+     * Cancels all of a player's running jobs.
+     *
+     * @param owner the player
+     * @return how many jobs were cancelled
+     */
+    public int cancelAll(UUID owner) {
+        Set<AiJob> owned = jobs.remove(owner);
+        if (owned == null) {
+            return 0;
+        }
+        int count = 0;
+        for (AiJob job : owned) {
+            if (job.cancel()) {
+                count++;
+            }
+        }
+        cancelled.add(count);
+        return count;
+    }
+
+    /**
+     * @param owner the player
+     * @return whether any of the player's jobs is still running
+     */
+    public boolean hasJobs(UUID owner) {
+        return jobs.containsKey(owner);
+    }
+
+    /**
+     * @return a snapshot of the tracked jobs
+     */
+    public JobStats stats() {
+        int running = 0;
+        for (Set<AiJob> owned : jobs.values()) {
+            running += owned.size();
+        }
+        return new JobStats(running, started.sum(), cancelled.sum());
+    }
+
+    private void finish(AiJob job) {
+        jobs.computeIfPresent(job.getOwner(), (owner, owned) -> {
+            owned.remove(job);
+            return owned.isEmpty() ? null : owned;
+        });
+    }
+
+    /**
+     * Snapshot of the tracker.
+     *
+     * @param running   jobs not finished yet
+     * @param started   jobs started since startup
+     * @param cancelled jobs cancelled since startup
+     */
+    public record JobStats(int running, long started, long cancelled) {
+
+    }
+}
@@ -0,0 +1,50 @@
+package be.stealingdapenta.coreai.service;
+
+import static be.stealingdapenta.coreai.config.Config.SCHEDULER_CHAT_MAX_CONCURRENT;
+import static be.stealingdapenta.coreai.config.Config.SCHEDULER_CHAT_MAX_QUEUED;
+import static be.stealingdapenta.coreai.config.Config.SCHEDULER_IMAGE_MAX_CONCURRENT;
+import static be.stealingdapenta.coreai.config.Config.SCHEDULER_IMAGE_MAX_MEMORY_MB;
+import static be.stealingdapenta.coreai.config.Config.SCHEDULER_IMAGE_MAX_QUEUED;
+
+import be.stealingdapenta.coreai.config.ConfigValue;
+
+/**
+ * The kinds of AI work the {@link JobScheduler} admits, each with its own concurrency limit, queue and memory budget.
+ */
+public enum JobType {
+    CHAT("chat", SCHEDULER_CHAT_MAX_CONCURRENT, SCHEDULER_CHAT_MAX_QUEUED, null),
+    IMAGE("image", SCHEDULER_IMAGE_MAX_CONCURRENT, SCHEDULER_IMAGE_MAX_QUEUED, SCHEDULER_IMAGE_MAX_MEMORY_MB);
+
+    private static final long BYTES_PER_MB = 1024L * 1024;
+
+    private final String id;
+    private final ConfigValue<Integer> maxConcurrent;
+    private final ConfigValue<Integer> maxQueued;
+    private final ConfigValue<Integer> maxMemoryMb;
+
+    JobType(String id, ConfigValue<Integer> maxConcurrent, ConfigValue<Integer> maxQueued, ConfigValue<Integer> maxMemoryMb) {
+        this.id = id;
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = maxQueued;
+        this.maxMemoryMb = maxMemoryMb;
+    }
+
+    public String id() {
+        return id;
+    }
+
+    int maxConcurrent() {
+        return Math.max(1, maxConcurrent.get());
+    }
+
+    int maxQueued() {
+        return Math.max(0, maxQueued.get());
+    }
+
+    /**
+     * @return the memory running jobs of this type may use together; unlimited when the type has no budget
+     */
+    long maxMemoryBytes() {
+        return maxMemoryMb == null ? Long.MAX_VALUE : Math.max(1, maxMemoryMb.get()) * BYTES_PER_MB;
+    }
+}
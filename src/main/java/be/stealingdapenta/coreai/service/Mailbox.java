@@ -0,0 +1,104 @@
+package be.stealingdapenta.coreai.service;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Lock-free, single-consumer queue of asynchronous tasks: each task starts only once the previous task's future has completed, so tasks run strictly in submission order. Mailboxes share no state, so tasks in different mailboxes
+ * run fully in parallel.
+ * <p>
+ * No thread is dedicated to a mailbox. The submitter that finds it idle starts the first task, and each task's completion starts the next one on the completing thread.
+ */
+public final class Mailbox {
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Tasks queued or running; a task is enqueued before it is counted, so a positive count always finds one to poll
+    private final AtomicInteger pending = new AtomicInteger();
+    // Slots taken, released when a task completes; kept apart from pending so a rejected task never touches the queue
+    private final AtomicInteger reserved = new AtomicInteger();
+    private final int capacity;
+
+    /**
+     * @param capacity most tasks queued or running at once, including the one running
+     */
+    public Mailbox(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Queues a task behind those already submitted.
+     *
+     * @param task starts the work and returns its future; called once every earlier task has completed, and not at all if the returned future was cancelled by then
+     * @param <T>  the task's result type
+     * @return a future with the task's result, failed with a {@link RejectedExecutionException} when the mailbox is full
+     */
+    public <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> task) {
+        int taken;
+        do {
+            taken = reserved.get();
+            if (taken >= capacity) {
+                return CompletableFuture.failedFuture(new RejectedExecutionException("Mailbox full (" + capacity + " tasks)"));
+            }
+        } while (!reserved.compareAndSet(taken, taken + 1));
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+        tasks.add(() -> start(task, result));
+        if (pending.getAndIncrement() == 0) {
+            runNext();
+        }
+        return result;
+    }
+
+    /**
+     * @return whether a task submitted now would be accepted, barring a concurrent submission
+     */
+    public boolean hasCapacity() {
+        return reserved.get() < capacity;
+    }
+
+    /**
+     * @return whether no task is queued or running
+     */
+    public boolean isIdle() {
+        return reserved.get() == 0;
+    }
+
+    private <T> void start(Supplier<CompletableFuture<T>> task, CompletableFuture<T> result) {
+        if (result.isDone()) {
+            // Cancelled while queued
+            reserved.decrementAndGet();
+            next();
+            return;
+        }
+        CompletableFuture<T> running;
+        try {
+            running = task.get();
+        } catch (Throwable e) {
+            running = CompletableFuture.failedFuture(e);
+        }
+        running.whenComplete((value, error) -> {
+            reserved.decrementAndGet();
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(value);
+            }
+            next();
+        });
+    }
+
+    private void next() {
+        if (pending.decrementAndGet() > 0) {
+            runNext();
+        }
+    }
+
+    private void runNext() {
+        tasks.poll()
+             .run();
+    }
+}
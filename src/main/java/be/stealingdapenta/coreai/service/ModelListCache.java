@@ -0,0 +1,175 @@
+package be.stealingdapenta.coreai.service;
+
+import static be.stealingdapenta.coreai.config.Config.MODEL_CACHE_STALE_SECONDS;
+import static be.stealingdapenta.coreai.config.Config.MODEL_CACHE_TTL_SECONDS;
+import static be.stealingdapenta.coreai.service.ModelMetadataRepository.MODEL_METADATA_REPOSITORY;
+import static be.stealingdapenta.coreai.service.OpenAIApi.OPEN_AI_API;
+import static be.stealingdapenta.coreai.util.Futures.unwrap;
+
+import be.stealingdapenta.coreai.service.codec.ModelInfo;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Singleton cache of the model list and key validity per API key, keyed by {@link ApiKeyHash}.
+ * <ul>
+ *     <li>Fresh entries are served without a request.</li>
+ *     <li>Stale entries are still served instantly while one background refresh runs (stale-while-revalidate).</li>
+ *     <li>Concurrent misses for the same key share one in-flight {@code GET /v1/models}.</li>
+ *     <li>Invalid keys are remembered briefly, so repeated attempts with a bad key don't reach the API.</li>
+ *     <li>Entries past their stale period are dropped whenever a fetch completes, so keys that are no longer used don't pile up.</li>
+ * </ul>
+ */
+public enum ModelListCache {
+    MODEL_LIST_CACHE;
+
+    private static final long INVALID_KEY_TTL_MS = TimeUnit.SECONDS.toMillis(60);
+    private static final String INVALID_API_KEY = "invalid_api_key";
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<List<ModelInfo>>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder fetches = new LongAdder();
+
+    /**
+     * @param apiKey the API key to list models for
+     * @return a future with the available model IDs; fails with an {@link OpenAiException} if the key is invalid
+     */
+    public CompletableFuture<List<String>> getModelIds(String apiKey) {
+        return getModels(apiKey).thenApply(models -> models.stream()
+                                                           .map(ModelInfo::id)
+                                                           .toList());
+    }
+
+    /**
+     * @param apiKey the API key to list models for
+     * @return a future with the available models; already completed when served from the cache
+     */
+    public CompletableFuture<List<ModelInfo>> getModels(String apiKey) {
+        String keyHash = ApiKeyHash.of(apiKey);
+        Entry entry = entries.get(keyHash);
+        long now = System.currentTimeMillis();
+        if (entry != null && now < entry.freshUntil()) {
+            hits.increment();
+            return entry.result();
+        }
+        if (entry != null && entry.models() != null && now < entry.staleUntil()) {
+            staleHits.increment();
+            fetch(apiKey, keyHash); // revalidate in the background
+            return entry.result();
+        }
+        misses.increment();
+        return fetch(apiKey, keyHash);
+    }
+
+    /**
+     * Validates a key, from the cache when possible.
+     *
+     * @param apiKey the API key to check
+     * @return a future that completes normally if the key is valid
+     */
+    public CompletableFuture<Void> validateKey(String apiKey) {
+        return getModels(apiKey).thenApply(ignored -> null);
+    }
+
+    /**
+     * Tells whether a model is known not to be available to a key, so a request for it can be refused without a round trip. Only the key's own model list counts, as personal and organization keys see different models, and only
+     * while it is fresh; an unknown model is otherwise given the benefit of the doubt.
+     *
+     * @param apiKey  the key the request would be sent with
+     * @param modelId the model to check
+     * @return true if the key's model list is fresh and the model is not part of it
+     */
+    public boolean isKnownAbsent(String apiKey, String modelId) {
+        Entry entry = entries.get(ApiKeyHash.of(apiKey));
+        if (entry == null || entry.models() == null || System.currentTimeMillis() >= entry.freshUntil()) {
+            return false;
+        }
+        for (ModelInfo model : entry.models()) {
+            if (model.id()
+                     .equals(modelId)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Starts a fetch for the key unless one is already running, and returns the shared in-flight future.
+     */
+    private CompletableFuture<List<ModelInfo>> fetch(String apiKey, String keyHash) {
+        CompletableFuture<List<ModelInfo>> created = new CompletableFuture<>();
+        CompletableFuture<List<ModelInfo>> existing = inFlight.putIfAbsent(keyHash, created);
+        if (existing != null) {
+            coalesced.increment();
+            return existing;
+        }
+        fetches.increment();
+        OPEN_AI_API.listModelsAsync(apiKey)
+                   .whenComplete((models, error) -> {
+                       long now = System.currentTimeMillis();
+                       entries.values()
+                              .removeIf(expired -> now >= expired.staleUntil());
+                       if (error == null) {
+                           MODEL_METADATA_REPOSITORY.putAll(models);
+                           entries.put(keyHash, new Entry(List.copyOf(models), null, now + TimeUnit.SECONDS.toMillis(MODEL_CACHE_TTL_SECONDS.get()), now + TimeUnit.SECONDS.toMillis(MODEL_CACHE_STALE_SECONDS.get())));
+                       } else if (unwrap(error) instanceof OpenAiException oae && INVALID_API_KEY.equals(oae.getCode())) {
+                           entries.put(keyHash, new Entry(null, oae, now + INVALID_KEY_TTL_MS, now + INVALID_KEY_TTL_MS));
+                       }
+                       inFlight.remove(keyHash, created);
+                       if (error == null) {
+                           created.complete(models);
+                       } else {
+                           created.completeExceptionally(unwrap(error));
+                       }
+                   });
+        return created;
+    }
+
+    /**
+     * Forgets everything cached for the key, e.g. after a player replaced it.
+     *
+     * @param apiKey the API key to forget
+     */
+    public void invalidate(String apiKey) {
+        entries.remove(ApiKeyHash.of(apiKey));
+    }
+
+    /**
+     * @return a snapshot of the cache's effectiveness
+     */
+    public CacheStats stats() {
+        return new CacheStats(entries.size(), hits.sum(), staleHits.sum(), misses.sum(), coalesced.sum(), fetches.sum());
+    }
+
+    /**
+     * Snapshot of the model list cache.
+     *
+     * @param keys      API keys with a cached entry
+     * @param hits      lookups served fresh from the cache
+     * @param staleHits lookups served stale while revalidating
+     * @param misses    lookups that had to wait for the API
+     * @param coalesced lookups that joined an already running request
+     * @param fetches   requests actually sent to the API
+     */
+    public record CacheStats(int keys, long hits, long staleHits, long misses, long coalesced, long fetches) {
+
+    }
+
+    /**
+     * A cached outcome: either the model list, or the error proving the key is invalid.
+     */
+    private record Entry(List<ModelInfo> models, OpenAiException invalidKey, long freshUntil, long staleUntil) {
+
+        CompletableFuture<List<ModelInfo>> result() {
+            return models != null ? CompletableFuture.completedFuture(models) : CompletableFuture.failedFuture(invalidKey);
+        }
+    }
+}
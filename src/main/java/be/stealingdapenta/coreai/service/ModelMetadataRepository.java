@@ -0,0 +1,195 @@
+package be.stealingdapenta.coreai.service;
+
+import static be.stealingdapenta.coreai.CoreAI.CORE_AI_LOGGER;
+import static be.stealingdapenta.coreai.config.Config.MODEL_METADATA_TTL_HOURS;
+import static be.stealingdapenta.coreai.service.OpenAIApi.OPEN_AI_API;
+
+import be.stealingdapenta.coreai.CoreAI;
+import be.stealingdapenta.coreai.service.codec.ModelInfo;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+/**
+ * Singleton store of model metadata, shared by all API keys since a model's metadata does not depend on who asks.
+ * <p>
+ * Filled in bulk whenever a model list is fetched and lazily by {@link #getOrFetch(String, String)}. Entries expire after {@code openai.model-metadata.ttl-hours}, and the store is persisted to {@value #FILE_NAME} so it survives restarts.
+ */
+public enum ModelMetadataRepository {
+    MODEL_METADATA_REPOSITORY;
+
+    private static final String FILE_NAME = "model_metadata.yml";
+    private static final String MODELS_KEY = "models";
+
+    private final File file = new File(CoreAI.getInstance()
+                                             .getDataFolder(), FILE_NAME);
+    private final Map<String, Entry> models = new ConcurrentHashMap<>();
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Loads persisted metadata from disk, dropping entries that expired while the server was offline.
+     */
+    public void load() {
+        if (!file.exists()) {
+            return;
+        }
+
+        FileConfiguration config = YamlConfiguration.loadConfiguration(file);
+        models.clear();
+
+        // A list of maps rather than sections, since model IDs contain dots
+        for (Map<?, ?> raw : config.getMapList(MODELS_KEY)) {
+            try {
+                Map<String, Object> extra = new LinkedHashMap<>();
+                if (raw.get("extra") instanceof Map<?, ?> fields) {
+                    fields.forEach((name, value) -> extra.put(String.valueOf(name), value));
+                }
+                ModelInfo info = new ModelInfo((String) raw.get("id"), (String) raw.get("object"), ((Number) raw.get("created")).longValue(), (String) raw.get("owned-by"), extra);
+                long fetchedAt = ((Number) raw.get("fetched-at")).longValue();
+                models.put(info.id(), new Entry(info, fetchedAt));
+            } catch (ClassCastException | NullPointerException ignore) {
+            }
+        }
+        evictExpired();
+        CORE_AI_LOGGER.info("Loaded metadata for " + models.size() + " models.");
+    }
+
+    /**
+     * Answers from memory only; never touches the network.
+     *
+     * @param modelId the model to look up
+     * @return the model's metadata, if known and not expired
+     */
+    public Optional<ModelInfo> get(String modelId) {
+        Entry entry = models.get(modelId);
+        if (entry == null || isExpired(entry.fetchedAt())) {
+            misses.increment();
+            return Optional.empty();
+        }
+        hits.increment();
+        return Optional.of(entry.info());
+    }
+
+    /**
+     * Returns cached metadata, or fetches and stores it when missing.
+     *
+     * @param apiKey  the API key to fetch with on a miss
+     * @param modelId the model to look up
+     * @return a future with the model's metadata; already completed on a hit
+     */
+    public CompletableFuture<ModelInfo> getOrFetch(String apiKey, String modelId) {
+        return get(modelId).map(CompletableFuture::completedFuture)
+                           .orElseGet(() -> OPEN_AI_API.getModelInfoAsync(apiKey, modelId)
+                                                       .thenApply(info -> {
+                                                           put(info);
+                                                           return info;
+                                                       }));
+    }
+
+    /**
+     * @param info metadata to store
+     */
+    public void put(ModelInfo info) {
+        models.put(info.id(), new Entry(info, System.currentTimeMillis()));
+        dirty.set(true);
+    }
+
+    /**
+     * Stores a complete model list, as returned by {@code GET /v1/models}.
+     *
+     * @param infos the listed models
+     */
+    public void putAll(Collection<ModelInfo> infos) {
+        long now = System.currentTimeMillis();
+        infos.forEach(info -> models.put(info.id(), new Entry(info, now)));
+        dirty.set(true);
+    }
+
+    /**
+     * Drops expired entries and persists the store if it changed. Runs on a schedule.
+     */
+    public void evictExpired() {
+        if (models.values()
+                  .removeIf(entry -> isExpired(entry.fetchedAt()))) {
+            dirty.set(true);
+        }
+        if (dirty.get()) {
+            save();
+        }
+    }
+
+    /**
+     * Saves all metadata to disk.
+     */
+    public void save() {
+        dirty.set(false);
+        List<Map<String, Object>> serialized = new ArrayList<>();
+        for (Entry entry : models.values()) {
+            Map<String, Object> raw = new LinkedHashMap<>();
+            raw.put("id", entry.info()
+                               .id());
+            raw.put("object", entry.info()
+                                   .object());
+            raw.put("created", entry.info()
+                                    .created());
+            raw.put("owned-by", entry.info()
+                                     .ownedBy());
+            if (!entry.info()
+                      .extra()
+                      .isEmpty()) {
+                raw.put("extra", entry.info()
+                                      .extra());
+            }
+            raw.put("fetched-at", entry.fetchedAt());
+            serialized.add(raw);
+        }
+
+        FileConfiguration config = new YamlConfiguration();
+        config.set(MODELS_KEY, serialized);
+        try {
+            config.save(file);
+        } catch (IOException e) {
+            CORE_AI_LOGGER.warning("Failed to save model metadata: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return a snapshot of the repository's state
+     */
+    public MetadataStats stats() {
+        return new MetadataStats(models.size(), hits.sum(), misses.sum());
+    }
+
+    private boolean isExpired(long fetchedAt) {
+        return System.currentTimeMillis() - fetchedAt > TimeUnit.HOURS.toMillis(MODEL_METADATA_TTL_HOURS.get());
+    }
+
+    /**
+     * Snapshot of the metadata repository.
+     *
+     * @param models models with stored metadata
+     * @param hits   lookups answered locally
+     * @param misses lookups that found nothing usable
+     */
+    public record MetadataStats(int models, long hits, long misses) {
+
+    }
+
+    private record Entry(ModelInfo info, long fetchedAt) {
+
+    }
+}
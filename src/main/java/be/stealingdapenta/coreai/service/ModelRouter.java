@@ -0,0 +1,340 @@
+package be.stealingdapenta.coreai.service;
+
+import static be.stealingdapenta.coreai.CoreAI.CORE_AI_LOGGER;
+import static be.stealingdapenta.coreai.config.Config.ROUTING_COMPLEX_KEYWORDS;
+import static be.stealingdapenta.coreai.config.Config.ROUTING_COOLDOWN_SECONDS;
+import static be.stealingdapenta.coreai.config.Config.ROUTING_DEGRADED_FACTOR;
+import static be.stealingdapenta.coreai.config.Config.ROUTING_ENABLED;
+import static be.stealingdapenta.coreai.config.Config.ROUTING_FAST_MODEL;
+import static be.stealingdapenta.coreai.config.Config.ROUTING_MAX_SIMPLE_CHARS;
+import static be.stealingdapenta.coreai.config.Config.ROUTING_MAX_SIMPLE_HISTORY_TOKENS;
+import static be.stealingdapenta.coreai.service.ModelListCache.MODEL_LIST_CACHE;
+import static be.stealingdapenta.coreai.util.Futures.unwrap;
+
+import be.stealingdapenta.coreai.service.codec.TokenUsage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.regex.Pattern;
+
+/**
+ * Singleton that picks the model for each chat prompt. Short prompts in a short conversation, without code or any of the configured keywords, go to a fast, cheap model; everything else goes to the model the player chose.
+ * <p>
+ * The router also follows every model's live latency and failure rate. A model whose recent latency has grown to {@code degraded-factor} times its usual latency, or whose recent calls mostly fail, is avoided for
+ * {@code cooldown-seconds} while the other model is healthy. Latency runs from when a request is actually sent, so waiting for the key's rate limiter doesn't pass for a slow model. Classification is a few string checks; no request is
+ * sent to decide.
+ * <p>
+ * Prompts only go to the fast model if the player's key offers it: not when the key's model list lacks it, nor for an hour after it answered 404 for that key.
+ */
+public enum ModelRouter {
+    MODEL_ROUTER;
+
+    private static final Pattern NON_WORD = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final String CODE_FENCE = "```";
+    private static final double RECENT_WEIGHT = 0.3;
+    private static final double BASELINE_WEIGHT = 0.02;
+    private static final double FAILURE_RATE_DEGRADED = 0.5;
+    private static final int MIN_SAMPLES = 5;
+    private static final double MIN_BASELINE_MS = 100; // below this, jitter alone would double the latency
+    private static final long NOT_FOUND_MS = TimeUnit.HOURS.toMillis(1);
+
+    private final Map<String, ModelHealth> models = new ConcurrentHashMap<>();
+    private final Map<String, Long> notFoundUntil = new ConcurrentHashMap<>(); // by ApiKeyHash and model
+    private final Map<Reason, LongAdder> decisions = new EnumMap<>(Reason.class);
+    private final LongAdder latencySavedMs = new LongAdder();
+
+    ModelRouter() {
+        for (Reason reason : Reason.values()) {
+            decisions.put(reason, new LongAdder());
+        }
+    }
+
+    /**
+     * Why a prompt went to its model.
+     */
+    public enum Reason {
+        /**
+         * Routing is off, or the fast model is the chosen one.
+         */
+        CHOSEN,
+        /**
+         * A simple prompt, sent to the fast model.
+         */
+        SIMPLE,
+        /**
+         * A prompt that needs the chosen model.
+         */
+        COMPLEX,
+        /**
+         * Sent to the other model, because the one the prompt would go to is degraded.
+         */
+        DEGRADED
+    }
+
+    /**
+     * @param model      the model to send the prompt to
+     * @param reason     why
+     * @param fast       whether that is the fast model
+     * @param expectedMs the chosen model's recent latency when the prompt went to the fast model instead, else -1
+     */
+    private record Route(String model, Reason reason, boolean fast, long expectedMs) {
+
+    }
+
+    /**
+     * Sends a prompt to the model it is routed to, and records that model's latency and outcome. A prompt the fast model turns down with a 404 is sent to the chosen model instead.
+     *
+     * @param apiKey        the key the prompt is sent with
+     * @param chosenModel   the model the player chose
+     * @param prompt        the new prompt
+     * @param historyTokens tokens the conversation held before the prompt
+     * @param job           the job the prompt belongs to
+     * @param send          sends the request to the given model, under the given job
+     * @return the request's future
+     */
+    public <T> CompletableFuture<T> sendAsync(String apiKey, String chosenModel, String prompt, int historyTokens, AiJob job, BiFunction<String, AiJob, CompletableFuture<T>> send) {
+        Route route = route(apiKey, chosenModel, prompt, historyTokens);
+        if (route.reason() == Reason.CHOSEN) {
+            return send.apply(route.model(), job);
+        }
+        AiJob routed = new AiJob(job.getOwner(), "routed chat request", job.getWeight());
+        AtomicLong sentAt = new AtomicLong();
+        routed.onDispatch(() -> sentAt.set(System.nanoTime()));
+        CompletableFuture<T> reply = send.apply(route.model(), routed);
+        reply.whenComplete((value, error) -> {
+            if (error != null) {
+                if (isModelFailure(unwrap(error))) {
+                    health(route.model()).failure();
+                }
+                return;
+            }
+            long dispatchedAt = sentAt.get();
+            if (dispatchedAt == 0) {
+                return; // answered without a request of its own
+            }
+            long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - dispatchedAt);
+            health(route.model()).success(latencyMs);
+            if (route.fast() && route.expectedMs() > latencyMs) {
+                latencySavedMs.add(route.expectedMs() - latencyMs);
+            }
+        });
+        CompletableFuture<T> result = reply.exceptionallyCompose(error -> {
+            if (route.fast() && isNotFound(unwrap(error))) {
+                notFoundUntil.put(notFoundKey(apiKey, route.model()), System.currentTimeMillis() + NOT_FOUND_MS);
+                CORE_AI_LOGGER.info("The fast model " + route.model() + " is not available to a player's API key; routing their prompts to the chosen model.");
+                return send.apply(chosenModel, routed);
+            }
+            return CompletableFuture.failedFuture(error);
+        });
+        result.whenComplete((value, error) -> {
+            if (result.isCancelled()) {
+                routed.cancel();
+            }
+        });
+        return job.bind(result);
+    }
+
+    private Route route(String apiKey, String chosenModel, String prompt, int historyTokens) {
+        String fastModel = ROUTING_FAST_MODEL.get();
+        if (!ROUTING_ENABLED.get() || fastModel == null || fastModel.isBlank() || fastModel.equals(chosenModel) || !offers(apiKey, fastModel)) {
+            return new Route(chosenModel, Reason.CHOSEN, false, -1);
+        }
+        boolean simple = isSimple(prompt, historyTokens);
+        String preferred = simple ? fastModel : chosenModel;
+        String other = simple ? chosenModel : fastModel;
+        Reason reason = simple ? Reason.SIMPLE : Reason.COMPLEX;
+        if (health(preferred).isDegraded() && !health(other).isDegraded()) {
+            preferred = other;
+            reason = Reason.DEGRADED;
+        }
+        decisions.get(reason)
+                 .increment();
+        boolean fast = preferred.equals(fastModel);
+        long expectedMs = fast ? health(chosenModel).recentMs() : -1;
+        CORE_AI_LOGGER.fine("Routed a prompt to " + preferred + " (" + reason.name()
+                                                                             .toLowerCase(Locale.ROOT) + ")");
+        return new Route(preferred, reason, fast, expectedMs);
+    }
+
+    /**
+     * @param model the model that answered
+     * @param usage its token usage
+     */
+    public void recordUsage(String model, TokenUsage usage) {
+        health(model).tokens.add(usage.totalTokens());
+    }
+
+    private boolean isSimple(String prompt, int historyTokens) {
+        if (prompt.length() > ROUTING_MAX_SIMPLE_CHARS.get() || historyTokens > ROUTING_MAX_SIMPLE_HISTORY_TOKENS.get() || prompt.contains(CODE_FENCE) || prompt.indexOf('\n') >= 0) {
+            return false;
+        }
+        String words = " " + NON_WORD.matcher(prompt.toLowerCase(Locale.ROOT))
+                                     .replaceAll(" ")
+                                     .trim() + " ";
+        for (String keyword : ROUTING_COMPLEX_KEYWORDS.get()) {
+            String normalized = NON_WORD.matcher(keyword.toLowerCase(Locale.ROOT))
+                                        .replaceAll(" ")
+                                        .trim();
+            if (!normalized.isEmpty() && words.contains(" " + normalized + " ")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return false when the key's model list lacks the model, or the model answered 404 for the key recently
+     */
+    private boolean offers(String apiKey, String model) {
+        if (MODEL_LIST_CACHE.isKnownAbsent(apiKey, model)) {
+            return false;
+        }
+        String key = notFoundKey(apiKey, model);
+        Long until = notFoundUntil.get(key);
+        if (until == null) {
+            return true;
+        }
+        if (until < System.currentTimeMillis()) {
+            notFoundUntil.remove(key, until);
+            return true;
+        }
+        return false;
+    }
+
+    private static String notFoundKey(String apiKey, String model) {
+        return ApiKeyHash.of(apiKey) + '#' + model;
+    }
+
+    private static boolean isNotFound(Throwable error) {
+        return error instanceof OpenAiException oae && oae.getStatus() == 404;
+    }
+
+    /**
+     * Network errors, timeouts and server errors say the model is in trouble; client errors and cancellations don't.
+     */
+    private boolean isModelFailure(Throwable error) {
+        if (error instanceof OpenAiException oae) {
+            return oae.getStatus() >= 500 || oae.getStatus() == 408;
+        }
+        return error instanceof IOException;
+    }
+
+    private ModelHealth health(String model) {
+        return models.computeIfAbsent(model, id -> new ModelHealth());
+    }
+
+    /**
+     * @return the decisions so far and every model's health
+     */
+    public RouterStats stats() {
+        List<ModelRouteStats> modelStats = new ArrayList<>();
+        models.forEach((model, health) -> modelStats.add(health.stats(model)));
+        long simple = decisions.get(Reason.SIMPLE)
+                               .sum();
+        long complex = decisions.get(Reason.COMPLEX)
+                                .sum();
+        long degraded = decisions.get(Reason.DEGRADED)
+                                 .sum();
+        return new RouterStats(ROUTING_ENABLED.get(), simple, complex, degraded, latencySavedMs.sum(), modelStats);
+    }
+
+    /**
+     * Latency and failures of one model: a fast-moving average of its recent latency against a slow-moving one of its usual latency.
+     */
+    private static final class ModelHealth {
+
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder tokens = new LongAdder();
+        private long samples; // guarded by this, like the fields below; successes and failures
+        private long successes; // the latency averages are seeded by the first one
+        private double recentMs;
+        private double baselineMs;
+        private double failureRate;
+        private long avoidUntil;
+
+        private synchronized void success(long latencyMs) {
+            requests.increment();
+            samples++;
+            if (successes++ == 0) {
+                recentMs = latencyMs;
+                baselineMs = latencyMs;
+            } else {
+                recentMs += RECENT_WEIGHT * (latencyMs - recentMs);
+                baselineMs += BASELINE_WEIGHT * (latencyMs - baselineMs);
+            }
+            failureRate -= RECENT_WEIGHT * failureRate;
+            checkDegraded();
+        }
+
+        private synchronized void failure() {
+            requests.increment();
+            failures.increment();
+            samples++;
+            failureRate += RECENT_WEIGHT * (1 - failureRate);
+            checkDegraded();
+        }
+
+        private void checkDegraded() {
+            if (samples < MIN_SAMPLES || System.nanoTime() - avoidUntil < 0) {
+                return;
+            }
+            if (recentMs > Math.max(MIN_BASELINE_MS, baselineMs) * ROUTING_DEGRADED_FACTOR.get() || failureRate > FAILURE_RATE_DEGRADED) {
+                avoidUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(ROUTING_COOLDOWN_SECONDS.get());
+                // Start over after the cooldown, so the model is judged on the requests it gets then
+                recentMs = baselineMs;
+                failureRate = 0;
+            }
+        }
+
+        private synchronized boolean isDegraded() {
+            return avoidUntil != 0 && System.nanoTime() - avoidUntil < 0;
+        }
+
+        private synchronized long recentMs() {
+            return successes == 0 ? -1 : Math.round(recentMs);
+        }
+
+        private synchronized ModelRouteStats stats(String model) {
+            return new ModelRouteStats(model, requests.sum(), failures.sum(), Math.round(recentMs), Math.round(baselineMs), tokens.sum(), isDegraded());
+        }
+    }
+
+    /**
+     * Snapshot of one model as the router sees it.
+     *
+     * @param model      the model ID
+     * @param requests   routed requests that finished
+     * @param failures   of which failed upstream
+     * @param recentMs   recent latency
+     * @param baselineMs usual latency
+     * @param tokens     tokens the model used
+     * @param degraded   whether prompts are steered away from it now
+     */
+    public record ModelRouteStats(String model, long requests, long failures, long recentMs, long baselineMs, long tokens, boolean degraded) {
+
+    }
+
+    /**
+     * Snapshot of the router.
+     *
+     * @param enabled        whether routing is on
+     * @param simple         prompts sent to the fast model
+     * @param complex        prompts kept on the chosen model
+     * @param degraded       prompts sent to the other model because theirs was degraded
+     * @param latencySavedMs estimated time saved by answering on the fast model, against the chosen model's recent latency
+     * @param models         every model's health
+     */
+    public record RouterStats(boolean enabled, long simple, long complex, long degraded, long latencySavedMs, List<ModelRouteStats> models) {
+
+    }
+}
@@ -1,212 +1,588 @@
 package be.stealingdapenta.coreai.service;
 
+import static be.stealingdapenta.coreai.config.Config.EMBEDDINGS_API_KEY;
+import static be.stealingdapenta.coreai.config.Config.EMBEDDINGS_URL;
+import static be.stealingdapenta.coreai.config.Config.EMBEDDING_MODEL;
+import static be.stealingdapenta.coreai.config.Config.RATE_LIMIT_MAX_RETRIES;
+import static be.stealingdapenta.coreai.config.Config.RETRY_BASE_DELAY_MS;
+import static be.stealingdapenta.coreai.config.Config.RETRY_MAX_DELAY_MS;
+import static be.stealingdapenta.coreai.config.Config.RETRY_MAX_RETRIES;
 import static be.stealingdapenta.coreai.config.Config.TIMEOUT_IMAGE_MS;
+import static be.stealingdapenta.coreai.config.Config.TIMEOUT_MS;
+import static be.stealingdapenta.coreai.manager.ExecutorManager.EXECUTOR_MANAGER;
+import static be.stealingdapenta.coreai.service.AdaptiveTimeouts.ADAPTIVE_TIMEOUTS;
+import static be.stealingdapenta.coreai.service.HttpClientRegistry.HTTP_CLIENT_REGISTRY;
+import static be.stealingdapenta.coreai.service.PromptCacheMetrics.PROMPT_CACHE_METRICS;
+import static be.stealingdapenta.coreai.service.RateLimiter.RATE_LIMITER;
+import static be.stealingdapenta.coreai.service.tokenizer.TokenCounter.REPLY_PRIMING;
+import static be.stealingdapenta.coreai.service.tokenizer.TokenCounter.TOKEN_COUNTER;
+import static be.stealingdapenta.coreai.util.Futures.unwrap;
 
+import be.stealingdapenta.coreai.service.HttpClientRegistry.ResponseHandler;
+import be.stealingdapenta.coreai.service.codec.ApiError;
+import be.stealingdapenta.coreai.service.codec.ChatCompletion;
+import be.stealingdapenta.coreai.service.codec.Embedding;
+import be.stealingdapenta.coreai.service.codec.EncodedMessages;
+import be.stealingdapenta.coreai.service.codec.ModelInfo;
+import be.stealingdapenta.coreai.service.codec.OpenAiCodec;
+import be.stealingdapenta.coreai.service.codec.TokenUsage;
 import com.squareup.moshi.JsonAdapter;
-import com.squareup.moshi.Moshi;
-import com.squareup.moshi.Types;
+import com.squareup.moshi.JsonDataException;
+import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.lang.reflect.Type;
-import java.util.Deque;
-import java.util.LinkedList;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.UnknownHostException;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import javax.imageio.ImageIO;
+import org.jetbrains.annotations.NotNull;
+import okhttp3.HttpUrl;
 import okhttp3.MediaType;
-import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
 
 /**
  * Singleton entrypoint for raw OpenAI API calls.
+ * <p>
+ * Every call is asynchronous and built on OkHttp's {@code enqueue}, so no thread is parked while waiting on the network; the futures complete on an OkHttp dispatcher thread.
+ * Every call first waits for the {@link RateLimiter} of its API key, and a 429 is retried after its {@code Retry-After} instead of surfacing to the player. Connection errors before the request was sent, and 5xx responses of
+ * endpoints that don't bill failed calls, are retried after a jittered pause within the endpoint's {@link RetryBudget}. Each attempt's timeout comes from {@link AdaptiveTimeouts}. While an endpoint's {@link CircuitBreaker} is open, its calls fail fast with {@value CircuitBreaker#CIRCUIT_OPEN}.
+ * Responses are decoded by the typed adapters in {@link OpenAiCodec} straight from the response stream.
  */
 public enum OpenAIApi {
     OPEN_AI_API;
 
     private static final String CHAT_URL = "https://api.openai.com/v1/chat/completions";
     private static final String MODELS_URL = "https://api.openai.com/v1/models";
+    private static final String IMAGES_URL = "https://api.openai.com/v1/images/generations";
 
     private static final String AUTHORIZATION = "Authorization";
     private static final String BEARER = "Bearer ";
-    private static final String CONTENT_TYPE = "application/json; charset=utf-8";
-    private static final String DATA = "data";
-    private static final String ID = "id";
-    private static final String CHOICES = "choices";
-    private static final String MESSAGE = "message";
-    private static final String CONTENT = "content";
-    private static final String MODEL = "model";
-    private static final String MESSAGES = "messages";
-    private static final String HTTP = "HTTP ";
+    private static final String URL = "url";
+    private static final String B64_JSON = "b64_json";
+    private static final JsonAdapter<BufferedImage> IMAGE_DATA = OpenAiCodec.imageData(ImageIO::read);
     private static final String BASE_URL = "https://api.openai.com/v1";
+    private static final String OPENAI_HOST = "api.openai.com";
     private static final String MODEL_INFO_PATH = "/models/%s";
+    private static final String ACCEPT = "Accept";
+    private static final String EVENT_STREAM = "text/event-stream";
+    private static final String SSE_DATA = "data:";
+    private static final String SSE_DONE = "[DONE]";
+    private static final String RATE_LIMIT_EXCEEDED = "rate_limit_exceeded";
+    private static final String HTTP_ERROR = "http_error";
+    private static final String STREAM_RESET = "stream was reset"; // OkHttp's StreamResetException message
+    private static final Consumer<TokenUsage> IGNORE_USAGE = usage -> {
+    };
 
-    private final OkHttpClient client;
-    private final JsonAdapter<Map<String, Object>> mapAdapter;
-
-    OpenAIApi() {
-        client = new OkHttpClient();
-        Type mapType = Types.newParameterizedType(Map.class, String.class, Object.class);
-        mapAdapter = new Moshi.Builder().build()
-                                        .adapter(mapType);
-
+    /**
+     * Opens a pooled connection to the API host ahead of the first player request.
+     */
+    public void preWarm() {
+        HTTP_CLIENT_REGISTRY.preWarm(BASE_URL);
     }
 
     /**
-     * Fetch available model IDs for the given API key.
+     * Fetches the IDs of the models available to the given API key.
      *
      * @param apiKey OpenAI API key
-     * @return the list of available model IDs
-     */
-    public List<String> listModelIds(String apiKey) throws IOException {
-        Request req = new Request.Builder().url(MODELS_URL)
-                                           .addHeader(AUTHORIZATION, BEARER + apiKey)
-                                           .get()
-                                           .build();
-        try (Response resp = client.newCall(req)
-                                   .execute()) {
-            if (!resp.isSuccessful()) {
-                throw new IOException(HTTP + resp.code());
-            }
-            assert resp.body() != null;
-            String json = resp.body()
-                              .string();
-
-            List<Map<String, Object>> data = extractListFromJsonField(json, DATA);
-
-            return data.stream()
-                       .map(m -> m.get(ID)
-                                  .toString())
-                       .toList();
-        }
+     * @return a future with the model IDs
+     */
+    public CompletableFuture<List<String>> listModelIdsAsync(String apiKey) {
+        return listModelsAsync(apiKey).thenApply(this::toIds);
     }
 
     /**
-     * Parses a JSON string and retrieves a list of maps located under a specified top-level field.
+     * Fetches the full model objects available to the given API key.
      *
-     * @param json      The JSON string to parse.
-     * @param fieldName The field name whose value should be retrieved (expected to be a list).
-     * @return A list of maps extracted from the specified field.
-     * @throws IOException If parsing fails or if the JSON is invalid.
+     * @param apiKey OpenAI API key
+     * @return a future with every model's metadata
      */
-    @SuppressWarnings("unchecked")
-    private List<Map<String, Object>> extractListFromJsonField(String json, String fieldName) throws IOException {
-        Map<String, Object> root = mapAdapter.fromJson(json);
-        if (root == null) {
-            throw new IOException("Failed to parse JSON: root is null.");
-        }
-        return (List<Map<String, Object>>) root.get(fieldName);
+    public CompletableFuture<List<ModelInfo>> listModelsAsync(String apiKey) {
+        return send(ApiEndpoint.MODELS, apiKey, null, 0, modelsRequest(apiKey), TIMEOUT_MS.get(), this::parseModelList);
     }
 
+    private Request modelsRequest(String apiKey) {
+        return new Request.Builder().url(MODELS_URL)
+                                    .addHeader(AUTHORIZATION, BEARER + apiKey)
+                                    .get()
+                                    .build();
+    }
+
+    private List<ModelInfo> parseModelList(Response resp) throws IOException {
+        return decode(resp, OpenAiCodec.MODEL_LIST);
+    }
+
+    private List<String> toIds(List<ModelInfo> models) {
+        return models.stream()
+                     .map(ModelInfo::id)
+                     .toList();
+    }
 
     /**
      * Fetches detailed information for a specific model.
      *
      * @param apiKey  Bearer key
      * @param modelId ID of the model
-     * @return raw JSON as Map
-     * @throws IOException     on network error
-     * @throws OpenAiException on API error
+     * @return a future with the model's metadata; fails with an {@link OpenAiException} on an API error
      */
-    public Map<String, Object> getModelInfo(String apiKey, String modelId) throws IOException, OpenAiException {
+    public CompletableFuture<ModelInfo> getModelInfoAsync(String apiKey, String modelId) {
+        return send(ApiEndpoint.MODELS, apiKey, null, 0, modelInfoRequest(apiKey, modelId), TIMEOUT_MS.get(), this::parseModelInfo);
+    }
+
+    private Request modelInfoRequest(String apiKey, String modelId) {
         String path = String.format(MODEL_INFO_PATH, modelId);
-        Request req = new Request.Builder().url(BASE_URL + path)
-                                           .addHeader("Authorization", "Bearer " + apiKey)
-                                           .get()
-                                           .build();
-        try (Response resp = client.newCall(req)
-                                   .execute()) {
-            String body = resp.body() != null ? resp.body()
-                                                    .string() : "";
-            if (!resp.isSuccessful()) {
-                throwOpenAiError(resp.code(), body);
-            }
-            Map<String, Object> json = mapAdapter.fromJson(body);
-            if (json == null) {
-                throw new OpenAiException(resp.code(), "invalid_response", "Empty response");
-            }
-            return json;
-        }
+        return new Request.Builder().url(BASE_URL + path)
+                                    .addHeader(AUTHORIZATION, BEARER + apiKey)
+                                    .get()
+                                    .build();
+    }
+
+    private ModelInfo parseModelInfo(Response resp) throws IOException {
+        return decode(resp, OpenAiCodec.MODEL_INFO);
     }
 
     /**
-     * Send a chat completion request and return the assistant response.
+     * Sends a chat completion request.
      *
      * @param apiKey    OpenAI API key
      * @param model     Model ID to use for the request
      * @param timeoutMs Timeout in milliseconds
      * @param messages  List of messages in the conversation
-     * @return Assistant response
-     * @throws IOException if an error occurs during the request
-     */
-    public String chat(String apiKey, String model, int timeoutMs, List<Map<String, Object>> messages) throws IOException {
-        OkHttpClient c = client.newBuilder()
-                               .callTimeout(timeoutMs, TimeUnit.MILLISECONDS)
-                               .build();
-        Map<String, Object> payload = Map.of(MODEL, model, MESSAGES, messages);
-        String bodyJson = mapAdapter.toJson(payload);
-        RequestBody body = RequestBody.create(bodyJson, MediaType.get(CONTENT_TYPE));
-        Request req = new Request.Builder().url(CHAT_URL)
-                                           .addHeader(AUTHORIZATION, BEARER + apiKey)
-                                           .post(body)
-                                           .build();
-        try (Response resp = c.newCall(req)
-                              .execute()) {
-            assert resp.body() != null;
-            String respBody = resp.body()
-                                  .string();
-            if (!resp.isSuccessful()) {
-                var errRoot = mapAdapter.fromJson(respBody);
-                assert errRoot != null;
-                String apiCode = ((Map<?, ?>) errRoot.get("error")).get("code")
-                                                                   .toString();
-                String msg = ((Map<?, ?>) errRoot.get("error")).get("message")
-                                                               .toString();
-                throw new OpenAiException(resp.code(), apiCode, msg);
+     * @return a future with the assistant response
+     */
+    public CompletableFuture<String> chatAsync(String apiKey, String model, int timeoutMs, List<ChatMessage> messages) {
+        return chatAsync(apiKey, model, timeoutMs, messages, IGNORE_USAGE, AiJob.UNTRACKED);
+    }
+
+    /**
+     * Variant of {@link #chatAsync(String, String, int, List)} that reports the response's token usage and can be cancelled.
+     *
+     * @param onUsage receives the usage block once the reply is parsed, on the thread reading the response
+     * @param job     cancels the request while it waits for the rate limiter or is in flight
+     */
+    public CompletableFuture<String> chatAsync(String apiKey, String model, int timeoutMs, List<ChatMessage> messages, Consumer<TokenUsage> onUsage, AiJob job) {
+        int tokens = estimateTokens(model, messages);
+        return send(ApiEndpoint.CHAT, apiKey, model, tokens, chatRequest(apiKey, model, messages, false, job), timeoutMs, resp -> parseChat(resp, model, settling(apiKey, tokens, onUsage)));
+    }
+
+    /**
+     * Settles the rate limiter's reservation with the reported usage before passing it on.
+     */
+    private Consumer<TokenUsage> settling(String apiKey, int reservedTokens, Consumer<TokenUsage> onUsage) {
+        return usage -> {
+            RATE_LIMITER.settle(apiKey, reservedTokens, usage);
+            onUsage.accept(usage);
+        };
+    }
+
+    private Request chatRequest(String apiKey, String model, List<ChatMessage> messages, boolean stream, AiJob job) {
+        Request.Builder builder = new Request.Builder().url(CHAT_URL)
+                                                       .addHeader(AUTHORIZATION, BEARER + apiKey)
+                                                       .tag(AiJob.class, job)
+                                                       .post(OpenAiCodec.chatRequest(model, messages, stream));
+        if (stream) {
+            builder.addHeader(ACCEPT, EVENT_STREAM);
+        }
+        return builder.build();
+    }
+
+    private String parseChat(Response resp, String model, Consumer<TokenUsage> onUsage) throws IOException {
+        ChatCompletion completion = decode(resp, OpenAiCodec.CHAT_COMPLETION);
+        if (completion.content() == null) {
+            throw new OpenAiException(resp.code(), "invalid_response", "No message content returned");
+        }
+        PROMPT_CACHE_METRICS.record(model, completion.usage(), System.currentTimeMillis() - resp.sentRequestAtMillis());
+        onUsage.accept(completion.usage());
+        return completion.content()
+                         .trim();
+    }
+
+    /**
+     * Sends a streaming chat completion request ({@code stream: true}). Partial text is handed to {@code onDelta} as soon as each server-sent event arrives; the response body is read line by line and never buffered as a whole. The
+     * stream is read on an OkHttp dispatcher thread, which is also the thread {@code onDelta} is called on.
+     *
+     * @param apiKey    OpenAI API key
+     * @param model     Model ID to use for the request
+     * @param timeoutMs Timeout in milliseconds for the complete stream
+     * @param messages  List of messages in the conversation
+     * @param onDelta   Receives each text fragment, in order
+     * @return a future with the complete assistant response once the stream ends
+     */
+    public CompletableFuture<String> chatStreamAsync(String apiKey, String model, int timeoutMs, List<ChatMessage> messages, Consumer<String> onDelta) {
+        return chatStreamAsync(apiKey, model, timeoutMs, messages, onDelta, IGNORE_USAGE, AiJob.UNTRACKED);
+    }
+
+    /**
+     * Variant of {@link #chatStreamAsync(String, String, int, List, Consumer)} that reports the stream's token usage and can be cancelled. Cancelling mid-stream closes the connection, so the server stops generating. A stream
+     * that breaks off after its first fragment is not retried, since the fragments were handed out already.
+     *
+     * @param onUsage receives the usage block once the stream ends, on the thread reading the stream
+     * @param job     cancels the request while it waits for the rate limiter or is in flight
+     */
+    public CompletableFuture<String> chatStreamAsync(String apiKey, String model, int timeoutMs, List<ChatMessage> messages, Consumer<String> onDelta, Consumer<TokenUsage> onUsage, AiJob job) {
+        int tokens = estimateTokens(model, messages);
+        return send(ApiEndpoint.CHAT, apiKey, model, tokens, chatRequest(apiKey, model, messages, true, job), timeoutMs, resp -> readEventStream(resp, model, onDelta, settling(apiKey, tokens, onUsage)));
+    }
+
+    /**
+     * Reads server-sent events until {@code [DONE]} or end of stream, forwarding every content delta. The usage arrives in a last chunk without choices.
+     */
+    private String readEventStream(Response resp, String model, Consumer<String> onDelta, Consumer<TokenUsage> onUsage) throws IOException {
+        BufferedSource source = successfulBody(resp).source();
+        StringBuilder reply = new StringBuilder();
+        Buffer chunk = new Buffer();
+        TokenUsage usage = TokenUsage.NONE;
+        long ttftMs = -1;
+        String line;
+        try {
+            while ((line = source.readUtf8Line()) != null) {
+                if (!line.startsWith(SSE_DATA)) {
+                    continue; // blank separators, comments and other SSE fields
+                }
+                String data = line.substring(SSE_DATA.length())
+                                  .trim();
+                if (SSE_DONE.equals(data)) {
+                    break;
+                }
+                chunk.writeUtf8(data);
+                ChatCompletion completion = OpenAiCodec.read(OpenAiCodec.CHAT_CHUNK, chunk);
+                chunk.clear();
+                if (completion.usage()
+                              .isPresent()) {
+                    usage = completion.usage();
+                }
+                String delta = completion.content();
+                if (delta != null && !delta.isEmpty()) {
+                    if (ttftMs < 0) {
+                        ttftMs = System.currentTimeMillis() - resp.sentRequestAtMillis();
+                    }
+                    reply.append(delta);
+                    onDelta.accept(delta);
+                }
+            }
+        } catch (IOException e) {
+            if (reply.isEmpty()) {
+                throw e; // nothing was handed out yet
             }
+            throw new PartialStreamException(e);
+        }
+        PROMPT_CACHE_METRICS.record(model, usage, ttftMs >= 0 ? ttftMs : System.currentTimeMillis() - resp.sentRequestAtMillis());
+        onUsage.accept(usage);
+        return reply.toString()
+                    .trim();
+    }
 
-            // Parse the response
-            Deque<Map<String, Object>> dq = new LinkedList<>(extractListFromJsonField(respBody, CHOICES));
-            Map<String, Object> first = dq.getFirst();
+    /**
+     * Sends a request once the key's rate limiter allows it, through the endpoint's circuit breaker. The response's rate limit headers are fed back to the limiter, and a 429 caused by the rate limit (not by an exhausted quota) is retried
+     * after the limiter's pause. A transient failure is retried after a {@link #backoff}, if the endpoint's retry budget allows it. The waits and the call itself are bound to the {@link AiJob} the request is tagged with, if any.
+     *
+     * @param endpoint  the endpoint whose breaker guards the call
+     * @param apiKey    the key the request is authorized with
+     * @param model     the model requested, which selects the latencies the timeout is derived from; null when the endpoint has none
+     * @param tokens    estimated tokens the request consumes
+     * @param request   the request; its body must be writable more than once, and it may carry an {@link AiJob} tag
+     * @param timeoutMs the longest timeout for each attempt
+     * @param handler   turns the response into a result
+     */
+    private <T> CompletableFuture<T> send(ApiEndpoint endpoint, String apiKey, String model, int tokens, Request request, long timeoutMs, ResponseHandler<T> handler) {
+        endpoint.retryBudget()
+                .deposit();
+        return send(endpoint, apiKey, model, tokens, request, timeoutMs, handler, new Retries());
+    }
 
-            @SuppressWarnings("unchecked") Map<String, Object> message = (Map<String, Object>) first.get(MESSAGE);
+    private <T> CompletableFuture<T> send(ApiEndpoint endpoint, String apiKey, String model, int tokens, Request request, long timeoutMs, ResponseHandler<T> handler, Retries retries) {
+        AiJob job = request.tag(AiJob.class);
+        CompletableFuture<Void> permit = RATE_LIMITER.acquire(apiKey, tokens);
+        if (job != null) {
+            job.bind(permit);
+        }
+        return permit.thenCompose(ignored -> attempt(endpoint, apiKey, model, tokens, request, timeoutMs, handler, retries))
+                     .exceptionallyCompose(error -> {
+                         Throwable cause = unwrap(error);
+                         if (retries.rateLimited < RATE_LIMIT_MAX_RETRIES.get() && isRateLimited(cause)) {
+                             retries.rateLimited++;
+                             return send(endpoint, apiKey, model, tokens, request, timeoutMs, handler, retries);
+                         }
+                         if (retries.failures < RETRY_MAX_RETRIES.get() && isTransient(endpoint, cause, retries.bodyWritten) && endpoint.retryBudget()
+                                                                                                                                        .tryWithdraw()) {
+                             retries.failures++;
+                             return backoff(retries, job).thenCompose(ignored -> send(endpoint, apiKey, model, tokens, request, timeoutMs, handler, retries));
+                         }
+                         return CompletableFuture.failedFuture(cause);
+                     });
+    }
 
-            return message.get(CONTENT)
-                          .toString()
-                          .trim();
+    /**
+     * Sends one attempt the rate limiter admitted. A failed attempt reports no usage to settle its reservation with, so the reservation is refunded before a retry reserves again.
+     */
+    private <T> CompletableFuture<T> attempt(ApiEndpoint endpoint, String apiKey, String model, int tokens, Request request, long timeoutMs, ResponseHandler<T> handler, Retries retries) {
+        CompletableFuture<T> attempt = guarded(endpoint, model, request, timeoutMs, retries, resp -> {
+            RATE_LIMITER.observe(apiKey, resp);
+            return handler.handle(resp);
+        });
+        return attempt.whenComplete((result, error) -> {
+            if (error != null) {
+                RATE_LIMITER.release(apiKey, tokens);
+            }
+        });
+    }
+
+    /**
+     * Waits a decorrelated-jitter pause: random between the base delay and three times the previous pause, capped. Calls that failed together spread out instead of retrying in lockstep.
+     *
+     * @return a future completed on an I/O thread once the pause is over; cancelled with the job
+     */
+    private CompletableFuture<Void> backoff(Retries retries, AiJob job) {
+        long base = Math.max(1, RETRY_BASE_DELAY_MS.get());
+        long previous = Math.max(base, retries.backoffMs);
+        retries.backoffMs = Math.min(Math.max(base, RETRY_MAX_DELAY_MS.get()), ThreadLocalRandom.current()
+                                                                                            .nextLong(base, previous * 3 + 1));
+        CompletableFuture<Void> pause = new CompletableFuture<>();
+        ScheduledFuture<?> timer = EXECUTOR_MANAGER.scheduler()
+                                                   .schedule(() -> EXECUTOR_MANAGER.io()
+                                                                                   .execute(() -> pause.complete(null)), retries.backoffMs, TimeUnit.MILLISECONDS);
+        pause.whenComplete((ignored, error) -> {
+            if (pause.isCancelled()) {
+                timer.cancel(false);
+            }
+        });
+        if (job != null) {
+            job.bind(pause);
         }
+        return pause;
     }
 
     /**
-     * Parses an OpenAI error response and throws OpenAiException.
+     * Executes one attempt if the endpoint's breaker allows it, and reports the outcome back. Latency is measured until the response headers arrive, so a long stream is not mistaken for a slow call.
+     */
+    private <T> CompletableFuture<T> guarded(ApiEndpoint endpoint, String model, Request request, long timeoutMs, Retries retries, ResponseHandler<T> handler) {
+        CircuitBreaker breaker = endpoint.breaker();
+        CircuitBreaker.Permit permit = breaker.tryAcquire();
+        if (permit == null) {
+            return CompletableFuture.failedFuture(new OpenAiException(503, CircuitBreaker.CIRCUIT_OPEN,
+                                                                      "The OpenAI " + endpoint.id() + " API is failing; requests are paused for " + breaker.retryInSeconds() + "s"));
+        }
+        long callTimeoutMs = ADAPTIVE_TIMEOUTS.timeoutFor(endpoint, model, timeoutMs);
+        AiJob job = request.tag(AiJob.class);
+        if (job != null) {
+            job.dispatched();
+        }
+        long[] latencyMs = {-1};
+        return HTTP_CLIENT_REGISTRY.executeAsync(tracked(endpoint, request, retries), callTimeoutMs, resp -> {
+                                       latencyMs[0] = permit.elapsedMs();
+                                       return handler.handle(resp);
+                                   })
+                                   .whenComplete((result, error) -> {
+                                       Throwable cause = error == null ? null : unwrap(error);
+                                       if (cause == null) {
+                                           ADAPTIVE_TIMEOUTS.record(endpoint, model, permit.elapsedMs());
+                                       } else if (cause instanceof InterruptedIOException) {
+                                           ADAPTIVE_TIMEOUTS.record(endpoint, model, callTimeoutMs); // took at least this long
+                                       }
+                                       if (cause instanceof CancellationException) {
+                                           breaker.release(permit);
+                                       } else if (cause != null && isUpstreamFailure(cause)) {
+                                           breaker.onFailure(permit);
+                                       } else {
+                                           breaker.onSuccess(permit, latencyMs[0] >= 0 ? latencyMs[0] : permit.elapsedMs());
+                                       }
+                                   });
+    }
+
+    /**
+     * Network errors, timeouts and server errors say the endpoint is unhealthy; client errors don't.
+     */
+    private boolean isUpstreamFailure(Throwable error) {
+        if (error instanceof OpenAiException oae) {
+            return oae.getStatus() >= 500 || oae.getStatus() == 408;
+        }
+        return error instanceof IOException;
+    }
+
+    /**
+     * A 429 from the server's rate limit; exhausted quotas and rejections by the local limiter are not worth retrying.
+     */
+    private boolean isRateLimited(Throwable error) {
+        return error instanceof OpenAiException oae && oae.getStatus() == 429 && (RATE_LIMIT_EXCEEDED.equals(oae.getCode()) || HTTP_ERROR.equals(oae.getCode()));
+    }
+
+    /**
+     * Failures worth repeating as they are: the host was not found, the connection failed before the request body was written, or the server failed (5xx). A timeout already used up the call's time, and an open breaker is not worth
+     * asking again. A request the endpoint may bill for anyway is only repeated when it never left.
+     */
+    private boolean isTransient(ApiEndpoint endpoint, Throwable error, boolean bodyWritten) {
+        if (error instanceof OpenAiException oae) {
+            return endpoint.resendable() && oae.getStatus() >= 500 && !CircuitBreaker.CIRCUIT_OPEN.equals(oae.getCode());
+        }
+        if (error instanceof UnknownHostException) {
+            return true;
+        }
+        return endpoint.resendable() && !bodyWritten && (error instanceof SocketException || isStreamReset(error));
+    }
+
+    /**
+     * An HTTP/2 stream reset, recognized by OkHttp's message since its exception type is internal.
+     */
+    private boolean isStreamReset(Throwable error) {
+        return error instanceof IOException && error.getMessage() != null && error.getMessage()
+                                                                                  .startsWith(STREAM_RESET);
+    }
+
+    /**
+     * Wraps the request's body so the attempt records once it starts writing it. A body the endpoint may not resend is one-shot, so OkHttp doesn't silently resend it on a fresh connection either.
+     */
+    private Request tracked(ApiEndpoint endpoint, Request request, Retries retries) {
+        retries.bodyWritten = false;
+        RequestBody body = request.body();
+        if (body == null) {
+            return request;
+        }
+        return request.newBuilder()
+                      .method(request.method(), new TrackedBody(body, !endpoint.resendable(), retries))
+                      .build();
+    }
+
+    /**
+     * Prompt token count for the rate limiter, from the model's tokenizer; a conversation history has counted its messages already.
+     */
+    private int estimateTokens(String model, List<ChatMessage> messages) {
+        if (messages instanceof EncodedMessages encoded) {
+            return encoded.tokens();
+        }
+        int tokens = REPLY_PRIMING;
+        for (ChatMessage message : messages) {
+            tokens += TOKEN_COUNTER.count(model, message);
+        }
+        return tokens;
+    }
+
+    /**
+     * Decodes a successful response body with the given adapter, straight from the network stream.
      */
-    private void throwOpenAiError(int status, String body) throws OpenAiException {
+    private <T> T decode(Response resp, JsonAdapter<T> adapter) throws IOException {
+        ResponseBody body = successfulBody(resp);
         try {
-            Map<String, Object> errRoot = mapAdapter.fromJson(body);
-            if (errRoot != null && errRoot.get("error") instanceof Map<?, ?> err) {
-                String msg = err.get("message")
-                                .toString();
-                String code = err.get("code") != null ? err.get("code")
-                                                           .toString() : "unknown_error";
-                throw new OpenAiException(status, code, msg);
+            T value = OpenAiCodec.read(adapter, body.source());
+            if (value == null) {
+                throw new OpenAiException(resp.code(), "invalid_response", "Empty response");
+            }
+            return value;
+        } catch (JsonDataException e) {
+            throw new OpenAiException(resp.code(), "invalid_response", e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the body of a successful response, turning non-2xx responses into an OpenAiException.
+     */
+    private ResponseBody successfulBody(Response resp) throws IOException {
+        ResponseBody body = resp.body();
+        if (!resp.isSuccessful()) {
+            throwOpenAiError(resp.code(), body);
+        }
+        if (body == null) {
+            throw new OpenAiException(resp.code(), "invalid_response", "Empty response");
+        }
+        return body;
+    }
+
+    /**
+     * Parses an OpenAI error response and throws OpenAiException.
+     */
+    private void throwOpenAiError(int status, ResponseBody body) throws OpenAiException {
+        if (body != null) {
+            try {
+                ApiError error = OpenAiCodec.read(OpenAiCodec.API_ERROR, body.source());
+                if (error != null && error.message() != null) {
+                    String code = error.code() != null ? error.code() : "unknown_error";
+                    throw new OpenAiException(status, code, error.message());
+                }
+            } catch (IOException | JsonDataException ignored) {
             }
-        } catch (IOException ignored) {
         }
-        throw new OpenAiException(status, "http_error", "HTTP " + status);
+        throw new OpenAiException(status, HTTP_ERROR, "HTTP " + status);
+    }
+
+    /**
+     * Embeds a text with the configured embedding model. The endpoint URL is configurable, so any OpenAI-compatible embeddings server can stand in. Such a server gets the configured {@code embeddings-api-key}, or no credential; the
+     * player's key is only sent to OpenAI.
+     *
+     * @param apiKey  OpenAI API key, used when no embeddings key is configured
+     * @param input   the text to embed
+     * @param onUsage receives the response's usage, on the thread reading the response
+     * @return a future with the embedding vector
+     */
+    public CompletableFuture<float[]> embedAsync(String apiKey, String input, Consumer<TokenUsage> onUsage) {
+        HttpUrl url = HttpUrl.get(EMBEDDINGS_URL.get());
+        String credential = EMBEDDINGS_API_KEY.get();
+        if (credential == null || credential.isBlank()) {
+            credential = OPENAI_HOST.equals(url.host()) ? apiKey : "";
+        }
+        Request.Builder builder = new Request.Builder().url(url)
+                                                       .post(OpenAiCodec.embeddingRequest(EMBEDDING_MODEL.get(), input));
+        if (!credential.isEmpty()) {
+            builder.addHeader(AUTHORIZATION, BEARER + credential);
+        }
+        return send(ApiEndpoint.EMBEDDINGS, credential, EMBEDDING_MODEL.get(), input.length() / 4 + 1, builder.build(), TIMEOUT_MS.get(), resp -> parseEmbedding(resp, onUsage));
+    }
+
+    private float[] parseEmbedding(Response response, Consumer<TokenUsage> onUsage) throws IOException {
+        Embedding embedding = decode(response, OpenAiCodec.EMBEDDING);
+        if (embedding.vector() == null || embedding.vector().length == 0) {
+            throw new OpenAiException(response.code(), "invalid_response", "Empty embedding returned");
+        }
+        onUsage.accept(embedding.usage());
+        return embedding.vector();
     }
 
     /**
-     * Generates an image based on the given prompt and returns the image URL.
+     * Generates an image based on the given prompt.
      *
      * @param prompt The prompt to send to OpenAI for image generation.
      * @param width  Desired image width in pixels (will be scaled down if unsupported).
      * @param height Desired image height in pixels (will be scaled down if unsupported).
      * @param apiKey OpenAI API key
-     * @return A direct URL to the generated image.
-     * @throws IOException     On network or API failure.
-     * @throws OpenAiException If OpenAI returns an error.
+     * @return a future with a direct URL to the generated image; fails with an {@link OpenAiException} on an API error
+     */
+    public CompletableFuture<String> generateImageAsync(String prompt, int width, int height, String apiKey) {
+        return generateImageAsync(prompt, width, height, apiKey, AiJob.UNTRACKED);
+    }
+
+    /**
+     * Variant of {@link #generateImageAsync(String, int, int, String)} that can be cancelled.
+     *
+     * @param job cancels the request while it waits for the rate limiter or is in flight
      */
-    public String generateImage(String prompt, int width, int height, String apiKey) throws IOException, OpenAiException {
+    public CompletableFuture<String> generateImageAsync(String prompt, int width, int height, String apiKey, AiJob job) {
+        return send(ApiEndpoint.IMAGES, apiKey, null, 0, imageRequest(prompt, width, height, apiKey, job, URL), TIMEOUT_IMAGE_MS.get(), this::parseImageUrl);
+    }
+
+    /**
+     * Generates an image and returns it decoded. The image is sent inline as base64 and decoded while the response arrives, which saves downloading it from a second URL afterwards.
+     *
+     * @param prompt The prompt to send to OpenAI for image generation.
+     * @param width  Desired image width in pixels (will be scaled down if unsupported).
+     * @param height Desired image height in pixels (will be scaled down if unsupported).
+     * @param apiKey OpenAI API key
+     * @param job    cancels the request while it waits for the rate limiter or is in flight
+     * @return a future with the decoded image
+     */
+    public CompletableFuture<BufferedImage> generateImageDataAsync(String prompt, int width, int height, String apiKey, AiJob job) {
+        return send(ApiEndpoint.IMAGES, apiKey, null, 0, imageRequest(prompt, width, height, apiKey, job, B64_JSON), TIMEOUT_IMAGE_MS.get(), this::parseImageData);
+    }
+
+    private Request imageRequest(String prompt, int width, int height, String apiKey, AiJob job, String responseFormat) {
         // DALL·E only supports 256, 512, or 1024 square outputs
         int size = Math.min(Math.max(Math.min(width, height), 256), 1024);
         if (size <= 512) {
@@ -215,39 +591,86 @@ public enum OpenAIApi {
             size = 1024;
         }
 
-        Map<String, Object> payload = Map.of("prompt", prompt, "n", 1, "size", size + "x" + size, "response_format", "url");
+        return new Request.Builder().url(IMAGES_URL)
+                                    .addHeader(AUTHORIZATION, BEARER + apiKey)
+                                    .tag(AiJob.class, job)
+                                    .post(OpenAiCodec.imageRequest(prompt, size + "x" + size, responseFormat))
+                                    .build();
+    }
 
-        String json = mapAdapter.toJson(payload);
-        RequestBody body = RequestBody.create(json, MediaType.get(CONTENT_TYPE));
+    private String parseImageUrl(Response response) throws IOException {
+        ResponseBody body = successfulBody(response);
+        String url = OpenAiCodec.read(OpenAiCodec.IMAGE_URL, body.source());
+        if (url == null) {
+            throw new IOException("No image URL returned");
+        }
+        return url;
+    }
 
-        Request request = new Request.Builder().url("https://api.openai.com/v1/images/generations")
-                                               .addHeader(AUTHORIZATION, BEARER + apiKey)
-                                               .post(body)
-                                               .build();
+    private BufferedImage parseImageData(Response response) throws IOException {
+        ResponseBody body = successfulBody(response);
+        BufferedImage image = OpenAiCodec.read(IMAGE_DATA, body.source());
+        if (image == null) {
+            throw new IOException("No image data returned, or not a supported image format");
+        }
+        return image;
+    }
 
-        OkHttpClient timed = new OkHttpClient.Builder().connectTimeout(60, TimeUnit.SECONDS)
-                                                       .readTimeout(TIMEOUT_IMAGE_MS.get(), TimeUnit.MILLISECONDS)
-                                                       .writeTimeout(TIMEOUT_IMAGE_MS.get(), TimeUnit.MILLISECONDS)
-                                                       .callTimeout(TIMEOUT_IMAGE_MS.get(), TimeUnit.MILLISECONDS)
-                                                       .build();
+    /**
+     * Retry state of one request, handed from attempt to attempt.
+     */
+    private static final class Retries {
 
-        try (Response response = timed.newCall(request)
-                                      .execute()) {
-            String respBody = response.body() != null ? response.body()
-                                                                .string() : "";
-            if (!response.isSuccessful()) {
-                throwOpenAiError(response.code(), respBody);
-            }
+        private int rateLimited;
+        private int failures;
+        private long backoffMs;
+        private volatile boolean bodyWritten; // of the current attempt; written on OkHttp's thread
+    }
 
-            List<Map<String, Object>> data = extractListFromJsonField(respBody, DATA);
-            if (data.isEmpty() || !data.getFirst()
-                                       .containsKey("url")) {
-                throw new IOException("No image URL returned");
-            }
-            return data.getFirst()
-                       .get("url")
-                       .toString();
+    /**
+     * A request body that flags its attempt as sent once OkHttp starts writing it.
+     */
+    private static final class TrackedBody extends RequestBody {
+
+        private final RequestBody body;
+        private final boolean oneShot;
+        private final Retries retries;
+
+        private TrackedBody(RequestBody body, boolean oneShot, Retries retries) {
+            this.body = body;
+            this.oneShot = oneShot;
+            this.retries = retries;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return body.contentType();
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            return body.contentLength();
+        }
+
+        @Override
+        public boolean isOneShot() {
+            return oneShot || body.isOneShot();
+        }
+
+        @Override
+        public void writeTo(@NotNull BufferedSink sink) throws IOException {
+            retries.bodyWritten = true;
+            body.writeTo(sink);
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * A stream that broke off after part of the reply was handed out; never retried.
+     */
+    private static final class PartialStreamException extends IOException {
+
+        private PartialStreamException(IOException cause) {
+            super("The reply stream broke off: " + cause.getMessage(), cause);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package be.stealingdapenta.coreai.service;
+
+import be.stealingdapenta.coreai.service.codec.TokenUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Singleton that tracks, per model, how often chat requests hit the provider's prompt cache and how fast their first token arrives with and without a hit.
+ * <p>
+ * A request counts as a hit when its usage reports any {@code cached_tokens}. Time to first token runs from sending the request to the first streamed fragment, or to the complete reply when not streaming.
+ */
+public enum PromptCacheMetrics {
+    PROMPT_CACHE_METRICS;
+
+    private final Map<String, ModelCounters> models = new ConcurrentHashMap<>();
+
+    /**
+     * @param model   the model that answered
+     * @param usage   the response's token usage, or {@link TokenUsage#NONE}
+     * @param ttftMs  milliseconds until the first token arrived
+     */
+    public void record(String model, TokenUsage usage, long ttftMs) {
+        ModelCounters counters = models.computeIfAbsent(model, id -> new ModelCounters());
+        counters.requests.increment();
+        counters.promptTokens.add(usage.promptTokens());
+        counters.cachedTokens.add(usage.cachedTokens());
+        if (usage.cachedTokens() > 0) {
+            counters.hits.increment();
+            counters.ttftHitMs.add(ttftMs);
+        } else {
+            counters.ttftMissMs.add(ttftMs);
+        }
+    }
+
+    /**
+     * @return a snapshot per model, in no particular order
+     */
+    public List<ModelCacheStats> stats() {
+        List<ModelCacheStats> stats = new ArrayList<>(models.size());
+        models.forEach((model, counters) -> {
+            long requests = counters.requests.sum();
+            long hits = counters.hits.sum();
+            long misses = requests - hits;
+            stats.add(new ModelCacheStats(model, requests, hits, counters.promptTokens.sum(), counters.cachedTokens.sum(), hits == 0 ? 0 : counters.ttftHitMs.sum() / hits,
+                                          misses == 0 ? 0 : counters.ttftMissMs.sum() / misses));
+        });
+        return stats;
+    }
+
+    private static final class ModelCounters {
+
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder promptTokens = new LongAdder();
+        private final LongAdder cachedTokens = new LongAdder();
+        private final LongAdder ttftHitMs = new LongAdder();
+        private final LongAdder ttftMissMs = new LongAdder();
+    }
+
+    /**
+     * Snapshot of one model's prompt cache use.
+     *
+     * @param model        the model ID
+     * @param requests     chat requests answered
+     * @param hits         requests that reused cached prompt tokens
+     * @param promptTokens prompt tokens sent
+     * @param cachedTokens prompt tokens served from the cache
+     * @param avgTtftHitMs average time to first token of hits
+     * @param avgTtftMissMs average time to first token of misses
+     */
+    public record ModelCacheStats(String model, long requests, long hits, long promptTokens, long cachedTokens, long avgTtftHitMs, long avgTtftMissMs) {
+
+        public double hitRatio() {
+            return requests == 0 ? 0 : (double) hits / requests;
+        }
+
+        public double cachedTokenRatio() {
+            return promptTokens == 0 ? 0 : (double) cachedTokens / promptTokens;
+        }
+    }
+}
@@ -0,0 +1,417 @@
+package be.stealingdapenta.coreai.service;
+
+import static be.stealingdapenta.coreai.config.Config.RATE_LIMIT_MAX_QUEUE;
+import static be.stealingdapenta.coreai.config.Config.RATE_LIMIT_MAX_WAIT_MS;
+import static be.stealingdapenta.coreai.config.Config.RATE_LIMIT_REQUESTS_PER_MINUTE;
+import static be.stealingdapenta.coreai.config.Config.RATE_LIMIT_TOKENS_PER_MINUTE;
+import static be.stealingdapenta.coreai.manager.ExecutorManager.EXECUTOR_MANAGER;
+
+import be.stealingdapenta.coreai.service.codec.TokenUsage;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import okhttp3.Response;
+
+/**
+ * Singleton client-side rate limiter, with one pair of token buckets (requests/minute and tokens/minute) per API key.
+ * <p>
+ * The buckets start from the configured limits and then follow the {@code x-ratelimit-*} headers of every response, so they converge on the key's real tier. A 429 pauses the key for its {@code Retry-After}. Requests that don't fit wait in a
+ * bounded FIFO queue per key instead of failing; they are only rejected when the queue is full or the wait would exceed {@code openai.rate-limit.max-wait-ms}.
+ * <p>
+ * A request reserves its estimated prompt tokens up front; once its usage is known the difference is charged or refunded. Keys idle for ten minutes are dropped.
+ */
+public enum RateLimiter {
+    RATE_LIMITER;
+
+    private static final String LIMIT_REQUESTS = "x-ratelimit-limit-requests";
+    private static final String LIMIT_TOKENS = "x-ratelimit-limit-tokens";
+    private static final String REMAINING_REQUESTS = "x-ratelimit-remaining-requests";
+    private static final String REMAINING_TOKENS = "x-ratelimit-remaining-tokens";
+    private static final String RESET_REQUESTS = "x-ratelimit-reset-requests";
+    private static final String RETRY_AFTER = "retry-after";
+    private static final String RETRY_AFTER_MS = "retry-after-ms";
+    private static final long DEFAULT_RETRY_AFTER_MS = 1_000;
+    private static final double MS_PER_MINUTE = 60_000d;
+    private static final Pattern DURATION_PART = Pattern.compile("(\\d+(?:\\.\\d+)?)(ms|s|m|h)");
+    private static final long IDLE_EXPIRY_MINUTES = 10;
+
+    private final Map<String, KeyLimiter> limiters = new ConcurrentHashMap<>();
+    private final LongAdder granted = new LongAdder();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder totalWaitMs = new LongAdder();
+    private final AtomicLong maxWaitMs = new AtomicLong();
+    private ScheduledFuture<?> sweepTask;
+
+    /**
+     * Starts dropping the limiters of idle keys.
+     */
+    public synchronized void start() {
+        if (sweepTask == null) {
+            sweepTask = EXECUTOR_MANAGER.scheduler()
+                                        .scheduleWithFixedDelay(this::sweepIdle, IDLE_EXPIRY_MINUTES, IDLE_EXPIRY_MINUTES, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Stops the idle sweep.
+     */
+    public synchronized void shutdown() {
+        if (sweepTask != null) {
+            sweepTask.cancel(false);
+            sweepTask = null;
+        }
+    }
+
+    /**
+     * Reserves one request and the estimated tokens for the key.
+     *
+     * @param apiKey the API key the request will be sent with
+     * @param tokens estimated tokens the request will consume
+     * @return a future that completes once the request may be sent; fails with an {@link OpenAiException} (429) when the request is rejected
+     */
+    public CompletableFuture<Void> acquire(String apiKey, int tokens) {
+        return limiter(apiKey).acquire(Math.max(0, tokens));
+    }
+
+    /**
+     * Updates the key's buckets from a response's rate limit headers, and pauses the key when the response is a 429.
+     *
+     * @param apiKey   the API key the request was sent with
+     * @param response the response, before its body is consumed
+     */
+    public void observe(String apiKey, Response response) {
+        KeyLimiter limiter = limiter(apiKey);
+        limiter.learn(header(response, LIMIT_REQUESTS), header(response, REMAINING_REQUESTS), header(response, LIMIT_TOKENS), header(response, REMAINING_TOKENS));
+        if (response.code() == 429) {
+            throttled.increment();
+            limiter.pause(retryAfterMs(response));
+        }
+    }
+
+    /**
+     * Charges or refunds the difference between a request's reservation and the tokens it actually used, prompt and completion.
+     *
+     * @param apiKey         the API key the request was sent with
+     * @param reservedTokens the tokens passed to {@link #acquire}
+     * @param usage          the response's usage; ignored if absent
+     */
+    public void settle(String apiKey, int reservedTokens, TokenUsage usage) {
+        if (usage.isPresent()) {
+            limiter(apiKey).adjust(usage.totalTokens() - Math.max(0, reservedTokens));
+        }
+    }
+
+    /**
+     * Refunds the tokens reserved for an attempt that failed, so a retry's new reservation doesn't count them twice. The request itself stays counted.
+     *
+     * @param apiKey         the API key the request was sent with
+     * @param reservedTokens the tokens passed to {@link #acquire}
+     */
+    public void release(String apiKey, int reservedTokens) {
+        if (reservedTokens > 0) {
+            limiter(apiKey).adjust(-reservedTokens);
+        }
+    }
+
+    /**
+     * @return a snapshot of the limiter's counters and every key's learned limits
+     */
+    public RateLimitStats stats() {
+        List<KeyStats> keys = new ArrayList<>();
+        limiters.forEach((keyHash, limiter) -> keys.add(limiter.stats(keyHash)));
+        long grantedTotal = granted.sum();
+        return new RateLimitStats(grantedTotal, queued.sum(), rejected.sum(), throttled.sum(), grantedTotal == 0 ? 0 : totalWaitMs.sum() / grantedTotal, maxWaitMs.get(), keys);
+    }
+
+    private KeyLimiter limiter(String apiKey) {
+        return limiters.computeIfAbsent(ApiKeyHash.of(apiKey), ignored -> new KeyLimiter(RATE_LIMIT_REQUESTS_PER_MINUTE.get(), RATE_LIMIT_TOKENS_PER_MINUTE.get()));
+    }
+
+    /**
+     * Drops the limiters of keys without traffic for a while; their buckets are full again, so only the learned limits are lost. A request that fetched a limiter just before it was dropped is still served by it.
+     */
+    private void sweepIdle() {
+        long now = System.currentTimeMillis();
+        limiters.values()
+                .removeIf(limiter -> limiter.isIdle(now));
+    }
+
+    private void recordGrant(long waitedMs) {
+        granted.increment();
+        totalWaitMs.add(waitedMs);
+        maxWaitMs.accumulateAndGet(waitedMs, Math::max);
+    }
+
+    private static long header(Response response, String name) {
+        String value = response.header(name);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads how long to back off after a 429: {@code retry-after-ms}, then {@code retry-after} in seconds, then the request bucket's reset time.
+     */
+    private static long retryAfterMs(Response response) {
+        long retryAfterMs = header(response, RETRY_AFTER_MS);
+        if (retryAfterMs >= 0) {
+            return retryAfterMs;
+        }
+        long retryAfterSeconds = header(response, RETRY_AFTER);
+        if (retryAfterSeconds >= 0) {
+            return TimeUnit.SECONDS.toMillis(retryAfterSeconds);
+        }
+        long reset = parseDurationMs(response.header(RESET_REQUESTS));
+        return reset > 0 ? reset : DEFAULT_RETRY_AFTER_MS;
+    }
+
+    /**
+     * Parses OpenAI's reset durations such as {@code 20ms}, {@code 1s} or {@code 6m0s}.
+     */
+    private static long parseDurationMs(String value) {
+        if (value == null) {
+            return -1;
+        }
+        Matcher matcher = DURATION_PART.matcher(value);
+        double total = 0;
+        boolean found = false;
+        while (matcher.find()) {
+            found = true;
+            double amount = Double.parseDouble(matcher.group(1));
+            total += switch (matcher.group(2)) {
+                case "ms" -> amount;
+                case "s" -> amount * 1_000;
+                case "m" -> amount * 60_000;
+                default -> amount * 3_600_000;
+            };
+        }
+        return found ? (long) Math.ceil(total) : -1;
+    }
+
+    /**
+     * Snapshot of the rate limiter.
+     *
+     * @param granted    requests let through, immediately or after waiting
+     * @param queued     requests that had to wait for capacity
+     * @param rejected   requests refused because the queue was full or the wait too long
+     * @param throttled  429 responses received despite the limiter
+     * @param avgWaitMs  average time a granted request waited
+     * @param maxWaitMs  longest time a granted request waited
+     * @param keys       per-key learned limits and current state
+     */
+    public record RateLimitStats(long granted, long queued, long rejected, long throttled, long avgWaitMs, long maxWaitMs, List<KeyStats> keys) {
+
+    }
+
+    /**
+     * State of one key's buckets.
+     *
+     * @param keyHash           the key's {@link ApiKeyHash}
+     * @param requestsPerMinute the request limit currently assumed
+     * @param tokensPerMinute   the token limit currently assumed
+     * @param requestsAvailable requests that could be sent right now
+     * @param tokensAvailable   tokens that could be spent right now
+     * @param waiting           requests currently queued for this key
+     */
+    public record KeyStats(String keyHash, long requestsPerMinute, long tokensPerMinute, long requestsAvailable, long tokensAvailable, int waiting) {
+
+    }
+
+    private record Waiter(int tokens, long enqueuedAt, CompletableFuture<Void> future) {
+
+    }
+
+    /**
+     * Token buckets and wait queue for one API key. All state is guarded by the instance's monitor; futures are completed outside of it.
+     */
+    private class KeyLimiter {
+
+        private final Deque<Waiter> waiters = new ArrayDeque<>();
+        private double requestCapacity;
+        private double tokenCapacity;
+        private double requestsAvailable;
+        private double tokensAvailable;
+        private long lastRefill = System.currentTimeMillis();
+        private long pausedUntil;
+        private long lastUsed = lastRefill;
+        private ScheduledFuture<?> drainTask;
+
+        private KeyLimiter(int requestsPerMinute, int tokensPerMinute) {
+            requestCapacity = Math.max(1, requestsPerMinute);
+            tokenCapacity = Math.max(1, tokensPerMinute);
+            requestsAvailable = requestCapacity;
+            tokensAvailable = tokenCapacity;
+        }
+
+        private CompletableFuture<Void> acquire(int tokens) {
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                lastUsed = now;
+                if (waiters.isEmpty() && tryTake(tokens, now)) {
+                    recordGrant(0);
+                    return CompletableFuture.completedFuture(null);
+                }
+                if (waiters.size() >= RATE_LIMIT_MAX_QUEUE.get()) {
+                    rejected.increment();
+                    return CompletableFuture.failedFuture(new OpenAiException(429, "rate_limit_queue_full", "Too many requests are waiting for this API key"));
+                }
+                CompletableFuture<Void> future = new CompletableFuture<>();
+                waiters.addLast(new Waiter(tokens, now, future));
+                queued.increment();
+                scheduleDrain(now);
+                return future;
+            }
+        }
+
+        /**
+         * Lets through as many queued requests, in order, as the buckets allow, then sleeps until the head of the queue fits.
+         */
+        private void drain() {
+            List<Runnable> completions = new ArrayList<>();
+            synchronized (this) {
+                drainTask = null;
+                long now = System.currentTimeMillis();
+                while (!waiters.isEmpty()) {
+                    Waiter head = waiters.peekFirst();
+                    if (head.future()
+                            .isDone()) {
+                        waiters.pollFirst(); // cancelled by the caller
+                    } else if (tryTake(head.tokens(), now)) {
+                        waiters.pollFirst();
+                        long waited = now - head.enqueuedAt();
+                        recordGrant(waited);
+                        completions.add(() -> head.future()
+                                                  .complete(null));
+                    } else if (now - head.enqueuedAt() + waitMs(head.tokens(), now) > RATE_LIMIT_MAX_WAIT_MS.get()) {
+                        waiters.pollFirst();
+                        rejected.increment();
+                        completions.add(() -> head.future()
+                                                  .completeExceptionally(new OpenAiException(429, "rate_limit_wait_exceeded", "Rate limit wait exceeded for this API key")));
+                    } else {
+                        scheduleDrain(now);
+                        break;
+                    }
+                }
+            }
+            completions.forEach(Runnable::run);
+        }
+
+        private void scheduleDrain(long now) {
+            if (drainTask != null) {
+                return;
+            }
+            Waiter head = waiters.peekFirst();
+            long delay = head == null ? 0 : waitMs(head.tokens(), now);
+            drainTask = EXECUTOR_MANAGER.scheduler()
+                                        .schedule(this::drain, Math.max(1, delay), TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized void learn(long requestLimit, long requestsRemaining, long tokenLimit, long tokensRemaining) {
+            refill(System.currentTimeMillis());
+            if (requestLimit > 0) {
+                requestCapacity = requestLimit;
+            }
+            if (tokenLimit > 0) {
+                tokenCapacity = tokenLimit;
+            }
+            // The server also counts traffic from other clients on the same key, so it wins whenever it reports less
+            if (requestsRemaining >= 0) {
+                requestsAvailable = Math.min(requestsAvailable, requestsRemaining);
+            }
+            if (tokensRemaining >= 0) {
+                tokensAvailable = Math.min(tokensAvailable, tokensRemaining);
+            }
+            requestsAvailable = Math.min(requestsAvailable, requestCapacity);
+            tokensAvailable = Math.min(tokensAvailable, tokenCapacity);
+        }
+
+        private void pause(long delayMs) {
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                pausedUntil = Math.max(pausedUntil, now + delayMs);
+                if (drainTask != null) {
+                    drainTask.cancel(false);
+                    drainTask = null;
+                }
+                if (!waiters.isEmpty()) {
+                    scheduleDrain(now);
+                }
+            }
+        }
+
+        /**
+         * Takes more tokens from the bucket, or gives some back; the bucket may go into debt, which delays the next requests.
+         */
+        private void adjust(int tokens) {
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                refill(now);
+                tokensAvailable = Math.min(tokenCapacity, tokensAvailable - tokens);
+                if (tokens < 0 && drainTask != null) {
+                    // A refund may let the head of the queue through sooner
+                    drainTask.cancel(false);
+                    drainTask = null;
+                    scheduleDrain(now);
+                }
+            }
+        }
+
+        private synchronized boolean isIdle(long now) {
+            return waiters.isEmpty() && drainTask == null && now >= pausedUntil && now - lastUsed > TimeUnit.MINUTES.toMillis(IDLE_EXPIRY_MINUTES);
+        }
+
+        private boolean tryTake(int tokens, long now) {
+            if (now < pausedUntil) {
+                return false;
+            }
+            refill(now);
+            double cost = Math.min(tokens, tokenCapacity); // an oversized request still passes once the bucket is full
+            if (requestsAvailable >= 1 && tokensAvailable >= cost) {
+                requestsAvailable -= 1;
+                tokensAvailable -= cost;
+                return true;
+            }
+            return false;
+        }
+
+        private long waitMs(int tokens, long now) {
+            refill(now);
+            double cost = Math.min(tokens, tokenCapacity);
+            double requestWait = requestsAvailable >= 1 ? 0 : (1 - requestsAvailable) * MS_PER_MINUTE / requestCapacity;
+            double tokenWait = tokensAvailable >= cost ? 0 : (cost - tokensAvailable) * MS_PER_MINUTE / tokenCapacity;
+            return (long) Math.ceil(Math.max(Math.max(requestWait, tokenWait), pausedUntil - now));
+        }
+
+        private void refill(long now) {
+            long elapsed = now - lastRefill;
+            if (elapsed <= 0) {
+                return;
+            }
+            requestsAvailable = Math.min(requestCapacity, requestsAvailable + elapsed * requestCapacity / MS_PER_MINUTE);
+            tokensAvailable = Math.min(tokenCapacity, tokensAvailable + elapsed * tokenCapacity / MS_PER_MINUTE);
+            lastRefill = now;
+        }
+
+        private synchronized KeyStats stats(String keyHash) {
+            refill(System.currentTimeMillis());
+            return new KeyStats(keyHash, (long) requestCapacity, (long) tokenCapacity, (long) requestsAvailable, (long) tokensAvailable, waiters.size());
+        }
+    }
+}
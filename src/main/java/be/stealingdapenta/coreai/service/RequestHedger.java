@@ -0,0 +1,331 @@
+package be.stealingdapenta.coreai.service;
+
+import static be.stealingdapenta.coreai.config.Config.HEDGING_ENABLED;
+import static be.stealingdapenta.coreai.config.Config.HEDGING_FALLBACK_MODEL;
+import static be.stealingdapenta.coreai.config.Config.HEDGING_MIN_DELAY_MS;
+import static be.stealingdapenta.coreai.config.Config.HEDGING_MIN_SAMPLES;
+import static be.stealingdapenta.coreai.config.Config.HEDGING_PERCENTILE;
+import static be.stealingdapenta.coreai.manager.ExecutorManager.EXECUTOR_MANAGER;
+import static be.stealingdapenta.coreai.service.OpenAIApi.OPEN_AI_API;
+
+import be.stealingdapenta.coreai.service.codec.TokenUsage;
+import be.stealingdapenta.coreai.util.LatencyHistogram;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Singleton that cuts the tail latency of chat requests by hedging them. When a model has not answered a request (or, when streaming, sent its first token) within the time most of its recent requests needed, the request is sent to
+ * a fallback model as well. Whichever answers first wins and the other is cancelled.
+ * <p>
+ * The threshold is a percentile of the model's recent latencies, kept apart for complete replies and first tokens, so only the slowest requests cost a second one. Latencies are recorded whether hedging is on or not; no request is
+ * hedged before its model has {@code min-samples} of them. Both the latencies and the hedge delay run from when a request is actually sent, so time spent waiting for the key's rate limiter or a retry pause neither triggers a
+ * hedge nor inflates the threshold.
+ */
+public enum RequestHedger {
+    REQUEST_HEDGER;
+
+    private static final int LATENCY_WINDOW = 1000;
+
+    private final Map<String, LatencyHistogram> replyLatencies = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> firstTokenLatencies = new ConcurrentHashMap<>();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder hedged = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder latencySavedMs = new LongAdder();
+
+    /**
+     * {@link OpenAIApi#chatAsync(String, String, int, List, Consumer, AiJob)}, hedged on the time until the complete reply.
+     *
+     * @param onUsage receives the model that answered and its usage, for each request that reports one
+     * @param job     cancels both requests
+     * @return a future with the first reply
+     */
+    public CompletableFuture<String> chatAsync(String apiKey, String model, int timeoutMs, List<ChatMessage> messages, BiConsumer<String, TokenUsage> onUsage, AiJob job) {
+        return race(model, replyLatencies, job,
+                    attempt -> OPEN_AI_API.chatAsync(apiKey, attempt.model, timeoutMs, messages, usage -> onUsage.accept(attempt.model, usage), attempt.job));
+    }
+
+    /**
+     * {@link OpenAIApi#chatStreamAsync(String, String, int, List, Consumer, Consumer, AiJob)}, hedged on the time until the first token. The stream that sends a token first wins; only its fragments reach {@code onDelta}.
+     *
+     * @param onUsage receives the model that answered and its usage, for each request that reports one
+     * @param job     cancels both requests
+     * @return a future with the winning stream's complete reply
+     */
+    public CompletableFuture<String> chatStreamAsync(String apiKey, String model, int timeoutMs, List<ChatMessage> messages, Consumer<String> onDelta, BiConsumer<String, TokenUsage> onUsage, AiJob job) {
+        return race(model, firstTokenLatencies, job, attempt -> OPEN_AI_API.chatStreamAsync(apiKey, attempt.model, timeoutMs, messages, delta -> {
+            if (attempt.claim()) {
+                onDelta.accept(delta);
+            }
+        }, usage -> onUsage.accept(attempt.model, usage), attempt.job));
+    }
+
+    private CompletableFuture<String> race(String model, Map<String, LatencyHistogram> latencies, AiJob job, Function<Attempt, CompletableFuture<String>> send) {
+        requests.increment();
+        LatencyHistogram latency = latencies.computeIfAbsent(model, id -> new LatencyHistogram(LATENCY_WINDOW));
+        long delayMs = hedgeDelay(latency);
+        String fallback = HEDGING_FALLBACK_MODEL.get();
+        String hedgeModel = fallback == null || fallback.isBlank() ? model : fallback;
+        Race race = new Race(latency, send, job, delayMs, hedgeModel);
+        race.result.whenComplete((reply, error) -> {
+            if (race.result.isCancelled()) {
+                race.cancel();
+            }
+        });
+        race.start(model);
+        return job.bind(race.result);
+    }
+
+    /**
+     * @return milliseconds to wait before hedging, or -1 not to hedge
+     */
+    private long hedgeDelay(LatencyHistogram latency) {
+        if (!HEDGING_ENABLED.get() || latency.count() < HEDGING_MIN_SAMPLES.get()) {
+            return -1;
+        }
+        return Math.max(HEDGING_MIN_DELAY_MS.get(), latency.percentile(HEDGING_PERCENTILE.get()));
+    }
+
+    /**
+     * @return a snapshot of the hedging counters and every model's current thresholds
+     */
+    public HedgeStats stats() {
+        List<ModelLatency> models = new ArrayList<>();
+        replyLatencies.forEach((model, latency) -> models.add(new ModelLatency(model, false, latency.count(), latency.percentile(HEDGING_PERCENTILE.get()))));
+        firstTokenLatencies.forEach((model, latency) -> models.add(new ModelLatency(model, true, latency.count(), latency.percentile(HEDGING_PERCENTILE.get()))));
+        return new HedgeStats(HEDGING_ENABLED.get(), requests.sum(), hedged.sum(), hedgeWins.sum(), latencySavedMs.sum(), models);
+    }
+
+    /**
+     * One request of a race, with its own job so the loser can be cancelled alone.
+     */
+    private static final class Attempt {
+
+        private final Race race;
+        private final String model;
+        private final AiJob job;
+        private volatile boolean dispatched;
+        private volatile long startedAt; // when the latest try was sent
+        private boolean done; // guarded by the race
+
+        private Attempt(Race race, String model, AiJob parent) {
+            this.race = race;
+            this.model = model;
+            this.job = new AiJob(parent.getOwner(), "Hedged request", parent.getWeight());
+            job.onDispatch(this::dispatched);
+        }
+
+        private void dispatched() {
+            startedAt = System.nanoTime();
+            race.job.dispatched(); // lets the caller time the request from dispatch too
+            if (!dispatched) {
+                dispatched = true;
+                race.firstDispatch(this);
+            }
+        }
+
+        /**
+         * @return whether this attempt is, or has just become, the winner
+         */
+        private boolean claim() {
+            return race.claim(this);
+        }
+
+        /**
+         * @return milliseconds since the attempt's latest try was sent, or 0 if it was not sent yet
+         */
+        private long elapsedMs() {
+            return dispatched ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt) : 0;
+        }
+    }
+
+    /**
+     * The primary request and, once it is overdue since it was sent, the hedge. The first attempt to claim the race decides its result; an attempt that fails leaves the race to the other one while it is still running.
+     */
+    private final class Race {
+
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+        private final AtomicReference<Attempt> winner = new AtomicReference<>();
+        private final LatencyHistogram latency;
+        private final Function<Attempt, CompletableFuture<String>> send;
+        private final AiJob job;
+        private final long hedgeDelayMs;
+        private final String hedgeModel;
+        private Attempt primary; // guarded by this, like the fields below
+        private Attempt backup;
+        private Throwable firstError;
+        private boolean settled;
+
+        private Race(LatencyHistogram latency, Function<Attempt, CompletableFuture<String>> send, AiJob job, long hedgeDelayMs, String hedgeModel) {
+            this.latency = latency;
+            this.send = send;
+            this.job = job;
+            this.hedgeDelayMs = hedgeDelayMs;
+            this.hedgeModel = hedgeModel;
+        }
+
+        private void start(String model) {
+            Attempt attempt = new Attempt(this, model, job);
+            synchronized (this) {
+                primary = attempt;
+            }
+            run(attempt);
+        }
+
+        /**
+         * Starts the hedge timer once the primary request has left the rate limiter and is on the wire.
+         */
+        private void firstDispatch(Attempt attempt) {
+            synchronized (this) {
+                if (attempt != primary || hedgeDelayMs < 0 || settled) {
+                    return;
+                }
+            }
+            ScheduledFuture<?> timer = EXECUTOR_MANAGER.scheduler()
+                                                       .schedule(() -> EXECUTOR_MANAGER.io()
+                                                                                       .execute(() -> hedge(hedgeModel)), hedgeDelayMs, TimeUnit.MILLISECONDS);
+            result.whenComplete((reply, error) -> timer.cancel(false));
+        }
+
+        private void hedge(String model) {
+            Attempt attempt;
+            synchronized (this) {
+                if (settled || winner.get() != null) {
+                    return;
+                }
+                attempt = new Attempt(this, model, job);
+                backup = attempt;
+            }
+            hedged.increment();
+            run(attempt);
+        }
+
+        private void run(Attempt attempt) {
+            CompletableFuture<String> reply;
+            try {
+                reply = send.apply(attempt);
+            } catch (RuntimeException e) {
+                reply = CompletableFuture.failedFuture(e);
+            }
+            reply.whenComplete((value, error) -> finished(attempt, value, error));
+        }
+
+        private boolean claim(Attempt attempt) {
+            if (winner.get() == attempt) {
+                return true;
+            }
+            if (!winner.compareAndSet(null, attempt)) {
+                return false;
+            }
+            Attempt other;
+            Attempt first;
+            boolean primaryFailed;
+            synchronized (this) {
+                settled = true;
+                first = primary;
+                other = attempt == primary ? backup : primary;
+                primaryFailed = primary.done;
+            }
+            if (attempt == first) {
+                latency.record(attempt.elapsedMs());
+            } else if (primaryFailed) {
+                hedgeWins.increment(); // answered where the primary could not; no latency to compare
+            } else {
+                long waitedMs = first.elapsedMs();
+                long expectedMs = latency.meanAbove(waitedMs);
+                hedgeWins.increment();
+                if (expectedMs > waitedMs) {
+                    latencySavedMs.add(expectedMs - waitedMs);
+                }
+                // The primary took at least this long; counting it keeps the slow tail, and so the threshold, from shrinking with every hedge
+                latency.record(waitedMs);
+            }
+            if (other != null) {
+                other.job.cancel();
+            }
+            return true;
+        }
+
+        private void finished(Attempt attempt, String reply, Throwable error) {
+            if (error == null) {
+                if (claim(attempt)) {
+                    result.complete(reply);
+                }
+                return;
+            }
+            Throwable failure;
+            synchronized (this) {
+                attempt.done = true;
+                if (firstError == null) {
+                    firstError = error;
+                }
+                if (winner.get() == attempt) {
+                    failure = error; // a stream that failed after its first token
+                } else {
+                    Attempt other = attempt == primary ? backup : primary;
+                    if (other != null && !other.done) {
+                        return; // the other request may still answer
+                    }
+                    settled = true;
+                    failure = firstError;
+                }
+            }
+            result.completeExceptionally(failure);
+        }
+
+        private void cancel() {
+            Attempt first;
+            Attempt second;
+            synchronized (this) {
+                settled = true;
+                first = primary;
+                second = backup;
+            }
+            if (first != null) {
+                first.job.cancel();
+            }
+            if (second != null) {
+                second.job.cancel();
+            }
+        }
+    }
+
+    /**
+     * Hedging threshold of one model.
+     *
+     * @param model       the model ID
+     * @param firstToken  whether this is the time until a stream's first token, rather than until a complete reply
+     * @param samples     latencies currently weighed
+     * @param thresholdMs the configured percentile of those latencies
+     */
+    public record ModelLatency(String model, boolean firstToken, long samples, long thresholdMs) {
+
+    }
+
+    /**
+     * Snapshot of request hedging.
+     *
+     * @param enabled        whether hedging is on
+     * @param requests       chat requests sent through the hedger
+     * @param hedged         requests that were overdue and sent a second time
+     * @param hedgeWins      hedges that answered first
+     * @param latencySavedMs estimated time the winning hedges saved, from the latencies of earlier requests that were as slow
+     * @param models         every model's thresholds
+     */
+    public record HedgeStats(boolean enabled, long requests, long hedged, long hedgeWins, long latencySavedMs, List<ModelLatency> models) {
+
+        public double hedgeRatio() {
+            return requests == 0 ? 0 : (double) hedged / requests;
+        }
+    }
+}
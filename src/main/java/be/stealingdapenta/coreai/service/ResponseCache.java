@@ -0,0 +1,238 @@
+package be.stealingdapenta.coreai.service;
+
+import static be.stealingdapenta.coreai.config.Config.RESPONSE_CACHE_ENABLED;
+import static be.stealingdapenta.coreai.config.Config.RESPONSE_CACHE_MAX_ENTRIES;
+import static be.stealingdapenta.coreai.config.Config.RESPONSE_CACHE_TTL_SECONDS;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Singleton, opt-in cache of chat replies shared by the players of one API key.
+ * <p>
+ * An entry is keyed by the API key's {@link ApiKeyHash}, the model, the normalized prompt and a hash of the exact conversation context before it, so a reply is only reused where it would have been asked in the same situation. Identical requests that arrive while the first
+ * one is still running share its upstream call. Entries are evicted least-recently-used beyond {@code max-entries} and after {@code ttl-seconds}.
+ */
+public enum ResponseCache {
+    RESPONSE_CACHE;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, SharedCall> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder savedLatencyMs = new LongAdder();
+
+    /**
+     * Returns the cached reply for this request, joins an identical request in flight, or runs {@code upstream} and caches its reply. With the cache disabled, {@code upstream} is always run under the caller's job.
+     * <p>
+     * A shared upstream call runs under a job of its own rather than the first caller's, so one caller's cancellation only drops that caller's copy of the reply; the call itself is cancelled once every caller waiting for it has
+     * left.
+     *
+     * @param apiKey   the key the request is billed to; replies are never shared across keys
+     * @param model    the model the request is sent to
+     * @param context  the conversation before the prompt
+     * @param prompt   the player's prompt
+     * @param job      the caller's job; cancelling it cancels the caller's copy of the reply
+     * @param upstream starts the real call under the given job; only invoked on a miss, on the calling thread
+     * @return a future with the reply
+     */
+    public CompletableFuture<String> getOrCompute(String apiKey, String model, List<ChatMessage> context, String prompt, AiJob job, Function<AiJob, CompletableFuture<String>> upstream) {
+        if (!RESPONSE_CACHE_ENABLED.get()) {
+            return upstream.apply(job);
+        }
+
+        String key = key(apiKey, model, context, prompt);
+        Entry entry = lookup(key);
+        if (entry != null) {
+            hits.increment();
+            savedLatencyMs.add(entry.latencyMs());
+            return CompletableFuture.completedFuture(entry.reply());
+        }
+
+        SharedCall created = new SharedCall(job);
+        SharedCall call = inFlight.compute(key, (k, running) -> running != null && running.join() ? running : created);
+        if (call != created) {
+            coalesced.increment();
+            return call.waiter(job);
+        }
+
+        misses.increment();
+        long start = System.nanoTime();
+        CompletableFuture<String> waiter = created.waiter(job);
+        upstream.apply(created.job)
+                .whenComplete((reply, error) -> {
+                    if (error == null) {
+                        store(key, new Entry(reply, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(RESPONSE_CACHE_TTL_SECONDS.get())));
+                    }
+                    inFlight.remove(key, created);
+                    if (error == null) {
+                        created.reply.complete(reply);
+                    } else {
+                        created.reply.completeExceptionally(error);
+                    }
+                });
+        return waiter;
+    }
+
+    /**
+     * Drops every cached reply.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return a snapshot of the cache's effectiveness
+     */
+    public ResponseCacheStats stats() {
+        int size;
+        synchronized (this) {
+            size = entries.size();
+        }
+        return new ResponseCacheStats(RESPONSE_CACHE_ENABLED.get(), size, hits.sum(), coalesced.sum(), misses.sum(), savedLatencyMs.sum());
+    }
+
+    private synchronized Entry lookup(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt() < System.currentTimeMillis()) {
+            entries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    private synchronized void store(String key, Entry entry) {
+        entries.put(key, entry);
+        int maxEntries = RESPONSE_CACHE_MAX_ENTRIES.get();
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet()
+                                                           .iterator();
+        while (entries.size() > maxEntries && eldest.hasNext()) {
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Hashes the API key's hash, the model, the normalized prompt and the exact context into one key.
+     */
+    private static String key(String apiKey, String model, List<ChatMessage> context, String prompt) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            update(digest, ApiKeyHash.of(apiKey));
+            update(digest, model);
+            update(digest, normalize(prompt));
+            for (ChatMessage message : context) {
+                update(digest, message.role());
+                update(digest, message.content());
+            }
+            return HexFormat.of()
+                            .formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0); // separator, so "ab"+"c" differs from "a"+"bc"
+    }
+
+    /**
+     * Ignores case, surrounding and repeated whitespace, and trailing punctuation.
+     */
+    private static String normalize(String prompt) {
+        String normalized = prompt.strip()
+                                  .toLowerCase(Locale.ROOT)
+                                  .replaceAll("\\s+", " ");
+        int end = normalized.length();
+        while (end > 0 && ".?!".indexOf(normalized.charAt(end - 1)) >= 0) {
+            end--;
+        }
+        return normalized.substring(0, end)
+                         .strip();
+    }
+
+    /**
+     * Snapshot of the response cache.
+     *
+     * @param enabled        whether the cache is switched on
+     * @param entries        replies currently cached
+     * @param hits           requests answered from the cache
+     * @param coalesced      requests that shared an identical request in flight
+     * @param misses         requests that went upstream
+     * @param savedLatencyMs total upstream latency that cache hits avoided
+     */
+    public record ResponseCacheStats(boolean enabled, int entries, long hits, long coalesced, long misses, long savedLatencyMs) {
+
+        public double hitRatio() {
+            long total = hits + coalesced + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+    }
+
+    private record Entry(String reply, long latencyMs, long expiresAt) {
+
+    }
+
+    /**
+     * An upstream call shared by identical requests, with a count of the callers still waiting for it.
+     */
+    private static final class SharedCall {
+
+        private final AiJob job;
+        private final CompletableFuture<String> reply = new CompletableFuture<>();
+        private int waiters = 1; // guarded by this; stays 0 once the last waiter left
+
+        private SharedCall(AiJob first) {
+            job = new AiJob(first.getOwner(), "shared chat reply", first.getWeight());
+            job.onQueuePosition(first::queuePosition);
+        }
+
+        /**
+         * @return whether another caller may still wait for the call
+         */
+        private synchronized boolean join() {
+            if (waiters == 0) {
+                return false;
+            }
+            waiters++;
+            return true;
+        }
+
+        /**
+         * @return the caller's own copy of the reply, cancelled with the caller's job
+         */
+        private CompletableFuture<String> waiter(AiJob caller) {
+            CompletableFuture<String> copy = reply.copy();
+            copy.whenComplete((value, error) -> {
+                if (copy.isCancelled()) {
+                    leave();
+                }
+            });
+            return caller.bind(copy);
+        }
+
+        private void leave() {
+            boolean last;
+            synchronized (this) {
+                last = --waiters == 0;
+            }
+            if (last && !reply.isDone()) {
+                job.cancel();
+            }
+        }
+    }
+}
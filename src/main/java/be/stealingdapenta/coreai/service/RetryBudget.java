@@ -0,0 +1,62 @@
+package be.stealingdapenta.coreai.service;
+
+import static be.stealingdapenta.coreai.config.Config.RETRY_BUDGET_PERCENT;
+import static be.stealingdapenta.coreai.config.Config.RETRY_BUDGET_RESERVE;
+
+/**
+ * Caps the retries of one API endpoint to a share of its requests, so retries can't multiply the load on an endpoint that is already failing.
+ * <p>
+ * Every request adds {@code budget-percent / 100} of a retry to the budget and every retry takes a whole one. The budget holds at most {@code budget-reserve} retries, which is also what it starts with: a few retries are always
+ * possible, but during an outage the retries settle at the configured share of the requests.
+ */
+public class RetryBudget {
+
+    private final String name;
+    private double balance;
+    private long retries;
+    private long refused;
+
+    /**
+     * @param name the endpoint's name, for stats
+     */
+    public RetryBudget(String name) {
+        this.name = name;
+        this.balance = Math.max(0, RETRY_BUDGET_RESERVE.get());
+    }
+
+    /**
+     * Credits the budget for a request's first attempt.
+     */
+    public synchronized void deposit() {
+        balance = Math.min(Math.max(0, RETRY_BUDGET_RESERVE.get()), balance + RETRY_BUDGET_PERCENT.get() / 100d);
+    }
+
+    /**
+     * @return whether a retry may be sent; if so, it has been paid for
+     */
+    public synchronized boolean tryWithdraw() {
+        if (balance < 1) {
+            refused++;
+            return false;
+        }
+        balance--;
+        retries++;
+        return true;
+    }
+
+    public synchronized BudgetStats stats() {
+        return new BudgetStats(name, retries, refused, balance);
+    }
+
+    /**
+     * Snapshot of one endpoint's retry budget.
+     *
+     * @param name    the endpoint's name
+     * @param retries retries sent
+     * @param refused retries the budget did not allow
+     * @param balance retries currently available
+     */
+    public record BudgetStats(String name, long retries, long refused, double balance) {
+
+    }
+}
@@ -0,0 +1,508 @@
+package be.stealingdapenta.coreai.service;
+
+import static be.stealingdapenta.coreai.CoreAI.CORE_AI_LOGGER;
+import static be.stealingdapenta.coreai.config.Config.EMBEDDING_MODEL;
+import static be.stealingdapenta.coreai.config.Config.SEMANTIC_CACHE_ENABLED;
+import static be.stealingdapenta.coreai.config.Config.SEMANTIC_CACHE_MAX_MEMORY_MB;
+import static be.stealingdapenta.coreai.config.Config.SEMANTIC_CACHE_RACE_UPSTREAM;
+import static be.stealingdapenta.coreai.config.Config.SEMANTIC_CACHE_SEARCH_EF;
+import static be.stealingdapenta.coreai.config.Config.SEMANTIC_CACHE_THRESHOLD;
+import static be.stealingdapenta.coreai.manager.ExecutorManager.EXECUTOR_MANAGER;
+import static be.stealingdapenta.coreai.service.OpenAIApi.OPEN_AI_API;
+import static be.stealingdapenta.coreai.service.UsageLedger.USAGE_LEDGER;
+
+import be.stealingdapenta.coreai.CoreAI;
+import be.stealingdapenta.coreai.util.HnswIndex;
+import be.stealingdapenta.coreai.util.HnswIndex.Candidate;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+/**
+ * Singleton, opt-in cache that reuses a chat reply for a differently worded prompt with the same meaning.
+ * <p>
+ * Prompts are embedded through {@link OpenAIApi#embedAsync(String, String, java.util.function.Consumer)} before the chat call, and kept in an in-process {@link HnswIndex}. A new prompt whose nearest cached prompt for the same model is at least {@code similarity-threshold} similar gets that
+ * reply. Only prompts without earlier conversation are considered, since the meaning of a follow-up depends on what came before it.
+ * <p>
+ * Memory is capped at {@code max-memory-mb}: beyond it, the least recently used quarter of the entries is removed and the index is rebuilt in the background. The cache is saved to {@value #FILE_NAME} on shutdown and loaded on startup.
+ */
+public enum SemanticCache {
+    SEMANTIC_CACHE;
+
+    private static final String FILE_NAME = "semantic_cache.bin";
+    private static final int MAGIC = 0x43414953; // "CAIS"
+    private static final int VERSION = 3; // 2: scopes hash the system prompt with SHA-256; 3: and the API key
+    private static final int MAX_LINKS = 16;
+    private static final int EF_CONSTRUCTION = 100;
+    private static final int CANDIDATES = 5;
+    private static final int WIDEN_FACTOR = 4;
+    private static final double EVICT_FRACTION = 0.25;
+
+    private final File file = new File(CoreAI.getInstance()
+                                             .getDataFolder(), FILE_NAME);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder embeddingFailures = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder savedLatencyMs = new LongAdder();
+
+    // Guarded by this. entries.get(node) belongs to index node `node`; null once evicted.
+    private HnswIndex index;
+    private List<Entry> entries = new ArrayList<>();
+    private List<PendingStore> storedDuringRebuild;
+    private long textBytes;
+    private long clock;
+
+    /**
+     * Returns a cached reply to a prompt with the same meaning, or the reply of {@code upstream}, which is cached. The prompt is embedded first, and {@code upstream} only runs on a miss. With {@code race-upstream}, {@code upstream}
+     * runs while the prompt is embedded instead, and a hit that arrives before the reply cancels the call. Falls through to {@code upstream} alone when the cache is disabled or the conversation has context. Replies are only shared
+     * between requests with the same API key, model and system prompt.
+     *
+     * @param apiKey   the key to embed the prompt with
+     * @param model    the chat model the reply is for
+     * @param context  the conversation before the prompt, system prompt included
+     * @param prompt   the player's prompt
+     * @param job      the job the reply belongs to
+     * @param claim    called before a hit is served; returns false when part of the upstream reply already reached the player, and otherwise keeps the rest of it from doing so
+     * @param upstream starts the real call with the job to bind it to
+     * @return a future with the reply; cancelled with the job
+     */
+    public CompletableFuture<String> getOrCompute(String apiKey, String model, List<ChatMessage> context, String prompt, AiJob job, BooleanSupplier claim, Function<AiJob, CompletableFuture<String>> upstream) {
+        if (!SEMANTIC_CACHE_ENABLED.get() || !startsConversation(context)) {
+            return upstream.apply(job);
+        }
+        String scope = scope(apiKey, model, context);
+        AiJob call = new AiJob(job.getOwner(), "semantic cache miss", job.getWeight());
+        call.onQueuePosition(job::queuePosition);
+        CompletableFuture<String> result = new CompletableFuture<>();
+        result.whenComplete((reply, error) -> {
+            if (result.isCancelled()) {
+                call.cancel();
+            }
+        });
+        long start = System.nanoTime();
+        CompletableFuture<float[]> embedding = OPEN_AI_API.embedAsync(apiKey, prompt, usage -> USAGE_LEDGER.record(job.getOwner(), EMBEDDING_MODEL.get(), usage))
+                                                          .handle((vector, error) -> {
+                                                              if (error != null) {
+                                                                  embeddingFailures.increment();
+                                                              }
+                                                              return vector;
+                                                          });
+        CompletableFuture<Entry> match = embedding.thenApply(vector -> vector == null ? null : lookup(scope, vector));
+        if (SEMANTIC_CACHE_RACE_UPSTREAM.get()) {
+            CompletableFuture<String> reply = upstream.apply(call);
+            match.thenAccept(hit -> {
+                if (hit != null && !reply.isDone() && serve(hit, claim, result, start)) {
+                    call.cancel();
+                }
+            });
+            forward(reply, result, match, embedding, scope, prompt, start);
+        } else {
+            match.thenAccept(hit -> {
+                if (result.isDone() || hit != null && serve(hit, claim, result, start)) {
+                    return;
+                }
+                forward(upstream.apply(call), result, match, embedding, scope, prompt, start);
+            })
+                 .exceptionally(error -> {
+                     result.completeExceptionally(error);
+                     return null;
+                 });
+        }
+        return job.bind(result);
+    }
+
+    /**
+     * @return whether the hit became the result
+     */
+    private boolean serve(Entry hit, BooleanSupplier claim, CompletableFuture<String> result, long start) {
+        if (!claim.getAsBoolean() || !result.complete(hit.reply)) {
+            return false;
+        }
+        hits.increment();
+        savedLatencyMs.add(Math.max(0, hit.latencyMs - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        return true;
+    }
+
+    /**
+     * Completes the result with the upstream reply, unless a hit was served already, and caches the reply when no hit was found.
+     */
+    private void forward(CompletableFuture<String> reply, CompletableFuture<String> result, CompletableFuture<Entry> match, CompletableFuture<float[]> embedding, String scope, String prompt, long start) {
+        reply.whenComplete((value, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+                return;
+            }
+            if (!result.complete(value)) {
+                return;
+            }
+            misses.increment();
+            long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            match.thenAccept(hit -> {
+                float[] vector = embedding.join();
+                if (hit == null && vector != null) {
+                    store(new PendingStore(vector, new Entry(scope, prompt, value, latencyMs)));
+                }
+            });
+        });
+    }
+
+    private static boolean startsConversation(List<ChatMessage> context) {
+        for (ChatMessage message : context) {
+            if (!ChatMessage.SYSTEM.equals(message.role())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The partition a reply may be shared in: the model and a SHA-256 hash of the {@link ApiKeyHash} the reply was paid with and the system prompt that shaped it.
+     */
+    private static String scope(String apiKey, String model, List<ChatMessage> context) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(ApiKeyHash.of(apiKey)
+                                    .getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            for (ChatMessage message : context) {
+                digest.update(message.content()
+                                     .getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            return model + '#' + HexFormat.of()
+                                          .formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Finds the nearest entry in the scope that is similar enough. While every candidate found is similar enough but belongs to another scope, the search is widened, so other scopes can't crowd a match out.
+     */
+    private synchronized Entry lookup(String scope, float[] vector) {
+        if (index == null || index.dimensions() != vector.length) {
+            return null;
+        }
+        double threshold = SEMANTIC_CACHE_THRESHOLD.get();
+        for (int k = CANDIDATES; ; k *= WIDEN_FACTOR) {
+            List<Candidate> candidates = index.search(vector, k, SEMANTIC_CACHE_SEARCH_EF.get());
+            for (Candidate candidate : candidates) {
+                if (candidate.similarity() < threshold) {
+                    return null;
+                }
+                Entry entry = entries.get(candidate.node());
+                if (entry != null && entry.model.equals(scope)) {
+                    entry.lastUsed = ++clock;
+                    return entry;
+                }
+            }
+            if (candidates.size() < k) {
+                return null; // every live entry was searched
+            }
+        }
+    }
+
+    private synchronized void store(PendingStore pending) {
+        if (index == null || index.dimensions() != pending.vector().length) {
+            // First entry, or the embedding model changed: vectors of different models can't be compared
+            index = new HnswIndex(pending.vector().length, MAX_LINKS, EF_CONSTRUCTION);
+            entries = new ArrayList<>();
+            textBytes = 0;
+        }
+        pending.entry().lastUsed = ++clock;
+        insert(pending.vector(), pending.entry());
+        if (storedDuringRebuild != null) {
+            storedDuringRebuild.add(pending);
+        }
+        if (liveBytes() > maxBytes()) {
+            evictLeastRecentlyUsed();
+        }
+    }
+
+    private void insert(float[] vector, Entry entry) {
+        index.add(vector);
+        entries.add(entry);
+        textBytes += entry.textBytes();
+    }
+
+    /**
+     * Removes the least recently used entries from lookups right away, and frees their memory by rebuilding the index from the survivors on the CPU executor. While a rebuild or load runs, entries are still removed, and the next
+     * rebuild frees them.
+     */
+    private void evictLeastRecentlyUsed() {
+        List<Integer> live = new ArrayList<>();
+        for (int node = 0; node < entries.size(); node++) {
+            if (entries.get(node) != null) {
+                live.add(node);
+            }
+        }
+        if (live.isEmpty()) {
+            return;
+        }
+        live.sort(Comparator.comparingLong(node -> entries.get(node).lastUsed));
+        int toEvict = Math.max(1, (int) (live.size() * EVICT_FRACTION));
+        for (int i = 0; i < toEvict; i++) {
+            int node = live.get(i);
+            Entry entry = entries.get(node);
+            entry.evicted = true; // also drops it from a rebuild in progress
+            textBytes -= entry.textBytes();
+            entries.set(node, null);
+            index.remove(node);
+        }
+        evictions.add(toEvict);
+        if (storedDuringRebuild != null) {
+            return;
+        }
+
+        List<PendingStore> survivors = new ArrayList<>();
+        for (int i = toEvict; i < live.size(); i++) {
+            int node = live.get(i);
+            survivors.add(new PendingStore(index.vector(node), entries.get(node)));
+        }
+        storedDuringRebuild = new ArrayList<>();
+        int dimensions = index.dimensions();
+        EXECUTOR_MANAGER.cpu()
+                        .execute(() -> {
+                            HnswIndex rebuilt = new HnswIndex(dimensions, MAX_LINKS, EF_CONSTRUCTION);
+                            survivors.forEach(survivor -> rebuilt.add(survivor.vector()));
+                            install(rebuilt, survivors);
+                        });
+    }
+
+    /**
+     * Swaps a rebuilt index in, adding whatever was stored while it was being built and leaving out whatever was evicted meanwhile.
+     */
+    private synchronized void install(HnswIndex rebuilt, List<PendingStore> contents) {
+        List<PendingStore> latecomers = storedDuringRebuild == null ? List.of() : storedDuringRebuild;
+        storedDuringRebuild = null;
+        if (index != null && index.dimensions() != rebuilt.dimensions()) {
+            return; // the embedding model changed meanwhile; the new index already replaced the old one
+        }
+        index = rebuilt;
+        entries = new ArrayList<>(contents.size() + latecomers.size());
+        textBytes = 0;
+        for (int node = 0; node < contents.size(); node++) {
+            Entry entry = contents.get(node)
+                                  .entry();
+            if (entry.evicted) {
+                entries.add(null);
+                rebuilt.remove(node);
+            } else {
+                entries.add(entry);
+                textBytes += entry.textBytes();
+            }
+        }
+        latecomers.forEach(latecomer -> {
+            if (!latecomer.entry().evicted) {
+                insert(latecomer.vector(), latecomer.entry());
+            }
+        });
+        if (liveBytes() > maxBytes()) {
+            evictLeastRecentlyUsed();
+        }
+    }
+
+    private long residentBytes() {
+        return (index == null ? 0 : index.estimatedBytes()) + textBytes;
+    }
+
+    private long liveBytes() {
+        return (index == null ? 0 : index.liveBytes()) + textBytes;
+    }
+
+    private static long maxBytes() {
+        return SEMANTIC_CACHE_MAX_MEMORY_MB.get() * 1024L * 1024L;
+    }
+
+    /**
+     * Loads the persisted cache on the I/O executor and builds its index there. Entries embedded with another model than the configured one are discarded.
+     */
+    public void load() {
+        if (!SEMANTIC_CACHE_ENABLED.get() || !file.exists()) {
+            return;
+        }
+        synchronized (this) {
+            storedDuringRebuild = new ArrayList<>(); // replies cached while loading are carried over
+        }
+        EXECUTOR_MANAGER.io()
+                        .execute(() -> {
+                            boolean installed = false;
+                            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                                if (in.readInt() != MAGIC || in.readInt() != VERSION || !EMBEDDING_MODEL.get()
+                                                                                                        .equals(in.readUTF())) {
+                                    CORE_AI_LOGGER.info("Discarding the semantic cache: it was written by another version or embedding model.");
+                                    return;
+                                }
+                                int dimensions = in.readInt();
+                                int count = in.readInt();
+                                HnswIndex loaded = new HnswIndex(dimensions, MAX_LINKS, EF_CONSTRUCTION);
+                                List<PendingStore> contents = new ArrayList<>(count);
+                                for (int i = 0; i < count; i++) {
+                                    Entry entry = new Entry(in.readUTF(), readString(in), readString(in), in.readLong());
+                                    entry.lastUsed = i;
+                                    float[] vector = new float[dimensions];
+                                    for (int d = 0; d < dimensions; d++) {
+                                        vector[d] = in.readFloat();
+                                    }
+                                    loaded.add(vector);
+                                    contents.add(new PendingStore(vector, entry));
+                                }
+                                synchronized (this) {
+                                    clock = Math.max(clock, count);
+                                    install(loaded, contents);
+                                }
+                                installed = true;
+                                CORE_AI_LOGGER.info("Loaded " + count + " semantic cache entries.");
+                            } catch (IOException e) {
+                                CORE_AI_LOGGER.warning("Failed to load the semantic cache: " + e.getMessage());
+                            } finally {
+                                if (!installed) {
+                                    synchronized (this) {
+                                        storedDuringRebuild = null;
+                                    }
+                                }
+                            }
+                        });
+    }
+
+    /**
+     * Writes the live entries to a temporary file, least recently used first so that order survives a restart, and moves it over {@value #FILE_NAME}.
+     */
+    public void save() {
+        List<PendingStore> snapshot = new ArrayList<>();
+        int dimensions;
+        synchronized (this) {
+            if (index == null) {
+                return;
+            }
+            dimensions = index.dimensions();
+            for (int node = 0; node < entries.size(); node++) {
+                Entry entry = entries.get(node);
+                if (entry != null) {
+                    snapshot.add(new PendingStore(index.vector(node), entry));
+                }
+            }
+        }
+        snapshot.sort(Comparator.comparingLong(pending -> pending.entry().lastUsed));
+
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(temp); DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(EMBEDDING_MODEL.get());
+            out.writeInt(dimensions);
+            out.writeInt(snapshot.size());
+            for (PendingStore pending : snapshot) {
+                Entry entry = pending.entry();
+                out.writeUTF(entry.model);
+                writeString(out, entry.prompt);
+                writeString(out, entry.reply);
+                out.writeLong(entry.latencyMs);
+                for (float component : pending.vector()) {
+                    out.writeFloat(component);
+                }
+            }
+            out.flush();
+            stream.getChannel()
+                  .force(false);
+        } catch (IOException e) {
+            CORE_AI_LOGGER.warning("Failed to save the semantic cache: " + e.getMessage());
+            return;
+        }
+        try {
+            // Replaced in one step, so a shutdown cut short leaves the previous file intact
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            CORE_AI_LOGGER.warning("Failed to save the semantic cache: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return a snapshot of the cache's size and effectiveness
+     */
+    public synchronized SemanticCacheStats stats() {
+        int live = (int) entries.stream()
+                                .filter(entry -> entry != null)
+                                .count();
+        return new SemanticCacheStats(SEMANTIC_CACHE_ENABLED.get(), live, index == null ? 0 : index.removedCount(), residentBytes(), hits.sum(), misses.sum(), embeddingFailures.sum(), evictions.sum(), savedLatencyMs.sum());
+    }
+
+    // writeUTF is limited to 64 KB, which a long reply can exceed
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Snapshot of the semantic cache.
+     *
+     * @param enabled           whether the cache is switched on
+     * @param entries           cached replies
+     * @param tombstones        evicted entries still occupying the index until it is rebuilt
+     * @param residentBytes     estimated memory held by vectors, links and texts
+     * @param hits              prompts answered from the cache
+     * @param misses            prompts that went upstream
+     * @param embeddingFailures prompts that could not be embedded and went upstream
+     * @param evictions         entries removed to stay under the memory cap
+     * @param savedLatencyMs    total upstream latency that cache hits avoided
+     */
+    public record SemanticCacheStats(boolean enabled, int entries, int tombstones, long residentBytes, long hits, long misses, long embeddingFailures, long evictions, long savedLatencyMs) {
+
+        public double hitRatio() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+    }
+
+    private record PendingStore(float[] vector, Entry entry) {
+
+    }
+
+    private static final class Entry {
+
+        private final String model; // the model, qualified by a hash of the system prompt if there was one
+        private final String prompt;
+        private final String reply;
+        private final long latencyMs;
+        private long lastUsed;
+        private boolean evicted;
+
+        private Entry(String model, String prompt, String reply, long latencyMs) {
+            this.model = model;
+            this.prompt = prompt;
+            this.reply = reply;
+            this.latencyMs = latencyMs;
+        }
+
+        private long textBytes() {
+            return 2L * (model.length() + prompt.length() + reply.length()) + 64;
+        }
+    }
+}
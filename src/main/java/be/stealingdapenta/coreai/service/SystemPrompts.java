@@ -0,0 +1,72 @@
+package be.stealingdapenta.coreai.service;
+
+import static be.stealingdapenta.coreai.config.Config.SYSTEM_PROMPT;
+import static be.stealingdapenta.coreai.config.Config.SYSTEM_PROMPT_WORLDS;
+import static be.stealingdapenta.coreai.service.tokenizer.TokenCounter.TOKEN_COUNTER;
+
+import be.stealingdapenta.coreai.service.codec.EncodedMessages;
+import be.stealingdapenta.coreai.service.codec.OpenAiCodec;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import okio.ByteString;
+import org.bukkit.configuration.ConfigurationSection;
+
+/**
+ * Singleton that puts the configured system prompt in front of every conversation.
+ * <p>
+ * The prompt is always the first message and is sent as the exact same bytes every time, so the provider's prompt cache can reuse it across turns and players: OpenAI caches the longest previously seen request prefix. A world's own
+ * prompt replaces the server's.
+ */
+public enum SystemPrompts {
+    SYSTEM_PROMPTS;
+
+    private final Map<String, Prefix> encoded = new ConcurrentHashMap<>();
+
+    /**
+     * @param world the world the player is in, or null
+     * @return the system prompt for that world, or an empty string if none is configured
+     */
+    public String forWorld(String world) {
+        ConfigurationSection worlds = SYSTEM_PROMPT_WORLDS.get();
+        if (world != null && worlds != null) {
+            String prompt = worlds.getString(world);
+            if (prompt != null && !prompt.isBlank()) {
+                return prompt;
+            }
+        }
+        return SYSTEM_PROMPT.get();
+    }
+
+    /**
+     * @param world   the world the player is in, or null
+     * @param model   the model the request is for, to count the prompt's tokens
+     * @param history the conversation
+     * @return the conversation with the world's system prompt in front, or unchanged if there is none
+     */
+    public EncodedMessages prepend(String world, String model, EncodedMessages history) {
+        String text = forWorld(world);
+        if (text == null || text.isBlank()) {
+            return history;
+        }
+        Prefix prefix = encoded.computeIfAbsent(text, Prefix::new);
+        return history.prepend(prefix.message(), prefix.json(), prefix.tokens(model));
+    }
+
+    /**
+     * A system prompt, its JSON encoding and its token count per model, made once per distinct prompt.
+     */
+    private record Prefix(ChatMessage message, ByteString json, Map<String, Integer> tokensByModel) {
+
+        private Prefix(String text) {
+            this(ChatMessage.system(text));
+        }
+
+        private Prefix(ChatMessage message) {
+            this(message, OpenAiCodec.encode(message), new ConcurrentHashMap<>());
+        }
+
+        private int tokens(String model) {
+            return tokensByModel.computeIfAbsent(model, id -> TOKEN_COUNTER.count(id, message));
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package be.stealingdapenta.coreai.service;
+
+import static be.stealingdapenta.coreai.CoreAI.CORE_AI_LOGGER;
+import static be.stealingdapenta.coreai.config.Config.API_KEY;
+import static be.stealingdapenta.coreai.config.Config.QUOTA_DAILY_REQUESTS;
+import static be.stealingdapenta.coreai.config.Config.QUOTA_DAILY_TOKENS;
+import static be.stealingdapenta.coreai.config.Config.USAGE_FLUSH_SECONDS;
+import static be.stealingdapenta.coreai.config.Config.USAGE_RETENTION_DAYS;
+import static be.stealingdapenta.coreai.manager.ExecutorManager.EXECUTOR_MANAGER;
+
+import be.stealingdapenta.coreai.CoreAI;
+import be.stealingdapenta.coreai.service.codec.TokenUsage;
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+/**
+ * Singleton that accounts token usage per player, per model and per day, and enforces daily quotas on the server's API key.
+ * <p>
+ * Counting is lock-free ({@link LongAdder}s behind concurrent maps), so recording a response costs no contention between players. Quotas are checked against in-memory totals before a request is sent, so a player over quota is refused
+ * without a network call. Totals are written to {@value #FILE_NAME} every {@code flush-seconds} when they changed, and on shutdown.
+ */
+public enum UsageLedger {
+    USAGE_LEDGER;
+
+    private static final String FILE_NAME = "usage.yml";
+    private static final String USAGE_KEY = "usage";
+
+    private final Map<UsageKey, Counters> ledger = new ConcurrentHashMap<>();
+    private final Map<PlayerDay, Counters> dailyTotals = new ConcurrentHashMap<>();
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private final LongAdder rejected = new LongAdder();
+    private ScheduledFuture<?> flushTask;
+
+    /**
+     * Loads the retained totals and starts the periodic flush.
+     */
+    public synchronized void start() {
+        load();
+        if (flushTask == null) {
+            long interval = Math.max(5, USAGE_FLUSH_SECONDS.get());
+            flushTask = EXECUTOR_MANAGER.scheduler()
+                                        .scheduleWithFixedDelay(() -> EXECUTOR_MANAGER.io()
+                                                                                      .execute(this::flush), interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Adds a response's usage to the player's totals.
+     *
+     * @param player the player the request was made for
+     * @param model  the model that answered
+     * @param usage  the response's usage; ignored if absent
+     */
+    public void record(UUID player, String model, TokenUsage usage) {
+        if (usage.isPresent()) {
+            add(player, model, usage);
+        }
+    }
+
+    /**
+     * Adds a request billed per call rather than per token, such as an image generation, to the player's request count.
+     *
+     * @param player the player the request was made for
+     * @param model  the model or endpoint that answered
+     */
+    public void recordRequest(UUID player, String model) {
+        add(player, model, TokenUsage.NONE);
+    }
+
+    private void add(UUID player, String model, TokenUsage usage) {
+        if (player == null) {
+            return;
+        }
+        long day = LocalDate.now()
+                            .toEpochDay();
+        ledger.computeIfAbsent(new UsageKey(day, player, model), key -> new Counters())
+              .add(usage);
+        dailyTotals.computeIfAbsent(new PlayerDay(player, day), key -> new Counters())
+                   .add(usage);
+        dirty.set(true);
+    }
+
+    /**
+     * Checks the player's usage of today against the quotas. Only requests on the server's key are limited; players paying with their own key are not.
+     *
+     * @param player the player about to send a request
+     * @param apiKey the key the request would use
+     * @return whether the request must be refused
+     */
+    public boolean isOverQuota(UUID player, String apiKey) {
+        int tokenQuota = QUOTA_DAILY_TOKENS.get();
+        int requestQuota = QUOTA_DAILY_REQUESTS.get();
+        if (tokenQuota <= 0 && requestQuota <= 0 || !apiKey.equals(API_KEY.get())) {
+            return false;
+        }
+        Counters today = dailyTotals.get(new PlayerDay(player, LocalDate.now()
+                                                                        .toEpochDay()));
+        if (today == null) {
+            return false;
+        }
+        boolean over = tokenQuota > 0 && today.totalTokens() >= tokenQuota || requestQuota > 0 && today.requests.sum() >= requestQuota;
+        if (over) {
+            rejected.increment();
+        }
+        return over;
+    }
+
+    /**
+     * Writes the totals if they changed since the last flush, dropping days past the retention period. Runs on the I/O executor.
+     */
+    public synchronized void flush() {
+        long oldest = LocalDate.now()
+                               .toEpochDay() - Math.max(1, USAGE_RETENTION_DAYS.get());
+        if (ledger.keySet()
+                  .removeIf(key -> key.day() < oldest)) {
+            dirty.set(true);
+        }
+        dailyTotals.keySet()
+                   .removeIf(key -> key.day() < oldest);
+        if (!dirty.getAndSet(false)) {
+            return;
+        }
+
+        List<Map<String, Object>> serialized = new ArrayList<>(ledger.size());
+        ledger.forEach((key, counters) -> {
+            Map<String, Object> raw = new LinkedHashMap<>();
+            raw.put("day", LocalDate.ofEpochDay(key.day())
+                                    .toString());
+            raw.put("player", key.player()
+                                 .toString());
+            raw.put("model", key.model());
+            raw.put("requests", counters.requests.sum());
+            raw.put("prompt-tokens", counters.promptTokens.sum());
+            raw.put("completion-tokens", counters.completionTokens.sum());
+            raw.put("cached-tokens", counters.cachedTokens.sum());
+            serialized.add(raw);
+        });
+
+        // A list of maps rather than sections, since model IDs contain dots
+        FileConfiguration config = new YamlConfiguration();
+        config.set(USAGE_KEY, serialized);
+        try {
+            config.save(file());
+        } catch (IOException e) {
+            dirty.set(true);
+            CORE_AI_LOGGER.warning("Failed to save token usage: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops the periodic flush and writes the totals. Called when the plugin disables.
+     */
+    public synchronized void shutdown() {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        flush();
+    }
+
+    private void load() {
+        File file = file();
+        if (!file.exists()) {
+            return;
+        }
+        ledger.clear();
+        dailyTotals.clear();
+        FileConfiguration config = YamlConfiguration.loadConfiguration(file);
+        for (Map<?, ?> raw : config.getMapList(USAGE_KEY)) {
+            try {
+                long day = LocalDate.parse((String) raw.get("day"))
+                                    .toEpochDay();
+                UUID player = UUID.fromString((String) raw.get("player"));
+                TokenUsage stored = new TokenUsage(((Number) raw.get("prompt-tokens")).intValue(), ((Number) raw.get("completion-tokens")).intValue(), 0, ((Number) raw.get("cached-tokens")).intValue());
+                long requests = ((Number) raw.get("requests")).longValue();
+                ledger.computeIfAbsent(new UsageKey(day, player, (String) raw.get("model")), key -> new Counters())
+                      .add(stored, requests);
+                dailyTotals.computeIfAbsent(new PlayerDay(player, day), key -> new Counters())
+                           .add(stored, requests);
+            } catch (RuntimeException ignore) {
+                // a malformed entry; skip it
+            }
+        }
+    }
+
+    private static File file() {
+        return new File(CoreAI.getInstance()
+                              .getDataFolder(), FILE_NAME);
+    }
+
+    /**
+     * @param limit how many players to list
+     * @return today's heaviest players, most tokens first
+     */
+    public List<PlayerUsage> topToday(int limit) {
+        long day = LocalDate.now()
+                            .toEpochDay();
+        List<PlayerUsage> players = new ArrayList<>();
+        dailyTotals.forEach((key, counters) -> {
+            if (key.day() == day) {
+                players.add(new PlayerUsage(key.player(), counters.requests.sum(), counters.totalTokens(), counters.cachedTokens.sum()));
+            }
+        });
+        players.sort(Comparator.comparingLong(PlayerUsage::tokens)
+                               .reversed());
+        return players.size() > limit ? players.subList(0, limit) : players;
+    }
+
+    /**
+     * @return a snapshot of today's totals over all players
+     */
+    public UsageStats stats() {
+        long day = LocalDate.now()
+                            .toEpochDay();
+        long requests = 0;
+        long tokens = 0;
+        long cached = 0;
+        int players = 0;
+        for (Map.Entry<PlayerDay, Counters> entry : dailyTotals.entrySet()) {
+            if (entry.getKey()
+                     .day() == day) {
+                Counters counters = entry.getValue();
+                requests += counters.requests.sum();
+                tokens += counters.totalTokens();
+                cached += counters.cachedTokens.sum();
+                players++;
+            }
+        }
+        return new UsageStats(players, requests, tokens, cached, rejected.sum(), QUOTA_DAILY_TOKENS.get(), QUOTA_DAILY_REQUESTS.get());
+    }
+
+    private record UsageKey(long day, UUID player, String model) {
+
+    }
+
+    private record PlayerDay(UUID player, long day) {
+
+    }
+
+    private static final class Counters {
+
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder promptTokens = new LongAdder();
+        private final LongAdder completionTokens = new LongAdder();
+        private final LongAdder cachedTokens = new LongAdder();
+
+        private void add(TokenUsage usage) {
+            add(usage, 1);
+        }
+
+        private void add(TokenUsage usage, long requestCount) {
+            requests.add(requestCount);
+            promptTokens.add(usage.promptTokens());
+            completionTokens.add(usage.completionTokens());
+            cachedTokens.add(usage.cachedTokens());
+        }
+
+        private long totalTokens() {
+            return promptTokens.sum() + completionTokens.sum();
+        }
+    }
+
+    /**
+     * One player's usage of today.
+     *
+     * @param player       the player's UUID
+     * @param requests     requests answered
+     * @param tokens       prompt and completion tokens
+     * @param cachedTokens prompt tokens served from the provider's cache
+     */
+    public record PlayerUsage(UUID player, long requests, long tokens, long cachedTokens) {
+
+    }
+
+    /**
+     * Snapshot of today's usage.
+     *
+     * @param players       players who made requests today
+     * @param requests      requests answered today
+     * @param tokens        prompt and completion tokens used today
+     * @param cachedTokens  prompt tokens served from the provider's cache today
+     * @param rejected      requests refused by a quota since startup
+     * @param tokenQuota    the daily token quota per player, or 0
+     * @param requestQuota  the daily request quota per player, or 0
+     */
+    public record UsageStats(int players, long requests, long tokens, long cachedTokens, long rejected, int tokenQuota, int requestQuota) {
+
+    }
+}
@@ -0,0 +1,11 @@
+package be.stealingdapenta.coreai.service.codec;
+
+/**
+ * The {@code error} object of a failed request.
+ *
+ * @param code    the machine-readable error code, e.g. "invalid_api_key"; may be null
+ * @param message the human-readable description
+ */
+public record ApiError(String code, String message) {
+
+}
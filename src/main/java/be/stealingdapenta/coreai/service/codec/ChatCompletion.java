@@ -0,0 +1,11 @@
+package be.stealingdapenta.coreai.service.codec;
+
+/**
+ * The parts of a chat completion response CoreAI uses.
+ *
+ * @param content the text of {@code choices[0].message.content}, or of a stream chunk's {@code choices[0].delta.content}; may be null
+ * @param usage   the token usage, or {@link TokenUsage#NONE} if the response carried none
+ */
+public record ChatCompletion(String content, TokenUsage usage) {
+
+}
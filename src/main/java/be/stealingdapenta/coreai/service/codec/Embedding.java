@@ -0,0 +1,11 @@
+package be.stealingdapenta.coreai.service.codec;
+
+/**
+ * The parts of an embeddings response CoreAI uses.
+ *
+ * @param vector the vector of {@code data[0].embedding}, or null if absent
+ * @param usage  the token usage, or {@link TokenUsage#NONE} if the response carried none
+ */
+public record Embedding(float[] vector, TokenUsage usage) {
+
+}
@@ -0,0 +1,73 @@
+package be.stealingdapenta.coreai.service.codec;
+
+import be.stealingdapenta.coreai.service.ChatMessage;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+import okio.ByteString;
+
+/**
+ * An immutable list of chat messages that carries each message's JSON encoding and the conversation's token count, so a request can be assembled from cached bytes instead of being serialized again.
+ * <p>
+ * Behaves as a plain {@code List<ChatMessage>} everywhere else.
+ */
+public final class EncodedMessages extends AbstractList<ChatMessage> implements RandomAccess {
+
+    private final ChatMessage[] messages;
+    private final ByteString[] segments;
+    private final int tokens;
+
+    /**
+     * @param messages the messages, oldest first; not copied
+     * @param segments each message's encoding from {@link OpenAiCodec#encode(ChatMessage)}; not copied
+     * @param tokens   the tokens the messages occupy in a request
+     */
+    public EncodedMessages(ChatMessage[] messages, ByteString[] segments, int tokens) {
+        if (messages.length != segments.length) {
+            throw new IllegalArgumentException("one segment per message expected");
+        }
+        this.messages = messages;
+        this.segments = segments;
+        this.tokens = tokens;
+    }
+
+    @Override
+    public ChatMessage get(int index) {
+        return messages[index];
+    }
+
+    @Override
+    public int size() {
+        return messages.length;
+    }
+
+    /**
+     * @param index a message index
+     * @return the message's JSON object, UTF-8 encoded
+     */
+    public ByteString segment(int index) {
+        return segments[index];
+    }
+
+    /**
+     * @param message the message to put first
+     * @param segment its encoding
+     * @param tokens  the tokens it occupies in a request
+     * @return a new list with the message in front; the other messages and segments are shared, not re-encoded
+     */
+    public EncodedMessages prepend(ChatMessage message, ByteString segment, int tokens) {
+        ChatMessage[] prefixedMessages = new ChatMessage[messages.length + 1];
+        ByteString[] prefixedSegments = new ByteString[segments.length + 1];
+        prefixedMessages[0] = message;
+        prefixedSegments[0] = segment;
+        System.arraycopy(messages, 0, prefixedMessages, 1, messages.length);
+        System.arraycopy(segments, 0, prefixedSegments, 1, segments.length);
+        return new EncodedMessages(prefixedMessages, prefixedSegments, this.tokens + tokens);
+    }
+
+    /**
+     * @return the tokens the messages occupy in a request, reply priming included
+     */
+    public int tokens() {
+        return tokens;
+    }
+}
@@ -0,0 +1,21 @@
+package be.stealingdapenta.coreai.service.codec;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A model object as returned by {@code /v1/models} and {@code /v1/models/{id}}.
+ *
+ * @param id      the model ID
+ * @param object  the object type, always "model"
+ * @param created creation time in epoch seconds
+ * @param ownedBy the owning organization
+ * @param extra   every other field of the object, by name, in response order
+ */
+public record ModelInfo(String id, String object, long created, String ownedBy, Map<String, Object> extra) {
+
+    public ModelInfo {
+        extra = extra.isEmpty() ? Map.of() : Collections.unmodifiableMap(new LinkedHashMap<>(extra));
+    }
+}
@@ -0,0 +1,714 @@
+package be.stealingdapenta.coreai.service.codec;
+
+import be.stealingdapenta.coreai.service.ChatMessage;
+import be.stealingdapenta.coreai.service.OpenAiException;
+import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.JsonReader;
+import com.squareup.moshi.JsonReader.Options;
+import com.squareup.moshi.JsonWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Typed JSON codecs for the OpenAI endpoints.
+ * <p>
+ * The adapters read straight from the {@link JsonReader} token stream and only materialize the fields CoreAI uses; everything else is skipped without being turned into maps or lists. Request bodies are written directly into OkHttp's sink.
+ */
+public final class OpenAiCodec {
+
+    public static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+    public static final JsonAdapter<TokenUsage> TOKEN_USAGE = new TokenUsageAdapter();
+    public static final JsonAdapter<ChatCompletion> CHAT_COMPLETION = new ChatCompletionAdapter("message");
+    public static final JsonAdapter<ChatCompletion> CHAT_CHUNK = new ChatCompletionAdapter("delta");
+    public static final JsonAdapter<ModelInfo> MODEL_INFO = new ModelInfoAdapter();
+    public static final JsonAdapter<List<ModelInfo>> MODEL_LIST = new ModelListAdapter();
+    public static final JsonAdapter<ApiError> API_ERROR = new ApiErrorAdapter();
+    public static final JsonAdapter<String> IMAGE_URL = new ImageUrlAdapter();
+    public static final JsonAdapter<Embedding> EMBEDDING = new EmbeddingAdapter();
+
+    private static final Options ERROR_OBJECT = Options.of("error");
+    private static final Options CONTENT = Options.of("content");
+    private static final Options DATA = Options.of("data");
+    private static final Options URL = Options.of("url");
+    private static final Options B64_JSON = Options.of("b64_json");
+    private static final Options EMBEDDING_FIELD = Options.of("embedding");
+    private static final Options EMBEDDING_RESPONSE = Options.of("data", "usage");
+    private static final ByteString MESSAGES_END = ByteString.encodeUtf8("]}");
+    private static final ByteString MESSAGES_END_STREAMING = ByteString.encodeUtf8("],\"stream\":true,\"stream_options\":{\"include_usage\":true}}");
+
+    private OpenAiCodec() {
+        // Utility class
+    }
+
+    /**
+     * Reads a complete JSON document from the source with the given adapter.
+     */
+    public static <T> T read(JsonAdapter<T> adapter, BufferedSource source) throws IOException {
+        try (JsonReader reader = JsonReader.of(source)) {
+            return adapter.fromJson(reader);
+        }
+    }
+
+    /**
+     * Creates an adapter for {@code data[0].b64_json} of an image generation response. The base64 text is decoded while it is read from the source and handed to {@code decoder} as a stream, so neither the text nor the
+     * encoded image is held in memory as a whole. The adapter returns null if the response holds no image data.
+     *
+     * @param decoder turns the image's bytes into the result
+     */
+    public static <T> JsonAdapter<T> imageData(ImageDecoder<T> decoder) {
+        return new ImageDataAdapter<>(decoder);
+    }
+
+    /**
+     * Builds a chat completion request body that is serialized straight into the connection when OkHttp sends it. {@link EncodedMessages} are not serialized again: their cached segments are copied into the sink.
+     *
+     * @param model    the model ID
+     * @param messages the conversation, oldest first
+     * @param stream   whether to request server-sent events
+     */
+    public static RequestBody chatRequest(String model, List<ChatMessage> messages, boolean stream) {
+        if (messages instanceof EncodedMessages encoded) {
+            return new SegmentedChatBody(model, encoded, stream);
+        }
+        return new JsonRequestBody() {
+            @Override
+            void write(JsonWriter writer) throws IOException {
+                writer.beginObject();
+                writer.name("model")
+                      .value(model);
+                writer.name("messages")
+                      .beginArray();
+                for (ChatMessage message : messages) {
+                    writeMessage(writer, message);
+                }
+                writer.endArray();
+                if (stream) {
+                    writer.name("stream")
+                          .value(true);
+                    writer.name("stream_options")
+                          .beginObject()
+                          .name("include_usage")
+                          .value(true)
+                          .endObject();
+                }
+                writer.endObject();
+            }
+        };
+    }
+
+    /**
+     * Encodes one message as its JSON object, to be cached and reused by every later request of the conversation.
+     *
+     * @param message a chat message
+     * @return {@code {"role":...,"content":...}}, UTF-8 encoded
+     */
+    public static ByteString encode(ChatMessage message) {
+        Buffer buffer = new Buffer();
+        try (JsonWriter writer = JsonWriter.of(buffer)) {
+            writeMessage(writer, message);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // a Buffer does not fail
+        }
+        return buffer.readByteString();
+    }
+
+    private static void writeMessage(JsonWriter writer, ChatMessage message) throws IOException {
+        writer.beginObject();
+        writer.name("role")
+              .value(message.role());
+        writer.name("content")
+              .value(message.content());
+        writer.endObject();
+    }
+
+    /**
+     * Builds an image generation request body.
+     *
+     * @param prompt         the image prompt
+     * @param size           the image size, e.g. "1024x1024"
+     * @param responseFormat "url" or "b64_json"
+     */
+    public static RequestBody imageRequest(String prompt, String size, String responseFormat) {
+        return new JsonRequestBody() {
+            @Override
+            void write(JsonWriter writer) throws IOException {
+                writer.beginObject();
+                writer.name("prompt")
+                      .value(prompt);
+                writer.name("n")
+                      .value(1);
+                writer.name("size")
+                      .value(size);
+                writer.name("response_format")
+                      .value(responseFormat);
+                writer.endObject();
+            }
+        };
+    }
+
+    /**
+     * Builds an embeddings request body for a single input.
+     *
+     * @param model the embedding model ID
+     * @param input the text to embed
+     */
+    public static RequestBody embeddingRequest(String model, String input) {
+        return new JsonRequestBody() {
+            @Override
+            void write(JsonWriter writer) throws IOException {
+                writer.beginObject();
+                writer.name("model")
+                      .value(model);
+                writer.name("input")
+                      .value(input);
+                writer.endObject();
+            }
+        };
+    }
+
+    private static String nextNullableString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonReader.Token.NULL) {
+            return reader.nextNull();
+        }
+        return reader.nextString();
+    }
+
+    private static void skipField(JsonReader reader) throws IOException {
+        reader.skipName();
+        reader.skipValue();
+    }
+
+    /**
+     * A request body that streams its JSON into the sink without building an intermediate String.
+     */
+    private abstract static class JsonRequestBody extends RequestBody {
+
+        abstract void write(JsonWriter writer) throws IOException;
+
+        @Override
+        public MediaType contentType() {
+            return JSON;
+        }
+
+        @Override
+        public void writeTo(@NotNull BufferedSink sink) throws IOException {
+            JsonWriter writer = JsonWriter.of(sink);
+            write(writer);
+            writer.flush(); // the sink is owned and closed by OkHttp
+        }
+    }
+
+    /**
+     * A chat request body assembled from an encoded header, the messages' cached segments and a constant trailer. Its length is known up front, so it is sent with a {@code Content-Length} instead of chunked.
+     */
+    private static final class SegmentedChatBody extends RequestBody {
+
+        private final ByteString head;
+        private final EncodedMessages messages;
+        private final ByteString tail;
+        private final long length;
+
+        private SegmentedChatBody(String model, EncodedMessages messages, boolean stream) {
+            Buffer buffer = new Buffer();
+            try {
+                JsonWriter writer = JsonWriter.of(buffer);
+                writer.beginObject();
+                writer.name("model")
+                      .value(model);
+                writer.name("messages")
+                      .beginArray();
+                writer.flush(); // left open; the segments and the trailer complete the document
+            } catch (IOException e) {
+                throw new IllegalStateException(e); // a Buffer does not fail
+            }
+            this.head = buffer.readByteString();
+            this.messages = messages;
+            this.tail = stream ? MESSAGES_END_STREAMING : MESSAGES_END;
+            long total = head.size() + tail.size() + Math.max(0, messages.size() - 1);
+            for (int i = 0; i < messages.size(); i++) {
+                total += messages.segment(i)
+                                 .size();
+            }
+            this.length = total;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return JSON;
+        }
+
+        @Override
+        public long contentLength() {
+            return length;
+        }
+
+        @Override
+        public void writeTo(@NotNull BufferedSink sink) throws IOException {
+            sink.write(head);
+            for (int i = 0; i < messages.size(); i++) {
+                if (i > 0) {
+                    sink.writeByte(',');
+                }
+                sink.write(messages.segment(i));
+            }
+            sink.write(tail);
+        }
+    }
+
+    /**
+     * Base for the read-only adapters; CoreAI never serializes responses.
+     */
+    private abstract static class ReadOnlyAdapter<T> extends JsonAdapter<T> {
+
+        @Override
+        public void toJson(@NotNull JsonWriter writer, T value) {
+            throw new UnsupportedOperationException(getClass().getSimpleName() + " only reads JSON");
+        }
+    }
+
+    /**
+     * Reads {@code {"prompt_tokens", "completion_tokens", "total_tokens", "prompt_tokens_details": {"cached_tokens"}}}.
+     */
+    private static final class TokenUsageAdapter extends ReadOnlyAdapter<TokenUsage> {
+
+        private static final Options FIELDS = Options.of("prompt_tokens", "completion_tokens", "total_tokens", "prompt_tokens_details");
+        private static final Options DETAILS = Options.of("cached_tokens");
+
+        @Override
+        public TokenUsage fromJson(@NotNull JsonReader reader) throws IOException {
+            if (reader.peek() == JsonReader.Token.NULL) {
+                reader.nextNull();
+                return TokenUsage.NONE;
+            }
+            int prompt = 0;
+            int completion = 0;
+            int total = 0;
+            int cached = 0;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.selectName(FIELDS)) {
+                    case 0 -> prompt = reader.nextInt();
+                    case 1 -> completion = reader.nextInt();
+                    case 2 -> total = reader.nextInt();
+                    case 3 -> cached = readCachedTokens(reader);
+                    default -> skipField(reader);
+                }
+            }
+            reader.endObject();
+            return new TokenUsage(prompt, completion, total, cached);
+        }
+
+        private int readCachedTokens(JsonReader reader) throws IOException {
+            if (reader.peek() != JsonReader.Token.BEGIN_OBJECT) {
+                reader.skipValue();
+                return 0;
+            }
+            int cached = 0;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.selectName(DETAILS) != 0) {
+                    skipField(reader);
+                } else if (reader.peek() == JsonReader.Token.NUMBER) {
+                    cached = reader.nextInt();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return cached;
+        }
+    }
+
+    /**
+     * Reads {@code choices[0].<message|delta>.content} and {@code usage} of a completion or stream chunk. An {@code error} object in the document is thrown as {@link OpenAiException}.
+     */
+    private static final class ChatCompletionAdapter extends ReadOnlyAdapter<ChatCompletion> {
+
+        private static final Options FIELDS = Options.of("choices", "usage", "error");
+
+        private final Options choiceFields;
+
+        private ChatCompletionAdapter(String messageField) {
+            this.choiceFields = Options.of(messageField);
+        }
+
+        @Override
+        public ChatCompletion fromJson(@NotNull JsonReader reader) throws IOException {
+            String content = null;
+            TokenUsage usage = TokenUsage.NONE;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.selectName(FIELDS)) {
+                    case 0 -> content = readFirstChoiceContent(reader);
+                    case 1 -> usage = TOKEN_USAGE.fromJson(reader);
+                    case 2 -> {
+                        if (reader.peek() == JsonReader.Token.NULL) {
+                            reader.nextNull();
+                        } else {
+                            ApiError error = ApiErrorAdapter.readErrorObject(reader);
+                            throw new OpenAiException(200, error.code() != null ? error.code() : "unknown_error", error.message());
+                        }
+                    }
+                    default -> skipField(reader);
+                }
+            }
+            reader.endObject();
+            return new ChatCompletion(content, usage);
+        }
+
+        private String readFirstChoiceContent(JsonReader reader) throws IOException {
+            String content = null;
+            reader.beginArray();
+            if (reader.hasNext()) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (reader.selectName(choiceFields) != 0) {
+                        skipField(reader);
+                    } else if (reader.peek() != JsonReader.Token.BEGIN_OBJECT) {
+                        reader.skipValue();
+                    } else {
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            if (reader.selectName(CONTENT) == 0) {
+                                content = nextNullableString(reader);
+                            } else {
+                                skipField(reader);
+                            }
+                        }
+                        reader.endObject();
+                    }
+                }
+                reader.endObject();
+            }
+            while (reader.hasNext()) {
+                reader.skipValue(); // further choices are never requested
+            }
+            reader.endArray();
+            return content;
+        }
+    }
+
+    /**
+     * Reads a single model object. Fields beyond the four known ones are kept as plain JSON values, for {@code /modelinfo}.
+     */
+    private static final class ModelInfoAdapter extends ReadOnlyAdapter<ModelInfo> {
+
+        private static final Options FIELDS = Options.of("id", "object", "created", "owned_by");
+
+        @Override
+        public ModelInfo fromJson(@NotNull JsonReader reader) throws IOException {
+            String id = null;
+            String object = null;
+            long created = 0;
+            String ownedBy = null;
+            Map<String, Object> extra = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.selectName(FIELDS)) {
+                    case 0 -> id = reader.nextString();
+                    case 1 -> object = nextNullableString(reader);
+                    case 2 -> created = reader.nextLong();
+                    case 3 -> ownedBy = nextNullableString(reader);
+                    default -> {
+                        if (extra == null) {
+                            extra = new LinkedHashMap<>();
+                        }
+                        extra.put(reader.nextName(), reader.readJsonValue());
+                    }
+                }
+            }
+            reader.endObject();
+            return new ModelInfo(id, object, created, ownedBy, extra == null ? Map.of() : extra);
+        }
+    }
+
+    /**
+     * Reads the {@code data} array of a model list.
+     */
+    private static final class ModelListAdapter extends ReadOnlyAdapter<List<ModelInfo>> {
+
+        @Override
+        public List<ModelInfo> fromJson(@NotNull JsonReader reader) throws IOException {
+            List<ModelInfo> models = new ArrayList<>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.selectName(DATA) == 0) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        models.add(MODEL_INFO.fromJson(reader));
+                    }
+                    reader.endArray();
+                } else {
+                    skipField(reader);
+                }
+            }
+            reader.endObject();
+            return models;
+        }
+    }
+
+    /**
+     * Reads {@code error.code} and {@code error.message} of an error document; returns null if the document has no error object.
+     */
+    private static final class ApiErrorAdapter extends ReadOnlyAdapter<ApiError> {
+
+        private static final Options FIELDS = Options.of("code", "message");
+
+        private static ApiError readErrorObject(JsonReader reader) throws IOException {
+            String code = null;
+            String message = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.selectName(FIELDS)) {
+                    case 0 -> code = reader.peek() == JsonReader.Token.STRING ? reader.nextString() : skipToNull(reader);
+                    case 1 -> message = nextNullableString(reader);
+                    default -> skipField(reader);
+                }
+            }
+            reader.endObject();
+            return new ApiError(code, message);
+        }
+
+        private static String skipToNull(JsonReader reader) throws IOException {
+            reader.skipValue();
+            return null;
+        }
+
+        @Override
+        public ApiError fromJson(@NotNull JsonReader reader) throws IOException {
+            ApiError error = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.selectName(ERROR_OBJECT) != 0) {
+                    skipField(reader);
+                } else if (reader.peek() == JsonReader.Token.BEGIN_OBJECT) {
+                    error = readErrorObject(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return error;
+        }
+    }
+
+    /**
+     * Reads {@code data[0].url} of an image generation response; returns null if absent.
+     */
+    private static final class ImageUrlAdapter extends ReadOnlyAdapter<String> {
+
+        @Override
+        public String fromJson(@NotNull JsonReader reader) throws IOException {
+            String url = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.selectName(DATA) == 0) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        if (url != null) {
+                            reader.skipValue();
+                            continue;
+                        }
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            if (reader.selectName(URL) == 0) {
+                                url = nextNullableString(reader);
+                            } else {
+                                skipField(reader);
+                            }
+                        }
+                        reader.endObject();
+                    }
+                    reader.endArray();
+                } else {
+                    skipField(reader);
+                }
+            }
+            reader.endObject();
+            return url;
+        }
+    }
+
+    /**
+     * Reads {@code data[0].b64_json} through the decoder; returns null if absent.
+     */
+    private static final class ImageDataAdapter<T> extends ReadOnlyAdapter<T> {
+
+        private final ImageDecoder<T> decoder;
+
+        private ImageDataAdapter(ImageDecoder<T> decoder) {
+            this.decoder = decoder;
+        }
+
+        @Override
+        public T fromJson(@NotNull JsonReader reader) throws IOException {
+            T image = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.selectName(DATA) == 0) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        if (image != null) {
+                            reader.skipValue();
+                            continue;
+                        }
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            if (reader.selectName(B64_JSON) != 0) {
+                                skipField(reader);
+                            } else if (reader.peek() == JsonReader.Token.STRING) {
+                                try (BufferedSource value = reader.nextSource()) {
+                                    image = decoder.decode(Base64.getDecoder()
+                                                                .wrap(new JsonStringStream(value)));
+                                }
+                            } else {
+                                reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                    }
+                    reader.endArray();
+                } else {
+                    skipField(reader);
+                }
+            }
+            reader.endObject();
+            return image;
+        }
+    }
+
+    /**
+     * The characters of a raw JSON string value, quotes removed, as they arrive from the source. Base64 only needs the escaped slash; line breaks some encoders add are dropped.
+     */
+    private static final class JsonStringStream extends InputStream {
+
+        private static final ByteString SPECIAL = ByteString.encodeUtf8("\"\\");
+
+        private final BufferedSource source;
+        private boolean ended;
+
+        private JsonStringStream(BufferedSource source) throws IOException {
+            this.source = source;
+            if (source.readByte() != '"') {
+                throw new IOException("Expected a JSON string");
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            int read = 0;
+            while (read == 0 && !ended) {
+                if (!source.request(1)) {
+                    throw new EOFException("Unterminated JSON string");
+                }
+                Buffer buffer = source.getBuffer();
+                long special = buffer.indexOfElement(SPECIAL);
+                long plain = special == -1 ? buffer.size() : special;
+                if (plain > 0) {
+                    read = buffer.read(bytes, offset, (int) Math.min(length, plain));
+                } else if (buffer.readByte() == '"') {
+                    ended = true;
+                } else {
+                    byte escaped = source.readByte();
+                    if (escaped == '/') {
+                        bytes[offset] = '/';
+                        read = 1;
+                    } else if (escaped != 'n' && escaped != 'r') {
+                        throw new IOException("Unexpected escape in base64 data: \\" + (char) escaped);
+                    }
+                }
+            }
+            return read == 0 ? -1 : read;
+        }
+    }
+
+    /**
+     * Turns the bytes of an encoded image into a result, for {@link #imageData(ImageDecoder)}.
+     */
+    @FunctionalInterface
+    public interface ImageDecoder<T> {
+
+        T decode(InputStream data) throws IOException;
+    }
+
+    /**
+     * Reads {@code data[0].embedding} straight into a float array, without boxing each component, and {@code usage}.
+     */
+    private static final class EmbeddingAdapter extends ReadOnlyAdapter<Embedding> {
+
+        private static final int INITIAL_CAPACITY = 1536;
+
+        @Override
+        public Embedding fromJson(@NotNull JsonReader reader) throws IOException {
+            float[] embedding = null;
+            TokenUsage usage = TokenUsage.NONE;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                int field = reader.selectName(EMBEDDING_RESPONSE);
+                if (field == 1) {
+                    usage = TOKEN_USAGE.fromJson(reader);
+                } else if (field == 0) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        if (embedding != null) {
+                            reader.skipValue();
+                            continue;
+                        }
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            if (reader.selectName(EMBEDDING_FIELD) == 0) {
+                                embedding = readVector(reader);
+                            } else {
+                                skipField(reader);
+                            }
+                        }
+                        reader.endObject();
+                    }
+                    reader.endArray();
+                } else {
+                    skipField(reader);
+                }
+            }
+            reader.endObject();
+            return new Embedding(embedding, usage);
+        }
+
+        private static float[] readVector(JsonReader reader) throws IOException {
+            float[] vector = new float[INITIAL_CAPACITY];
+            int length = 0;
+            reader.beginArray();
+            while (reader.hasNext()) {
+                if (length == vector.length) {
+                    vector = Arrays.copyOf(vector, length * 2);
+                }
+                vector[length++] = (float) reader.nextDouble();
+            }
+            reader.endArray();
+            return length == vector.length ? vector : Arrays.copyOf(vector, length);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package be.stealingdapenta.coreai.service.codec;
+
+/**
+ * The {@code usage} block of a completion response.
+ *
+ * @param promptTokens     tokens in the request's messages
+ * @param completionTokens tokens in the generated reply
+ * @param totalTokens      the sum of both
+ * @param cachedTokens     prompt tokens served from the provider's prompt cache ({@code prompt_tokens_details.cached_tokens})
+ */
+public record TokenUsage(int promptTokens, int completionTokens, int totalTokens, int cachedTokens) {
+
+    public static final TokenUsage NONE = new TokenUsage(0, 0, 0, 0);
+
+    /**
+     * @return whether the response reported any usage
+     */
+    public boolean isPresent() {
+        return promptTokens > 0 || completionTokens > 0;
+    }
+}
@@ -0,0 +1,234 @@
+package be.stealingdapenta.coreai.service.tokenizer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Byte-level BPE token counter compatible with OpenAI's tiktoken encodings.
+ * <p>
+ * Ranks are read from the tiktoken file format (one {@code <base64 token> <rank>} per line). Text is split with the encoding's pre-tokenizer pattern, and each piece is merged pairwise by lowest rank, exactly like tiktoken. Lookups hash byte
+ * ranges directly in an open-addressing table, so counting allocates no per-token objects.
+ * <p>
+ * Thread-safe: the rank table is immutable after loading and scratch buffers are per thread.
+ */
+public class BpeTokenizer {
+
+    private final Pattern pattern;
+    private final RankTable ranks;
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    private BpeTokenizer(Pattern pattern, RankTable ranks) {
+        this.pattern = pattern;
+        this.ranks = ranks;
+    }
+
+    /**
+     * Loads a tokenizer from a tiktoken rank file.
+     *
+     * @param ranksFile the {@code .tiktoken} content; closed by the caller
+     * @param pattern   the encoding's pre-tokenizer pattern
+     * @return the tokenizer
+     * @throws IOException if the file can't be read or is malformed
+     */
+    public static BpeTokenizer load(InputStream ranksFile, Pattern pattern) throws IOException {
+        RankTable table = new RankTable(1 << 18);
+        Base64.Decoder base64 = Base64.getDecoder();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(ranksFile, StandardCharsets.US_ASCII));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isBlank()) {
+                continue;
+            }
+            int space = line.indexOf(' ');
+            if (space < 0) {
+                throw new IOException("Malformed rank line: " + line);
+            }
+            try {
+                table.put(base64.decode(line.substring(0, space)), Integer.parseInt(line.substring(space + 1)
+                                                                                          .trim()));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Malformed rank line: " + line, e);
+            }
+        }
+        return new BpeTokenizer(pattern, table);
+    }
+
+    /**
+     * @param text any text
+     * @return the number of tokens the encoding produces for it
+     */
+    public int count(CharSequence text) {
+        Scratch buffers = scratch.get();
+        Matcher matcher = pattern.matcher(text);
+        int tokens = 0;
+        while (matcher.find()) {
+            int length = buffers.encode(text, matcher.start(), matcher.end());
+            tokens += countPiece(buffers, length);
+        }
+        return tokens;
+    }
+
+    /**
+     * Merges one piece's bytes by rank and counts the resulting tokens. {@code starts[i]} is the first byte of part {@code i}; merging removes boundaries until no adjacent pair is a known token.
+     */
+    private int countPiece(Scratch buffers, int length) {
+        byte[] bytes = buffers.bytes;
+        if (ranks.get(bytes, 0, length) >= 0) {
+            return 1;
+        }
+        int[] starts = buffers.starts(length + 1);
+        int parts = length;
+        for (int i = 0; i <= length; i++) {
+            starts[i] = i;
+        }
+        while (parts > 1) {
+            int bestRank = Integer.MAX_VALUE;
+            int bestIndex = -1;
+            for (int i = 0; i < parts - 1; i++) {
+                int rank = ranks.get(bytes, starts[i], starts[i + 2]);
+                if (rank >= 0 && rank < bestRank) {
+                    bestRank = rank;
+                    bestIndex = i;
+                }
+            }
+            if (bestIndex < 0) {
+                break;
+            }
+            System.arraycopy(starts, bestIndex + 2, starts, bestIndex + 1, parts - bestIndex - 1);
+            parts--;
+        }
+        return parts;
+    }
+
+    /**
+     * Reusable per-thread buffers for a piece's UTF-8 bytes and part boundaries.
+     */
+    private static final class Scratch {
+
+        private byte[] bytes = new byte[256];
+        private int[] starts = new int[257];
+
+        /**
+         * Encodes {@code text[from, to)} as UTF-8 into {@link #bytes} and returns the byte length.
+         */
+        private int encode(CharSequence text, int from, int to) {
+            int length = 0;
+            for (int i = from; i < to; i++) {
+                if (bytes.length - length < 4) {
+                    bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                }
+                char c = text.charAt(i);
+                if (c < 0x80) {
+                    bytes[length++] = (byte) c;
+                } else if (c < 0x800) {
+                    bytes[length++] = (byte) (0xC0 | c >> 6);
+                    bytes[length++] = (byte) (0x80 | c & 0x3F);
+                } else if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                    bytes[length++] = (byte) (0xF0 | codePoint >> 18);
+                    bytes[length++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                    bytes[length++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                    bytes[length++] = (byte) (0x80 | codePoint & 0x3F);
+                } else {
+                    char encoded = Character.isSurrogate(c) ? '?' : c; // lone surrogates encode as '?', like String.getBytes
+                    if (encoded < 0x80) {
+                        bytes[length++] = (byte) encoded;
+                    } else {
+                        bytes[length++] = (byte) (0xE0 | encoded >> 12);
+                        bytes[length++] = (byte) (0x80 | encoded >> 6 & 0x3F);
+                        bytes[length++] = (byte) (0x80 | encoded & 0x3F);
+                    }
+                }
+            }
+            return length;
+        }
+
+        private int[] starts(int required) {
+            if (starts.length < required) {
+                starts = new int[Math.max(required, starts.length * 2)];
+            }
+            return starts;
+        }
+    }
+
+    /**
+     * Open-addressing hash table from byte strings to ranks, queried by byte range without copying.
+     */
+    private static final class RankTable {
+
+        private byte[][] keys;
+        private int[] values;
+        private int size;
+
+        private RankTable(int capacity) {
+            keys = new byte[capacity][];
+            values = new int[capacity];
+        }
+
+        private void put(byte[] key, int rank) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int slot = hash(key, 0, key.length) & mask;
+            while (keys[slot] != null) {
+                if (equalsRange(keys[slot], key, 0, key.length)) {
+                    values[slot] = rank;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = rank;
+            size++;
+        }
+
+        /**
+         * @return the rank of {@code bytes[from, to)}, or -1 if it is not a token
+         */
+        private int get(byte[] bytes, int from, int to) {
+            int mask = keys.length - 1;
+            int slot = hash(bytes, from, to) & mask;
+            byte[] key;
+            while ((key = keys[slot]) != null) {
+                if (equalsRange(key, bytes, from, to)) {
+                    return values[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private void grow() {
+            byte[][] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new byte[oldKeys.length * 2][];
+            values = new int[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int hash(byte[] bytes, int from, int to) {
+            int hash = 0x811C9DC5; // FNV-1a
+            for (int i = from; i < to; i++) {
+                hash = (hash ^ (bytes[i] & 0xFF)) * 0x01000193;
+            }
+            return hash ^ hash >>> 16;
+        }
+
+        private static boolean equalsRange(byte[] key, byte[] bytes, int from, int to) {
+            return key.length == to - from && Arrays.equals(key, 0, key.length, bytes, from, to);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package be.stealingdapenta.coreai.service.tokenizer;
+
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * The tiktoken encodings used by OpenAI's chat models, with their pre-tokenizer patterns.
+ */
+public enum Encoding {
+    CL100K_BASE("cl100k_base", "(?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+"),
+    O200K_BASE("o200k_base", String.join("|", "[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]*[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]+(?i:'s|'t|'re|'ve|'m|'ll|'d)?",
+                                           "[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]+[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]*(?i:'s|'t|'re|'ve|'m|'ll|'d)?", "\\p{N}{1,3}", " ?[^\\s\\p{L}\\p{N}]+[\\r\\n/]*",
+                                           "\\s*[\\r\\n]+", "\\s+(?!\\S)", "\\s+"));
+
+    private static final Pattern O_SERIES = Pattern.compile("o\\d.*"); // o1, o3-mini, o4-mini, ...
+
+    private final String id;
+    private final Pattern pattern;
+
+    Encoding(String id, String regex) {
+        this.id = id;
+        this.pattern = Pattern.compile(regex, Pattern.UNICODE_CHARACTER_CLASS);
+    }
+
+    /**
+     * @param model a chat model ID
+     * @return the encoding the model tokenizes with; newer model families use o200k_base
+     */
+    public static Encoding forModel(String model) {
+        String id = model == null ? "" : model.toLowerCase(Locale.ROOT);
+        if (id.startsWith("gpt-4o") || id.startsWith("gpt-4.1") || id.startsWith("gpt-4.5") || id.startsWith("gpt-5") || O_SERIES.matcher(id)
+                                                                                                                                 .matches() || id.startsWith("chatgpt-4o")) {
+            return O200K_BASE;
+        }
+        return CL100K_BASE;
+    }
+
+    public String id() {
+        return id;
+    }
+
+    public Pattern pattern() {
+        return pattern;
+    }
+
+    /**
+     * @return the resource name of the rank file, e.g. {@code tokenizer/cl100k_base.tiktoken}
+     */
+    public String resource() {
+        return "tokenizer/" + id + ".tiktoken";
+    }
+}
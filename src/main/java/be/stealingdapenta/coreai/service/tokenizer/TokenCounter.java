@@ -0,0 +1,112 @@
+package be.stealingdapenta.coreai.service.tokenizer;
+
+import static be.stealingdapenta.coreai.CoreAI.CORE_AI_LOGGER;
+import static be.stealingdapenta.coreai.manager.ExecutorManager.EXECUTOR_MANAGER;
+
+import be.stealingdapenta.coreai.CoreAI;
+import be.stealingdapenta.coreai.service.ChatMessage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Matcher;
+
+/**
+ * Singleton that counts tokens the way the target model does.
+ * <p>
+ * Rank files are looked up as {@code plugins/CoreAI/tokenizer/<encoding>.tiktoken} first, then as the resource of the same name bundled in the jar (MIT-licensed, see {@code tokenizer/LICENSE-tiktoken.txt}), and loaded on the I/O executor at startup. Until a file is loaded, or when none is available, counts
+ * fall back to an estimate from the same pre-tokenizer: every piece counts as at least one token, plus one per four bytes beyond that.
+ */
+public enum TokenCounter {
+    TOKEN_COUNTER;
+
+    /**
+     * Framing tokens the chat format adds around every message ({@code <|start|>role ... <|end|>}).
+     */
+    public static final int MESSAGE_OVERHEAD = 4;
+    /**
+     * Tokens that prime the assistant's reply.
+     */
+    public static final int REPLY_PRIMING = 3;
+
+    private final Map<Encoding, CompletableFuture<BpeTokenizer>> tokenizers = new EnumMap<>(Encoding.class);
+
+    /**
+     * Starts loading every encoding's rank file in the background.
+     */
+    public synchronized void preload() {
+        for (Encoding encoding : Encoding.values()) {
+            tokenizers.computeIfAbsent(encoding, this::load);
+        }
+    }
+
+    /**
+     * @param model the model whose encoding to use
+     * @param text  the text to count
+     * @return the exact token count, or an estimate if the encoding's ranks are unavailable
+     */
+    public int count(String model, CharSequence text) {
+        Encoding encoding = Encoding.forModel(model);
+        BpeTokenizer tokenizer = tokenizer(encoding);
+        return tokenizer != null ? tokenizer.count(text) : estimate(encoding, text);
+    }
+
+    /**
+     * @param model   the model whose encoding to use
+     * @param message a chat message
+     * @return the tokens the message occupies in a request, framing included
+     */
+    public int count(String model, ChatMessage message) {
+        return MESSAGE_OVERHEAD + count(model, message.content());
+    }
+
+    /**
+     * @param encoding an encoding
+     * @return whether counts for the encoding are exact rather than estimated
+     */
+    public boolean isExact(Encoding encoding) {
+        return tokenizer(encoding) != null;
+    }
+
+    private synchronized BpeTokenizer tokenizer(Encoding encoding) {
+        CompletableFuture<BpeTokenizer> future = tokenizers.get(encoding);
+        return future == null ? null : future.getNow(null);
+    }
+
+    private CompletableFuture<BpeTokenizer> load(Encoding encoding) {
+        return CompletableFuture.supplyAsync(() -> {
+            File override = new File(CoreAI.getInstance()
+                                           .getDataFolder(), encoding.resource());
+            try (InputStream in = override.isFile() ? new FileInputStream(override) : TokenCounter.class.getClassLoader()
+                                                                                                         .getResourceAsStream(encoding.resource())) {
+                if (in == null) {
+                    CORE_AI_LOGGER.info("No " + encoding.id() + " ranks found; estimating token counts for its models.");
+                    return null;
+                }
+                BpeTokenizer tokenizer = BpeTokenizer.load(in, encoding.pattern());
+                CORE_AI_LOGGER.info("Loaded the " + encoding.id() + " tokenizer.");
+                return tokenizer;
+            } catch (IOException e) {
+                CORE_AI_LOGGER.warning("Failed to load the " + encoding.id() + " tokenizer: " + e.getMessage());
+                return null;
+            }
+        }, EXECUTOR_MANAGER.io());
+    }
+
+    private static int estimate(Encoding encoding, CharSequence text) {
+        Matcher matcher = encoding.pattern()
+                                  .matcher(text);
+        int tokens = 0;
+        while (matcher.find()) {
+            int bytes = text.subSequence(matcher.start(), matcher.end())
+                            .toString()
+                            .getBytes(StandardCharsets.UTF_8).length;
+            tokens += 1 + Math.max(0, bytes - 1) / 4;
+        }
+        return tokens;
+    }
+}
@@ -8,8 +8,11 @@ import static net.kyori.adventure.text.format.NamedTextColor.GRAY;
 import static net.kyori.adventure.text.format.NamedTextColor.GREEN;
 import static net.kyori.adventure.text.format.NamedTextColor.RED;
 
+import be.stealingdapenta.coreai.service.JobRejectedException;
+import be.stealingdapenta.coreai.service.JobType;
 import be.stealingdapenta.coreai.service.OpenAiException;
 import java.io.IOException;
+import java.util.Collection;
 import net.kyori.adventure.text.Component;
 import org.bukkit.entity.Player;
 
@@ -53,6 +56,25 @@ public final class ChatMessages {
                                                                                  .append("\n It will not be shown in chat or stored in the server logs.", GRAY)
                                                                                  .append("\n It will be encrypted before storage.", GRAY)
                                                                                  .build();
+    public static final Component QUOTA_EXCEEDED = TextBuilder.TEXT_BUILDER.reset()
+                                                                           .coreAIPrefix()
+                                                                           .append("You have used up today's AI quota on this server.", RED)
+                                                                           .append(" It resets at midnight, or set your own key with ", GRAY)
+                                                                           .append("setapikey", GOLD)
+                                                                           .append(".", GRAY)
+                                                                           .build();
+    public static final Component CHAT_QUEUE_FULL = TextBuilder.TEXT_BUILDER.reset()
+                                                                            .coreAIPrefix()
+                                                                            .append("Your earlier questions are still being answered. Please wait for a reply before asking more.", RED)
+                                                                            .build();
+    public static final Component NOTHING_TO_CANCEL = TextBuilder.TEXT_BUILDER.reset()
+                                                                              .coreAIPrefix()
+                                                                              .append("You have no AI requests in progress.", GRAY)
+                                                                              .build();
+    public static final Component HISTORY_CLEARED = TextBuilder.TEXT_BUILDER.reset()
+                                                                            .coreAIPrefix()
+                                                                            .append("Your conversation has been cleared. The AI no longer remembers it.", AQUA)
+                                                                            .build();
     public static final Component FETCHING_MODELS = TextBuilder.TEXT_BUILDER.reset()
                                                                             .coreAIPrefix()
                                                                             .append("Fetching available models...", AQUA)
@@ -118,6 +140,23 @@ public final class ChatMessages {
                                        .build();
     }
 
+    /**
+     * Builds an error message for a failed asynchronous request, whatever its cause.
+     *
+     * @param cause The unwrapped failure
+     * @return A formatted Component describing the failure
+     */
+    public static Component failure(Throwable cause) {
+        if (cause instanceof OpenAiException oae) {
+            return openAiError(oae);
+        }
+        return TextBuilder.TEXT_BUILDER.reset()
+                                       .coreAIPrefix()
+                                       .append("Error: ", RED)
+                                       .append(String.valueOf(cause.getMessage()), GRAY)
+                                       .build();
+    }
+
     /**
      * @param response The response from the AI model
      * @return A formatted Component for the AI response
@@ -129,6 +168,16 @@ public final class ChatMessages {
                                        .build();
     }
 
+    /**
+     * @param chunk A follow-up part of a streamed AI response
+     * @return A formatted Component for the chunk, without repeating the prefix
+     */
+    public static Component chatResponseContinuation(String chunk) {
+        return TextBuilder.TEXT_BUILDER.reset()
+                                       .append(chunk, DARK_AQUA)
+                                       .build();
+    }
+
     /**
      * @param player The player who sent the prompt
      * @param prompt The prompt sent by the player
@@ -177,6 +226,38 @@ public final class ChatMessages {
                                        .build();
     }
 
+    /**
+     * @param type     the queue the job waits in
+     * @param position the job's place in line, or 0 once it has started
+     * @return an action bar line with the position, or an empty one to clear it
+     */
+    public static Component queuePosition(JobType type, int position) {
+        if (position <= 0) {
+            return Component.empty();
+        }
+        return TextBuilder.TEXT_BUILDER.reset()
+                                       .append("Waiting for a free " + type.id() + " slot: ", GRAY)
+                                       .append("#" + position, AQUA)
+                                       .append(" in line", GRAY)
+                                       .build();
+    }
+
+    public static Component jobRejected(JobRejectedException rejection) {
+        return TextBuilder.TEXT_BUILDER.reset()
+                                       .coreAIPrefix()
+                                       .append(rejection.isTooLarge() ? "That request is too large for this server. Try a smaller map grid." : "The server is busy with too many AI requests. Please try again in a moment.", RED)
+                                       .build();
+    }
+
+    public static Component jobsCancelled(int count) {
+        return TextBuilder.TEXT_BUILDER.reset()
+                                       .coreAIPrefix()
+                                       .append("Cancelled ", GREEN)
+                                       .append(count + "", AQUA)
+                                       .append(" AI request(s) in progress.", GREEN)
+                                       .build();
+    }
+
     public static Component imageMapCreated(int count) {
         return TextBuilder.TEXT_BUILDER.reset()
                                        .coreAIPrefix()
@@ -213,4 +294,65 @@ public final class ChatMessages {
                                        .build();
     }
 
+    /**
+     * @param section the name of the stats section
+     * @return A formatted header Component for a /aistats section
+     */
+    public static Component statsHeader(String section) {
+        return TextBuilder.TEXT_BUILDER.reset()
+                                       .coreAIPrefix()
+                                       .append("Stats: ", AQUA)
+                                       .append(section, DARK_AQUA)
+                                       .build();
+    }
+
+    /**
+     * @param label the metric name
+     * @param value the metric value
+     * @return A formatted Component for a single metric line
+     */
+    public static Component statsLine(String label, Object value) {
+        return TextBuilder.TEXT_BUILDER.reset()
+                                       .append("  " + label + ": ", GRAY)
+                                       .append(String.valueOf(value), AQUA)
+                                       .build();
+    }
+
+    /**
+     * @param section  the requested section
+     * @param sections all available sections
+     * @return A formatted error Component listing the valid sections
+     */
+    public static Component unknownStatsSection(String section, Collection<String> sections) {
+        return TextBuilder.TEXT_BUILDER.reset()
+                                       .coreAIPrefix()
+                                       .append("Unknown stats section: " + section + ". Available: ", RED)
+                                       .append(String.join(", ", sections), GRAY)
+                                       .build();
+    }
+
+    /**
+     * @param endpoints the endpoints whose breakers were closed
+     * @return A formatted confirmation Component for {@code /aistats breakers reset}
+     */
+    public static Component breakersReset(Collection<String> endpoints) {
+        return TextBuilder.TEXT_BUILDER.reset()
+                                       .coreAIPrefix()
+                                       .append("Closed the circuit breaker of: ", GREEN)
+                                       .append(String.join(", ", endpoints), GRAY)
+                                       .build();
+    }
+
+    /**
+     * @param endpoint  the requested endpoint
+     * @param endpoints all endpoints
+     * @return A formatted error Component listing the valid endpoints
+     */
+    public static Component unknownEndpoint(String endpoint, Collection<String> endpoints) {
+        return TextBuilder.TEXT_BUILDER.reset()
+                                       .coreAIPrefix()
+                                       .append("Unknown endpoint: " + endpoint + ". Available: ", RED)
+                                       .append(String.join(", ", endpoints), GRAY)
+                                       .build();
+    }
 }
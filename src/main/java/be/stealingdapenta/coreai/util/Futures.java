@@ -0,0 +1,41 @@
+package be.stealingdapenta.coreai.util;
+
+import be.stealingdapenta.coreai.CoreAI;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import org.bukkit.Bukkit;
+
+/**
+ * Helpers for chaining {@link java.util.concurrent.CompletableFuture} continuations back onto the server.
+ */
+public final class Futures {
+
+    private static final Executor MAIN_THREAD = task -> Bukkit.getScheduler()
+                                                              .runTask(CoreAI.getInstance(), task);
+
+    private Futures() {
+        // Utility class
+    }
+
+    /**
+     * @return an executor that runs continuations on the server's main thread during the next tick
+     */
+    public static Executor mainThread() {
+        return MAIN_THREAD;
+    }
+
+    /**
+     * Strips the wrappers that {@link java.util.concurrent.CompletableFuture} puts around the original failure.
+     *
+     * @param error the throwable handed to a continuation
+     * @return the root cause that was actually thrown
+     */
+    public static Throwable unwrap(Throwable error) {
+        Throwable cause = error;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+}
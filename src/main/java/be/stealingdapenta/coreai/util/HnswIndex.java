@@ -0,0 +1,348 @@
+package be.stealingdapenta.coreai.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+
+/**
+ * Approximate nearest-neighbour index over fixed-length float vectors: a hierarchical navigable small world (HNSW) graph, using cosine similarity.
+ * <p>
+ * Vectors are normalized on the way in, so similarity is a plain dot product. Nodes are removed lazily: a removed node stays in the graph as a waypoint but is never returned. Callers rebuild the index once too many nodes are removed.
+ * <p>
+ * Not thread-safe; callers synchronize.
+ */
+public class HnswIndex {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int dimensions;
+    private final int maxLinks;
+    private final int maxLinksBase;
+    private final int efConstruction;
+    private final double levelFactor;
+    private final SplittableRandom random = new SplittableRandom(0x5EED);
+
+    private float[][] vectors = new float[INITIAL_CAPACITY][];
+    private int[][][] links = new int[INITIAL_CAPACITY][][];
+    private boolean[] removed = new boolean[INITIAL_CAPACITY];
+    private int[] visitedAt = new int[INITIAL_CAPACITY];
+    private int visitGeneration;
+    private int size;
+    private int removedCount;
+    private int entryPoint = -1;
+    private int topLevel = -1;
+
+    /**
+     * @param dimensions     length of every vector
+     * @param maxLinks       neighbours kept per node on the upper levels; the bottom level keeps twice as many
+     * @param efConstruction candidate list size while inserting; higher builds a better graph, slower
+     */
+    public HnswIndex(int dimensions, int maxLinks, int efConstruction) {
+        this.dimensions = dimensions;
+        this.maxLinks = maxLinks;
+        this.maxLinksBase = maxLinks * 2;
+        this.efConstruction = efConstruction;
+        this.levelFactor = 1 / Math.log(maxLinks);
+    }
+
+    /**
+     * Inserts a vector.
+     *
+     * @param vector the vector; copied and normalized
+     * @return the node ID, stable until the index is rebuilt
+     */
+    public int add(float[] vector) {
+        if (vector.length != dimensions) {
+            throw new IllegalArgumentException("Expected " + dimensions + " dimensions, got " + vector.length);
+        }
+        int node = size++;
+        ensureCapacity(size);
+        vectors[node] = normalized(vector);
+        int level = (int) (-Math.log(1 - random.nextDouble()) * levelFactor);
+        links[node] = new int[level + 1][];
+        for (int l = 0; l <= level; l++) {
+            links[node][l] = new int[0];
+        }
+
+        if (entryPoint < 0) {
+            entryPoint = node;
+            topLevel = level;
+            return node;
+        }
+
+        float[] query = vectors[node];
+        int nearest = entryPoint;
+        for (int l = topLevel; l > level; l--) {
+            nearest = greedyClosest(query, nearest, l);
+        }
+        for (int l = Math.min(level, topLevel); l >= 0; l--) {
+            List<Candidate> candidates = searchLevel(query, nearest, efConstruction, l);
+            int capacity = l == 0 ? maxLinksBase : maxLinks;
+            int[] neighbours = selectNeighbours(candidates, capacity);
+            links[node][l] = neighbours;
+            for (int neighbour : neighbours) {
+                connect(neighbour, node, l, capacity);
+            }
+            nearest = candidates.getFirst()
+                                .node();
+        }
+        if (level > topLevel) {
+            topLevel = level;
+            entryPoint = node;
+        }
+        return node;
+    }
+
+    /**
+     * Marks a node as removed; it is skipped by every later search.
+     *
+     * @param node the node ID returned by {@link #add(float[])}
+     */
+    public void remove(int node) {
+        if (node >= 0 && node < size && !removed[node]) {
+            removed[node] = true;
+            removedCount++;
+        }
+    }
+
+    /**
+     * Finds the live nodes most similar to the query.
+     *
+     * @param query the query vector; not modified
+     * @param k     maximum number of results
+     * @param ef    candidate list size; higher is more accurate, slower
+     * @return up to {@code k} results, most similar first
+     */
+    public List<Candidate> search(float[] query, int k, int ef) {
+        if (entryPoint < 0 || size == removedCount) {
+            return List.of();
+        }
+        float[] normalizedQuery = normalized(query);
+        int nearest = entryPoint;
+        for (int l = topLevel; l > 0; l--) {
+            nearest = greedyClosest(normalizedQuery, nearest, l);
+        }
+        List<Candidate> results = new ArrayList<>(k);
+        for (Candidate candidate : searchLevel(normalizedQuery, nearest, Math.max(ef, k), 0)) {
+            if (!removed[candidate.node()]) {
+                results.add(candidate);
+                if (results.size() == k) {
+                    break;
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @param node a node ID
+     * @return the stored, normalized vector of the node
+     */
+    public float[] vector(int node) {
+        return vectors[node];
+    }
+
+    public int dimensions() {
+        return dimensions;
+    }
+
+    /**
+     * @return nodes in the graph, including removed ones
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return nodes that were removed but still occupy the graph
+     */
+    public int removedCount() {
+        return removedCount;
+    }
+
+    /**
+     * @return approximate heap bytes held by vectors and links
+     */
+    public long estimatedBytes() {
+        return (long) size * nodeBytes();
+    }
+
+    /**
+     * @return approximate heap bytes the nodes not removed will hold once the graph is rebuilt without the removed ones
+     */
+    public long liveBytes() {
+        return (long) (size - removedCount) * nodeBytes();
+    }
+
+    private long nodeBytes() {
+        return dimensions * Float.BYTES + (maxLinksBase + maxLinks) * Integer.BYTES + 64L;
+    }
+
+    /**
+     * Walks one level greedily towards the query and returns the closest node found.
+     */
+    private int greedyClosest(float[] query, int start, int level) {
+        int current = start;
+        float best = similarity(query, vectors[current]);
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            for (int neighbour : linksAt(current, level)) {
+                float score = similarity(query, vectors[neighbour]);
+                if (score > best) {
+                    best = score;
+                    current = neighbour;
+                    improved = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Best-first search on one level, returning up to {@code ef} nodes (removed ones included), most similar first.
+     */
+    private List<Candidate> searchLevel(float[] query, int start, int ef, int level) {
+        int generation = ++visitGeneration;
+        PriorityQueue<Candidate> frontier = new PriorityQueue<>(Comparator.comparingDouble(Candidate::similarity)
+                                                                          .reversed());
+        PriorityQueue<Candidate> best = new PriorityQueue<>(Comparator.comparingDouble(Candidate::similarity));
+        Candidate first = new Candidate(start, similarity(query, vectors[start]));
+        visitedAt[start] = generation;
+        frontier.add(first);
+        best.add(first);
+
+        while (!frontier.isEmpty()) {
+            Candidate current = frontier.poll();
+            if (best.size() >= ef && current.similarity() < best.peek()
+                                                                .similarity()) {
+                break;
+            }
+            for (int neighbour : linksAt(current.node(), level)) {
+                if (visitedAt[neighbour] == generation) {
+                    continue;
+                }
+                visitedAt[neighbour] = generation;
+                Candidate candidate = new Candidate(neighbour, similarity(query, vectors[neighbour]));
+                if (best.size() < ef || candidate.similarity() > best.peek()
+                                                                      .similarity()) {
+                    frontier.add(candidate);
+                    best.add(candidate);
+                    if (best.size() > ef) {
+                        best.poll();
+                    }
+                }
+            }
+        }
+
+        List<Candidate> sorted = new ArrayList<>(best);
+        sorted.sort(Comparator.comparingDouble(Candidate::similarity)
+                              .reversed());
+        return sorted;
+    }
+
+    /**
+     * Picks diverse neighbours: a candidate is preferred when it is closer to the new node than to every neighbour already picked, so links spread in different directions instead of clustering. Remaining slots are filled with the
+     * closest candidates that were passed over.
+     */
+    private int[] selectNeighbours(List<Candidate> candidates, int capacity) {
+        int[] picked = new int[Math.min(capacity, candidates.size())];
+        int count = 0;
+        List<Candidate> passedOver = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            if (count == picked.length) {
+                break;
+            }
+            boolean diverse = true;
+            for (int i = 0; i < count && diverse; i++) {
+                diverse = similarity(vectors[candidate.node()], vectors[picked[i]]) < candidate.similarity();
+            }
+            if (diverse) {
+                picked[count++] = candidate.node();
+            } else {
+                passedOver.add(candidate);
+            }
+        }
+        for (int i = 0; i < passedOver.size() && count < picked.length; i++) {
+            picked[count++] = passedOver.get(i)
+                                        .node();
+        }
+        return picked;
+    }
+
+    /**
+     * Adds a back link from {@code from} to {@code to}. When the node is full, its least similar neighbour is dropped.
+     */
+    private void connect(int from, int to, int level, int capacity) {
+        int[] current = links[from][level];
+        if (current.length < capacity) {
+            int[] extended = Arrays.copyOf(current, current.length + 1);
+            extended[current.length] = to;
+            links[from][level] = extended;
+            return;
+        }
+        float[] origin = vectors[from];
+        int worst = -1;
+        float worstSimilarity = similarity(origin, vectors[to]);
+        for (int i = 0; i < current.length; i++) {
+            float score = similarity(origin, vectors[current[i]]);
+            if (score < worstSimilarity) {
+                worstSimilarity = score;
+                worst = i;
+            }
+        }
+        if (worst >= 0) {
+            current[worst] = to;
+        }
+    }
+
+    private int[] linksAt(int node, int level) {
+        int[][] nodeLinks = links[node];
+        return level < nodeLinks.length ? nodeLinks[level] : new int[0];
+    }
+
+    private void ensureCapacity(int required) {
+        if (required <= vectors.length) {
+            return;
+        }
+        int capacity = Math.max(required, vectors.length * 2);
+        vectors = Arrays.copyOf(vectors, capacity);
+        links = Arrays.copyOf(links, capacity);
+        removed = Arrays.copyOf(removed, capacity);
+        visitedAt = Arrays.copyOf(visitedAt, capacity);
+    }
+
+    private static float similarity(float[] a, float[] b) {
+        float dot = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+        }
+        return dot;
+    }
+
+    private static float[] normalized(float[] vector) {
+        double norm = 0;
+        for (float component : vector) {
+            norm += component * component;
+        }
+        norm = Math.sqrt(norm);
+        float[] copy = new float[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            copy[i] = norm == 0 ? 0 : (float) (vector[i] / norm);
+        }
+        return copy;
+    }
+
+    /**
+     * A search result.
+     *
+     * @param node       the node ID
+     * @param similarity cosine similarity to the query, from -1 to 1
+     */
+    public record Candidate(int node, float similarity) {
+
+    }
+}
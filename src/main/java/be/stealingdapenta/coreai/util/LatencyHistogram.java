@@ -0,0 +1,113 @@
+package be.stealingdapenta.coreai.util;
+
+/**
+ * Log-linear histogram of latencies in milliseconds, accurate to about 6% at any scale, for percentiles over a sliding view of recent samples.
+ * <p>
+ * Every power of two is split into {@value #SUB_BUCKETS} equal buckets; values below {@value #SUB_BUCKETS} ms get a bucket each. Once {@code window} samples have been recorded, all counts are halved, so older samples fade out
+ * and the percentiles follow a changing latency. Thread-safe.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int MAX_EXPONENT = 24; // about 4.6 hours; longer samples share the last bucket
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private final int window;
+    private long total;
+
+    /**
+     * @param window samples after which older samples count half
+     */
+    public LatencyHistogram(int window) {
+        this.window = Math.max(2, window);
+    }
+
+    /**
+     * @param millis a latency; negative values count as 0
+     */
+    public synchronized void record(long millis) {
+        counts[indexOf(Math.max(0, millis))]++;
+        if (++total >= window) {
+            total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] >>= 1;
+                total += counts[i];
+            }
+        }
+    }
+
+    /**
+     * @return samples currently weighed, after halving
+     */
+    public synchronized long count() {
+        return total;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the latency this share of samples stayed at or below, rounded up to its bucket; 0 without samples
+     */
+    public synchronized long percentile(double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    /**
+     * Estimates how long a sample that is known to exceed {@code millis} takes, from the samples that did.
+     *
+     * @param millis the latency already exceeded
+     * @return the average of the samples above it, or -1 when none are
+     */
+    public synchronized long meanAbove(long millis) {
+        long samples = 0;
+        double sum = 0;
+        for (int i = indexOf(Math.max(0, millis)) + 1; i < BUCKETS; i++) {
+            if (counts[i] > 0) {
+                samples += counts[i];
+                sum += counts[i] * (lowerBound(i) + upperBound(i)) / 2.0;
+            }
+        }
+        return samples == 0 ? -1 : Math.round(sum / samples);
+    }
+
+    private static int indexOf(long millis) {
+        if (millis < SUB_BUCKETS) {
+            return (int) millis;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(millis);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (millis >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + sub;
+    }
+
+    private static long lowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return (1L << exponent) + ((long) sub << (exponent - SUB_BUCKET_BITS));
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        return lowerBound(index) + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
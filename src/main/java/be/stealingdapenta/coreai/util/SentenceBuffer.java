@@ -0,0 +1,67 @@
+package be.stealingdapenta.coreai.util;
+
+/**
+ * Accumulates streamed text fragments and releases them in sentence-sized chunks, so players receive readable lines instead of one chat message per token.
+ * <p>
+ * Not thread-safe; feed it from the single thread that reads the stream.
+ */
+public class SentenceBuffer {
+
+    private final StringBuilder pending = new StringBuilder();
+    private final int minChunkLength;
+
+    /**
+     * @param minChunkLength the minimum number of characters a chunk should hold before it is released at a sentence boundary
+     */
+    public SentenceBuffer(int minChunkLength) {
+        this.minChunkLength = minChunkLength;
+    }
+
+    /**
+     * Appends a fragment and returns the text up to the last complete sentence, if enough text has accumulated.
+     *
+     * @param fragment the newly streamed text
+     * @return a chunk ready to be shown, or null if more text is needed
+     */
+    public String append(String fragment) {
+        pending.append(fragment);
+        if (pending.length() < minChunkLength) {
+            return null;
+        }
+        int boundary = lastSentenceBoundary();
+        if (boundary < 0) {
+            return null;
+        }
+        String chunk = pending.substring(0, boundary + 1);
+        pending.delete(0, boundary + 1);
+        return chunk.isBlank() ? null : chunk.trim();
+    }
+
+    /**
+     * Returns whatever is left once the stream has ended.
+     *
+     * @return the remaining text, or null if nothing is left
+     */
+    public String flush() {
+        String rest = pending.toString()
+                             .trim();
+        pending.setLength(0);
+        return rest.isEmpty() ? null : rest;
+    }
+
+    /**
+     * Finds the last position that ends a sentence: a newline, or a terminator followed by whitespace.
+     */
+    private int lastSentenceBoundary() {
+        for (int i = pending.length() - 1; i >= 0; i--) {
+            char c = pending.charAt(i);
+            if (c == '\n') {
+                return i;
+            }
+            if ((c == '.' || c == '!' || c == '?') && i + 1 < pending.length() && Character.isWhitespace(pending.charAt(i + 1))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
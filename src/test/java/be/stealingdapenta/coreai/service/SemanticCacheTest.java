@@ -0,0 +1,182 @@
+package be.stealingdapenta.coreai.service;
+
+import static be.stealingdapenta.coreai.service.SemanticCache.SEMANTIC_CACHE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import be.stealingdapenta.coreai.CoreAI;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Runs the semantic cache against a local stand-in embeddings server, which returns the vectors the tests assign to each input.
+ */
+class SemanticCacheTest {
+
+    private static final int DIMENSIONS = 16;
+    private static final Map<String, float[]> VECTORS = new ConcurrentHashMap<>();
+
+    @TempDir
+    static Path dataFolder;
+
+    private static HttpServer server;
+
+    @BeforeAll
+    static void startStandIn() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v1/embeddings", SemanticCacheTest::embed);
+        server.start();
+
+        YamlConfiguration config = new YamlConfiguration();
+        config.set("openai.semantic-cache.enabled", true);
+        config.set("openai.semantic-cache.embeddings-url", "http://127.0.0.1:" + server.getAddress()
+                                                                                     .getPort() + "/v1/embeddings");
+        config.set("openai.semantic-cache.embedding-model", "stand-in");
+        config.set("openai.semantic-cache.similarity-threshold", 0.9);
+        CoreAI plugin = mock(CoreAI.class);
+        when(plugin.getConfig()).thenReturn(config);
+        when(plugin.getDataFolder()).thenReturn(dataFolder.toFile());
+        Field instance = CoreAI.class.getDeclaredField("instance");
+        instance.setAccessible(true);
+        instance.set(null, plugin);
+        CoreAI.CORE_AI_LOGGER = Logger.getLogger(SemanticCacheTest.class.getName());
+    }
+
+    @AfterAll
+    static void stopStandIn() {
+        server.stop(0);
+    }
+
+    /**
+     * Answers with the input's assigned vector, or an axis of its own for inputs without one.
+     */
+    private static void embed(HttpExchange exchange) throws IOException {
+        String request = new String(exchange.getRequestBody()
+                                            .readAllBytes(), StandardCharsets.UTF_8);
+        float[] vector = VECTORS.entrySet()
+                                .stream()
+                                .filter(entry -> request.contains("\"" + entry.getKey() + "\""))
+                                .map(Map.Entry::getValue)
+                                .findFirst()
+                                .orElseGet(() -> axis(Math.floorMod(request.hashCode(), DIMENSIONS)));
+        StringBuilder embedding = new StringBuilder();
+        for (float component : vector) {
+            embedding.append(embedding.isEmpty() ? "" : ",")
+                     .append(component);
+        }
+        byte[] response = ("{\"data\":[{\"embedding\":[" + embedding + "]}],\"usage\":{\"prompt_tokens\":3,\"total_tokens\":3}}").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders()
+                .set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, response.length);
+        exchange.getResponseBody()
+                .write(response);
+        exchange.close();
+    }
+
+    private static float[] axis(int dimension) {
+        float[] vector = new float[DIMENSIONS];
+        vector[dimension] = 1;
+        return vector;
+    }
+
+    private static float[] near(int dimension, float tilt) {
+        float[] vector = axis(dimension);
+        vector[(dimension + 1) % DIMENSIONS] = tilt;
+        return vector;
+    }
+
+    private static String ask(String apiKey, String prompt, AtomicInteger upstreamCalls, String reply) throws Exception {
+        AiJob job = new AiJob(UUID.randomUUID(), prompt, 1);
+        Function<AiJob, CompletableFuture<String>> upstream = call -> {
+            upstreamCalls.incrementAndGet();
+            return CompletableFuture.completedFuture(reply);
+        };
+        String answer = SEMANTIC_CACHE.getOrCompute(apiKey, "gpt-test", List.of(), prompt, job, () -> true, upstream)
+                                      .get(10, TimeUnit.SECONDS);
+        Thread.sleep(50); // the miss is stored once its embedding is matched
+        return answer;
+    }
+
+    @Test
+    void reusesAReplyForAPromptWithTheSameMeaning() throws Exception {
+        VECTORS.put("how do I make a beacon", near(0, 0.05f));
+        VECTORS.put("beacon recipe?", near(0, 0.1f));
+        AtomicInteger upstreamCalls = new AtomicInteger();
+
+        assertEquals("Use a nether star.", ask("key-a", "how do I make a beacon", upstreamCalls, "Use a nether star."));
+        assertEquals("Use a nether star.", ask("key-a", "beacon recipe?", upstreamCalls, "unused"));
+        assertEquals(1, upstreamCalls.get(), "a hit must not call upstream");
+    }
+
+    @Test
+    void callsUpstreamForAPromptWithAnotherMeaning() throws Exception {
+        VECTORS.put("how do I tame a wolf", axis(2));
+        VECTORS.put("how do I tame a cat", axis(3));
+        AtomicInteger upstreamCalls = new AtomicInteger();
+
+        ask("key-b", "how do I tame a wolf", upstreamCalls, "Bones.");
+        assertEquals("Fish.", ask("key-b", "how do I tame a cat", upstreamCalls, "Fish."));
+        assertEquals(2, upstreamCalls.get());
+    }
+
+    @Test
+    void neverSharesRepliesAcrossApiKeys() throws Exception {
+        VECTORS.put("where are diamonds", axis(4));
+        AtomicInteger upstreamCalls = new AtomicInteger();
+
+        ask("key-c", "where are diamonds", upstreamCalls, "Deep down.");
+        assertEquals("Below y=0.", ask("key-d", "where are diamonds", upstreamCalls, "Below y=0."));
+        assertEquals(2, upstreamCalls.get());
+    }
+
+    @Test
+    void findsAMatchCrowdedOutByOtherScopes() throws Exception {
+        VECTORS.put("crowded prompt", axis(5));
+        VECTORS.put("crowded prompt, reworded", near(5, 0.1f));
+        AtomicInteger upstreamCalls = new AtomicInteger();
+        ask("key-own", "crowded prompt, reworded", upstreamCalls, "own reply");
+        for (int i = 0; i < 12; i++) {
+            ask("key-other-" + i, "crowded prompt", upstreamCalls, "other reply " + i); // all nearer than the own entry
+        }
+
+        assertEquals("own reply", ask("key-own", "crowded prompt", upstreamCalls, "unused"));
+        assertEquals(13, upstreamCalls.get());
+    }
+
+    @Test
+    void savesByReplacingTheFileInOneStep() throws Exception {
+        VECTORS.put("what is redstone", axis(6));
+        ask("key-e", "what is redstone", new AtomicInteger(), "Wiring.");
+
+        SEMANTIC_CACHE.save();
+
+        File file = dataFolder.resolve("semantic_cache.bin")
+                              .toFile();
+        assertTrue(file.length() > 0);
+        assertFalse(Files.exists(dataFolder.resolve("semantic_cache.bin.tmp")));
+    }
+}